@@ -0,0 +1,98 @@
+package xdi2.benchmarks.mongodb;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import xdi2.core.impl.json.mongodb.MongoDBJSONConverter;
+import xdi2.core.impl.json.mongodb.MongoDBJSONStore;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.mongodb.util.JSON;
+
+/**
+ * Cost of converting context objects and keys between Gson and MongoDB,
+ * compared with the JSON string round-trips used before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MongoDBJSONConverterBenchmark {
+
+	private static final Gson gson = new GsonBuilder().disableHtmlEscaping().serializeNulls().create();
+
+	@Param({ "1", "100" })
+	public int relations;
+
+	private JsonObject jsonObject;
+	private Object mongoObject;
+
+	@Setup
+	public void setup() {
+
+		this.jsonObject = MongoDBJSONStoreBenchmark.contextObject(this.relations);
+		this.mongoObject = MongoDBJSONConverter.toMongoElement(this.jsonObject);
+	}
+
+	@Benchmark
+	public Object toMongoElement() {
+
+		return MongoDBJSONConverter.toMongoElement(this.jsonObject);
+	}
+
+	@Benchmark
+	public Object toMongoElementText() {
+
+		return JSON.parse(gson.toJson(this.jsonObject));
+	}
+
+	@Benchmark
+	public Object fromMongoElement() throws IOException {
+
+		return MongoDBJSONConverter.fromMongoElement(this.mongoObject);
+	}
+
+	@Benchmark
+	public Object fromMongoElementText() throws IOException {
+
+		StringBuilder builder = new StringBuilder();
+		JSON.serialize(this.mongoObject, builder);
+
+		return gson.getAdapter(JsonArray.class).fromJson("[" + builder.toString() + "]").get(0);
+	}
+
+	@Benchmark
+	public Object toMongoKey() {
+
+		return MongoDBJSONConverter.toMongoKey("$is#friend");
+	}
+
+	@Benchmark
+	public Object fromMongoKey() {
+
+		return MongoDBJSONConverter.fromMongoKey("-\\$is#friend");
+	}
+
+	@Benchmark
+	public Object toMongoStartsWithCondition() {
+
+		return MongoDBJSONStore.toMongoStartsWithCondition("=alice[<#email>]<@~0>");
+	}
+}
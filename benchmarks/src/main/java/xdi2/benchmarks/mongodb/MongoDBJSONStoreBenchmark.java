@@ -0,0 +1,145 @@
+package xdi2.benchmarks.mongodb;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import xdi2.core.impl.json.mongodb.MongoDBJSONGraphFactory;
+import xdi2.core.impl.json.mongodb.MongoDBJSONStore;
+
+import com.github.fakemongo.Fongo;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.mongodb.MongoClient;
+
+/**
+ * Latency of the <code>MongoDBJSONStore</code> operations, against an in-process MongoDB stand-in.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MongoDBJSONStoreBenchmark {
+
+	public static final String GRAPH = "(=!:uuid:1111)";
+
+	@Param({ "1000" })
+	public int contexts;
+
+	@Param({ "true", "false" })
+	public boolean sharedDatabase;
+
+	private MongoDBJSONStore store;
+	private String[] ids;
+	private JsonObject jsonObject;
+	private int next;
+
+	@Setup
+	public void setup() throws IOException {
+
+		MongoClient mongoClient = new Fongo("xdi2-benchmarks").getMongo();
+
+		String identifier = this.sharedDatabase ? GRAPH : MongoDBJSONGraphFactory.hashIdentifier(GRAPH);
+
+		this.store = new MongoDBJSONStore(mongoClient, identifier, Boolean.FALSE, Boolean.valueOf(this.sharedDatabase));
+		this.store.init();
+
+		this.jsonObject = contextObject(8);
+		this.ids = new String[this.contexts];
+
+		for (int i = 0; i < this.contexts; i++) {
+
+			this.ids[i] = "=alice[<#email>]<@~" + (i / 10) + ">#work" + (i % 10);
+			this.store.save(this.ids[i], this.jsonObject);
+		}
+
+		this.next = 0;
+	}
+
+	@TearDown
+	public void tearDown() {
+
+		this.store.close();
+	}
+
+	@Benchmark
+	public Object load() throws IOException {
+
+		return this.store.load(this.nextId());
+	}
+
+	@Benchmark
+	public Object loadWithPrefix() throws IOException {
+
+		return this.store.loadWithPrefix("=alice[<#email>]<@~1");
+	}
+
+	@Benchmark
+	public void save() throws IOException {
+
+		this.store.save(this.nextId(), this.jsonObject);
+	}
+
+	@Benchmark
+	public void saveToArray() throws IOException {
+
+		this.store.saveToArray(this.nextId(), "/#friend", new JsonPrimitive("=bob"));
+	}
+
+	@Benchmark
+	public void saveToObject() throws IOException {
+
+		this.store.saveToObject(this.nextId(), "&", new JsonPrimitive("alice@example.com"));
+	}
+
+	/**
+	 * Creates a context and deletes it again, so that the data set stays the same.
+	 */
+	@Benchmark
+	public void saveAndDelete() throws IOException {
+
+		String id = "=bob[<#email>]<@~" + (this.next++) + ">";
+
+		this.store.save(id, this.jsonObject);
+		this.store.delete(id);
+	}
+
+	private String nextId() {
+
+		this.next = (this.next + 1) % this.ids.length;
+
+		return this.ids[this.next];
+	}
+
+	static JsonObject contextObject(int relations) {
+
+		JsonObject jsonObject = new JsonObject();
+
+		jsonObject.add("&", new JsonPrimitive("alice@example.com"));
+
+		for (int i = 0; i < relations; i++) {
+
+			JsonArray targets = new JsonArray();
+			targets.add(new JsonPrimitive("=bob" + i));
+			targets.add(new JsonPrimitive("=carol" + i));
+			jsonObject.add("/$is#" + i, targets);
+		}
+
+		return jsonObject;
+	}
+}
@@ -0,0 +1,368 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+
+/**
+ * Shares <code>MongoClient</code> instances between all graphs that use the same servers and options.
+ *
+ * Clients are reference counted. A client that is no longer used by any store is closed after
+ * an idle timeout, unless it was pinned. All clients are closed when the JVM shuts down.
+ */
+public class MongoClientRegistry {
+
+	private static final Logger log = LoggerFactory.getLogger(MongoClientRegistry.class);
+
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000L;
+
+	private static final ConcurrentMap<Key, Entry> entriesByKey = new ConcurrentHashMap<Key, Entry> ();
+	private static final ConcurrentMap<MongoClient, Entry> entriesByClient = new ConcurrentHashMap<MongoClient, Entry> ();
+
+	private static volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private static Timer timer = null;
+
+	static {
+
+		Runtime.getRuntime().addShutdownHook(new Thread("MongoClientRegistry shutdown") {
+
+			@Override
+			public void run() {
+
+				shutdown();
+			}
+		});
+	}
+
+	private MongoClientRegistry() { }
+
+	/**
+	 * Returns a shared client for a single server, creating it if necessary.
+	 * Every call must be matched by a call to release() when the client is no longer used.
+	 *
+	 * @param serverAddress the server.
+	 * @param mongoClientOptions the client options, or null for the defaults.
+	 * @return a <code>MongoClient</code>.
+	 */
+	public static MongoClient acquire(ServerAddress serverAddress, MongoClientOptions mongoClientOptions) {
+
+		return acquire(new Key(Collections.singletonList(serverAddress), false, mongoClientOptions));
+	}
+
+	/**
+	 * Returns a shared client for a replica set, creating it if necessary.
+	 * Every call must be matched by a call to release() when the client is no longer used.
+	 *
+	 * @param replicaSet the seed list of the replica set.
+	 * @param mongoClientOptions the client options, or null for the defaults.
+	 * @return a <code>MongoClient</code>.
+	 */
+	public static MongoClient acquire(List<ServerAddress> replicaSet, MongoClientOptions mongoClientOptions) {
+
+		return acquire(new Key(new ArrayList<ServerAddress> (replicaSet), true, mongoClientOptions));
+	}
+
+	private static MongoClient acquire(Key key) {
+
+		while (true) {
+
+			Entry entry = entriesByKey.get(key);
+
+			if (entry == null) {
+
+				Entry newEntry = new Entry(key);
+				entry = entriesByKey.putIfAbsent(key, newEntry);
+				if (entry == null) entry = newEntry;
+			}
+
+			if (entry.retain()) return entry.getMongoClient();
+
+			// the entry was closed in the meantime
+
+			entriesByKey.remove(key, entry);
+		}
+	}
+
+	/**
+	 * Takes another reference to a client obtained from acquire(), e.g. before handing it to a
+	 * store that releases it when it is closed. Clients not obtained from this registry are ignored.
+	 *
+	 * @param mongoClient the client.
+	 */
+	public static void retain(MongoClient mongoClient) {
+
+		if (mongoClient == null) return;
+
+		Entry entry = entriesByClient.get(mongoClient);
+		if (entry == null) return;
+
+		if (! entry.retain()) log.warn("retain() - client for " + entry.key + " is already closed");
+	}
+
+	/**
+	 * Takes a permanent reference to a client obtained from acquire(), so it stays open until
+	 * the JVM shuts down, also if all other references are released. Pinning a client again
+	 * has no effect. Clients not obtained from this registry are ignored.
+	 *
+	 * @param mongoClient the client.
+	 */
+	public static void pin(MongoClient mongoClient) {
+
+		if (mongoClient == null) return;
+
+		Entry entry = entriesByClient.get(mongoClient);
+		if (entry == null) return;
+
+		if (! entry.pin()) log.warn("pin() - client for " + entry.key + " is already closed");
+	}
+
+	/**
+	 * Releases a client obtained from acquire(). Clients not obtained from this registry are ignored.
+	 *
+	 * @param mongoClient the client.
+	 */
+	public static void release(MongoClient mongoClient) {
+
+		if (mongoClient == null) return;
+
+		Entry entry = entriesByClient.get(mongoClient);
+		if (entry == null) return;
+
+		if (entry.release() == 0) scheduleClose(entry);
+	}
+
+	/**
+	 * Closes all clients, whether they are still used or not.
+	 */
+	public static synchronized void shutdown() {
+
+		if (timer != null) {
+
+			timer.cancel();
+			timer = null;
+		}
+
+		for (Entry entry : entriesByKey.values()) {
+
+			entry.close();
+		}
+	}
+
+	public static long getIdleTimeout() {
+
+		return idleTimeout;
+	}
+
+	public static void setIdleTimeout(long idleTimeout) {
+
+		MongoClientRegistry.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Schedules the close of an entry whose last reference was released, unless a close is
+	 * already scheduled. That close waits again if the entry was used in the meantime.
+	 */
+	private static synchronized void scheduleClose(Entry entry) {
+
+		if (entry.closeScheduled) return;
+
+		entry.closeScheduled = true;
+		scheduleClose(entry, idleTimeout);
+	}
+
+	private static synchronized void scheduleClose(final Entry entry, long delay) {
+
+		if (timer == null) timer = new Timer("MongoClientRegistry idle", true);
+
+		timer.schedule(new TimerTask() {
+
+			@Override
+			public void run() {
+
+				closeIfIdle(entry);
+			}
+		}, delay);
+	}
+
+	private static synchronized void closeIfIdle(Entry entry) {
+
+		long idle = System.currentTimeMillis() - entry.releasedAt;
+
+		if (entry.references.get() == 0 && idle < idleTimeout) {
+
+			// the entry was used again since the close was scheduled
+
+			scheduleClose(entry, idleTimeout - idle);
+			return;
+		}
+
+		entry.closeScheduled = false;
+		entry.closeIfIdle();
+	}
+
+	/**
+	 * The connection identity of a client.
+	 */
+	private static class Key {
+
+		private List<ServerAddress> serverAddresses;
+		private boolean replicaSet;
+		private MongoClientOptions mongoClientOptions;
+
+		private Key(List<ServerAddress> serverAddresses, boolean replicaSet, MongoClientOptions mongoClientOptions) {
+
+			this.serverAddresses = serverAddresses;
+			this.replicaSet = replicaSet;
+			this.mongoClientOptions = mongoClientOptions != null ? mongoClientOptions : MongoClientOptions.builder().build();
+		}
+
+		@Override
+		public boolean equals(Object object) {
+
+			if (object == this) return true;
+			if (! (object instanceof Key)) return false;
+
+			Key other = (Key) object;
+
+			return this.replicaSet == other.replicaSet && this.serverAddresses.equals(other.serverAddresses) && this.mongoClientOptions.equals(other.mongoClientOptions);
+		}
+
+		@Override
+		public int hashCode() {
+
+			return 31 * (31 * this.serverAddresses.hashCode() + (this.replicaSet ? 1 : 0)) + this.mongoClientOptions.hashCode();
+		}
+
+		@Override
+		public String toString() {
+
+			return this.serverAddresses.toString();
+		}
+	}
+
+	/**
+	 * A client and its reference count. A count of -1 means the client is closed.
+	 */
+	private static class Entry {
+
+		private Key key;
+		private AtomicInteger references;
+		private volatile MongoClient mongoClient;
+		private volatile boolean pinned;
+		private volatile long releasedAt;
+		private boolean closeScheduled;
+
+		private Entry(Key key) {
+
+			this.key = key;
+			this.references = new AtomicInteger(0);
+			this.mongoClient = null;
+			this.pinned = false;
+			this.releasedAt = 0;
+			this.closeScheduled = false;
+		}
+
+		private synchronized boolean pin() {
+
+			if (this.pinned) return true;
+
+			this.pinned = this.retain();
+
+			return this.pinned;
+		}
+
+		private boolean retain() {
+
+			while (true) {
+
+				int references = this.references.get();
+				if (references < 0) return false;
+				if (this.references.compareAndSet(references, references + 1)) return true;
+			}
+		}
+
+		private int release() {
+
+			this.releasedAt = System.currentTimeMillis();
+
+			while (true) {
+
+				// the permanent reference of a pinned client is never released
+
+				int references = this.references.get();
+				if (references <= (this.pinned ? 1 : 0)) return references;
+				if (this.references.compareAndSet(references, references - 1)) return references - 1;
+			}
+		}
+
+		private MongoClient getMongoClient() {
+
+			MongoClient mongoClient = this.mongoClient;
+			if (mongoClient != null) return mongoClient;
+
+			synchronized (this) {
+
+				if (this.mongoClient == null) {
+
+					if (log.isDebugEnabled()) {
+						log.debug("getMongoClient() - creating client for " + this.key);
+					}
+
+					if (this.key.replicaSet) {
+						this.mongoClient = new MongoClient(this.key.serverAddresses, this.key.mongoClientOptions);
+					} else {
+						this.mongoClient = new MongoClient(this.key.serverAddresses.get(0), this.key.mongoClientOptions);
+					}
+
+					entriesByClient.put(this.mongoClient, this);
+				}
+
+				return this.mongoClient;
+			}
+		}
+
+		private void closeIfIdle() {
+
+			if (this.references.compareAndSet(0, -1)) this.doClose();
+		}
+
+		private void close() {
+
+			this.references.set(-1);
+			this.doClose();
+		}
+
+		private synchronized void doClose() {
+
+			entriesByKey.remove(this.key, this);
+
+			if (this.mongoClient == null) return;
+
+			if (log.isDebugEnabled()) {
+				log.debug("close() - closing client for " + this.key);
+			}
+
+			entriesByClient.remove(this.mongoClient);
+			this.mongoClient.close();
+
+			// let go of everything that was opened with the client
+
+			MongoDBCollectionCache.getInstance().remove(this.mongoClient);
+			MongoDBCompactSchema.remove(this.mongoClient);
+
+			this.mongoClient = null;
+		}
+	}
+}
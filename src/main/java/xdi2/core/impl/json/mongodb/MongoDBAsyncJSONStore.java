@@ -0,0 +1,558 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import xdi2.core.impl.json.AbstractJSONStore;
+import xdi2.core.impl.json.JSONStore;
+
+/**
+ * A <code>MongoDBJSONStore</code> whose operations can also be started without waiting for them.
+ *
+ * The asynchronous methods run on an <code>ExecutorService</code> and return futures, so that
+ * many independent context loads can be in flight at once. Writes are applied in the order
+ * they were submitted. Reads run in parallel, but only after all writes submitted before them,
+ * so a read always sees the writes started before it. The <code>JSONStore</code> methods are
+ * passed on to the underlying store, so this class can be used wherever a <code>JSONStore</code>
+ * is expected.
+ *
+ * The 2.x driver only has blocking I/O, so every query in flight occupies one thread of the
+ * executor until the server answers. To have more loads in flight than there are threads,
+ * loadAsync() calls that are waiting to start are combined into a single query for up to
+ * MAX_LOAD_BATCH contexts.
+ *
+ * Asynchronous writes always run outside of transactions.
+ *
+ * If the executor rejects an operation, e.g. because it was shut down, its future fails with
+ * the <code>RejectedExecutionException</code>. Later operations are still submitted.
+ */
+public class MongoDBAsyncJSONStore extends AbstractJSONStore implements JSONStore {
+
+	public static final int MAX_LOAD_BATCH = 100;
+
+	private MongoDBJSONStore jsonStore;
+	private ExecutorService executorService;
+	private SerialExecutor writeExecutor;
+	private LoadBatch loadBatch;
+
+	public MongoDBAsyncJSONStore(MongoDBJSONStore jsonStore, ExecutorService executorService) {
+
+		this.jsonStore = jsonStore;
+		this.executorService = executorService;
+		this.writeExecutor = new SerialExecutor(executorService);
+		this.loadBatch = null;
+	}
+
+	/*
+	 * Asynchronous operations
+	 */
+
+	public Future<JsonObject> loadAsync(String id) {
+
+		Result<JsonObject> result = new Result<JsonObject> ();
+
+		synchronized (this.writeExecutor) {
+
+			// join the batch that is waiting to start, if there is one
+
+			if (this.loadBatch != null && this.loadBatch.size() < MAX_LOAD_BATCH) {
+
+				this.loadBatch.add(id, result);
+			} else {
+
+				// add the load before starting the batch, so a rejected batch fails it
+
+				this.loadBatch = new LoadBatch();
+				this.loadBatch.add(id, result);
+				this.writeExecutor.executeAfter(this.loadBatch);
+			}
+		}
+
+		return result;
+	}
+
+	public Future<Map<String, JsonObject>> loadAllAsync(final Collection<String> ids) {
+
+		return this.submit(new Callable<Map<String, JsonObject>> () {
+
+			@Override
+			public Map<String, JsonObject> call() throws Exception {
+
+				return MongoDBAsyncJSONStore.this.jsonStore.loadAll(ids);
+			}
+		});
+	}
+
+	public Future<Map<String, JsonObject>> loadWithPrefixAsync(final String id) {
+
+		return this.submit(new Callable<Map<String, JsonObject>> () {
+
+			@Override
+			public Map<String, JsonObject> call() throws Exception {
+
+				return MongoDBAsyncJSONStore.this.jsonStore.loadWithPrefix(id);
+			}
+		});
+	}
+
+	public Future<Void> saveAsync(final String id, final JsonObject jsonObject) {
+
+		return this.submitWrite(new Callable<Void> () {
+
+			@Override
+			public Void call() throws Exception {
+
+				MongoDBAsyncJSONStore.this.jsonStore.save(id, jsonObject);
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> saveToArrayAsync(final String id, final String key, final JsonPrimitive jsonPrimitive) {
+
+		return this.submitWrite(new Callable<Void> () {
+
+			@Override
+			public Void call() throws Exception {
+
+				MongoDBAsyncJSONStore.this.jsonStore.saveToArray(id, key, jsonPrimitive);
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> saveToObjectAsync(final String id, final String key, final JsonElement jsonElement) {
+
+		return this.submitWrite(new Callable<Void> () {
+
+			@Override
+			public Void call() throws Exception {
+
+				MongoDBAsyncJSONStore.this.jsonStore.saveToObject(id, key, jsonElement);
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> deleteAsync(final String id) {
+
+		return this.submitWrite(new Callable<Void> () {
+
+			@Override
+			public Void call() throws Exception {
+
+				MongoDBAsyncJSONStore.this.jsonStore.delete(id);
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> deleteFromArrayAsync(final String id, final String key, final JsonPrimitive jsonPrimitive) {
+
+		return this.submitWrite(new Callable<Void> () {
+
+			@Override
+			public Void call() throws Exception {
+
+				MongoDBAsyncJSONStore.this.jsonStore.deleteFromArray(id, key, jsonPrimitive);
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> deleteFromObjectAsync(final String id, final String key) {
+
+		return this.submitWrite(new Callable<Void> () {
+
+			@Override
+			public Void call() throws Exception {
+
+				MongoDBAsyncJSONStore.this.jsonStore.deleteFromObject(id, key);
+				return null;
+			}
+		});
+	}
+
+	private <T> Future<T> submit(Callable<T> callable) {
+
+		Task<T> task = new Task<T> (callable);
+		this.writeExecutor.executeAfter(task);
+
+		return task;
+	}
+
+	private <T> Future<T> submitWrite(Callable<T> callable) {
+
+		Task<T> task = new Task<T> (callable);
+
+		synchronized (this.writeExecutor) {
+
+			// loads started after this write must not join a batch that may run before it
+
+			this.loadBatch = null;
+			this.writeExecutor.execute(task);
+		}
+
+		return task;
+	}
+
+	/*
+	 * JSONStore
+	 */
+
+	@Override
+	public void init() throws IOException {
+
+		this.jsonStore.init();
+	}
+
+	@Override
+	public void close() {
+
+		this.jsonStore.close();
+	}
+
+	@Override
+	public JsonObject load(String id) throws IOException {
+
+		return this.jsonStore.load(id);
+	}
+
+	@Override
+	public Map<String, JsonObject> loadWithPrefix(String id) throws IOException {
+
+		return this.jsonStore.loadWithPrefix(id);
+	}
+
+	@Override
+	public void save(String id, JsonObject jsonObject) throws IOException {
+
+		this.jsonStore.save(id, jsonObject);
+	}
+
+	@Override
+	public void saveToArray(String id, String key, JsonPrimitive jsonPrimitive) throws IOException {
+
+		this.jsonStore.saveToArray(id, key, jsonPrimitive);
+	}
+
+	@Override
+	public void saveToObject(String id, String key, JsonElement jsonElement) throws IOException {
+
+		this.jsonStore.saveToObject(id, key, jsonElement);
+	}
+
+	@Override
+	public void delete(String id) throws IOException {
+
+		this.jsonStore.delete(id);
+	}
+
+	@Override
+	public void deleteFromArray(String id, String key, JsonPrimitive jsonPrimitive) throws IOException {
+
+		this.jsonStore.deleteFromArray(id, key, jsonPrimitive);
+	}
+
+	@Override
+	public void deleteFromObject(String id, String key) throws IOException {
+
+		this.jsonStore.deleteFromObject(id, key);
+	}
+
+	@Override
+	public boolean supportsTransactions() {
+
+		return this.jsonStore.supportsTransactions();
+	}
+
+	@Override
+	public void beginTransaction() {
+
+		this.jsonStore.beginTransaction();
+	}
+
+	@Override
+	public void commitTransaction() {
+
+		this.jsonStore.commitTransaction();
+	}
+
+	@Override
+	public void rollbackTransaction() {
+
+		this.jsonStore.rollbackTransaction();
+	}
+
+	/*
+	 * Getters and setters
+	 */
+
+	public MongoDBJSONStore getJSONStore() {
+
+		return this.jsonStore;
+	}
+
+	public ExecutorService getExecutorService() {
+
+		return this.executorService;
+	}
+
+	/**
+	 * Something that was submitted, and can also fail without running if it is rejected.
+	 */
+	private interface Failable {
+
+		public void fail(Throwable throwable);
+	}
+
+	/**
+	 * An operation whose future can also fail without running.
+	 */
+	private static class Task<T> extends FutureTask<T> implements Failable {
+
+		private Task(Callable<T> callable) {
+
+			super(callable);
+		}
+
+		@Override
+		public void fail(Throwable throwable) {
+
+			this.setException(throwable);
+		}
+	}
+
+	/**
+	 * The future of a load in a batch.
+	 */
+	private static class Result<T> extends FutureTask<T> {
+
+		private Result() {
+
+			super(new Callable<T> () {
+
+				@Override
+				public T call() {
+
+					throw new IllegalStateException();
+				}
+			});
+		}
+
+		private void complete(T value) {
+
+			this.set(value);
+		}
+
+		private void fail(Throwable throwable) {
+
+			this.setException(throwable);
+		}
+	}
+
+	/**
+	 * Loads several contexts with one query.
+	 */
+	private class LoadBatch implements Runnable, Failable {
+
+		private final Map<String, List<Result<JsonObject>>> results = new LinkedHashMap<String, List<Result<JsonObject>>> ();
+		private int size = 0;
+
+		private void add(String id, Result<JsonObject> result) {
+
+			List<Result<JsonObject>> idResults = this.results.get(id);
+
+			if (idResults == null) {
+
+				idResults = new ArrayList<Result<JsonObject>> (1);
+				this.results.put(id, idResults);
+			}
+
+			idResults.add(result);
+			this.size++;
+		}
+
+		private int size() {
+
+			return this.size;
+		}
+
+		private void close() {
+
+			synchronized (MongoDBAsyncJSONStore.this.writeExecutor) {
+
+				// no more loads join from now on
+
+				if (MongoDBAsyncJSONStore.this.loadBatch == this) MongoDBAsyncJSONStore.this.loadBatch = null;
+			}
+		}
+
+		@Override
+		public void run() {
+
+			this.close();
+
+			try {
+
+				if (this.results.size() == 1) {
+
+					String id = this.results.keySet().iterator().next();
+					JsonObject jsonObject = MongoDBAsyncJSONStore.this.jsonStore.load(id);
+
+					for (Result<JsonObject> result : this.results.get(id)) result.complete(jsonObject);
+				} else {
+
+					Map<String, JsonObject> jsonObjects = MongoDBAsyncJSONStore.this.jsonStore.loadAll(this.results.keySet());
+
+					for (Map.Entry<String, List<Result<JsonObject>>> entry : this.results.entrySet()) {
+
+						for (Result<JsonObject> result : entry.getValue()) result.complete(jsonObjects.get(entry.getKey()));
+					}
+				}
+			} catch (Throwable throwable) {
+
+				this.fail(throwable);
+			}
+		}
+
+		@Override
+		public void fail(Throwable throwable) {
+
+			this.close();
+
+			for (List<Result<JsonObject>> idResults : this.results.values()) {
+
+				for (Result<JsonObject> result : idResults) result.fail(throwable);
+			}
+		}
+	}
+
+	/**
+	 * Runs tasks one after another on another executor. Other tasks can run in parallel to
+	 * them, but only after the tasks that were submitted before.
+	 */
+	private static class SerialExecutor implements Executor {
+
+		private final Queue<SerialTask> tasks = new LinkedList<SerialTask> ();
+		private final Executor executor;
+		private SerialTask active;
+		private SerialTask last;
+
+		private SerialExecutor(Executor executor) {
+
+			this.executor = executor;
+		}
+
+		@Override
+		public synchronized void execute(Runnable runnable) {
+
+			SerialTask task = new SerialTask(runnable);
+
+			this.tasks.offer(task);
+			this.last = task;
+
+			if (this.active == null) this.scheduleNext();
+		}
+
+		/**
+		 * Runs a task after the tasks passed to execute() so far, in parallel to later ones.
+		 */
+		public synchronized void executeAfter(Runnable runnable) {
+
+			if (this.last != null) {
+
+				this.last.followers.add(runnable);
+				return;
+			}
+
+			this.start(runnable);
+		}
+
+		private synchronized void scheduleNext() {
+
+			while ((this.active = this.tasks.poll()) != null) {
+
+				try {
+
+					this.executor.execute(this.active);
+					return;
+				} catch (RejectedExecutionException ex) {
+
+					// fail the task instead of waiting for it forever, and try the next one
+
+					fail(this.active.runnable, ex);
+					this.finish(this.active);
+				}
+			}
+		}
+
+		/**
+		 * Starts the tasks waiting for a task that is done.
+		 */
+		private synchronized void finish(SerialTask task) {
+
+			if (this.last == task) this.last = null;
+
+			for (Runnable follower : task.followers) this.start(follower);
+			task.followers.clear();
+		}
+
+		private void start(Runnable runnable) {
+
+			try {
+
+				this.executor.execute(runnable);
+			} catch (RejectedExecutionException ex) {
+
+				fail(runnable, ex);
+			}
+		}
+
+		private static void fail(Runnable runnable, Throwable throwable) {
+
+			if (runnable instanceof Failable) ((Failable) runnable).fail(throwable);
+		}
+
+		private class SerialTask implements Runnable {
+
+			private final Runnable runnable;
+			private final List<Runnable> followers;
+
+			private SerialTask(Runnable runnable) {
+
+				this.runnable = runnable;
+				this.followers = new ArrayList<Runnable> ();
+			}
+
+			@Override
+			public void run() {
+
+				try {
+
+					this.runnable.run();
+				} finally {
+
+					SerialExecutor.this.finish(this);
+					SerialExecutor.this.scheduleNext();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteRequestBuilder;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+/**
+ * Collects the writes of a <code>MongoDBJSONStore</code> and sends them as a single bulk operation.
+ * All field updates to the same document are merged into one update document, as long as
+ * they don't touch the same field with different operators.
+ *
+ * The bulk operation is unordered if every document is written only once, otherwise ordered.
+ * The writes are also recorded as they were made, to choose the write concern of the bulk operation.
+ */
+class MongoDBBulkWriter {
+
+	private static final String OP_REPLACE = "replace";
+	private static final String OP_UPDATE  = "update";
+	private static final String OP_REMOVE  = "remove";
+
+	private DBCollection dbCollection;
+
+	private List<Write> writes;
+	private Map<String, Write> updates;
+	private Set<String> ids;
+	private List<MongoDBWriteConcernPolicy.Write> operations;
+	private boolean ordered;
+
+	MongoDBBulkWriter(DBCollection dbCollection) {
+
+		this.dbCollection = dbCollection;
+
+		this.writes = new ArrayList<Write> ();
+		this.updates = new HashMap<String, Write> ();
+		this.ids = new HashSet<String> ();
+		this.operations = new ArrayList<MongoDBWriteConcernPolicy.Write> ();
+		this.ordered = false;
+	}
+
+	/**
+	 * Replaces (or inserts) a whole document.
+	 */
+	void replace(String id, DBObject query, DBObject object) {
+
+		this.operations.add(new MongoDBWriteConcernPolicy.Write(MongoDBOperation.SAVE, id, null));
+		this.add(id, new Write(OP_REPLACE, query, object, true));
+	}
+
+	/**
+	 * Applies an update operator to a single field of a document.
+	 *
+	 * @param operation the store operation making the update.
+	 * @param key the key of the store operation, or null.
+	 */
+	void update(MongoDBOperation operation, String id, String key, DBObject query, String operator, String field, Object value, boolean upsert) {
+
+		if (operation != null) this.operations.add(new MongoDBWriteConcernPolicy.Write(operation, id, key));
+
+		Write write = this.updates.get(id);
+
+		if (write == null || ! write.merge(operator, field, value, upsert)) {
+
+			write = new Write(OP_UPDATE, query, new BasicDBObject(), upsert);
+			write.merge(operator, field, value, upsert);
+
+			this.add(id, write);
+		}
+	}
+
+	/**
+	 * Removes all documents matching the query. This can affect any document,
+	 * so later updates are never merged into earlier ones.
+	 */
+	void remove(String id, DBObject query) {
+
+		this.operations.add(new MongoDBWriteConcernPolicy.Write(MongoDBOperation.DELETE, id, null));
+		this.writes.add(new Write(OP_REMOVE, query, null, false));
+		this.updates.clear();
+		this.ordered = true;
+	}
+
+	/**
+	 * @return the store operations collected so far.
+	 */
+	List<MongoDBWriteConcernPolicy.Write> getOperations() {
+
+		return this.operations;
+	}
+
+	int size() {
+
+		return this.writes.size();
+	}
+
+	void clear() {
+
+		this.writes.clear();
+		this.updates.clear();
+		this.ids.clear();
+		this.operations.clear();
+		this.ordered = false;
+	}
+
+	/**
+	 * Sends all collected writes as one bulk operation.
+	 *
+	 * @param writeConcern the write concern of the bulk operation.
+	 */
+	void flush(WriteConcern writeConcern) {
+
+		if (this.writes.isEmpty()) return;
+
+		BulkWriteOperation bulkWriteOperation = this.ordered ? this.dbCollection.initializeOrderedBulkOperation() : this.dbCollection.initializeUnorderedBulkOperation();
+
+		for (Write write : this.writes) {
+
+			BulkWriteRequestBuilder request = bulkWriteOperation.find(write.query);
+
+			if (OP_REPLACE.equals(write.op)) {
+
+				request.upsert().replaceOne(write.document);
+			} else if (OP_UPDATE.equals(write.op)) {
+
+				if (write.upsert) request.upsert().updateOne(write.document); else request.updateOne(write.document);
+			} else {
+
+				request.remove();
+			}
+		}
+
+		try {
+
+			bulkWriteOperation.execute(writeConcern);
+		} finally {
+
+			this.clear();
+		}
+	}
+
+	private void add(String id, Write write) {
+
+		if (! this.ids.add(id)) this.ordered = true;
+
+		this.writes.add(write);
+
+		if (OP_UPDATE.equals(write.op)) this.updates.put(id, write); else this.updates.remove(id);
+	}
+
+	private static class Write {
+
+		private String op;
+		private DBObject query;
+		private DBObject document;
+		private boolean upsert;
+		private Map<String, String> operators;
+
+		private Write(String op, DBObject query, DBObject document, boolean upsert) {
+
+			this.op = op;
+			this.query = query;
+			this.document = document;
+			this.upsert = upsert;
+			this.operators = new HashMap<String, String> ();
+		}
+
+		/**
+		 * Merges a field update into this update document, or returns false if
+		 * the field is already updated with a different operator.
+		 */
+		private boolean merge(String operator, String field, Object value, boolean upsert) {
+
+			String existingOperator = this.operators.get(field);
+			if (existingOperator != null && ! existingOperator.equals(operator)) return false;
+
+			BasicDBObject fields = (BasicDBObject) this.document.get(operator);
+
+			if (fields == null) {
+
+				fields = new BasicDBObject();
+				this.document.put(operator, fields);
+			}
+
+			if (existingOperator == null) {
+
+				fields.put(field, value);
+			} else if ("$addToSet".equals(operator)) {
+
+				fields.put(field, new BasicDBObject("$each", append(fields.get(field), "$each", value)));
+			} else if ("$pull".equals(operator)) {
+
+				fields.put(field, new BasicDBObject("$in", append(fields.get(field), "$in", value)));
+			} else {
+
+				fields.put(field, value);
+			}
+
+			this.operators.put(field, operator);
+			this.upsert |= upsert;
+
+			return true;
+		}
+
+		private static BasicDBList append(Object existing, String listOperator, Object value) {
+
+			BasicDBList list;
+
+			if (existing instanceof DBObject && ((DBObject) existing).containsField(listOperator)) {
+
+				list = (BasicDBList) ((DBObject) existing).get(listOperator);
+			} else {
+
+				list = new BasicDBList();
+				list.add(existing);
+			}
+
+			list.add(value);
+
+			return list;
+		}
+	}
+}
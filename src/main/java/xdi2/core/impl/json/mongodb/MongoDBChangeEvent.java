@@ -0,0 +1,56 @@
+package xdi2.core.impl.json.mongodb;
+
+/**
+ * A change of a stored context, as seen in the oplog or emitted by any other change source.
+ *
+ * The namespace and document id are always known. The graph identifier and key are only
+ * known if the change contains the whole document (e.g. an insert); otherwise listeners
+ * have to find the affected contexts by their document id.
+ */
+public class MongoDBChangeEvent {
+
+	private String namespace;
+	private Object documentId;
+	private String identifier;
+	private String key;
+
+	/**
+	 * @param namespace the full name of the collection, e.g. xdi2graph.contexts.
+	 * @param documentId the _id of the changed document.
+	 * @param identifier the graph identifier of a shared collection, or null.
+	 * @param key the key of the changed context, or null if not known.
+	 */
+	public MongoDBChangeEvent(String namespace, Object documentId, String identifier, String key) {
+
+		this.namespace = namespace;
+		this.documentId = documentId;
+		this.identifier = identifier;
+		this.key = key;
+	}
+
+	public String getNamespace() {
+
+		return this.namespace;
+	}
+
+	public Object getDocumentId() {
+
+		return this.documentId;
+	}
+
+	public String getIdentifier() {
+
+		return this.identifier;
+	}
+
+	public String getKey() {
+
+		return this.key;
+	}
+
+	@Override
+	public String toString() {
+
+		return this.namespace + " " + this.documentId + " " + this.identifier + " " + this.key;
+	}
+}
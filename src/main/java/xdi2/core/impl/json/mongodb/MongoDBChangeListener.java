@@ -0,0 +1,21 @@
+package xdi2.core.impl.json.mongodb;
+
+/**
+ * Receives the changes of stored contexts from a <code>MongoDBChangeSource</code>.
+ */
+public interface MongoDBChangeListener {
+
+	public void onChange(MongoDBChangeEvent event);
+
+	/**
+	 * Called when changes may have been missed, e.g. after the change source lost its position.
+	 */
+	public void onReset();
+
+	/**
+	 * Called when a context collection was dropped or renamed, or a database was dropped.
+	 *
+	 * @param namespace the full name of the collection, or the name of the database followed by a dot.
+	 */
+	public void onDrop(String namespace);
+}
@@ -0,0 +1,16 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.io.Closeable;
+
+/**
+ * Emits the changes of stored contexts to listeners, e.g. by tailing the oplog.
+ */
+public interface MongoDBChangeSource extends Closeable {
+
+	public void addListener(MongoDBChangeListener listener);
+
+	public void removeListener(MongoDBChangeListener listener);
+
+	@Override
+	public void close();
+}
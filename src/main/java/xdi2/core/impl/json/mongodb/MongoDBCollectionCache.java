@@ -0,0 +1,199 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+
+/**
+ * Keeps the initialized collections of recently opened graphs, so that opening a graph
+ * again does not have to look up the database and collection or check the indexes.
+ *
+ * The cache is bounded; when it is full, the least recently used collection is evicted, which only
+ * means it is looked up again. Indexes and sharding of the shared collection are checked once per
+ * process and client, no matter how often graphs are opened. Everything kept for a client is dropped
+ * when <code>MongoClientRegistry</code> closes it, so closed clients are not kept alive.
+ */
+public class MongoDBCollectionCache {
+
+	private static final Logger log = LoggerFactory.getLogger(MongoDBCollectionCache.class);
+
+	public static final int DEFAULT_MAX_SIZE = 1000;
+
+	private static final MongoDBCollectionCache instance = new MongoDBCollectionCache(DEFAULT_MAX_SIZE);
+
+	private final int maxSize;
+	private final Map<Key, DBCollection> collections;
+	private ConcurrentMap<Key, Boolean> indexedCollections;
+
+	public MongoDBCollectionCache(final int maxSize) {
+
+		this.maxSize = maxSize;
+		this.collections = new LinkedHashMap<Key, DBCollection> (16, 0.75f, true) {
+
+			private static final long serialVersionUID = -4810972637361585063L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, DBCollection> eldest) {
+
+				return this.size() > maxSize;
+			}
+		};
+		this.indexedCollections = new ConcurrentHashMap<Key, Boolean> ();
+	}
+
+	static MongoDBCollectionCache getInstance() {
+
+		return instance;
+	}
+
+	/**
+	 * Returns a collection holding XDI2 graphs.
+	 *
+	 * @param mongoClient the client.
+	 * @param dbName the database name.
+	 * @param collectionName the collection name, e.g. contexts, or the name of a bucket.
+	 * @param sharedDatabaseFlag whether the collection holds many graphs and needs the shared index.
+	 * @param sharding how to shard the shared collection, or null.
+	 * @return the <code>DBCollection</code>.
+	 */
+	public DBCollection getCollection(MongoClient mongoClient, String dbName, String collectionName, boolean sharedDatabaseFlag, MongoDBSharding sharding) {
+
+		Key key = new Key(mongoClient, dbName + "." + collectionName);
+		DBCollection dbCollection;
+
+		synchronized (this.collections) {
+
+			dbCollection = this.collections.get(key);
+		}
+
+		if (dbCollection != null) return dbCollection;
+
+		// look up the collection without holding the lock, since checking the indexes can take a while
+
+		dbCollection = mongoClient.getDB(dbName).getCollection(collectionName);
+
+		if (sharedDatabaseFlag) this.ensureIndexOnce(mongoClient, dbCollection, sharding);
+
+		synchronized (this.collections) {
+
+			DBCollection existingCollection = this.collections.get(key);
+			if (existingCollection != null) return existingCollection;
+
+			this.collections.put(key, dbCollection);
+		}
+
+		return dbCollection;
+	}
+
+	/**
+	 * @return how many collections are kept, at most maxSize.
+	 */
+	public int size() {
+
+		synchronized (this.collections) {
+
+			return this.collections.size();
+		}
+	}
+
+	public int getMaxSize() {
+
+		return this.maxSize;
+	}
+
+	private void ensureIndexOnce(MongoClient mongoClient, DBCollection dbCollection, MongoDBSharding sharding) {
+
+		Key indexKey = new Key(mongoClient, dbCollection.getFullName());
+
+		if (this.indexedCollections.putIfAbsent(indexKey, Boolean.TRUE) != null) return;
+
+		if (log.isDebugEnabled()) {
+			log.debug("ensureIndexOnce() - " + dbCollection.getFullName());
+		}
+
+		try {
+
+			MongoDBJSONStore.ensureIndex(dbCollection);
+			if (sharding != null) sharding.shardCollection(dbCollection);
+		} catch (RuntimeException ex) {
+
+			this.indexedCollections.remove(indexKey);
+			throw ex;
+		}
+	}
+
+	void clear() {
+
+		synchronized (this.collections) {
+
+			this.collections.clear();
+		}
+
+		this.indexedCollections.clear();
+	}
+
+	/**
+	 * Forgets everything kept for a client, after the client was closed.
+	 */
+	void remove(MongoClient mongoClient) {
+
+		synchronized (this.collections) {
+
+			for (Iterator<Key> i = this.collections.keySet().iterator(); i.hasNext(); ) {
+
+				if (i.next().getMongoClient() == mongoClient) i.remove();
+			}
+		}
+
+		for (Iterator<Key> i = this.indexedCollections.keySet().iterator(); i.hasNext(); ) {
+
+			if (i.next().getMongoClient() == mongoClient) i.remove();
+		}
+	}
+
+	/**
+	 * A database or collection of a specific client instance. Clients are compared by identity,
+	 * since a client that was closed and created again must not reuse old collections.
+	 */
+	static class Key {
+
+		private MongoClient mongoClient;
+		private String name;
+
+		Key(MongoClient mongoClient, String name) {
+
+			this.mongoClient = mongoClient;
+			this.name = name;
+		}
+
+		MongoClient getMongoClient() {
+
+			return this.mongoClient;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+
+			if (object == this) return true;
+			if (! (object instanceof Key)) return false;
+
+			Key other = (Key) object;
+
+			return this.mongoClient == other.mongoClient && this.name.equals(other.name);
+		}
+
+		@Override
+		public int hashCode() {
+
+			return 31 * System.identityHashCode(this.mongoClient) + this.name.hashCode();
+		}
+	}
+}
@@ -0,0 +1,365 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.DuplicateKeyException;
+import com.mongodb.MongoClient;
+
+/**
+ * The dictionary and graph numbers of the compact document format.
+ *
+ * In the compact format, the JSON keys of a context (e.g. "//", "&" or "/+friend") are stored
+ * as short codes from a dictionary shared by all graphs, and in a shared collection the graph
+ * is identified by a small number instead of its (hashed) identifier. Documents in the compact
+ * format have the field <code>v</code> set to 2.
+ *
+ * The dictionary, the graph numbers and the counters for both are kept in the collections
+ * <code>dictionary</code>, <code>graphs</code> and <code>counters</code> of the XDI2 database.
+ * Codes and numbers are never changed or reused, so they can be cached forever.
+ */
+public class MongoDBCompactSchema {
+
+	private static final Logger log = LoggerFactory.getLogger(MongoDBCompactSchema.class);
+
+	public static final int VERSION_COMPACT = 2;
+
+	public static final String DICTIONARY_COLLECTION = "dictionary";
+	public static final String GRAPHS_COLLECTION     = "graphs";
+	public static final String COUNTERS_COLLECTION   = "counters";
+
+	private static final String FIELD_KEY    = "k";
+	private static final String FIELD_NUMBER = "n";
+	private static final String FIELD_SEQ    = "seq";
+
+	private static final int MAX_GRAPHS = 10000;
+
+	private static final Map<MongoDBCollectionCache.Key, MongoDBCompactSchema> instances = new HashMap<MongoDBCollectionCache.Key, MongoDBCompactSchema> ();
+
+	private final DBCollection dictionary;
+	private final DBCollection graphs;
+	private final DBCollection counters;
+
+	private final ConcurrentMap<String, String> codes;
+	private final ConcurrentMap<String, String> keys;
+	private final Map<String, Object> graphFormats;
+
+	MongoDBCompactSchema(DB db) {
+
+		this.dictionary = db.getCollection(DICTIONARY_COLLECTION);
+		this.graphs = db.getCollection(GRAPHS_COLLECTION);
+		this.counters = db.getCollection(COUNTERS_COLLECTION);
+
+		this.codes = new ConcurrentHashMap<String, String> ();
+		this.keys = new ConcurrentHashMap<String, String> ();
+		this.graphFormats = new LinkedHashMap<String, Object> (16, 0.75f, true) {
+
+			private static final long serialVersionUID = 4810583718062934431L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+
+				return this.size() > MAX_GRAPHS;
+			}
+		};
+
+		this.dictionary.createIndex(new BasicDBObject(FIELD_KEY, Integer.valueOf(1)), new BasicDBObject("unique", Boolean.TRUE));
+	}
+
+	/**
+	 * Returns the schema kept in a database of a client.
+	 */
+	static MongoDBCompactSchema getInstance(MongoClient mongoClient, String dbName) {
+
+		MongoDBCollectionCache.Key instanceKey = new MongoDBCollectionCache.Key(mongoClient, dbName);
+
+		synchronized (instances) {
+
+			MongoDBCompactSchema instance = instances.get(instanceKey);
+
+			if (instance == null) {
+
+				instance = new MongoDBCompactSchema(mongoClient.getDB(dbName));
+				instances.put(instanceKey, instance);
+			}
+
+			return instance;
+		}
+	}
+
+	static void clear() {
+
+		synchronized (instances) {
+
+			instances.clear();
+		}
+	}
+
+	/**
+	 * Forgets the schemas of a client, after the client was closed.
+	 */
+	static void remove(MongoClient mongoClient) {
+
+		synchronized (instances) {
+
+			for (Iterator<MongoDBCollectionCache.Key> i = instances.keySet().iterator(); i.hasNext(); ) {
+
+				if (i.next().getMongoClient() == mongoClient) i.remove();
+			}
+		}
+	}
+
+	/*
+	 * Keys
+	 */
+
+	/**
+	 * Returns the field name for a JSON key, adding the key to the dictionary if it is new.
+	 * Field names are base-36 numbers in upper case, so they never clash with "_id", "id", "key"
+	 * and "v", or with field names of the older format, which start with "-".
+	 */
+	String toMongoKey(String key) {
+
+		String code = this.codes.get(key);
+		if (code != null) return code;
+
+		DBObject entry = this.dictionary.findOne(new BasicDBObject(FIELD_KEY, key));
+
+		if (entry == null) {
+
+			int number = this.nextNumber(DICTIONARY_COLLECTION);
+
+			try {
+
+				this.dictionary.insert(new BasicDBObject("_id", Integer.valueOf(number)).append(FIELD_KEY, key));
+				entry = new BasicDBObject("_id", Integer.valueOf(number));
+
+				if (log.isDebugEnabled()) {
+					log.debug("toMongoKey() - " + key + " = " + toCode(number));
+				}
+			} catch (DuplicateKeyException ex) {
+
+				// another node added the key at the same time
+
+				entry = this.dictionary.findOne(new BasicDBObject(FIELD_KEY, key));
+				if (entry == null) throw ex;
+			}
+		}
+
+		code = toCode(((Number) entry.get("_id")).intValue());
+
+		this.codes.putIfAbsent(key, code);
+		this.keys.putIfAbsent(code, key);
+
+		return code;
+	}
+
+	/**
+	 * Returns the field name for a JSON key without adding it to the dictionary, for reads and
+	 * for removing fields. This never writes, so it also works on secondaries and with read-only users.
+	 *
+	 * @return the field name, or null if the key is not in the dictionary, so no document has the field.
+	 */
+	String lookupMongoKey(String key) {
+
+		String code = this.codes.get(key);
+		if (code != null) return code;
+
+		DBObject entry = this.dictionary.findOne(new BasicDBObject(FIELD_KEY, key));
+		if (entry == null) return null;
+
+		code = toCode(((Number) entry.get("_id")).intValue());
+
+		this.codes.putIfAbsent(key, code);
+		this.keys.putIfAbsent(code, key);
+
+		return code;
+	}
+
+	/**
+	 * Returns the JSON key for a field name, looking it up in the dictionary if it was added by another node.
+	 */
+	String fromMongoKey(String code) throws IOException {
+
+		String key = this.keys.get(code);
+		if (key != null) return key;
+
+		DBObject entry = null;
+
+		try {
+
+			entry = this.dictionary.findOne(new BasicDBObject("_id", Integer.valueOf(Integer.parseInt(code, 36))));
+		} catch (NumberFormatException ex) {
+
+		}
+
+		if (entry == null) throw new IOException("Unknown key code " + code + " in " + this.dictionary.getFullName());
+
+		key = (String) entry.get(FIELD_KEY);
+
+		this.keys.putIfAbsent(code, key);
+		this.codes.putIfAbsent(key, code);
+
+		return key;
+	}
+
+	private static String toCode(int number) {
+
+		return Integer.toString(number, 36).toUpperCase();
+	}
+
+	/*
+	 * Graphs
+	 */
+
+	/**
+	 * Decides the format of a graph in a shared collection when it is opened. Graphs that already
+	 * have documents in the older format keep it; all other graphs use the compact format.
+	 *
+	 * @param dbCollection the shared collection.
+	 * @param identifier the graph identifier.
+	 * @return the number of the graph, or null if the graph uses the older format.
+	 */
+	Integer getGraphNumber(DBCollection dbCollection, String identifier) {
+
+		String graphKey = dbCollection.getFullName() + " " + identifier;
+
+		synchronized (this.graphFormats) {
+
+			if (this.graphFormats.containsKey(graphKey)) return (Integer) this.graphFormats.get(graphKey);
+		}
+
+		Integer number;
+
+		DBObject graph = this.graphs.findOne(new BasicDBObject("_id", identifier));
+
+		if (graph != null) {
+
+			number = Integer.valueOf(((Number) graph.get(FIELD_NUMBER)).intValue());
+		} else if (dbCollection.findOne(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, identifier), new BasicDBObject("_id", Integer.valueOf(1))) != null) {
+
+			number = null;
+		} else {
+
+			number = this.addGraph(identifier);
+		}
+
+		if (log.isDebugEnabled()) {
+			log.debug("getGraphNumber() - " + graphKey + " = " + (number == null ? "older format" : number));
+		}
+
+		synchronized (this.graphFormats) {
+
+			this.graphFormats.put(graphKey, number);
+		}
+
+		return number;
+	}
+
+	/**
+	 * Decides the format of a graph with its own collection when it is opened. Graphs that already
+	 * have documents in the older format keep it; all other graphs use the compact format.
+	 *
+	 * @param dbCollection the collection of the graph.
+	 * @return whether the graph uses the compact format.
+	 */
+	boolean isCompact(DBCollection dbCollection) {
+
+		String graphKey = dbCollection.getFullName();
+
+		synchronized (this.graphFormats) {
+
+			if (this.graphFormats.containsKey(graphKey)) return Boolean.TRUE.equals(this.graphFormats.get(graphKey));
+		}
+
+		DBObject object = dbCollection.findOne(new BasicDBObject(), new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_VERSION, Integer.valueOf(1)));
+		Boolean compact = Boolean.valueOf(object == null || isCompact(object));
+
+		if (log.isDebugEnabled()) {
+			log.debug("isCompact() - " + graphKey + " = " + compact);
+		}
+
+		synchronized (this.graphFormats) {
+
+			this.graphFormats.put(graphKey, compact);
+		}
+
+		return compact.booleanValue();
+	}
+
+	private Integer addGraph(String identifier) {
+
+		Integer number = Integer.valueOf(this.nextNumber(GRAPHS_COLLECTION));
+
+		try {
+
+			this.graphs.insert(new BasicDBObject("_id", identifier).append(FIELD_NUMBER, number));
+
+			return number;
+		} catch (DuplicateKeyException ex) {
+
+			// another node added the graph at the same time
+
+			return Integer.valueOf(((Number) this.graphs.findOne(new BasicDBObject("_id", identifier)).get(FIELD_NUMBER)).intValue());
+		}
+	}
+
+	private int nextNumber(String counter) {
+
+		DBObject result = this.counters.findAndModify(new BasicDBObject("_id", counter), null, null, false, new BasicDBObject("$inc", new BasicDBObject(FIELD_SEQ, Integer.valueOf(1))), true, true);
+
+		return ((Number) result.get(FIELD_SEQ)).intValue();
+	}
+
+	/**
+	 * @return whether a stored document is in the compact format.
+	 */
+	static boolean isCompact(DBObject object) {
+
+		Object version = object.get(MongoDBJSONStore.XDI2_OBJ_VERSION);
+
+		return version instanceof Number && ((Number) version).intValue() == VERSION_COMPACT;
+	}
+
+	/**
+	 * Reads all graph numbers of a database, e.g. to find the graph of a compact document
+	 * in a shared collection.
+	 *
+	 * @param db the XDI2 database.
+	 * @return the graph identifiers by their numbers.
+	 */
+	public static Map<Integer, String> getGraphIdentifiers(DB db) {
+
+		Map<Integer, String> graphIdentifiers = new HashMap<Integer, String> ();
+
+		DBCursor cursor = db.getCollection(GRAPHS_COLLECTION).find();
+
+		try {
+
+			while (cursor.hasNext()) {
+
+				DBObject graph = cursor.next();
+
+				graphIdentifiers.put(Integer.valueOf(((Number) graph.get(FIELD_NUMBER)).intValue()), (String) graph.get("_id"));
+			}
+		} finally {
+
+			cursor.close();
+		}
+
+		return graphIdentifiers;
+	}
+}
@@ -0,0 +1,142 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress of deleting a subtree of contexts in batches.
+ */
+public class MongoDBDeleteProgress {
+
+	private final String graph;
+	private final String prefix;
+	private final long started;
+	private final AtomicLong deleted;
+	private final AtomicInteger batches;
+	private final AtomicInteger retries;
+	private final CountDownLatch done;
+	private volatile long finished;
+	private volatile Exception failure;
+
+	MongoDBDeleteProgress(String graph, String prefix) {
+
+		this.graph = graph;
+		this.prefix = prefix;
+		this.started = System.currentTimeMillis();
+		this.deleted = new AtomicLong();
+		this.batches = new AtomicInteger();
+		this.retries = new AtomicInteger();
+		this.done = new CountDownLatch(1);
+		this.finished = 0;
+		this.failure = null;
+	}
+
+	void onBatch(int count) {
+
+		this.deleted.addAndGet(count);
+		this.batches.incrementAndGet();
+	}
+
+	void onRetry() {
+
+		this.retries.incrementAndGet();
+	}
+
+	void onDone(Exception failure) {
+
+		this.failure = failure;
+		this.finished = System.currentTimeMillis();
+		this.done.countDown();
+	}
+
+	/**
+	 * Waits until the subtree is deleted.
+	 *
+	 * @return whether the subtree was deleted in time.
+	 */
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+
+		return this.done.await(timeout, unit);
+	}
+
+	public void await() throws InterruptedException {
+
+		this.done.await();
+	}
+
+	/**
+	 * @param id a context key.
+	 * @return whether the context is in the subtree.
+	 */
+	public boolean covers(String id) {
+
+		return id.startsWith(this.prefix);
+	}
+
+	/**
+	 * @return the namespace and identifier of the graph.
+	 */
+	public String getGraph() {
+
+		return this.graph;
+	}
+
+	public String getPrefix() {
+
+		return this.prefix;
+	}
+
+	public long getStarted() {
+
+		return this.started;
+	}
+
+	/**
+	 * @return when the deletion finished, or 0 if it is still running.
+	 */
+	public long getFinished() {
+
+		return this.finished;
+	}
+
+	public long getDeleted() {
+
+		return this.deleted.get();
+	}
+
+	public int getBatches() {
+
+		return this.batches.get();
+	}
+
+	/**
+	 * @return how often the deletion was started again after a failure.
+	 */
+	public int getRetries() {
+
+		return this.retries.get();
+	}
+
+	public boolean isDone() {
+
+		return this.done.getCount() == 0;
+	}
+
+	/**
+	 * @return the exception that stopped the deletion, or null.
+	 */
+	public Exception getFailure() {
+
+		return this.failure;
+	}
+
+	@Override
+	public String toString() {
+
+		long millis = (this.finished == 0 ? System.currentTimeMillis() : this.finished) - this.started;
+
+		return this.graph + " " + this.prefix + ": " + this.deleted.get() + " contexts in " + this.batches.get() + " batches, " + millis + " ms" + (this.retries.get() > 0 ? ", " + this.retries.get() + " retries" : "") + (this.isDone() ? (this.failure == null ? ", done" : ", failed: " + this.failure.getMessage()) : "");
+	}
+}
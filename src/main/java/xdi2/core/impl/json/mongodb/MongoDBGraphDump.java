@@ -0,0 +1,309 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.bson.BasicBSONEncoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.util.JSON;
+
+/**
+ * Exports a single XDI2 graph into a file, and imports such a file into a graph.
+ *
+ * A file is gzip-compressed. It starts with a header line <code>XDI2DUMP 1 bson</code> or
+ * <code>XDI2DUMP 1 json</code>, followed by one record per context: either a BSON document,
+ * which starts with its own length like in mongodump files, or a line of JSON.
+ *
+ * Records are in a portable form (see <code>MongoDBJSONStore.toPortableObject()</code>), so a graph
+ * can be imported under another identifier, into another server, or into a graph that is stored
+ * differently, e.g. in its own database instead of the shared collection, or in the compact format.
+ */
+public class MongoDBGraphDump {
+
+	private static final Logger log = LoggerFactory.getLogger(MongoDBGraphDump.class);
+
+	public static final String MAGIC = "XDI2DUMP";
+	public static final int VERSION = 1;
+
+	public static final int DEFAULT_THREADS = 4;
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public enum Format {
+
+		BSON,
+		JSON
+	}
+
+	private MongoDBGraphDump() {
+
+	}
+
+	/**
+	 * Writes all contexts of a graph into a file.
+	 *
+	 * @param jsonStore the store of the graph.
+	 * @param file the file to write; an existing file is replaced.
+	 * @param format the format of the records.
+	 * @return the number of contexts written.
+	 */
+	public static long export(MongoDBJSONStore jsonStore, File file, Format format) throws IOException {
+
+		long start = System.currentTimeMillis();
+		long count = 0;
+
+		FileOutputStream fileStream = new FileOutputStream(file);
+
+		try {
+
+			FileChannel channel = fileStream.getChannel();
+			OutputStream stream = new GZIPOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+
+			stream.write((MAGIC + " " + VERSION + " " + format.name().toLowerCase() + "\n").getBytes(UTF8));
+
+			BasicBSONEncoder encoder = new BasicBSONEncoder();
+			DBCursor cursor = jsonStore.findAll();
+
+			try {
+
+				while (cursor.hasNext()) {
+
+					DBObject object = jsonStore.toPortableObject(cursor.next());
+					if (jsonStore.isHidden((String) object.get(MongoDBJSONStore.XDI2_OBJ_KEY))) continue;
+
+					if (format == Format.BSON) {
+
+						stream.write(encoder.encode(object));
+					} else {
+
+						stream.write((JSON.serialize(object) + "\n").getBytes(UTF8));
+					}
+
+					count++;
+				}
+			} finally {
+
+				cursor.close();
+			}
+
+			stream.close();
+		} finally {
+
+			fileStream.close();
+		}
+
+		if (log.isDebugEnabled()) {
+			log.debug("export() - " + count + " contexts into " + file + " in " + (System.currentTimeMillis() - start) + " ms");
+		}
+
+		return count;
+	}
+
+	/**
+	 * Reads the contexts in a file into a graph. Batches of contexts are written by several threads
+	 * in parallel. Contexts that already exist in the graph are replaced.
+	 *
+	 * @param jsonStore the store of the graph.
+	 * @param file the file to read.
+	 * @param threads how many batches are written at the same time.
+	 * @param batchSize how many contexts are written with one bulk operation.
+	 * @return the number of contexts read.
+	 */
+	public static long restore(final MongoDBJSONStore jsonStore, File file, int threads, int batchSize) throws IOException {
+
+		long start = System.currentTimeMillis();
+		long count = 0;
+
+		threads = Math.max(1, threads);
+		batchSize = Math.max(1, batchSize);
+
+		ExecutorService executorService = Executors.newFixedThreadPool(threads);
+		final Semaphore inFlight = new Semaphore(threads * 2);
+		final AtomicReference<IOException> failure = new AtomicReference<IOException> ();
+		final AtomicLong written = new AtomicLong();
+
+		FileInputStream fileStream = new FileInputStream(file);
+
+		try {
+
+			FileChannel channel = fileStream.getChannel();
+			DataInputStream stream = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Channels.newInputStream(channel), BUFFER_SIZE), BUFFER_SIZE));
+
+			Format format = readHeader(stream, file);
+			DefaultDBDecoder decoder = new DefaultDBDecoder();
+
+			List<DBObject> batch = new ArrayList<DBObject> (batchSize);
+
+			while (failure.get() == null) {
+
+				DBObject object = format == Format.BSON ? readBSON(stream, decoder) : readJSON(stream);
+
+				if (object != null) {
+
+					batch.add(object);
+					count++;
+				}
+
+				if (batch.size() >= batchSize || (object == null && ! batch.isEmpty())) {
+
+					final List<DBObject> objects = batch;
+					batch = new ArrayList<DBObject> (batchSize);
+
+					inFlight.acquireUninterruptibly();
+
+					executorService.execute(new Runnable() {
+
+						@Override
+						public void run() {
+
+							try {
+
+								jsonStore.importObjects(objects);
+								written.addAndGet(objects.size());
+							} catch (IOException ex) {
+
+								failure.compareAndSet(null, ex);
+							} catch (RuntimeException ex) {
+
+								failure.compareAndSet(null, new IOException(ex.getMessage(), ex));
+							} finally {
+
+								inFlight.release();
+							}
+						}
+					});
+				}
+
+				if (object == null) break;
+			}
+		} finally {
+
+			executorService.shutdown();
+
+			try {
+
+				executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+
+				Thread.currentThread().interrupt();
+			}
+
+			fileStream.close();
+
+			jsonStore.afterImport();
+		}
+
+		if (failure.get() != null) throw new IOException("Import from " + file + " failed after " + written.get() + " contexts: " + failure.get().getMessage(), failure.get());
+
+		if (log.isDebugEnabled()) {
+			log.debug("restore() - " + count + " contexts from " + file + " in " + (System.currentTimeMillis() - start) + " ms");
+		}
+
+		return count;
+	}
+
+	private static Format readHeader(DataInputStream stream, File file) throws IOException {
+
+		StringBuilder buffer = new StringBuilder();
+
+		for (int c = stream.read(); c != '\n'; c = stream.read()) {
+
+			if (c == -1 || buffer.length() > 100) throw new IOException(file + " is not a graph export");
+			buffer.append((char) c);
+		}
+
+		String[] header = buffer.toString().split(" ");
+
+		if (header.length != 3 || ! MAGIC.equals(header[0])) throw new IOException(file + " is not a graph export");
+		if (! Integer.toString(VERSION).equals(header[1])) throw new IOException(file + " has unsupported version " + header[1]);
+
+		try {
+
+			return Format.valueOf(header[2].toUpperCase());
+		} catch (IllegalArgumentException ex) {
+
+			throw new IOException(file + " has unsupported format " + header[2]);
+		}
+	}
+
+	/**
+	 * Reads a BSON document, or returns null at the end of the file.
+	 */
+	private static DBObject readBSON(DataInputStream stream, DefaultDBDecoder decoder) throws IOException {
+
+		byte[] length = new byte[4];
+
+		int first = stream.read();
+		if (first == -1) return null;
+
+		length[0] = (byte) first;
+		stream.readFully(length, 1, 3);
+
+		// BSON lengths are little-endian and include the length itself
+
+		int size = (length[0] & 0xff) | (length[1] & 0xff) << 8 | (length[2] & 0xff) << 16 | (length[3] & 0xff) << 24;
+		if (size < 5 || size > MAX_RECORD_SIZE) throw new IOException("Invalid record size " + size);
+
+		byte[] bytes = new byte[size];
+		System.arraycopy(length, 0, bytes, 0, 4);
+		stream.readFully(bytes, 4, size - 4);
+
+		return decoder.decode(bytes, null);
+	}
+
+	/**
+	 * Reads a line of JSON, or returns null at the end of the file.
+	 */
+	private static DBObject readJSON(InputStream stream) throws IOException {
+
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		while (true) {
+
+			int c = stream.read();
+
+			if (c == -1) {
+
+				if (line.size() == 0) return null;
+				throw new EOFException("Incomplete record at the end of the file");
+			}
+
+			if (c == '\n') break;
+			line.write(c);
+		}
+
+		Object object = JSON.parse(new String(line.toByteArray(), UTF8));
+		if (! (object instanceof DBObject)) throw new IOException("Invalid record " + object);
+
+		return (DBObject) object;
+	}
+}
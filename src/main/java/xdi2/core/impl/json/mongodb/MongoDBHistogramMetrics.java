@@ -0,0 +1,228 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts the operations of <code>MongoDBJSONStore</code>s, and keeps HdrHistogram distributions
+ * of their latencies and document sizes since start or the last reset.
+ *
+ * The shared instance is registered with the platform MBean server as xdi2.mongodb:type=Metrics.
+ */
+public class MongoDBHistogramMetrics implements MongoDBMetricsRegistry, MongoDBHistogramMetricsMXBean {
+
+	private static final Logger log = LoggerFactory.getLogger(MongoDBHistogramMetrics.class);
+
+	public static final String OBJECT_NAME = "xdi2.mongodb:type=Metrics";
+
+	private static final int SIGNIFICANT_DIGITS = 2;
+
+	private static MongoDBHistogramMetrics instance = null;
+
+	private final Map<MongoDBOperation, OperationMetrics> operations;
+
+	public MongoDBHistogramMetrics() {
+
+		this.operations = new EnumMap<MongoDBOperation, OperationMetrics> (MongoDBOperation.class);
+		for (MongoDBOperation operation : MongoDBOperation.values()) this.operations.put(operation, new OperationMetrics());
+	}
+
+	/**
+	 * Returns the shared instance, registering it with JMX on first use.
+	 */
+	public static synchronized MongoDBHistogramMetrics getInstance() {
+
+		if (instance == null) {
+
+			instance = new MongoDBHistogramMetrics();
+			instance.register(OBJECT_NAME);
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Registers this instance with the platform MBean server.
+	 */
+	public void register(String objectName) {
+
+		try {
+
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(objectName));
+		} catch (Exception ex) {
+
+			log.warn("Cannot register " + objectName + " with JMX: " + ex.getMessage());
+		}
+	}
+
+	@Override
+	public void record(MongoDBOperation operation, long nanos, long documentBytes, int cursorBatches, boolean failed) {
+
+		OperationMetrics metrics = this.operations.get(operation);
+
+		metrics.count.incrementAndGet();
+		if (failed) metrics.failures.incrementAndGet();
+		if (cursorBatches > 0) metrics.cursorBatches.addAndGet(cursorBatches);
+
+		metrics.latencyMicros.recordValue(Math.max(0, nanos / 1000));
+		metrics.documentBytes.recordValue(Math.max(0, documentBytes));
+	}
+
+	/*
+	 * Per operation
+	 */
+
+	public long getCount(MongoDBOperation operation) {
+
+		return this.operations.get(operation).count.get();
+	}
+
+	public long getFailures(MongoDBOperation operation) {
+
+		return this.operations.get(operation).failures.get();
+	}
+
+	public long getCursorBatches(MongoDBOperation operation) {
+
+		return this.operations.get(operation).cursorBatches.get();
+	}
+
+	/**
+	 * @return a copy of the latency distribution in microseconds.
+	 */
+	public Histogram getLatencyMicros(MongoDBOperation operation) {
+
+		return this.operations.get(operation).latencyMicros.copy();
+	}
+
+	/**
+	 * @return a copy of the document size distribution in bytes.
+	 */
+	public Histogram getDocumentBytes(MongoDBOperation operation) {
+
+		return this.operations.get(operation).documentBytes.copy();
+	}
+
+	/*
+	 * JMX
+	 */
+
+	@Override
+	public Map<String, Long> getCounts() {
+
+		Map<String, Long> counts = new LinkedHashMap<String, Long> ();
+		for (MongoDBOperation operation : MongoDBOperation.values()) counts.put(operation.name(), Long.valueOf(this.getCount(operation)));
+
+		return counts;
+	}
+
+	@Override
+	public Map<String, Long> getFailures() {
+
+		Map<String, Long> failures = new LinkedHashMap<String, Long> ();
+		for (MongoDBOperation operation : MongoDBOperation.values()) failures.put(operation.name(), Long.valueOf(this.getFailures(operation)));
+
+		return failures;
+	}
+
+	@Override
+	public Map<String, Long> getCursorBatches() {
+
+		Map<String, Long> cursorBatches = new LinkedHashMap<String, Long> ();
+		for (MongoDBOperation operation : MongoDBOperation.values()) cursorBatches.put(operation.name(), Long.valueOf(this.getCursorBatches(operation)));
+
+		return cursorBatches;
+	}
+
+	@Override
+	public Map<String, Double> getMeanLatencyMicros() {
+
+		Map<String, Double> means = new LinkedHashMap<String, Double> ();
+		for (MongoDBOperation operation : MongoDBOperation.values()) means.put(operation.name(), Double.valueOf(this.getLatencyMicros(operation).getMean()));
+
+		return means;
+	}
+
+	@Override
+	public Map<String, Long> getMedianLatencyMicros() {
+
+		return this.getLatencyPercentile(50.0);
+	}
+
+	@Override
+	public Map<String, Long> getP99LatencyMicros() {
+
+		return this.getLatencyPercentile(99.0);
+	}
+
+	@Override
+	public Map<String, Long> getMaxLatencyMicros() {
+
+		Map<String, Long> max = new LinkedHashMap<String, Long> ();
+		for (MongoDBOperation operation : MongoDBOperation.values()) max.put(operation.name(), Long.valueOf(this.getLatencyMicros(operation).getMaxValue()));
+
+		return max;
+	}
+
+	@Override
+	public Map<String, Long> getMedianDocumentBytes() {
+
+		return this.getDocumentBytesPercentile(50.0);
+	}
+
+	@Override
+	public Map<String, Long> getP99DocumentBytes() {
+
+		return this.getDocumentBytesPercentile(99.0);
+	}
+
+	@Override
+	public void reset() {
+
+		for (OperationMetrics metrics : this.operations.values()) metrics.reset();
+	}
+
+	private Map<String, Long> getLatencyPercentile(double percentile) {
+
+		Map<String, Long> values = new LinkedHashMap<String, Long> ();
+		for (MongoDBOperation operation : MongoDBOperation.values()) values.put(operation.name(), Long.valueOf(this.getLatencyMicros(operation).getValueAtPercentile(percentile)));
+
+		return values;
+	}
+
+	private Map<String, Long> getDocumentBytesPercentile(double percentile) {
+
+		Map<String, Long> values = new LinkedHashMap<String, Long> ();
+		for (MongoDBOperation operation : MongoDBOperation.values()) values.put(operation.name(), Long.valueOf(this.getDocumentBytes(operation).getValueAtPercentile(percentile)));
+
+		return values;
+	}
+
+	private static class OperationMetrics {
+
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicLong cursorBatches = new AtomicLong();
+		private final ConcurrentHistogram latencyMicros = new ConcurrentHistogram(SIGNIFICANT_DIGITS);
+		private final ConcurrentHistogram documentBytes = new ConcurrentHistogram(SIGNIFICANT_DIGITS);
+
+		private void reset() {
+
+			this.count.set(0);
+			this.failures.set(0);
+			this.cursorBatches.set(0);
+			this.latencyMicros.reset();
+			this.documentBytes.reset();
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.util.Map;
+
+/**
+ * The JMX view of <code>MongoDBHistogramMetrics</code>. All maps are keyed by operation name.
+ */
+public interface MongoDBHistogramMetricsMXBean {
+
+	public Map<String, Long> getCounts();
+
+	public Map<String, Long> getFailures();
+
+	public Map<String, Long> getCursorBatches();
+
+	public Map<String, Double> getMeanLatencyMicros();
+
+	public Map<String, Long> getMedianLatencyMicros();
+
+	public Map<String, Long> getP99LatencyMicros();
+
+	public Map<String, Long> getMaxLatencyMicros();
+
+	public Map<String, Long> getMedianDocumentBytes();
+
+	public Map<String, Long> getP99DocumentBytes();
+
+	public void reset();
+}
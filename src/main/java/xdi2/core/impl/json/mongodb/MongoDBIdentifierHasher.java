@@ -0,0 +1,163 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hashes graph identifiers into database names: the URL-safe Base64 encoding
+ * (with padding) of the SHA-256 digest of the UTF-8 bytes of the identifier.
+ *
+ * Each thread keeps its own digest and buffers, so hashing does not allocate
+ * anything but the resulting string. Hashed identifiers are remembered in a
+ * concurrent cache, which is simply cleared when it grows beyond its size.
+ */
+class MongoDBIdentifierHasher {
+
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+	private static final int DIGEST_LENGTH = 32;
+	private static final int HASH_LENGTH = 44;
+
+	private static final MongoDBIdentifierHasher instance = new MongoDBIdentifierHasher(DEFAULT_CACHE_SIZE);
+
+	private final int cacheSize;
+	private final ConcurrentMap<String, String> cache;
+
+	private final ThreadLocal<State> state = new ThreadLocal<State> () {
+
+		@Override
+		protected State initialValue() {
+
+			return new State();
+		}
+	};
+
+	MongoDBIdentifierHasher(int cacheSize) {
+
+		this.cacheSize = cacheSize;
+		this.cache = new ConcurrentHashMap<String, String> ();
+	}
+
+	static MongoDBIdentifierHasher getInstance() {
+
+		return instance;
+	}
+
+	String hash(String identifier) {
+
+		String hash = this.cache.get(identifier);
+		if (hash != null) return hash;
+
+		hash = this.state.get().hash(identifier);
+
+		if (this.cache.size() >= this.cacheSize) this.cache.clear();
+		this.cache.put(identifier, hash);
+
+		return hash;
+	}
+
+	/**
+	 * The digest and buffers of one thread.
+	 */
+	private static class State {
+
+		private final MessageDigest digest;
+		private final byte[] digestBuffer = new byte[DIGEST_LENGTH];
+		private final char[] hashBuffer = new char[HASH_LENGTH];
+		private byte[] inputBuffer = new byte[256];
+
+		private State() {
+
+			try {
+
+				this.digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException ex) {
+
+				throw new RuntimeException(ex.getMessage(), ex);
+			}
+		}
+
+		private String hash(String identifier) {
+
+			int length = this.encode(identifier);
+
+			if (length < 0) {
+
+				// non-ASCII identifiers are left to the charset, which also takes care of broken surrogates
+
+				this.digest.update(identifier.getBytes(UTF8));
+			} else {
+
+				this.digest.update(this.inputBuffer, 0, length);
+			}
+
+			try {
+
+				this.digest.digest(this.digestBuffer, 0, DIGEST_LENGTH);
+			} catch (Exception ex) {
+
+				throw new RuntimeException(ex.getMessage(), ex);
+			}
+
+			return this.base64();
+		}
+
+		/**
+		 * Copies an ASCII identifier into the input buffer.
+		 *
+		 * @return the number of bytes, or -1 if the identifier is not ASCII.
+		 */
+		private int encode(String identifier) {
+
+			int length = identifier.length();
+
+			if (this.inputBuffer.length < length) this.inputBuffer = new byte[Math.max(length, this.inputBuffer.length * 2)];
+
+			for (int i = 0; i < length; i++) {
+
+				char c = identifier.charAt(i);
+				if (c >= 0x80) return -1;
+
+				this.inputBuffer[i] = (byte) c;
+			}
+
+			return length;
+		}
+
+		private String base64() {
+
+			byte[] in = this.digestBuffer;
+			char[] out = this.hashBuffer;
+			int o = 0;
+			int i = 0;
+
+			for (; i + 2 < DIGEST_LENGTH; i += 3) {
+
+				int bits = (in[i] & 0xff) << 16 | (in[i + 1] & 0xff) << 8 | (in[i + 2] & 0xff);
+
+				out[o++] = ALPHABET[(bits >>> 18) & 0x3f];
+				out[o++] = ALPHABET[(bits >>> 12) & 0x3f];
+				out[o++] = ALPHABET[(bits >>> 6) & 0x3f];
+				out[o++] = ALPHABET[bits & 0x3f];
+			}
+
+			// 32 bytes leave 2 bytes, which are encoded as 3 characters and one padding character
+
+			int bits = (in[i] & 0xff) << 16 | (in[i + 1] & 0xff) << 8;
+
+			out[o++] = ALPHABET[(bits >>> 18) & 0x3f];
+			out[o++] = ALPHABET[(bits >>> 12) & 0x3f];
+			out[o++] = ALPHABET[(bits >>> 6) & 0x3f];
+			out[o++] = '=';
+
+			return new String(out, 0, o);
+		}
+	}
+}
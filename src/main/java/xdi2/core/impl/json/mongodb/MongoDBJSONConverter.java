@@ -0,0 +1,212 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map.Entry;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * Converts between Gson JSON elements and the objects used by the MongoDB driver,
+ * by walking the trees directly instead of going through a JSON string.
+ *
+ * The result is the same as serializing with Gson and parsing with the MongoDB
+ * JSON parser (and vice versa). Values that only the text path can represent
+ * (e.g. MongoDB extended JSON such as {"$date": ...}, or driver types such as
+ * ObjectId) still go through the text path.
+ */
+public class MongoDBJSONConverter {
+
+	private static final Gson gson = new GsonBuilder().disableHtmlEscaping().serializeNulls().create();
+
+	private MongoDBJSONConverter() { }
+
+	/*
+	 * Keys
+	 */
+
+	/**
+	 * Turns a JSON key into a field name MongoDB accepts. Every key is prefixed with "-",
+	 * and keys starting with "$" are escaped with a backslash.
+	 */
+	public static String toMongoKey(String key) {
+
+		if (key.startsWith("$")) key = "\\" + key;
+		key = "-" + key;
+
+		return key;
+	}
+
+	public static String fromMongoKey(String key) {
+
+		key = key.substring(1);
+		if (key.startsWith("\\$")) key = key.substring(1);
+
+		return key;
+	}
+
+	/*
+	 * Sizes
+	 */
+
+	/**
+	 * Estimates the size of a JSON element in bytes, as the length of its JSON text
+	 * (numbers and booleans count as 8). Cheap enough to be used on every operation.
+	 */
+	public static long estimateSize(JsonElement jsonElement) {
+
+		if (jsonElement == null || jsonElement.isJsonNull()) return 4;
+
+		if (jsonElement.isJsonPrimitive()) {
+
+			JsonPrimitive jsonPrimitive = jsonElement.getAsJsonPrimitive();
+
+			return jsonPrimitive.isString() ? jsonPrimitive.getAsString().length() + 2 : 8;
+		}
+
+		long size = 2;
+
+		if (jsonElement.isJsonArray()) {
+
+			for (JsonElement item : jsonElement.getAsJsonArray()) size += estimateSize(item) + 1;
+		} else {
+
+			for (Entry<String, JsonElement> entry : jsonElement.getAsJsonObject().entrySet()) size += entry.getKey().length() + 4 + estimateSize(entry.getValue());
+		}
+
+		return size;
+	}
+
+	/*
+	 * Gson to MongoDB
+	 */
+
+	public static Object toMongoElement(JsonElement jsonElement) {
+
+		if (jsonElement == null || jsonElement.isJsonNull()) return null;
+
+		if (jsonElement.isJsonPrimitive()) return toMongoPrimitive(jsonElement.getAsJsonPrimitive());
+
+		if (jsonElement.isJsonArray()) {
+
+			BasicDBList list = new BasicDBList();
+			for (JsonElement item : jsonElement.getAsJsonArray()) list.add(toMongoElement(item));
+
+			return list;
+		}
+
+		JsonObject jsonObject = jsonElement.getAsJsonObject();
+		if (isExtendedJson(jsonObject)) return JSON.parse(gson.toJson(jsonObject));
+
+		BasicDBObject object = new BasicDBObject();
+		for (Entry<String, JsonElement> entry : jsonObject.entrySet()) object.put(entry.getKey(), toMongoElement(entry.getValue()));
+
+		return object;
+	}
+
+	private static Object toMongoPrimitive(JsonPrimitive jsonPrimitive) {
+
+		if (jsonPrimitive.isString()) return jsonPrimitive.getAsString();
+		if (jsonPrimitive.isBoolean()) return Boolean.valueOf(jsonPrimitive.getAsBoolean());
+
+		Number number = jsonPrimitive.getAsNumber();
+
+		// the MongoDB JSON parser returns an Integer if the value fits, otherwise a Long
+
+		if (number instanceof Integer || number instanceof Short || number instanceof Byte) return Integer.valueOf(number.intValue());
+		if (number instanceof Long) return toMongoIntegral(number.longValue());
+
+		// the MongoDB JSON parser returns a Double for anything with a fraction or exponent
+
+		if (number instanceof Double) return number;
+		if (number instanceof Float) return Double.valueOf(number.toString());
+
+		// BigInteger, BigDecimal and Gson's lazily parsed numbers
+
+		return parseMongoNumber(number.toString());
+	}
+
+	private static Object toMongoIntegral(long value) {
+
+		if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) return Integer.valueOf((int) value);
+
+		return Long.valueOf(value);
+	}
+
+	private static Object parseMongoNumber(String string) {
+
+		if (string.indexOf('.') != -1 || string.indexOf('e') != -1 || string.indexOf('E') != -1) return Double.valueOf(string);
+
+		try {
+
+			return toMongoIntegral(Long.parseLong(string));
+		} catch (NumberFormatException ex) {
+
+			return Double.valueOf(string);
+		}
+	}
+
+	/**
+	 * The MongoDB JSON parser turns objects with $-prefixed keys into driver types,
+	 * so we leave those to the parser.
+	 */
+	private static boolean isExtendedJson(JsonObject jsonObject) {
+
+		for (Entry<String, JsonElement> entry : jsonObject.entrySet()) {
+
+			if (entry.getKey().startsWith("$")) return true;
+		}
+
+		return false;
+	}
+
+	/*
+	 * MongoDB to Gson
+	 */
+
+	public static JsonElement fromMongoElement(Object object) throws IOException {
+
+		if (object == null) return JsonNull.INSTANCE;
+
+		if (object instanceof String) return new JsonPrimitive((String) object);
+		if (object instanceof Boolean) return new JsonPrimitive((Boolean) object);
+
+		if (object instanceof Integer || object instanceof Long || object instanceof Double) return new JsonPrimitive((Number) object);
+
+		if (object instanceof List<?>) {
+
+			JsonArray jsonArray = new JsonArray();
+			for (Object item : (List<?>) object) jsonArray.add(fromMongoElement(item));
+
+			return jsonArray;
+		}
+
+		if (object instanceof DBObject) {
+
+			JsonObject jsonObject = new JsonObject();
+			for (String key : ((DBObject) object).keySet()) jsonObject.add(key, fromMongoElement(((DBObject) object).get(key)));
+
+			return jsonObject;
+		}
+
+		return fromMongoElementText(object);
+	}
+
+	private static JsonElement fromMongoElementText(Object object) throws IOException {
+
+		StringBuilder builder = new StringBuilder();
+		JSON.serialize(object, builder);
+
+		return gson.getAdapter(JsonArray.class).fromJson("[" + builder.toString() + "]").get(0);
+	}
+}
@@ -0,0 +1,94 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.google.gson.JsonObject;
+import com.mongodb.DBCursor;
+
+/**
+ * Iterates over stored contexts as (key, <code>JsonObject</code>) pairs, converting one document at a time.
+ * The underlying cursor is closed when the iteration is complete, or when close() is called
+ * to stop early. Contexts in subtrees that are being deleted in the background are skipped.
+ */
+public class MongoDBJSONCursor implements Iterator<Map.Entry<String, JsonObject>>, Iterable<Map.Entry<String, JsonObject>>, Closeable {
+
+	private MongoDBJSONStore jsonStore;
+	private DBCursor cursor;
+	private Map.Entry<String, JsonObject> nextEntry;
+	private boolean closed;
+	private int batches;
+
+	MongoDBJSONCursor(MongoDBJSONStore jsonStore, DBCursor cursor) {
+
+		this.jsonStore = jsonStore;
+		this.cursor = cursor;
+		this.nextEntry = null;
+		this.closed = cursor == null;
+	}
+
+	@Override
+	public boolean hasNext() {
+
+		while (this.nextEntry == null) {
+
+			if (this.closed) return false;
+
+			if (! this.cursor.hasNext()) {
+
+				this.close();
+				return false;
+			}
+
+			Map.Entry<String, JsonObject> entry = this.jsonStore.toEntry(this.cursor.next());
+			if (! this.jsonStore.isHidden(entry.getKey())) this.nextEntry = entry;
+		}
+
+		return true;
+	}
+
+	@Override
+	public Map.Entry<String, JsonObject> next() {
+
+		if (! this.hasNext()) throw new NoSuchElementException();
+
+		Map.Entry<String, JsonObject> entry = this.nextEntry;
+		this.nextEntry = null;
+
+		return entry;
+	}
+
+	@Override
+	public void remove() {
+
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Iterator<Map.Entry<String, JsonObject>> iterator() {
+
+		return this;
+	}
+
+	@Override
+	public void close() {
+
+		this.nextEntry = null;
+
+		if (this.closed) return;
+
+		this.closed = true;
+		this.batches = this.cursor.numGetMores() + 1;
+		this.cursor.close();
+	}
+
+	/**
+	 * Returns the number of batches fetched from the server, once the cursor is closed.
+	 */
+	int getBatches() {
+
+		return this.batches;
+	}
+}
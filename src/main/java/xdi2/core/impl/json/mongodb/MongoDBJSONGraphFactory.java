@@ -1,17 +1,19 @@
 package xdi2.core.impl.json.mongodb;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.security.MessageDigest;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.codec.binary.Base64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientOptions;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
 
 import xdi2.core.GraphFactory;
@@ -29,14 +31,37 @@ public class MongoDBJSONGraphFactory extends AbstractJSONGraphFactory implements
 
 	public static final String  DEFAULT_HOST = "localhost";
 	public static final Integer DEFAULT_PORT = null;
+	public static final int     DEFAULT_ASYNC_THREADS = 16;
 
 	private String  host;
 	private Integer port;
 	private Boolean mockFlag;
 	private Boolean hashIdentifierFlag;
 	private Boolean sharedDatabaseFlag;
+	private Integer bucketCount;
+	private Boolean bulkWriteFlag;
+	private Integer cursorBatchSize;
+	private Boolean compactFlag;
+	private Integer deleteBatchSize;
+	private Boolean backgroundDeleteFlag;
+	private MongoDBSubtreeReaper subtreeReaper;
 	private List<ServerAddress> replicaSet;
+	private MongoClient mongoClient;
 	private MongoClientOptions mongoClientOptions;
+	private ExecutorService executorService;
+	private Long nearCacheMaxBytes;
+	private MongoDBNearCache nearCache;
+	private MongoDBChangeSource changeSource;
+	private MongoClient changeSourceClient;
+	private boolean changeSourceStarted;
+	private String readPreference;
+	private Long primaryWindowMillis;
+	private MongoDBReadRouter readRouter;
+	private MongoDBWriteConcernPolicy writeConcernPolicy;
+	private MongoDBMetricsRegistry metricsRegistry;
+	private MongoDBSlowOperationDetector slowOperationDetector;
+	private MongoDBOperationTracer operationTracer;
+	private MongoDBSharding sharding;
 
 	public MongoDBJSONGraphFactory() { 
 
@@ -47,6 +72,9 @@ public class MongoDBJSONGraphFactory extends AbstractJSONGraphFactory implements
 		this.mockFlag = Boolean.FALSE;
 		this.hashIdentifierFlag = Boolean.FALSE;
 		this.sharedDatabaseFlag = Boolean.TRUE;
+		this.bulkWriteFlag = Boolean.FALSE;
+		this.compactFlag = Boolean.FALSE;
+		this.backgroundDeleteFlag = Boolean.FALSE;
 	}
 
 	@Override
@@ -62,76 +90,178 @@ public class MongoDBJSONGraphFactory extends AbstractJSONGraphFactory implements
 
 		MongoClient mongoClient = null;
 
-		if (replicaSet != null) {
-			mongoClient = getMongoClientFromReplicaSet(replicaSet, mongoClientOptions);
+		if (this.getMongoClient() != null) {
+			mongoClient = this.getMongoClient();
+			// the store releases its client when it is closed
+			MongoClientRegistry.retain(mongoClient);
+		} else if (this.getReplicaSet() != null) {
+			mongoClient = acquireMongoClientFromReplicaSet(this.getReplicaSet(), this.getMongoClientOptions());
 		} else {
-			mongoClient = getMongoClient(this.getHost(), this.getPort());
+			mongoClient = acquireMongoClient(this.getHost(), this.getPort(), this.getMongoClientOptions());
 		}
 
-		JSONStore jsonStore = new MongoDBJSONStore(mongoClient, identifier, this.getMockFlag(), this.getSharedDatabaseFlag());
-		jsonStore.init();
+		if (mongoClient == null) {
+			throw new IOException("Cannot connect to MongoDB at " + this.getHost() + " " + this.getPort());
+		}
+
+		MongoDBJSONStore jsonStore = new MongoDBJSONStore(mongoClient, identifier, this.getMockFlag(), this.getSharedDatabaseFlag());
+		jsonStore.setBucketCount(this.getBucketCount());
+		jsonStore.setBulkWriteFlag(this.getBulkWriteFlag());
+		jsonStore.setCursorBatchSize(this.getCursorBatchSize());
+		jsonStore.setCompactFlag(this.getCompactFlag());
+		jsonStore.setDeleteBatchSize(this.getDeleteBatchSize());
+		if (Boolean.TRUE.equals(this.getBackgroundDeleteFlag())) jsonStore.setSubtreeReaper(this.getSubtreeReaper());
+		jsonStore.setNearCache(this.getNearCache());
+		jsonStore.setReadRouter(this.getReadRouter());
+		jsonStore.setWriteConcernPolicy(this.getWriteConcernPolicy());
+		jsonStore.setMetricsRegistry(this.getMetricsRegistry());
+		jsonStore.setSlowOperationDetector(this.getSlowOperationDetector());
+		jsonStore.setOperationTracer(this.getOperationTracer());
+		jsonStore.setSharding(this.getSharding());
+
+		try {
+
+			jsonStore.init();
+		} catch (RuntimeException ex) {
+
+			MongoClientRegistry.release(mongoClient);
+			throw ex;
+		}
 
 		return jsonStore;
 	}
 
-	private static HashMap<String, MongoClient> mongoClients = new HashMap<String, MongoClient>();
+	/**
+	 * Opens a store whose operations can also be started asynchronously.
+	 * They run on this factory's <code>ExecutorService</code>.
+	 */
+	public MongoDBAsyncJSONStore openAsyncJSONStore(String identifier) throws IOException {
+
+		return new MongoDBAsyncJSONStore((MongoDBJSONStore) this.openJSONStore(identifier), this.getExecutorService());
+	}
+
+	/**
+	 * Exports one graph into a file, see <code>MongoDBGraphDump</code>.
+	 *
+	 * @param identifier the graph identifier.
+	 * @param file the file to write.
+	 * @param format the format of the records.
+	 * @return the number of contexts written.
+	 */
+	public long exportGraph(String identifier, File file, MongoDBGraphDump.Format format) throws IOException {
+
+		MongoDBJSONStore jsonStore = (MongoDBJSONStore) this.openJSONStore(identifier);
+
+		try {
 
-	private static String getMongoClientKey(String host, Integer port) {
-		String key = host;
-		if (port != null) {
-			key = key + ":" + port;
+			return MongoDBGraphDump.export(jsonStore, file, format);
+		} finally {
+
+			jsonStore.close();
 		}
-		return key;
 	}
 
-	public static synchronized MongoClient getMongoClient(String host, Integer port) {
-		if (log.isTraceEnabled()) {
-			log.trace("getMongoClient() " + host + " " + port);
+	/**
+	 * Imports a file written by <code>exportGraph()</code> into a graph, which may have another identifier.
+	 *
+	 * @param identifier the graph identifier.
+	 * @param file the file to read.
+	 * @param threads how many batches are written at the same time.
+	 * @return the number of contexts read.
+	 */
+	public long importGraph(String identifier, File file, int threads) throws IOException {
+
+		MongoDBJSONStore jsonStore = (MongoDBJSONStore) this.openJSONStore(identifier);
+
+		try {
+
+			return MongoDBGraphDump.restore(jsonStore, file, threads, MongoDBGraphDump.DEFAULT_BATCH_SIZE);
+		} finally {
+
+			jsonStore.close();
 		}
-		String key = getMongoClientKey(host, port);
-		MongoClient rtn = mongoClients.get(key);
-		if (rtn != null) {
-			return rtn;
+	}
+
+	/**
+	 * Stops the change source this factory started for its near-cache, and empties the near-cache.
+	 */
+	public synchronized void closeNearCache() {
+
+		if (this.changeSourceStarted) {
+
+			this.changeSource.close();
+			this.changeSource = null;
+			this.changeSourceStarted = false;
 		}
-		try
-		{
-			MongoClient client = null;
-			if (port != null) {
-				client = new MongoClient(host, port.intValue());
-			} else {
-				client = new MongoClient(host);
-			}
-			rtn = client;
-			mongoClients.put(key, rtn);
-		} catch (java.net.UnknownHostException e) {
-			log.error("getMongoClient() " + host + " " + port + " failed - " + e, e);
-			rtn = null;
+
+		if (this.changeSourceClient != null) {
+
+			MongoClientRegistry.release(this.changeSourceClient);
+			this.changeSourceClient = null;
 		}
-		return rtn;
+
+		if (this.nearCache != null) this.nearCache.clear();
+	}
+
+	/**
+	 * Returns a shared client that is never closed before the JVM shuts down, so callers don't
+	 * need to give it back. New code should use acquireMongoClient() instead.
+	 */
+	public static MongoClient getMongoClient(String host, Integer port) {
+
+		return getMongoClient(host, port, null);
+	}
+
+	public static MongoClient getMongoClient(String host, Integer port, MongoClientOptions clientOptions) {
+
+		MongoClient mongoClient = acquireMongoClient(host, port, clientOptions);
+		MongoClientRegistry.pin(mongoClient);
+
+		return mongoClient;
 	}
 
-	public static synchronized MongoClient getMongoClientFromReplicaSet(List<ServerAddress> replicaSet, MongoClientOptions clientOptions) {
+	public static MongoClient getMongoClientFromReplicaSet(List<ServerAddress> replicaSet, MongoClientOptions clientOptions) {
+
+		MongoClient mongoClient = acquireMongoClientFromReplicaSet(replicaSet, clientOptions);
+		MongoClientRegistry.pin(mongoClient);
+
+		return mongoClient;
+	}
+
+	/**
+	 * Returns a shared client from the <code>MongoClientRegistry</code>. Every call takes a reference,
+	 * which is given back either with <code>MongoClientRegistry.release()</code>, or by closing the
+	 * <code>MongoDBJSONStore</code> the client was passed to. The client is closed when it was idle
+	 * for a while after its last reference was given back.
+	 */
+	public static MongoClient acquireMongoClient(String host, Integer port, MongoClientOptions clientOptions) {
 
-		String key = getMongoClientKey(replicaSet.hashCode() + "", null);
-		MongoClient rtn = mongoClients.get(key);
-		if (rtn != null) {
-			return rtn;
+		if (log.isTraceEnabled()) {
+			log.trace("acquireMongoClient() " + host + " " + port);
 		}
 
-		MongoClient client = null;
-		client = new MongoClient(replicaSet, clientOptions);
-		rtn = client;
-		mongoClients.put(key, rtn);
+		try {
+
+			ServerAddress serverAddress = port != null ? new ServerAddress(host, port.intValue()) : new ServerAddress(host);
 
-		return rtn;
+			return MongoClientRegistry.acquire(serverAddress, clientOptions);
+		} catch (java.net.UnknownHostException e) {
+
+			log.error("acquireMongoClient() " + host + " " + port + " failed - " + e, e);
+			return null;
+		}
+	}
+
+	public static MongoClient acquireMongoClientFromReplicaSet(List<ServerAddress> replicaSet, MongoClientOptions clientOptions) {
+
+		return MongoClientRegistry.acquire(replicaSet, clientOptions);
 	}
 
 	public static String hashIdentifier(String identifier) {
 
 		try {
 
-			MessageDigest digest = MessageDigest.getInstance("SHA-256");
-			return URLSafe(new String(Base64.encodeBase64(digest.digest(identifier.getBytes(Charset.forName("UTF-8")))), Charset.forName("UTF-8")));
+			return MongoDBIdentifierHasher.getInstance().hash(identifier);
 		} catch (Exception ex) {
 
 			log.error("hashIdentifier " + identifier + "failed", ex);
@@ -139,11 +269,6 @@ public class MongoDBJSONGraphFactory extends AbstractJSONGraphFactory implements
 		}
 	}
 
-	private static String URLSafe(String string) {
-
-		return string.replace('+', '-').replace('/', '_');
-	}
-
 	/*
 	 * Getters and setters
 	 */
@@ -192,6 +317,87 @@ public class MongoDBJSONGraphFactory extends AbstractJSONGraphFactory implements
 		this.sharedDatabaseFlag = sharedDatabaseFlag;
 	}
 
+	public Integer getBucketCount() {
+		return this.bucketCount;
+	}
+
+	/**
+	 * @param bucketCount the number of collections the shared database is split into, by the hash
+	 * of the graph identifier, or null to keep all graphs in one collection. This must not be
+	 * changed once graphs are stored; use MongoDBStoreCombineUtil or exportGraph()/importGraph() to move them.
+	 */
+	public void setBucketCount(Integer bucketCount) {
+		this.bucketCount = bucketCount;
+	}
+
+	public Boolean getBulkWriteFlag() {
+		return this.bulkWriteFlag;
+	}
+
+	public void setBulkWriteFlag(Boolean bulkWriteFlag) {
+		this.bulkWriteFlag = bulkWriteFlag;
+	}
+
+	public Integer getCursorBatchSize() {
+		return this.cursorBatchSize;
+	}
+
+	public void setCursorBatchSize(Integer cursorBatchSize) {
+		this.cursorBatchSize = cursorBatchSize;
+	}
+
+	public Integer getDeleteBatchSize() {
+		return this.deleteBatchSize;
+	}
+
+	/**
+	 * @param deleteBatchSize if set, subtrees are deleted in batches of this many contexts instead of with a single remove
+	 */
+	public void setDeleteBatchSize(Integer deleteBatchSize) {
+		this.deleteBatchSize = deleteBatchSize;
+	}
+
+	public Boolean getBackgroundDeleteFlag() {
+		return this.backgroundDeleteFlag;
+	}
+
+	/**
+	 * @param backgroundDeleteFlag whether subtrees are deleted in the background, and hidden from reads until then
+	 */
+	public void setBackgroundDeleteFlag(Boolean backgroundDeleteFlag) {
+		this.backgroundDeleteFlag = backgroundDeleteFlag;
+	}
+
+	/**
+	 * @return the reaper deleting subtrees in the background for the stores of this factory,
+	 * by default MongoDBSubtreeReaper.getInstance()
+	 */
+	public synchronized MongoDBSubtreeReaper getSubtreeReaper() {
+		if (this.subtreeReaper == null) this.subtreeReaper = MongoDBSubtreeReaper.getInstance();
+		return this.subtreeReaper;
+	}
+
+	/**
+	 * @param subtreeReaper the reaper deleting subtrees in the background. A write into a subtree
+	 * that is being deleted waits until the whole subtree is deleted, including retries, which can
+	 * take long for a large subtree.
+	 */
+	public synchronized void setSubtreeReaper(MongoDBSubtreeReaper subtreeReaper) {
+		this.subtreeReaper = subtreeReaper;
+	}
+
+	public MongoClient getMongoClient() {
+		return this.mongoClient;
+	}
+
+	/**
+	 * @param mongoClient a client to use instead of connecting to the host or replica set, e.g. the
+	 * in-memory stand-in of Fongo for tests and benchmarks. It is not closed by the stores.
+	 */
+	public void setMongoClient(MongoClient mongoClient) {
+		this.mongoClient = mongoClient;
+	}
+
 	/**
 	 * @return the replicaSet
 	 */
@@ -206,6 +412,226 @@ public class MongoDBJSONGraphFactory extends AbstractJSONGraphFactory implements
 		this.replicaSet = replicaSet;
 	}
 
+	/**
+	 * @return the executorService for asynchronous store operations, by default a pool of DEFAULT_ASYNC_THREADS daemon threads
+	 */
+	public synchronized ExecutorService getExecutorService() {
+		if (this.executorService == null) {
+			this.executorService = Executors.newFixedThreadPool(DEFAULT_ASYNC_THREADS, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "MongoDBAsyncJSONStore-" + this.count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return this.executorService;
+	}
+
+	/**
+	 * @param executorService the executorService to set
+	 */
+	public synchronized void setExecutorService(ExecutorService executorService) {
+		this.executorService = executorService;
+	}
+
+	/**
+	 * @return the maximum estimated size of the near-cache in bytes, or null if there is no near-cache
+	 */
+	public Long getNearCacheMaxBytes() {
+		return this.nearCacheMaxBytes;
+	}
+
+	/**
+	 * @param nearCacheMaxBytes the maximum estimated size of the near-cache in bytes, or null to disable it
+	 */
+	public void setNearCacheMaxBytes(Long nearCacheMaxBytes) {
+		this.nearCacheMaxBytes = nearCacheMaxBytes;
+	}
+
+	/**
+	 * @return the near-cache shared by the stores of this factory, or null if disabled.
+	 * It is created on first use, and kept up to date by tailing the oplog unless another
+	 * change source was set, or the mock flag is set. The oplog is read with the client of the
+	 * stores, i.e. the mongoClient if one was set.
+	 */
+	public synchronized MongoDBNearCache getNearCache() {
+		if (this.nearCache == null && this.nearCacheMaxBytes != null) {
+			this.nearCache = new MongoDBNearCache(this.nearCacheMaxBytes.longValue());
+			if (this.changeSource != null) {
+				this.changeSource.addListener(this.nearCache);
+			} else if (! Boolean.TRUE.equals(this.getMockFlag())) {
+				MongoClient mongoClient = this.getMongoClient();
+				if (mongoClient == null) {
+					this.changeSourceClient = this.getReplicaSet() != null ? acquireMongoClientFromReplicaSet(this.getReplicaSet(), this.getMongoClientOptions()) : acquireMongoClient(this.getHost(), this.getPort(), this.getMongoClientOptions());
+					mongoClient = this.changeSourceClient;
+				}
+				if (mongoClient != null) {
+					MongoDBOplogTailer oplogTailer = new MongoDBOplogTailer(mongoClient);
+					oplogTailer.addListener(this.nearCache);
+					oplogTailer.start();
+					this.changeSource = oplogTailer;
+					this.changeSourceStarted = true;
+				}
+			}
+		}
+		return this.nearCache;
+	}
+
+	/**
+	 * @param nearCache the near-cache to be shared by the stores of this factory
+	 */
+	public synchronized void setNearCache(MongoDBNearCache nearCache) {
+		this.nearCache = nearCache;
+		if (nearCache != null && this.changeSource != null) this.changeSource.addListener(nearCache);
+	}
+
+	/**
+	 * @return the source of changes made by other processes, which keeps the near-cache up to date
+	 */
+	public synchronized MongoDBChangeSource getChangeSource() {
+		return this.changeSource;
+	}
+
+	/**
+	 * @param changeSource the source of changes made by other processes, to be used instead of the oplog
+	 */
+	public synchronized void setChangeSource(MongoDBChangeSource changeSource) {
+		this.changeSource = changeSource;
+		if (changeSource != null && this.nearCache != null) changeSource.addListener(this.nearCache);
+	}
+
+	/**
+	 * @return the name of the read preference for load operations, or null to use the client's
+	 */
+	public String getReadPreference() {
+		return this.readPreference;
+	}
+
+	/**
+	 * @param readPreference the name of the read preference for load operations, e.g. secondaryPreferred.
+	 * Graphs that were written recently still read from the primary.
+	 */
+	public synchronized void setReadPreference(String readPreference) {
+		this.readPreference = readPreference;
+		this.readRouter = null;
+	}
+
+	/**
+	 * @return how long a graph reads from the primary after it was written
+	 */
+	public Long getPrimaryWindowMillis() {
+		return this.primaryWindowMillis;
+	}
+
+	/**
+	 * @param primaryWindowMillis how long a graph reads from the primary after it was written,
+	 * by default MongoDBReadRouter.DEFAULT_PRIMARY_WINDOW_MILLIS
+	 */
+	public synchronized void setPrimaryWindowMillis(Long primaryWindowMillis) {
+		this.primaryWindowMillis = primaryWindowMillis;
+		this.readRouter = null;
+	}
+
+	/**
+	 * @return the read router shared by the stores of this factory, or null if no read preference is set
+	 */
+	public synchronized MongoDBReadRouter getReadRouter() {
+		if (this.readRouter == null && this.readPreference != null) {
+			long primaryWindowMillis = this.primaryWindowMillis != null ? this.primaryWindowMillis.longValue() : MongoDBReadRouter.DEFAULT_PRIMARY_WINDOW_MILLIS;
+			this.readRouter = new MongoDBReadRouter(ReadPreference.valueOf(this.readPreference), primaryWindowMillis, MongoDBReadRouter.DEFAULT_MAX_GRAPHS);
+		}
+		return this.readRouter;
+	}
+
+	/**
+	 * @return the policy choosing the write concern of each write, or null to use the client's
+	 */
+	public MongoDBWriteConcernPolicy getWriteConcernPolicy() {
+		return this.writeConcernPolicy;
+	}
+
+	/**
+	 * @param writeConcernPolicy the policy choosing the write concern of each write
+	 */
+	public void setWriteConcernPolicy(MongoDBWriteConcernPolicy writeConcernPolicy) {
+		this.writeConcernPolicy = writeConcernPolicy;
+	}
+
+	/**
+	 * @return the registry receiving a measurement for every store operation, or null if there is none
+	 */
+	public MongoDBMetricsRegistry getMetricsRegistry() {
+		return this.metricsRegistry;
+	}
+
+	/**
+	 * @param metricsRegistry the registry receiving a measurement for every store operation,
+	 * e.g. MongoDBHistogramMetrics.getInstance()
+	 */
+	public void setMetricsRegistry(MongoDBMetricsRegistry metricsRegistry) {
+		this.metricsRegistry = metricsRegistry;
+	}
+
+	public Boolean getCompactFlag() {
+		return this.compactFlag;
+	}
+
+	/**
+	 * @param compactFlag whether new graphs are stored in the compact format, with dictionary-encoded
+	 * keys and graph numbers. Graphs that already exist in the older format keep it.
+	 */
+	public void setCompactFlag(Boolean compactFlag) {
+		this.compactFlag = compactFlag;
+	}
+
+	/**
+	 * @return the detector keeping operations that took longer than its threshold, or null if there is none
+	 */
+	public MongoDBSlowOperationDetector getSlowOperationDetector() {
+		return this.slowOperationDetector;
+	}
+
+	/**
+	 * @param slowOperationDetector the detector keeping operations that took longer than its threshold,
+	 * e.g. MongoDBSlowOperationDetector.getInstance()
+	 */
+	public void setSlowOperationDetector(MongoDBSlowOperationDetector slowOperationDetector) {
+		this.slowOperationDetector = slowOperationDetector;
+	}
+
+	/**
+	 * @return the tracer keeping a sample of store operations, or null if there is none
+	 */
+	public MongoDBOperationTracer getOperationTracer() {
+		return this.operationTracer;
+	}
+
+	/**
+	 * @param operationTracer the tracer keeping a sample of store operations,
+	 * e.g. MongoDBOperationTracer.getInstance()
+	 */
+	public void setOperationTracer(MongoDBOperationTracer operationTracer) {
+		this.operationTracer = operationTracer;
+	}
+
+	/**
+	 * @return how the shared collection is sharded, or null if it is not
+	 */
+	public MongoDBSharding getSharding() {
+		return this.sharding;
+	}
+
+	/**
+	 * @param sharding how the shared collection is sharded when the factory is connected to a mongos,
+	 * or null to leave the collection as it is
+	 */
+	public void setSharding(MongoDBSharding sharding) {
+		this.sharding = sharding;
+	}
+
 	/**
 	 * @return the mongoClientOptions
 	 */
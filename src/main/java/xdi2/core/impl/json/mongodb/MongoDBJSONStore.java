@@ -1,29 +1,33 @@
 package xdi2.core.impl.json.mongodb;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DB;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
-import com.mongodb.util.JSON;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
 
 import xdi2.core.impl.json.AbstractJSONStore;
 import xdi2.core.impl.json.JSONStore;
@@ -31,186 +35,1273 @@ import xdi2.core.impl.json.JSONStore;
 public class MongoDBJSONStore extends AbstractJSONStore implements JSONStore {
 
 	private static final Logger log = LoggerFactory.getLogger(MongoDBJSONStore.class);
-	private static final Gson gson = new GsonBuilder().disableHtmlEscaping().serializeNulls().create();
 
 	public  static final String XDI2_OBJ_ID       = "id";
 	public  static final String XDI2_OBJ_KEY      = "key";
-	public  static final String XDI2_OBJ_INDEX    = "idx";
+	public  static final String XDI2_OBJ_VERSION  = "v";
+	public  static final String XDI2_OBJ_INDEX    = "idx_id_key";
+	public  static final String XDI2_OBJ_INDEX_V1 = "idx";
+
+	/*
+	 * Keys of the JSON objects of context nodes, as written by the JSON graph
+	 */
+
+	public  static final String JSON_KEY_CONTEXT  = "//";
+	public  static final String JSON_KEY_LITERAL  = "&";
+	public  static final String JSON_KEY_RELATION = "/";
 
 	public  static final String XDI2_DBNAME       = "xdi2graph";
 	public  static final String XDI2_DBNAME_MOCK  = "xdi2graph_mock";
 	public  static final String XDI2_DBCOLLECTION = "contexts";
 
-	private MongoClient	mongoClient;
-	private String		identifier;
-	private Boolean mockFlag;
-	private Boolean sharedDatabaseFlag;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private MongoClient	mongoClient;
+	private String		identifier;
+	private Boolean mockFlag;
+	private Boolean sharedDatabaseFlag;
+	private Integer bucketCount;
+	private Boolean bulkWriteFlag;
+	private Integer cursorBatchSize;
+	private Boolean compactFlag;
+	private Integer deleteBatchSize;
+	private MongoDBSubtreeReaper subtreeReaper;
+	private MongoDBNearCache nearCache;
+	private MongoDBReadRouter readRouter;
+	private MongoDBWriteConcernPolicy writeConcernPolicy;
+	private MongoDBMetricsRegistry metricsRegistry;
+	private MongoDBSlowOperationDetector slowOperationDetector;
+	private MongoDBOperationTracer operationTracer;
+	private MongoDBSharding sharding;
+
+	private DBCollection dbCollection;
+	private Object graphId;
+	private MongoDBCompactSchema compactSchema;
+	private ThreadLocal<MongoDBBulkWriter> bulkWriter;
+
+	public MongoDBJSONStore(MongoClient mongoClient, String identifier, Boolean mockFlag, Boolean sharedDatabaseFlag) {
+
+		this.mongoClient = mongoClient;
+		this.identifier = identifier;
+		this.mockFlag = mockFlag;
+		this.sharedDatabaseFlag = sharedDatabaseFlag;
+		this.bucketCount = null;
+		this.bulkWriteFlag = Boolean.FALSE;
+		this.cursorBatchSize = null;
+		this.compactFlag = Boolean.FALSE;
+		this.deleteBatchSize = null;
+		this.subtreeReaper = null;
+		this.nearCache = null;
+		this.readRouter = null;
+		this.writeConcernPolicy = null;
+		this.metricsRegistry = null;
+		this.slowOperationDetector = null;
+		this.operationTracer = null;
+		this.sharding = null;
+		this.bulkWriter = new ThreadLocal<MongoDBBulkWriter> ();
+	}
+
+	@Override
+	public void init() {
+
+		String dbName = null;
+		if (Boolean.TRUE.equals(mockFlag)) {
+			dbName = XDI2_DBNAME_MOCK;
+		} else {
+			if (Boolean.TRUE.equals(sharedDatabaseFlag)) {
+				dbName = XDI2_DBNAME;
+			} else {
+				dbName = this.identifier;
+			}
+		}
+		String collectionName = XDI2_DBCOLLECTION;
+		if (Boolean.TRUE.equals(sharedDatabaseFlag) && this.bucketCount != null && this.bucketCount.intValue() > 1) {
+			collectionName = getBucketCollectionName(this.identifier, this.bucketCount.intValue());
+		}
+		this.dbCollection = MongoDBCollectionCache.getInstance().getCollection(this.mongoClient, dbName, collectionName, Boolean.TRUE.equals(sharedDatabaseFlag), this.sharding);
+
+		this.graphId = this.identifier;
+		this.compactSchema = null;
+
+		if (Boolean.TRUE.equals(this.compactFlag)) {
+
+			MongoDBCompactSchema compactSchema = this.getSchema();
+
+			if (Boolean.TRUE.equals(sharedDatabaseFlag)) {
+
+				Integer graphNumber = compactSchema.getGraphNumber(this.dbCollection, this.identifier);
+
+				if (graphNumber != null) {
+
+					this.graphId = graphNumber;
+					this.compactSchema = compactSchema;
+				}
+			} else {
+
+				if (compactSchema.isCompact(this.dbCollection)) this.compactSchema = compactSchema;
+			}
+		}
+	}
+
+	/**
+	 * Returns the collection a graph is kept in when the shared database is split into buckets.
+	 * Graphs are spread over the buckets by a CRC-32 of their identifier, which never changes,
+	 * so the number of buckets must not be changed once graphs are stored.
+	 *
+	 * @param identifier the graph identifier, as it is stored (e.g. hashed).
+	 * @param bucketCount the number of buckets.
+	 * @return the collection name, e.g. contexts_7.
+	 */
+	public static String getBucketCollectionName(String identifier, int bucketCount) {
+
+		CRC32 crc32 = new CRC32();
+		crc32.update(identifier.getBytes(UTF8));
+
+		return getBucketCollectionName((int) (crc32.getValue() % bucketCount));
+	}
+
+	public static String getBucketCollectionName(int bucket) {
+
+		return XDI2_DBCOLLECTION + "_" + bucket;
+	}
+
+	/**
+	 * Returns the dictionary and graph numbers of the compact format, which are kept in the XDI2 database.
+	 */
+	private MongoDBCompactSchema getSchema() {
+
+		return MongoDBCompactSchema.getInstance(this.mongoClient, Boolean.TRUE.equals(this.mockFlag) ? XDI2_DBNAME_MOCK : XDI2_DBNAME);
+	}
+
+	/**
+	 * Makes sure a shared collection has the unique graph-first index <code>{id:1, key:1}</code>.
+	 * Collections created by earlier versions have the index <code>{key:1, id:1}</code> instead;
+	 * in that case the new index is built in the background first, and the old one is dropped
+	 * only after the new one is in place.
+	 *
+	 * @param dbCollection the shared collection holding XDI2 graphs.
+	 */
+	public static void ensureIndex(DBCollection dbCollection) {
+
+		BasicDBObject idx = new BasicDBObject();
+		idx.put(XDI2_OBJ_ID , Integer.valueOf(1));
+		idx.put(XDI2_OBJ_KEY, Integer.valueOf(1));
+
+		DBObject legacyIndex = findIndex(dbCollection, XDI2_OBJ_INDEX_V1);
+		DBObject index = findIndex(dbCollection, XDI2_OBJ_INDEX);
+
+		if (index == null) {
+
+			if (log.isInfoEnabled()) {
+				log.info("ensureIndex() - " + dbCollection.getFullName() + " building index " + XDI2_OBJ_INDEX + " " + idx);
+			}
+
+			dbCollection.createIndex(idx, new BasicDBObject("name", XDI2_OBJ_INDEX).append("unique", Boolean.TRUE).append("background", Boolean.valueOf(legacyIndex != null)));
+			index = findIndex(dbCollection, XDI2_OBJ_INDEX);
+		}
+
+		if (legacyIndex == null) return;
+
+		if (index == null || ! isIndexKey(index, idx) || ! Boolean.TRUE.equals(index.get("unique"))) {
+
+			log.warn("ensureIndex() - " + dbCollection.getFullName() + " index " + XDI2_OBJ_INDEX + " not ready, keeping " + XDI2_OBJ_INDEX_V1);
+			return;
+		}
+
+		if (log.isInfoEnabled()) {
+			log.info("ensureIndex() - " + dbCollection.getFullName() + " dropping index " + XDI2_OBJ_INDEX_V1 + " " + legacyIndex.get("key"));
+		}
+
+		try {
+
+			dbCollection.dropIndex(XDI2_OBJ_INDEX_V1);
+		} catch (MongoException ex) {
+
+			// another node may have dropped it already
+
+			log.warn("ensureIndex() - " + dbCollection.getFullName() + " dropping index " + XDI2_OBJ_INDEX_V1 + " failed - " + ex.getMessage());
+		}
+	}
+
+	private static boolean isIndexKey(DBObject index, DBObject idx) {
+
+		// compare field order, which BasicDBObject.equals() ignores
+
+		Object key = index.get("key");
+		if (! (key instanceof DBObject)) return false;
+
+		return new ArrayList<String> (((DBObject) key).keySet()).equals(new ArrayList<String> (idx.keySet()));
+	}
+
+	private static DBObject findIndex(DBCollection dbCollection, String name) {
+
+		for (DBObject index : dbCollection.getIndexInfo()) {
+
+			if (name.equals(index.get("name"))) return index;
+		}
+
+		return null;
+	}
+
+	@Override
+	public void close() {
+
+		MongoDBBulkWriter bulkWriter = this.bulkWriter.get();
+
+		if (bulkWriter != null && bulkWriter.size() > 0) {
+
+			log.warn("close() - " + this.identifier + " discarding " + bulkWriter.size() + " uncommitted writes");
+			bulkWriter.clear();
+		}
+
+		this.bulkWriter.remove();
+
+		MongoClientRegistry.release(this.mongoClient);
+	}
+
+	/*
+	 * Transactions
+	 */
+
+	/**
+	 * Transactions are not supported. If bulk writes are enabled, the writes between
+	 * beginTransaction() and commitTransaction() are still collected and sent as one
+	 * bulk operation. Reads send the collected writes first, so rollbackTransaction()
+	 * only discards the writes made since the last read.
+	 */
+	@Override
+	public boolean supportsTransactions() {
+
+		return false;
+	}
+
+	@Override
+	public void beginTransaction() {
+
+		if (! Boolean.TRUE.equals(this.bulkWriteFlag)) return;
+
+		if (log.isTraceEnabled()) {
+			log.trace("beginTransaction() - " + this.identifier);
+		}
+
+		this.bulkWriter.set(new MongoDBBulkWriter(this.dbCollection));
+	}
+
+	@Override
+	public void commitTransaction() {
+
+		MongoDBBulkWriter bulkWriter = this.bulkWriter.get();
+		if (bulkWriter == null) return;
+
+		if (log.isTraceEnabled()) {
+			log.trace("commitTransaction() - " + this.identifier + " " + bulkWriter.size() + " writes");
+		}
+
+		this.bulkWriter.remove();
+
+		try {
+
+			bulkWriter.flush(this.getBulkWriteConcern(bulkWriter.getOperations()));
+		} finally {
+
+			this.afterFlush();
+		}
+	}
+
+	@Override
+	public void rollbackTransaction() {
+
+		MongoDBBulkWriter bulkWriter = this.bulkWriter.get();
+		if (bulkWriter == null) return;
+
+		if (log.isTraceEnabled()) {
+			log.trace("rollbackTransaction() - " + this.identifier + " discarding " + bulkWriter.size() + " writes");
+		}
+
+		this.bulkWriter.remove();
+		bulkWriter.clear();
+	}
+
+	/**
+	 * Returns the bulk writer of the current transaction, or null if writes should be sent immediately.
+	 */
+	private MongoDBBulkWriter getBulkWriter() {
+
+		return this.bulkWriter.get();
+	}
+
+	/**
+	 * Sends the writes collected so far in the current transaction, so they are visible to reads.
+	 */
+	private void flushBulkWriter() throws IOException {
+
+		MongoDBBulkWriter bulkWriter = this.getBulkWriter();
+		if (bulkWriter == null || bulkWriter.size() == 0) return;
+
+		try {
+
+			bulkWriter.flush(this.getBulkWriteConcern(bulkWriter.getOperations()));
+		} catch (MongoException ex) {
+
+			throw new IOException("Cannot write to " + this.identifier + ": " + ex.getMessage(), ex);
+		} finally {
+
+			this.afterFlush();
+		}
+	}
+
+	/*
+	 * Near-cache and read routing
+	 */
+
+	/**
+	 * Returns the graph identifier that distinguishes the contexts of this graph within its collection,
+	 * or null if the collection holds a single graph.
+	 */
+	private String getCacheIdentifier() {
+
+		return Boolean.TRUE.equals(this.sharedDatabaseFlag) ? this.graphId.toString() : null;
+	}
+
+	private String getRouterKey() {
+
+		return this.dbCollection.getFullName() + " " + this.identifier;
+	}
+
+	/**
+	 * Called after a context was written.
+	 */
+	private void afterWrite(String id) {
+
+		if (this.nearCache != null) this.nearCache.invalidate(this.dbCollection.getFullName(), this.getCacheIdentifier(), id);
+		if (this.readRouter != null) this.readRouter.onWrite(this.getRouterKey());
+	}
+
+	/**
+	 * Called after the contexts starting with a prefix were deleted.
+	 */
+	private void afterDelete(String id) {
+
+		if (this.nearCache != null) this.nearCache.invalidatePrefix(this.dbCollection.getFullName(), this.getCacheIdentifier(), id);
+		if (this.readRouter != null) this.readRouter.onWrite(this.getRouterKey());
+	}
+
+	/**
+	 * Called after the writes of a transaction were sent.
+	 */
+	private void afterFlush() {
+
+		if (this.nearCache != null) this.nearCache.invalidateAll(this.dbCollection.getFullName(), this.getCacheIdentifier());
+		if (this.readRouter != null) this.readRouter.onWrite(this.getRouterKey());
+	}
+
+	/**
+	 * Returns the write concern for a write, or the collection's if there is no policy or the policy has none.
+	 */
+	private WriteConcern getWriteConcern(MongoDBOperation operation, String id) {
+
+		return this.getWriteConcern(operation, id, null);
+	}
+
+	private WriteConcern getWriteConcern(MongoDBOperation operation, String id, String key) {
+
+		WriteConcern writeConcern = this.writeConcernPolicy == null ? null : this.writeConcernPolicy.getWriteConcern(operation, id, key);
+
+		return writeConcern != null ? writeConcern : this.dbCollection.getWriteConcern();
+	}
+
+	/**
+	 * Returns the write concern for a bulk operation, see <code>MongoDBWriteConcernPolicy.getBulkWriteConcern()</code>.
+	 */
+	private WriteConcern getBulkWriteConcern(List<MongoDBWriteConcernPolicy.Write> writes) {
+
+		WriteConcern writeConcern = this.writeConcernPolicy == null ? null : this.writeConcernPolicy.getBulkWriteConcern(writes);
+
+		return writeConcern != null ? writeConcern : this.dbCollection.getWriteConcern();
+	}
+
+	/*
+	 * Subtrees being deleted in the background
+	 */
+
+	/**
+	 * Returns whether a context is in a subtree that is being deleted in the background.
+	 */
+	boolean isHidden(String id) {
+
+		return this.subtreeReaper != null && this.subtreeReaper.isHidden(this.getRouterKey(), id);
+	}
+
+	private boolean hasHidden() {
+
+		return this.subtreeReaper != null && this.subtreeReaper.hasPending(this.getRouterKey());
+	}
+
+	/**
+	 * Waits until a context is not in a subtree that is being deleted in the background,
+	 * so that the deletion does not remove what is written next.
+	 */
+	private void awaitSubtree(String id) throws IOException {
+
+		if (this.subtreeReaper == null) return;
+
+		try {
+
+			this.subtreeReaper.await(this.getRouterKey(), id);
+		} catch (InterruptedException ex) {
+
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the deletion of a subtree of " + this.identifier, ex);
+		}
+	}
+
+	/*
+	 * Metrics, slow operations and tracing
+	 */
+
+	/**
+	 * Returns whether operations are timed, because something is interested in the result.
+	 */
+	private boolean isTimed() {
+
+		return this.metricsRegistry != null || this.slowOperationDetector != null || this.operationTracer != null;
+	}
+
+	/**
+	 * Called after a timed operation.
+	 */
+	private void afterOperation(MongoDBOperation operation, String id, String key, long nanos, long documentBytes, int cursorBatches, boolean failed) {
+
+		if (this.metricsRegistry != null) this.metricsRegistry.record(operation, nanos, documentBytes, cursorBatches, failed);
+
+		if (this.operationTracer != null) {
+
+			// a read that fetched no batches was answered from the near-cache, or hidden
+
+			boolean cached = (operation == MongoDBOperation.LOAD || operation == MongoDBOperation.LOAD_WITH_PREFIX) && cursorBatches == 0 && ! failed;
+			this.operationTracer.trace(operation, this.identifier, id, key, documentBytes, nanos, cached, failed);
+		}
+
+		if (this.slowOperationDetector != null && this.slowOperationDetector.isSlow(nanos)) {
+
+			this.slowOperationDetector.onSlowOperation(this.dbCollection, operation, this.getCacheIdentifier(), id, this.getQuery(operation, id), nanos);
+		}
+	}
+
+	/**
+	 * Returns the query an operation sends to the server.
+	 */
+	private DBObject getQuery(MongoDBOperation operation, String id) {
+
+		if (operation == MongoDBOperation.LOAD_WITH_PREFIX || operation == MongoDBOperation.DELETE) return this.getKey(toMongoStartsWithCondition(id));
+
+		return this.getKey(id);
+	}
+
+	/**
+	 * @param cached whether the result is put into the near-cache.
+	 */
+	private DBObject findOne(DBObject query, DBObject fields, boolean cached) {
+
+		if (this.readRouter == null) return this.dbCollection.findOne(query, fields);
+
+		return this.dbCollection.findOne(query, fields, this.readRouter.getReadPreference(this.getRouterKey(), cached && this.nearCache != null));
+	}
+
+	/**
+	 * @param cached whether the results are put into the near-cache.
+	 */
+	private DBCursor find(DBObject query, DBObject fields, boolean cached) {
+
+		DBCursor cursor = this.dbCollection.find(query, fields);
+		if (cursor != null && this.readRouter != null) cursor.setReadPreference(this.readRouter.getReadPreference(this.getRouterKey(), cached && this.nearCache != null));
+
+		return cursor;
+	}
+
+	/**
+	 * Constructs the search <code>BasicDBObject</code> by combiniing graph identifier and the secondary key.
+	 * In the compact format, the graph identifier is the graph number.
+	 *
+	 * @param key the secondary key of a XDI2 graph.
+	 * @return a <code>BasicDBObject</code> combiniing graph identifier and the secondary key.
+	 */
+	private BasicDBObject getKey(Object key) {
+
+		if (Boolean.TRUE.equals(this.sharedDatabaseFlag)) {
+			return new BasicDBObject(XDI2_OBJ_ID, this.graphId).append(XDI2_OBJ_KEY, key);
+		} else {
+			return new BasicDBObject("_id", key);
+		}
+	}
+
+	/**
+	 * Constructs a new stored document for a context. In the compact format, it carries the version.
+	 */
+	private BasicDBObject getDocument(String key) {
+
+		BasicDBObject object = this.getKey(key);
+
+		if (this.compactSchema != null) object.append(XDI2_OBJ_VERSION, Integer.valueOf(MongoDBCompactSchema.VERSION_COMPACT));
+
+		return object;
+	}
+
+	/**
+	 * Constructs an update document applying an operator to a field. In the compact format,
+	 * documents created by an upsert get the version.
+	 */
+	private BasicDBObject getUpdate(String operator, String field, Object value) {
+
+		BasicDBObject update = new BasicDBObject(operator, new BasicDBObject(field, value));
+
+		if (this.compactSchema != null) update.append("$setOnInsert", new BasicDBObject(XDI2_OBJ_VERSION, Integer.valueOf(MongoDBCompactSchema.VERSION_COMPACT)));
+
+		return update;
+	}
+
+	/**
+	 * Adds an upserting field update to a bulk writer. In the compact format, documents
+	 * created by the upsert get the version.
+	 */
+	private void bulkUpdate(MongoDBBulkWriter bulkWriter, MongoDBOperation operation, String id, String key, String operator, String field, Object value) {
+
+		bulkWriter.update(operation, id, key, this.getKey(id), operator, field, value, true);
+
+		if (this.compactSchema != null) bulkWriter.update(null, id, null, this.getKey(id), "$setOnInsert", XDI2_OBJ_VERSION, Integer.valueOf(MongoDBCompactSchema.VERSION_COMPACT), true);
+	}
+
+	/**
+	 * Returns the secondary key of a stored <code>DBObject</code>.
+	 */
+	private String getKeyValue(DBObject object) {
+
+		if (Boolean.TRUE.equals(this.sharedDatabaseFlag)) {
+			return (String) object.get(XDI2_OBJ_KEY);
+		} else {
+			return (String) object.get("_id");
+		}
+	}
+
+	@Override
+	public JsonObject load(String id) throws IOException {
+
+		if (! this.isTimed()) return this.doLoad(id, null);
+
+		long start = System.nanoTime();
+		int[] cursorBatches = new int[1];
+		JsonObject jsonObject = null;
+		boolean failed = true;
+
+		try {
+
+			jsonObject = this.doLoad(id, cursorBatches);
+			failed = false;
+
+			return jsonObject;
+		} finally {
+
+			this.afterOperation(MongoDBOperation.LOAD, id, null, System.nanoTime() - start, MongoDBJSONConverter.estimateSize(jsonObject), cursorBatches[0], failed);
+		}
+	}
+
+	/**
+	 * @param cursorBatches if not null, receives the number of queries sent to the server.
+	 */
+	private JsonObject doLoad(String id, int[] cursorBatches) throws IOException {
+
+		if (log.isTraceEnabled()) {
+			log.trace("load() - " + this.identifier + " " + id);
+		}
+
+		this.flushBulkWriter();
+
+		if (this.isHidden(id)) return null;
+
+		long generation = 0;
+
+		if (this.nearCache != null) {
+
+			JsonElement cached = this.nearCache.getLoad(this.dbCollection.getFullName(), this.getCacheIdentifier(), id);
+			if (cached != null) return cached.isJsonNull() ? null : cached.getAsJsonObject();
+
+			generation = this.nearCache.getGeneration();
+		}
+
+		if (cursorBatches != null) cursorBatches[0] = 1;
+
+		DBObject object = this.findOne(this.getKey(id), null, true);
+
+		JsonObject jsonObject = fromMongoObject(object);
+
+		if (this.nearCache != null) this.nearCache.putLoad(this.dbCollection.getFullName(), this.getCacheIdentifier(), id, object == null ? null : object.get("_id"), jsonObject, generation);
+
+		return jsonObject;
+	}
+
+	/**
+	 * Loads only some keys of a context. The other fields are not sent by the server.
+	 *
+	 * @param id the key of the context.
+	 * @param keys the keys to load.
+	 * @return a <code>JsonObject</code> with those of the keys that exist, or null if the context does not exist.
+	 */
+	public JsonObject load(String id, Collection<String> keys) throws IOException {
+
+		return this.loadWithProjection(id, keys, Integer.valueOf(1));
+	}
+
+	/**
+	 * Loads all keys of a context except the given ones.
+	 *
+	 * @param id the key of the context.
+	 * @param keys the keys not to load.
+	 * @return a <code>JsonObject</code> with the other keys, or null if the context does not exist.
+	 */
+	public JsonObject loadWithout(String id, Collection<String> keys) throws IOException {
+
+		return this.loadWithProjection(id, keys, Integer.valueOf(0));
+	}
+
+	public JsonObject loadContextNodes(String id) throws IOException {
+
+		return this.load(id, Collections.singleton(JSON_KEY_CONTEXT));
+	}
+
+	public JsonObject loadLiteral(String id) throws IOException {
+
+		return this.load(id, Collections.singleton(JSON_KEY_LITERAL));
+	}
+
+	public JsonObject loadRelations(String id) throws IOException {
+
+		return this.loadWithout(id, Arrays.asList(JSON_KEY_CONTEXT, JSON_KEY_LITERAL));
+	}
+
+	public JsonObject loadRelations(String id, String arc) throws IOException {
+
+		return this.load(id, Collections.singleton(JSON_KEY_RELATION + arc));
+	}
+
+	private JsonObject loadWithProjection(String id, Collection<String> keys, Integer include) throws IOException {
+
+		if (log.isTraceEnabled()) {
+			log.trace("load() - " + this.identifier + " " + id + " " + keys + " " + include);
+		}
+
+		this.flushBulkWriter();
+
+		if (this.isHidden(id)) return null;
+
+		// keys that are not in the dictionary are in no document
+
+		DBObject fields = new BasicDBObject();
+		for (String key : keys) {
+
+			String field = this.lookupMongoKey(key);
+			if (field != null) fields.put(field, include);
+		}
+
+		// an empty projection would return all fields
+
+		if (fields.keySet().isEmpty() && include.intValue() == 1) fields.put("_id", include);
+
+		DBObject object = this.findOne(this.getKey(id), fields, false);
+
+		return fromMongoObject(object);
+	}
+
+	@Override
+	public Map<String, JsonObject> loadWithPrefix(String id) throws IOException {
+
+		if (! this.isTimed()) return this.doLoadWithPrefix(id, null);
+
+		long start = System.nanoTime();
+		int[] cursorBatches = new int[1];
+		Map<String, JsonObject> jsonObjects = null;
+		boolean failed = true;
+
+		try {
+
+			jsonObjects = this.doLoadWithPrefix(id, cursorBatches);
+			failed = false;
+
+			return jsonObjects;
+		} finally {
+
+			long documentBytes = 0;
+			if (jsonObjects != null) for (JsonObject jsonObject : jsonObjects.values()) documentBytes += MongoDBJSONConverter.estimateSize(jsonObject);
+
+			this.afterOperation(MongoDBOperation.LOAD_WITH_PREFIX, id, null, System.nanoTime() - start, documentBytes, cursorBatches[0], failed);
+		}
+	}
+
+	/**
+	 * @param cursorBatches if not null, receives the number of batches fetched from the server.
+	 */
+	private Map<String, JsonObject> doLoadWithPrefix(String id, int[] cursorBatches) throws IOException {
+
+		if (this.nearCache == null) {
+
+			MongoDBJSONCursor cursor = this.iterateWithPrefix(id);
+
+			Map<String, JsonObject> jsonObjects = new HashMap<String, JsonObject> ();
+
+			try {
+
+				while (cursor.hasNext()) {
+
+					Map.Entry<String, JsonObject> entry = cursor.next();
+
+					jsonObjects.put(entry.getKey(), entry.getValue());
+				}
+			} finally {
+
+				cursor.close();
+				if (cursorBatches != null) cursorBatches[0] = cursor.getBatches();
+			}
+
+			return jsonObjects;
+		}
+
+		this.flushBulkWriter();
+
+		Map<String, JsonObject> cached = this.nearCache.getPrefix(this.dbCollection.getFullName(), this.getCacheIdentifier(), id);
+		if (cached != null) return cached;
+
+		long generation = this.nearCache.getGeneration();
+		boolean hidden = this.hasHidden();
+
+		Map<String, JsonObject> jsonObjects = new HashMap<String, JsonObject> ();
+		List<Object> documentIds = new ArrayList<Object> ();
+
+		DBCursor cursor = this.findWithPrefix(id, true);
+
+		try {
+
+			while (cursor != null && cursor.hasNext()) {
+
+				DBObject object = cursor.next();
+				Map.Entry<String, JsonObject> entry = this.toEntry(object);
+
+				if (hidden && this.isHidden(entry.getKey())) continue;
+
+				jsonObjects.put(entry.getKey(), entry.getValue());
+				documentIds.add(object.get("_id"));
+			}
+		} finally {
+
+			if (cursor != null) cursor.close();
+			if (cursor != null && cursorBatches != null) cursorBatches[0] = cursor.numGetMores() + 1;
+		}
+
+		this.nearCache.putPrefix(this.dbCollection.getFullName(), this.getCacheIdentifier(), id, documentIds, jsonObjects, generation);
+
+		return jsonObjects;
+	}
+
+	/**
+	 * Like loadWithPrefix(), but returns the contexts one at a time instead of loading
+	 * them all into memory. The documents are fetched in batches of cursorBatchSize.
+	 * Callers that stop before the end must close the returned cursor.
+	 *
+	 * @param id the key prefix.
+	 * @return a <code>MongoDBJSONCursor</code> over the matching contexts.
+	 */
+	public MongoDBJSONCursor iterateWithPrefix(String id) throws IOException {
+
+		this.flushBulkWriter();
+
+		return new MongoDBJSONCursor(this, this.findWithPrefix(id, false));
+	}
+
+	private DBCursor findWithPrefix(String id, boolean cached) {
+
+		DBCursor cursor = this.find(this.getKey(toMongoStartsWithCondition(id)), null, cached);
+		if (cursor != null && this.cursorBatchSize != null) cursor.batchSize(this.cursorBatchSize.intValue());
+
+		return cursor;
+	}
+
+	/**
+	 * Loads several contexts with a single query.
+	 *
+	 * @param ids the keys of the contexts.
+	 * @return the contexts that exist, by key.
+	 */
+	public Map<String, JsonObject> loadAll(Collection<String> ids) throws IOException {
+
+		this.flushBulkWriter();
+
+		if (ids.isEmpty()) return Collections.emptyMap();
+
+		DBCursor cursor = this.find(this.getKey(new BasicDBObject("$in", new ArrayList<String> (ids))), null, false);
+		if (cursor == null) return Collections.emptyMap();
+
+		Map<String, JsonObject> jsonObjects = new HashMap<String, JsonObject> ();
+		boolean hidden = this.hasHidden();
+
+		try {
+
+			while (cursor.hasNext()) {
+
+				DBObject object = cursor.next();
+				String key = this.getKeyValue(object);
+
+				if (hidden && this.isHidden(key)) continue;
+
+				jsonObjects.put(key, fromMongoObject(object));
+			}
+		} finally {
+
+			cursor.close();
+		}
+
+		return jsonObjects;
+	}
+
+	/**
+	 * Loads only the keys that start with the given prefix. The query and the projection
+	 * only use indexed fields, so MongoDB answers it from the index without fetching
+	 * any documents.
+	 *
+	 * @param id the key prefix.
+	 * @return the matching keys, in index order.
+	 */
+	public List<String> loadKeysWithPrefix(String id) throws IOException {
+
+		this.flushBulkWriter();
+
+		String keyField = Boolean.TRUE.equals(this.sharedDatabaseFlag) ? XDI2_OBJ_KEY : "_id";
+
+		DBObject fields = new BasicDBObject(keyField, Integer.valueOf(1));
+		if (! "_id".equals(keyField)) fields.put("_id", Integer.valueOf(0));
+
+		DBCursor cursor = this.find(this.getKey(toMongoStartsWithCondition(id)), fields, false);
+		if (cursor == null) return Collections.emptyList();
+
+		List<String> keys = new ArrayList<String> ();
+		boolean hidden = this.hasHidden();
+
+		try {
+
+			while (cursor.hasNext()) {
+
+				String key = (String) cursor.next().get(keyField);
+
+				if (hidden && this.isHidden(key)) continue;
+
+				keys.add(key);
+			}
+		} finally {
+
+			cursor.close();
+		}
+
+		return keys;
+	}
+
+	@Override
+	public void save(String id, JsonObject jsonObject) throws IOException {
+
+		if (! this.isTimed()) {
+
+			this.doSave(id, jsonObject);
+			return;
+		}
+
+		long start = System.nanoTime();
+		boolean failed = true;
+
+		try {
+
+			this.doSave(id, jsonObject);
+			failed = false;
+		} finally {
+
+			this.afterOperation(MongoDBOperation.SAVE, id, null, System.nanoTime() - start, MongoDBJSONConverter.estimateSize(jsonObject), 0, failed);
+		}
+	}
+
+	private void doSave(String id, JsonObject jsonObject) throws IOException {
+
+		if (log.isTraceEnabled()) {
+			log.trace("save() - " + this.identifier + " " + id);
+		}
+
+		this.awaitSubtree(id);
+
+		DBObject object = toMongoObject(jsonObject, id);
+
+		MongoDBBulkWriter bulkWriter = this.getBulkWriter();
+
+		if (bulkWriter != null) {
+
+			bulkWriter.replace(id, this.getKey(id), object);
+			return;
+		}
+
+		this.dbCollection.save(object, this.getWriteConcern(MongoDBOperation.SAVE, id));
+		this.afterWrite(id);
+	}
+
+	@Override
+	public void saveToArray(String id, String key, JsonPrimitive jsonPrimitive) throws IOException {
+
+		if (! this.isTimed()) {
+
+			this.doSaveToArray(id, key, jsonPrimitive);
+			return;
+		}
+
+		long start = System.nanoTime();
+		boolean failed = true;
+
+		try {
+
+			this.doSaveToArray(id, key, jsonPrimitive);
+			failed = false;
+		} finally {
+
+			this.afterOperation(MongoDBOperation.SAVE_TO_ARRAY, id, key, System.nanoTime() - start, MongoDBJSONConverter.estimateSize(jsonPrimitive), 0, failed);
+		}
+	}
+
+	private void doSaveToArray(String id, String key, JsonPrimitive jsonPrimitive) throws IOException {
+
+		if (log.isTraceEnabled()) {
+			log.trace("saveToArray() - " + this.identifier + " " + id + " " + key + " " + jsonPrimitive);
+		}
+
+		this.awaitSubtree(id);
 
-	private DBCollection dbCollection;
+		MongoDBBulkWriter bulkWriter = this.getBulkWriter();
 
-	public MongoDBJSONStore(MongoClient mongoClient, String identifier, Boolean mockFlag, Boolean sharedDatabaseFlag) {
+		if (bulkWriter != null) {
 
-		this.mongoClient = mongoClient;
-		this.identifier = identifier;
-		this.mockFlag = mockFlag;
-		this.sharedDatabaseFlag = sharedDatabaseFlag;
+			this.bulkUpdate(bulkWriter, MongoDBOperation.SAVE_TO_ARRAY, id, key, "$addToSet", toMongoKey(key), toMongoElement(jsonPrimitive));
+			return;
+		}
+
+		this.dbCollection.update(this.getKey(id), this.getUpdate("$addToSet", toMongoKey(key), toMongoElement(jsonPrimitive)), true, false, this.getWriteConcern(MongoDBOperation.SAVE_TO_ARRAY, id, key));
+		this.afterWrite(id);
 	}
 
 	@Override
-	public void init() {
+	public void saveToObject(String id, String key, JsonElement jsonElement) throws IOException {
 
-		DB db = null;
-		if (Boolean.TRUE.equals(mockFlag)) {
-			db = this.mongoClient.getDB(XDI2_DBNAME_MOCK);
-		} else {
-			if (Boolean.TRUE.equals(sharedDatabaseFlag)) {
-				db = this.mongoClient.getDB(XDI2_DBNAME);
-			} else {
-				db = this.mongoClient.getDB(this.identifier);
-			}
+		if (! this.isTimed()) {
+
+			this.doSaveToObject(id, key, jsonElement);
+			return;
 		}
-		this.dbCollection = db.getCollection(XDI2_DBCOLLECTION);
-		if (Boolean.TRUE.equals(sharedDatabaseFlag)) {
-			BasicDBObject idx = new BasicDBObject();
-			idx.put(XDI2_OBJ_KEY, Integer.valueOf(1));
-			idx.put(XDI2_OBJ_ID , Integer.valueOf(1));
-			dbCollection.ensureIndex(idx, XDI2_OBJ_INDEX, true);
+
+		long start = System.nanoTime();
+		boolean failed = true;
+
+		try {
+
+			this.doSaveToObject(id, key, jsonElement);
+			failed = false;
+		} finally {
+
+			this.afterOperation(MongoDBOperation.SAVE_TO_OBJECT, id, key, System.nanoTime() - start, MongoDBJSONConverter.estimateSize(jsonElement), 0, failed);
 		}
 	}
 
-	@Override
-	public void close() {}
+	private void doSaveToObject(String id, String key, JsonElement jsonElement) throws IOException {
 
-	/**
-	 * Constructs the search <code>BasicDBObject</code> by combiniing graph identifier and the secondary key.
-	 *
-	 * @param key the secondary key of a XDI2 graph.
-	 * @return a <code>BasicDBObject</code> combiniing graph identifier and the secondary key.
-	 */
-	private BasicDBObject getKey(Object key) {
+		if (log.isTraceEnabled()) {
+			log.trace("saveToObject() - " + this.identifier + " " + id + " " + key);
+		}
 
-		if (Boolean.TRUE.equals(this.sharedDatabaseFlag)) {
-			return new BasicDBObject(XDI2_OBJ_KEY, key).append(XDI2_OBJ_ID, this.identifier);
-		} else {
-			return new BasicDBObject("_id", key);
+		this.awaitSubtree(id);
+
+		MongoDBBulkWriter bulkWriter = this.getBulkWriter();
+
+		if (bulkWriter != null) {
+
+			this.bulkUpdate(bulkWriter, MongoDBOperation.SAVE_TO_OBJECT, id, key, "$set", toMongoKey(key), toMongoElement(jsonElement));
+			return;
 		}
+
+		this.dbCollection.update(this.getKey(id), this.getUpdate("$set", toMongoKey(key), toMongoElement(jsonElement)), true, false, this.getWriteConcern(MongoDBOperation.SAVE_TO_OBJECT, id, key));
+		this.afterWrite(id);
 	}
 
 	@Override
-	public JsonObject load(String id) throws IOException {
+	public void delete(String id) throws IOException {
 
-		if (log.isTraceEnabled()) {
-			log.trace("load() - " + this.identifier + " " + id);
+		if (! this.isTimed()) {
+
+			this.doDelete(id);
+			return;
 		}
 
-		DBObject object = this.dbCollection.findOne(this.getKey(id));
+		long start = System.nanoTime();
+		boolean failed = true;
 
-		if (log.isTraceEnabled()) {
-			log.trace("load() - " + this.identifier + " " + id + " = " + object);
+		try {
+
+			this.doDelete(id);
+			failed = false;
+		} finally {
+
+			this.afterOperation(MongoDBOperation.DELETE, id, null, System.nanoTime() - start, 0, 0, failed);
 		}
+	}
 
-		JsonObject jsonObject = fromMongoObject(object);
+	private void doDelete(final String id) throws IOException {
 
 		if (log.isTraceEnabled()) {
-			log.trace("load() - " + this.identifier + " " + id + " = " + jsonObject);
+			log.trace("delete() - " + this.identifier + " " + id);
 		}
 
-		return jsonObject;
+		// already being deleted in the background
+
+		if (this.isHidden(id)) return;
+
+		MongoDBBulkWriter bulkWriter = this.getBulkWriter();
+
+		if (bulkWriter != null) {
+
+			bulkWriter.remove(id, this.getKey(toMongoStartsWithCondition(id)));
+			return;
+		}
+
+		if (this.deleteBatchSize != null) {
+
+			this.deleteSubtree(id);
+			return;
+		}
+
+		this.dbCollection.remove(this.getKey(toMongoStartsWithCondition(id)), this.getWriteConcern(MongoDBOperation.DELETE, id));
+		this.afterDelete(id);
 	}
 
-	@Override
-	public Map<String, JsonObject> loadWithPrefix(String id) throws IOException {
+	/**
+	 * Deletes all contexts starting with a prefix in batches of deleteBatchSize, instead of a single remove.
+	 * If a <code>MongoDBSubtreeReaper</code> is set, the batches are removed in the background; until then,
+	 * the contexts are hidden from reads of this process, and writes to them wait.
+	 *
+	 * @param id the key prefix.
+	 * @return the progress of the deletion, which is already done if there is no reaper.
+	 */
+	public MongoDBDeleteProgress deleteSubtree(final String id) throws IOException {
 
-		DBCursor cursor = this.dbCollection.find(this.getKey(toMongoStartsWithRegex(id)));
-		if (cursor == null) return Collections.emptyMap();
+		this.flushBulkWriter();
 
-		Map<String, JsonObject> jsonObjects = new HashMap<String, JsonObject> ();
+		int batchSize = this.deleteBatchSize != null ? this.deleteBatchSize.intValue() : MongoDBSubtreeReaper.DEFAULT_BATCH_SIZE;
+		DBObject query = this.getKey(toMongoStartsWithCondition(id));
+		WriteConcern writeConcern = this.getWriteConcern(MongoDBOperation.DELETE, id);
 
-		while (cursor.hasNext()) {
+		if (this.subtreeReaper == null) {
 
-			DBObject object = cursor.next();
+			MongoDBDeleteProgress progress = MongoDBSubtreeReaper.delete(this.dbCollection, this.getRouterKey(), id, query, batchSize, writeConcern);
+			this.afterDelete(id);
 
-			jsonObjects.put((String) object.get(XDI2_OBJ_KEY), fromMongoObject(object));
+			return progress;
 		}
 
-		cursor.close();
+		this.afterDelete(id);
 
-		return jsonObjects;
+		return this.subtreeReaper.submit(this.dbCollection, this.getRouterKey(), id, query, batchSize, writeConcern, new Runnable() {
+
+			@Override
+			public void run() {
+
+				MongoDBJSONStore.this.afterDelete(id);
+			}
+		});
 	}
 
 	@Override
-	public void save(String id, JsonObject jsonObject) throws IOException {
+	public void deleteFromArray(String id, String key, JsonPrimitive jsonPrimitive) throws IOException {
 
-		if (log.isTraceEnabled()) {
-			log.trace("save() - " + this.identifier + " " + id + " " + jsonObject);
+		if (! this.isTimed()) {
+
+			this.doDeleteFromArray(id, key, jsonPrimitive);
+			return;
 		}
 
-		DBObject object = toMongoObject(jsonObject, id);
+		long start = System.nanoTime();
+		boolean failed = true;
 
-		if (log.isTraceEnabled()) {
-			log.trace("save() - " + this.identifier + " " + id + " " + object);
-		}
+		try {
+
+			this.doDeleteFromArray(id, key, jsonPrimitive);
+			failed = false;
+		} finally {
 
-		this.dbCollection.save(object);
+			this.afterOperation(MongoDBOperation.DELETE_FROM_ARRAY, id, key, System.nanoTime() - start, MongoDBJSONConverter.estimateSize(jsonPrimitive), 0, failed);
+		}
 	}
 
-	@Override
-	public void saveToArray(String id, String key, JsonPrimitive jsonPrimitive) throws IOException {
+	private void doDeleteFromArray(String id, String key, JsonPrimitive jsonPrimitive) throws IOException {
 
 		if (log.isTraceEnabled()) {
-			log.trace("saveToArray() - " + this.identifier + " " + id + " " + key + " " + jsonPrimitive);
+			log.trace("deleteFromArray() - " + this.identifier + " " + id + " " + key + " " + jsonPrimitive);
+		}
+
+		this.awaitSubtree(id);
+
+		MongoDBBulkWriter bulkWriter = this.getBulkWriter();
+
+		if (bulkWriter != null) {
+
+			this.bulkUpdate(bulkWriter, MongoDBOperation.DELETE_FROM_ARRAY, id, key, "$pull", toMongoKey(key), toMongoElement(jsonPrimitive));
+			return;
 		}
 
-		this.dbCollection.update(this.getKey(id), new BasicDBObject("$addToSet", new BasicDBObject(toMongoKey(key), toMongoElement(jsonPrimitive))), true, false);
+		this.dbCollection.update(this.getKey(id), this.getUpdate("$pull", toMongoKey(key), toMongoElement(jsonPrimitive)), true, false, this.getWriteConcern(MongoDBOperation.DELETE_FROM_ARRAY, id, key));
+		this.afterWrite(id);
 	}
 
 	@Override
-	public void saveToObject(String id, String key, JsonElement jsonElement) throws IOException {
+	public void deleteFromObject(String id, String key) throws IOException {
 
-		if (log.isTraceEnabled()) {
-			log.trace("saveToObject() - " + this.identifier + " " + id + " " + key + " " + jsonElement);
+		if (! this.isTimed()) {
+
+			this.doDeleteFromObject(id, key);
+			return;
 		}
 
-		this.dbCollection.update(this.getKey(id), new BasicDBObject("$set", new BasicDBObject(toMongoKey(key), toMongoElement(jsonElement))), true, false);
+		long start = System.nanoTime();
+		boolean failed = true;
+
+		try {
+
+			this.doDeleteFromObject(id, key);
+			failed = false;
+		} finally {
+
+			this.afterOperation(MongoDBOperation.DELETE_FROM_OBJECT, id, key, System.nanoTime() - start, 0, 0, failed);
+		}
 	}
 
-	@Override
-	public void delete(final String id) throws IOException {
+	private void doDeleteFromObject(String id, String key) throws IOException {
 
 		if (log.isTraceEnabled()) {
-			log.trace("delete() - " + this.identifier + " " + id);
+			log.trace("deleteFromObject() - " + this.identifier + " " + id + " " + key);
+		}
+
+		this.awaitSubtree(id);
+
+		// a key that is not in the dictionary is in no document
+
+		String field = this.lookupMongoKey(key);
+		if (field == null) return;
+
+		MongoDBBulkWriter bulkWriter = this.getBulkWriter();
+
+		if (bulkWriter != null) {
+
+			bulkWriter.update(MongoDBOperation.DELETE_FROM_OBJECT, id, key, this.getKey(id), "$unset", field, "", false);
+			return;
 		}
 
-		this.dbCollection.remove(this.getKey(toMongoStartsWithRegex(id)));
+		this.dbCollection.update(this.getKey(id), new BasicDBObject("$unset", new BasicDBObject(field, "")), false, false, this.getWriteConcern(MongoDBOperation.DELETE_FROM_OBJECT, id, key));
+		this.afterWrite(id);
 	}
 
-	@Override
-	public void deleteFromArray(String id, String key, JsonPrimitive jsonPrimitive) throws IOException {
+	/*
+	 * Export and import
+	 */
 
-		if (log.isTraceEnabled()) {
-			log.trace("deleteFromArray() - " + this.identifier + " " + id + " " + key + " " + jsonPrimitive);
+	/**
+	 * Returns a cursor over all stored documents of this graph, for exporting it.
+	 */
+	DBCursor findAll() throws IOException {
+
+		this.flushBulkWriter();
+
+		return this.findWithPrefix("", false);
+	}
+
+	/**
+	 * Converts a stored document into the portable form used by exports: the context key is in
+	 * <code>key</code>, and the field names are those of the older format. This does not depend
+	 * on the graph identifier, the kind of collection or the dictionary of the compact format.
+	 */
+	DBObject toPortableObject(DBObject object) throws IOException {
+
+		DBObject portableObject = new BasicDBObject(XDI2_OBJ_KEY, this.getKeyValue(object));
+
+		for (String key : object.keySet()) {
+			if (key.equals(XDI2_OBJ_ID) || key.equals(XDI2_OBJ_KEY) || key.equals(XDI2_OBJ_VERSION) || key.equals("_id")) {
+				continue;
+			}
+			portableObject.put(MongoDBJSONConverter.toMongoKey(fromMongoKey(key)), object.get(key));
 		}
 
-		this.dbCollection.update(this.getKey(id), new BasicDBObject("$pull", new BasicDBObject(toMongoKey(key), toMongoElement(jsonPrimitive))), true, false);
+		return portableObject;
 	}
 
-	@Override
-	public void deleteFromObject(String id, String key) throws IOException {
+	/**
+	 * Writes a batch of documents in the portable form into this graph. Contexts that
+	 * already exist are replaced, so an interrupted import can simply be run again.
+	 */
+	void importObjects(List<DBObject> portableObjects) throws IOException {
 
-		if (log.isTraceEnabled()) {
-			log.trace("deleteFromObject() - " + this.identifier + " " + id + " " + key);
+		BulkWriteOperation bulkWriteOperation = this.dbCollection.initializeUnorderedBulkOperation();
+		List<MongoDBWriteConcernPolicy.Write> writes = new ArrayList<MongoDBWriteConcernPolicy.Write> (portableObjects.size());
+
+		for (DBObject portableObject : portableObjects) {
+
+			Object id = portableObject.get(XDI2_OBJ_KEY);
+			if (! (id instanceof String)) throw new IOException("Document without context key in import into " + this.identifier);
+
+			writes.add(new MongoDBWriteConcernPolicy.Write(MongoDBOperation.SAVE, (String) id, null));
+
+			this.awaitSubtree((String) id);
+
+			DBObject object = this.getDocument((String) id);
+
+			for (String key : portableObject.keySet()) {
+				if (key.equals(XDI2_OBJ_KEY)) {
+					continue;
+				}
+				object.put(toMongoKey(MongoDBJSONConverter.fromMongoKey(key)), portableObject.get(key));
+			}
+
+			bulkWriteOperation.find(this.getKey(id)).upsert().replaceOne(object);
+		}
+
+		try {
+
+			bulkWriteOperation.execute(this.getBulkWriteConcern(writes));
+		} catch (MongoException ex) {
+
+			throw new IOException("Cannot import " + portableObjects.size() + " contexts into " + this.identifier + ": " + ex.getMessage(), ex);
 		}
+	}
+
+	/**
+	 * Called after an import finished.
+	 */
+	void afterImport() {
 
-		this.dbCollection.update(this.getKey(id), new BasicDBObject("$unset", new BasicDBObject(toMongoKey(key), "")), false, false);
+		this.afterFlush();
 	}
 
 	/*
 	 * Helper methods
 	 */
 
+	Map.Entry<String, JsonObject> toEntry(DBObject object) {
+
+		try {
+
+			return new AbstractMap.SimpleImmutableEntry<String, JsonObject> (this.getKeyValue(object), fromMongoObject(object));
+		} catch (IOException ex) {
+
+			throw new RuntimeException(ex.getMessage(), ex);
+		}
+	}
+
 	private DBObject toMongoObject(JsonObject jsonObject, String id) {
 
-		DBObject object = this.getKey(id);
+		DBObject object = this.getDocument(id);
 		for (Entry<String, JsonElement> entry : jsonObject.entrySet()) {
 
 			String key = entry.getKey();
@@ -231,7 +1322,7 @@ public class MongoDBJSONStore extends AbstractJSONStore implements JSONStore {
 		JsonObject jsonObject = new JsonObject();
 
 		for (String key : object.keySet()) {
-			if (key.equals(XDI2_OBJ_ID) || key.equals(XDI2_OBJ_KEY) || key.equals("_id")) {
+			if (key.equals(XDI2_OBJ_ID) || key.equals(XDI2_OBJ_KEY) || key.equals(XDI2_OBJ_VERSION) || key.equals("_id")) {
 				continue;
 			}
 			Object value = object.get(key);
@@ -243,61 +1334,208 @@ public class MongoDBJSONStore extends AbstractJSONStore implements JSONStore {
 
 	private Object toMongoElement(JsonElement jsonElement) {
 
-		return JSON.parse(gson.toJson(jsonElement));
+		return MongoDBJSONConverter.toMongoElement(jsonElement);
 	}
 
 	private JsonElement fromMongoElement(Object object) throws IOException {
 
-		StringBuilder builder = new StringBuilder();
-		JSON.serialize(object, builder);
-
-		return gson.getAdapter(JsonArray.class).fromJson("[" + builder.toString() + "]").get(0);
+		return MongoDBJSONConverter.fromMongoElement(object);
 	}
 
 	private String toMongoKey(String key) {
 
-		if (key.startsWith("$")) key = "\\" + key;
-		key = "-" + key;
+		if (this.compactSchema != null) return this.compactSchema.toMongoKey(key);
+
+		return MongoDBJSONConverter.toMongoKey(key);
+	}
+
+	/**
+	 * Returns the field name for a JSON key without adding it to the dictionary of the compact format.
+	 *
+	 * @return the field name, or null if no document can have the field.
+	 */
+	private String lookupMongoKey(String key) {
+
+		if (this.compactSchema != null) return this.compactSchema.lookupMongoKey(key);
+
+		return MongoDBJSONConverter.toMongoKey(key);
+	}
+
+	/**
+	 * Reads field names of both formats: those of the older format start with "-",
+	 * those of the compact format are dictionary codes.
+	 */
+	private String fromMongoKey(String key) throws IOException {
+
+		if (key.startsWith("-")) return MongoDBJSONConverter.fromMongoKey(key);
+
+		MongoDBCompactSchema compactSchema = this.compactSchema != null ? this.compactSchema : this.getSchema();
+
+		return compactSchema.fromMongoKey(key);
+	}
+
+	/**
+	 * Constructs a query condition matching all keys that start with the given prefix.
+	 * This is a key range where possible, otherwise an anchored regex with all
+	 * special characters quoted. MongoDB can bound the index scan tightly for both.
+	 *
+	 * @param prefix the key prefix.
+	 * @return a condition to be used on the key field.
+	 */
+	public static Object toMongoStartsWithCondition(String prefix) {
+
+		if (prefix.length() == 0) return new BasicDBObject("$gte", prefix);
 
-		return key;
+		String upperBound = toMongoUpperBound(prefix);
+		if (upperBound == null) return toMongoStartsWithRegex(prefix);
+
+		return new BasicDBObject("$gte", prefix).append("$lt", upperBound);
 	}
 
-	private String fromMongoKey(String key) {
+	/**
+	 * Returns the smallest string that is greater than all strings starting with the prefix,
+	 * or null if incrementing the last character would not preserve the UTF-8 byte order
+	 * MongoDB uses for comparing strings.
+	 */
+	static String toMongoUpperBound(String prefix) {
+
+		char last = prefix.charAt(prefix.length() - 1);
 
-		key = key.substring(1);
-		if (key.startsWith("\\$")) key = key.substring(1);
+		if (Character.isHighSurrogate(last) || Character.isLowSurrogate(last)) return null;
+		if (last == Character.MAX_VALUE || Character.isHighSurrogate((char) (last + 1))) return null;
 
-		return key;
+		return prefix.substring(0, prefix.length() - 1) + (char) (last + 1);
 	}
 
-	private Pattern toMongoStartsWithRegex(String string) {
+	private static Pattern toMongoStartsWithRegex(String prefix) {
 
-		StringBuilder buffer = new StringBuilder();
+		StringBuilder buffer = new StringBuilder(prefix.length() * 2 + 1);
 
 		buffer.append("^");
 
-		buffer.append(string
-				.replace("+", "\\+")
-				.replace("=", "\\=")
-				.replace("@", "\\@")
-				.replace("$", "\\$")
-				.replace("!", "\\!")
-				.replace("*", "\\*")
-				.replace("(", "\\(")
-				.replace(")", "\\)")
-				.replace("[", "\\[")
-				.replace("]", "\\]")
-				.replace("{", "\\{")
-				.replace("}", "\\}")
-				.replace("<", "\\<")
-				.replace(">", "\\>")
-				.replace("&", "\\&"));
-
-		buffer.append(".*");
+		for (int i = 0; i < prefix.length(); i++) {
+
+			char c = prefix.charAt(i);
+			if (c < 128 && ! Character.isLetterOrDigit(c)) buffer.append('\\');
+			buffer.append(c);
+		}
 
 		return Pattern.compile(buffer.toString());
 	}
 
+	/*
+	 * Getters and setters
+	 */
+
+	public Integer getBucketCount() {
+		return this.bucketCount;
+	}
+
+	public void setBucketCount(Integer bucketCount) {
+		this.bucketCount = bucketCount;
+	}
+
+	public Boolean getBulkWriteFlag() {
+		return this.bulkWriteFlag;
+	}
+
+	public void setBulkWriteFlag(Boolean bulkWriteFlag) {
+		this.bulkWriteFlag = bulkWriteFlag;
+	}
+
+	public Integer getCursorBatchSize() {
+		return this.cursorBatchSize;
+	}
+
+	public void setCursorBatchSize(Integer cursorBatchSize) {
+		this.cursorBatchSize = cursorBatchSize;
+	}
+
+	public Boolean getCompactFlag() {
+		return this.compactFlag;
+	}
+
+	public void setCompactFlag(Boolean compactFlag) {
+		this.compactFlag = compactFlag;
+	}
+
+	public Integer getDeleteBatchSize() {
+		return this.deleteBatchSize;
+	}
+
+	public void setDeleteBatchSize(Integer deleteBatchSize) {
+		this.deleteBatchSize = deleteBatchSize;
+	}
+
+	public MongoDBSubtreeReaper getSubtreeReaper() {
+		return this.subtreeReaper;
+	}
+
+	/**
+	 * @param subtreeReaper the reaper deleting subtrees in the background, or null to delete them
+	 * right away. Writes into a subtree that is being deleted block until the reaper has deleted
+	 * the whole subtree, including retries after failures.
+	 */
+	public void setSubtreeReaper(MongoDBSubtreeReaper subtreeReaper) {
+		this.subtreeReaper = subtreeReaper;
+	}
+
+	public MongoDBNearCache getNearCache() {
+		return this.nearCache;
+	}
+
+	public void setNearCache(MongoDBNearCache nearCache) {
+		this.nearCache = nearCache;
+	}
+
+	public MongoDBReadRouter getReadRouter() {
+		return this.readRouter;
+	}
+
+	public void setReadRouter(MongoDBReadRouter readRouter) {
+		this.readRouter = readRouter;
+	}
+
+	public MongoDBWriteConcernPolicy getWriteConcernPolicy() {
+		return this.writeConcernPolicy;
+	}
+
+	public void setWriteConcernPolicy(MongoDBWriteConcernPolicy writeConcernPolicy) {
+		this.writeConcernPolicy = writeConcernPolicy;
+	}
+
+	public MongoDBMetricsRegistry getMetricsRegistry() {
+		return this.metricsRegistry;
+	}
+
+	public void setMetricsRegistry(MongoDBMetricsRegistry metricsRegistry) {
+		this.metricsRegistry = metricsRegistry;
+	}
+
+	public MongoDBSlowOperationDetector getSlowOperationDetector() {
+		return this.slowOperationDetector;
+	}
+
+	public void setSlowOperationDetector(MongoDBSlowOperationDetector slowOperationDetector) {
+		this.slowOperationDetector = slowOperationDetector;
+	}
+
+	public MongoDBOperationTracer getOperationTracer() {
+		return this.operationTracer;
+	}
+
+	public void setOperationTracer(MongoDBOperationTracer operationTracer) {
+		this.operationTracer = operationTracer;
+	}
+
+	public MongoDBSharding getSharding() {
+		return this.sharding;
+	}
+
+	public void setSharding(MongoDBSharding sharding) {
+		this.sharding = sharding;
+	}
+
 	public static void cleanup() {
 
 		cleanup(null, null, Boolean.FALSE);
@@ -310,29 +1548,44 @@ public class MongoDBJSONStore extends AbstractJSONStore implements JSONStore {
 
 	public static void cleanup(String host, Integer port, Boolean mockFlag) {
 
+		MongoClient mongoClient = MongoDBJSONGraphFactory.acquireMongoClient(host, port, null);
+		try {
+			cleanup(mongoClient, mockFlag);
+		} finally {
+			MongoClientRegistry.release(mongoClient);
+		}
+	}
+
+	/**
+	 * Drops the XDI2 database, or the mock database, of a client.
+	 */
+	public static void cleanup(MongoClient mongoClient, Boolean mockFlag) {
+
 		String dbName = null;
 		try {
-			MongoClient mongoClient = MongoDBJSONGraphFactory.getMongoClient(host, port);
 			List<String> databaseNames = mongoClient.getDatabaseNames();
 			for (String databaseName : databaseNames) {
 				dbName = databaseName;
 				if (Boolean.TRUE.equals(mockFlag)) {
 					if (XDI2_DBNAME_MOCK.equals(databaseName)) {
 						if (log.isTraceEnabled()) {
-							log.trace("cleanup() " + host + " " + port + " " + mockFlag + " db=" + databaseName);
+							log.trace("cleanup() " + mongoClient + " " + mockFlag + " db=" + databaseName);
 						}
 						mongoClient.dropDatabase(databaseName);
 					}
 				} else if(XDI2_DBNAME.equals(databaseName)) {
 					if (log.isTraceEnabled()) {
-						log.trace("cleanup ()" + host + " " + port + " " + mockFlag + " db=" + databaseName);
+						log.trace("cleanup ()" + mongoClient + " " + mockFlag + " db=" + databaseName);
 					}
 					mongoClient.dropDatabase(databaseName);
 				}
 			}
 		} catch (Exception ex) {
-			log.error("cleanup() " + host + " " + port + " " + mockFlag + " db=" + dbName + " failed - " + ex, ex);
+			log.error("cleanup() " + mongoClient + " " + mockFlag + " db=" + dbName + " failed - " + ex, ex);
 			throw new RuntimeException(ex.getMessage(), ex);
+		} finally {
+			MongoDBCollectionCache.getInstance().clear();
+			MongoDBCompactSchema.clear();
 		}
 	}
 }
@@ -0,0 +1,20 @@
+package xdi2.core.impl.json.mongodb;
+
+/**
+ * Receives a measurement for every operation of a <code>MongoDBJSONStore</code>.
+ * Implementations must be thread-safe and fast, since they are called on every operation.
+ *
+ * The default implementation is <code>MongoDBHistogramMetrics</code>; others can pass the
+ * measurements on to an application's own metrics library.
+ */
+public interface MongoDBMetricsRegistry {
+
+	/**
+	 * @param operation the operation.
+	 * @param nanos how long the operation took.
+	 * @param documentBytes the estimated size of the documents read or written.
+	 * @param cursorBatches the number of batches fetched from the server.
+	 * @param failed whether the operation threw an exception.
+	 */
+	public void record(MongoDBOperation operation, long nanos, long documentBytes, int cursorBatches, boolean failed);
+}
@@ -0,0 +1,633 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * A bounded cache of loaded contexts in front of the MongoDB JSON stores of one process.
+ *
+ * Results of load() (including contexts that do not exist) and loadWithPrefix() are kept
+ * until their estimated size exceeds the limit, evicting the least recently used results first.
+ * Writes through a store invalidate the affected results immediately. Writes by other processes
+ * are seen through a <code>MongoDBChangeSource</code> such as the oplog, by the key of the context
+ * where the change contains it, and otherwise by the _id of the documents each result was built from.
+ *
+ * Results that were loaded while their graph or one of their documents was invalidated are not
+ * cached, since they may already be outdated. Invalidations of other graphs do not affect them.
+ * Callers always get their own copies of the cached objects.
+ *
+ * The results are split into segments by graph, each with its own lock and its share of the limit.
+ */
+public class MongoDBNearCache implements MongoDBChangeListener {
+
+	private static final Logger log = LoggerFactory.getLogger(MongoDBNearCache.class);
+
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024L * 1024L;
+
+	private static final int MAX_SEGMENTS = 16;
+	private static final long MIN_SEGMENT_BYTES = 1024L * 1024L;
+	private static final int MAX_STAMPS = 4096;
+
+	private final long maxBytes;
+	private final Segment[] segments;
+
+	private final AtomicLong clock;
+	private final AtomicLong floor;
+	private final ConcurrentMap<String, Long> scopeStamps;
+	private final ConcurrentMap<String, Long> documentStamps;
+
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+
+	public MongoDBNearCache(long maxBytes) {
+
+		int segmentCount = 1;
+		while (segmentCount < MAX_SEGMENTS && maxBytes / (segmentCount * 2) >= MIN_SEGMENT_BYTES) segmentCount *= 2;
+
+		this.maxBytes = maxBytes;
+		this.segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) this.segments[i] = new Segment(maxBytes / segmentCount);
+
+		this.clock = new AtomicLong();
+		this.floor = new AtomicLong();
+		this.scopeStamps = new ConcurrentHashMap<String, Long> ();
+		this.documentStamps = new ConcurrentHashMap<String, Long> ();
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+	}
+
+	public MongoDBNearCache() {
+
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * Returns the current generation, to be passed to put methods after loading.
+	 * A result is not cached if its graph or one of its documents was invalidated since.
+	 */
+	public long getGeneration() {
+
+		return this.clock.get();
+	}
+
+	/*
+	 * load()
+	 */
+
+	/**
+	 * @param namespace the full name of the collection.
+	 * @param identifier the graph identifier in a shared collection, or null.
+	 * @param id the key of the context.
+	 * @return a copy of the cached context, JsonNull if the context is cached as not existing, or null if not cached.
+	 */
+	public JsonElement getLoad(String namespace, String identifier, String id) {
+
+		CacheEntry entry = this.get(scopeKey(namespace, identifier), loadKey(namespace, identifier, id));
+
+		return entry == null ? null : entry.value == null ? JsonNull.INSTANCE : deepCopy((JsonObject) entry.value);
+	}
+
+	/**
+	 * @param documentId the _id of the document the context was loaded from, or null if it does not exist.
+	 * @param jsonObject the context, or null if it does not exist.
+	 * @param generation the generation from before the context was loaded.
+	 */
+	public void putLoad(String namespace, String identifier, String id, Object documentId, JsonObject jsonObject, long generation) {
+
+		JsonObject value = jsonObject == null ? null : deepCopy(jsonObject);
+		List<Object> documentIds = new ArrayList<Object> (1);
+		if (documentId != null) documentIds.add(documentId);
+
+		this.put(new CacheEntry(loadKey(namespace, identifier, id), namespace, identifier, id, false, value, documentIds, estimate(id) + (value == null ? 0 : estimate(value))), generation);
+	}
+
+	/*
+	 * loadWithPrefix()
+	 */
+
+	/**
+	 * @return copies of the cached contexts, or null if not cached.
+	 */
+	public Map<String, JsonObject> getPrefix(String namespace, String identifier, String prefix) {
+
+		CacheEntry entry = this.get(scopeKey(namespace, identifier), prefixKey(namespace, identifier, prefix));
+
+		if (entry == null) return null;
+
+		@SuppressWarnings("unchecked")
+		Map<String, JsonObject> value = (Map<String, JsonObject>) entry.value;
+
+		return deepCopy(value);
+	}
+
+	/**
+	 * @param documentIds the _ids of the documents the contexts were loaded from.
+	 * @param jsonObjects the contexts.
+	 * @param generation the generation from before the contexts were loaded.
+	 */
+	public void putPrefix(String namespace, String identifier, String prefix, Collection<Object> documentIds, Map<String, JsonObject> jsonObjects, long generation) {
+
+		Map<String, JsonObject> value = deepCopy(jsonObjects);
+
+		long size = estimate(prefix);
+		for (Map.Entry<String, JsonObject> entry : value.entrySet()) size += estimate(entry.getKey()) + estimate(entry.getValue());
+
+		this.put(new CacheEntry(prefixKey(namespace, identifier, prefix), namespace, identifier, prefix, true, value, new ArrayList<Object> (documentIds), size), generation);
+	}
+
+	private CacheEntry get(String scopeKey, String key) {
+
+		Segment segment = this.segmentFor(scopeKey);
+		CacheEntry entry;
+
+		synchronized (segment) {
+
+			entry = segment.entries.get(key);
+		}
+
+		if (entry == null) this.misses.incrementAndGet(); else this.hits.incrementAndGet();
+
+		return entry;
+	}
+
+	private void put(CacheEntry entry, long generation) {
+
+		Segment segment = this.segmentFor(scopeKey(entry.namespace, entry.identifier));
+
+		synchronized (segment) {
+
+			if (this.isInvalidated(entry, generation)) return;
+
+			segment.put(entry);
+		}
+	}
+
+	/**
+	 * Checks if a result was invalidated after it started loading. Invalidations record their
+	 * stamp before they take the lock of the segment, and puts check it while holding that lock,
+	 * so a result is either rejected here or removed by the invalidation.
+	 */
+	private boolean isInvalidated(CacheEntry entry, long generation) {
+
+		Long stamp = this.scopeStamps.get(scopeKey(entry.namespace, entry.identifier));
+		if (stamp != null && stamp.longValue() > generation) return true;
+
+		for (Object documentId : entry.documentIds) {
+
+			stamp = this.documentStamps.get(documentKey(entry.namespace, documentId));
+			if (stamp != null && stamp.longValue() > generation) return true;
+		}
+
+		// read last, since stamps are only forgotten after the floor was raised
+
+		return generation < this.floor.get();
+	}
+
+	/*
+	 * Invalidation
+	 */
+
+	/**
+	 * Invalidates the results that contain a context, after the context was changed.
+	 */
+	public void invalidate(String namespace, String identifier, String id) {
+
+		String scopeKey = scopeKey(namespace, identifier);
+		Segment segment = this.segmentFor(scopeKey);
+
+		this.stamp(this.scopeStamps, scopeKey);
+
+		synchronized (segment) {
+
+			segment.remove(loadKey(namespace, identifier, id));
+
+			for (CacheEntry entry : segment.getScope(scopeKey)) {
+
+				if (entry.prefix && id.startsWith(entry.id)) segment.remove(entry.key);
+			}
+		}
+	}
+
+	/**
+	 * Invalidates the results that contain any context starting with a prefix, after those contexts were deleted.
+	 */
+	public void invalidatePrefix(String namespace, String identifier, String prefix) {
+
+		String scopeKey = scopeKey(namespace, identifier);
+		Segment segment = this.segmentFor(scopeKey);
+
+		this.stamp(this.scopeStamps, scopeKey);
+
+		synchronized (segment) {
+
+			for (CacheEntry entry : segment.getScope(scopeKey)) {
+
+				if (entry.id.startsWith(prefix) || (entry.prefix && prefix.startsWith(entry.id))) segment.remove(entry.key);
+			}
+		}
+	}
+
+	/**
+	 * Invalidates all results of a graph.
+	 */
+	public void invalidateAll(String namespace, String identifier) {
+
+		String scopeKey = scopeKey(namespace, identifier);
+		Segment segment = this.segmentFor(scopeKey);
+
+		this.stamp(this.scopeStamps, scopeKey);
+
+		synchronized (segment) {
+
+			for (CacheEntry entry : segment.getScope(scopeKey)) segment.remove(entry.key);
+		}
+	}
+
+	public void clear() {
+
+		this.raiseFloor();
+
+		for (Segment segment : this.segments) {
+
+			synchronized (segment) {
+
+				segment.clear();
+			}
+		}
+	}
+
+	@Override
+	public void onChange(MongoDBChangeEvent event) {
+
+		if (log.isTraceEnabled()) {
+			log.trace("onChange() - " + event);
+		}
+
+		if (event.getDocumentId() != null) {
+
+			// the graph is not known, so every segment may hold results of the document
+
+			String documentKey = documentKey(event.getNamespace(), event.getDocumentId());
+
+			this.stamp(this.documentStamps, documentKey);
+
+			for (Segment segment : this.segments) {
+
+				synchronized (segment) {
+
+					segment.removeDocument(documentKey);
+				}
+			}
+		}
+
+		if (event.getKey() != null) this.invalidate(event.getNamespace(), event.getIdentifier(), event.getKey());
+	}
+
+	@Override
+	public void onReset() {
+
+		if (log.isDebugEnabled()) {
+			log.debug("onReset()");
+		}
+
+		this.clear();
+	}
+
+	@Override
+	public void onDrop(String namespace) {
+
+		if (log.isDebugEnabled()) {
+			log.debug("onDrop() - " + namespace);
+		}
+
+		// graphs in the namespace are not known, so all loads in progress are discarded
+
+		this.raiseFloor();
+
+		for (Segment segment : this.segments) {
+
+			synchronized (segment) {
+
+				for (CacheEntry entry : new ArrayList<CacheEntry> (segment.entries.values())) {
+
+					if (entry.namespace.equals(namespace) || (namespace.endsWith(".") && entry.namespace.startsWith(namespace))) segment.remove(entry.key);
+				}
+			}
+		}
+	}
+
+	private void stamp(ConcurrentMap<String, Long> stamps, String key) {
+
+		stamps.put(key, Long.valueOf(this.clock.incrementAndGet()));
+
+		// forget old stamps; loads that started before are discarded instead
+
+		if (stamps.size() > MAX_STAMPS) {
+
+			this.raiseFloor();
+			stamps.clear();
+			this.raiseFloor();
+		}
+	}
+
+	/**
+	 * Discards all loads that started before now.
+	 */
+	private void raiseFloor() {
+
+		long now = this.clock.incrementAndGet();
+
+		while (true) {
+
+			long floor = this.floor.get();
+			if (floor >= now || this.floor.compareAndSet(floor, now)) return;
+		}
+	}
+
+	private Segment segmentFor(String scopeKey) {
+
+		return this.segments[(scopeKey.hashCode() & 0x7fffffff) % this.segments.length];
+	}
+
+	/*
+	 * Statistics
+	 */
+
+	public int getSize() {
+
+		int size = 0;
+
+		for (Segment segment : this.segments) {
+
+			synchronized (segment) {
+
+				size += segment.entries.size();
+			}
+		}
+
+		return size;
+	}
+
+	public long getBytes() {
+
+		long bytes = 0;
+
+		for (Segment segment : this.segments) {
+
+			synchronized (segment) {
+
+				bytes += segment.bytes;
+			}
+		}
+
+		return bytes;
+	}
+
+	public long getMaxBytes() {
+
+		return this.maxBytes;
+	}
+
+	public long getHits() {
+
+		return this.hits.get();
+	}
+
+	public long getMisses() {
+
+		return this.misses.get();
+	}
+
+	/*
+	 * Helper methods
+	 */
+
+	private static void index(Map<String, Set<String>> index, String indexKey, String key) {
+
+		Set<String> keys = index.get(indexKey);
+		if (keys == null) index.put(indexKey, keys = new HashSet<String> ());
+
+		keys.add(key);
+	}
+
+	private static void unindex(Map<String, Set<String>> index, String indexKey, String key) {
+
+		Set<String> keys = index.get(indexKey);
+		if (keys == null) return;
+
+		keys.remove(key);
+		if (keys.isEmpty()) index.remove(indexKey);
+	}
+
+	private static String scopeKey(String namespace, String identifier) {
+
+		return identifier == null ? namespace : namespace + "\u0000" + identifier;
+	}
+
+	private static String loadKey(String namespace, String identifier, String id) {
+
+		return "L" + scopeKey(namespace, identifier) + "\u0000" + id;
+	}
+
+	private static String prefixKey(String namespace, String identifier, String prefix) {
+
+		return "P" + scopeKey(namespace, identifier) + "\u0000" + prefix;
+	}
+
+	private static String documentKey(String namespace, Object documentId) {
+
+		return namespace + "\u0000" + documentId;
+	}
+
+	/**
+	 * Roughly estimates the heap size of a JSON element in bytes.
+	 */
+	private static long estimate(JsonElement jsonElement) {
+
+		if (jsonElement == null || jsonElement.isJsonNull()) return 16;
+
+		if (jsonElement.isJsonPrimitive()) {
+
+			JsonPrimitive jsonPrimitive = jsonElement.getAsJsonPrimitive();
+
+			return jsonPrimitive.isString() ? 32 + estimate(jsonPrimitive.getAsString()) : 32;
+		}
+
+		long size = 48;
+
+		if (jsonElement.isJsonArray()) {
+
+			for (JsonElement item : jsonElement.getAsJsonArray()) size += 8 + estimate(item);
+		} else {
+
+			for (Map.Entry<String, JsonElement> entry : jsonElement.getAsJsonObject().entrySet()) size += 32 + estimate(entry.getKey()) + estimate(entry.getValue());
+		}
+
+		return size;
+	}
+
+	private static long estimate(String string) {
+
+		return 40 + 2L * string.length();
+	}
+
+	private static Map<String, JsonObject> deepCopy(Map<String, JsonObject> jsonObjects) {
+
+		Map<String, JsonObject> copy = new HashMap<String, JsonObject> (jsonObjects.size() * 2);
+		for (Map.Entry<String, JsonObject> entry : jsonObjects.entrySet()) copy.put(entry.getKey(), deepCopy(entry.getValue()));
+
+		return copy;
+	}
+
+	private static JsonObject deepCopy(JsonObject jsonObject) {
+
+		JsonObject copy = new JsonObject();
+		for (Map.Entry<String, JsonElement> entry : jsonObject.entrySet()) copy.add(entry.getKey(), deepCopy(entry.getValue()));
+
+		return copy;
+	}
+
+	private static JsonElement deepCopy(JsonElement jsonElement) {
+
+		if (jsonElement == null || jsonElement.isJsonNull() || jsonElement.isJsonPrimitive()) return jsonElement;
+
+		if (jsonElement.isJsonArray()) {
+
+			JsonArray copy = new JsonArray();
+			for (JsonElement item : jsonElement.getAsJsonArray()) copy.add(deepCopy(item));
+
+			return copy;
+		}
+
+		return deepCopy(jsonElement.getAsJsonObject());
+	}
+
+	/**
+	 * The results of some graphs, guarded by the monitor of the segment.
+	 */
+	private static class Segment {
+
+		private final long maxBytes;
+		private final LinkedHashMap<String, CacheEntry> entries;
+		private final Map<String, Set<String>> scopeIndex;
+		private final Map<String, Set<String>> documentIndex;
+		private long bytes;
+
+		private Segment(long maxBytes) {
+
+			this.maxBytes = maxBytes;
+			this.entries = new LinkedHashMap<String, CacheEntry> (16, 0.75f, true);
+			this.scopeIndex = new HashMap<String, Set<String>> ();
+			this.documentIndex = new HashMap<String, Set<String>> ();
+			this.bytes = 0;
+		}
+
+		private void put(CacheEntry entry) {
+
+			if (entry.bytes > this.maxBytes) return;
+
+			this.remove(entry.key);
+
+			this.entries.put(entry.key, entry);
+			this.bytes += entry.bytes;
+
+			index(this.scopeIndex, scopeKey(entry.namespace, entry.identifier), entry.key);
+			for (Object documentId : entry.documentIds) index(this.documentIndex, documentKey(entry.namespace, documentId), entry.key);
+
+			Iterator<CacheEntry> eldest = this.entries.values().iterator();
+
+			while (this.bytes > this.maxBytes && eldest.hasNext()) {
+
+				CacheEntry evicted = eldest.next();
+
+				eldest.remove();
+				this.unindex(evicted);
+			}
+		}
+
+		private List<CacheEntry> getScope(String scopeKey) {
+
+			Set<String> keys = this.scopeIndex.get(scopeKey);
+			if (keys == null) return new ArrayList<CacheEntry> ();
+
+			List<CacheEntry> scope = new ArrayList<CacheEntry> (keys.size());
+			for (String key : keys) scope.add(this.entries.get(key));
+
+			return scope;
+		}
+
+		private void removeDocument(String documentKey) {
+
+			Set<String> keys = this.documentIndex.get(documentKey);
+			if (keys != null) for (String key : new ArrayList<String> (keys)) this.remove(key);
+		}
+
+		private void remove(String key) {
+
+			CacheEntry entry = this.entries.remove(key);
+			if (entry != null) this.unindex(entry);
+		}
+
+		private void clear() {
+
+			this.entries.clear();
+			this.scopeIndex.clear();
+			this.documentIndex.clear();
+			this.bytes = 0;
+		}
+
+		private void unindex(CacheEntry entry) {
+
+			this.bytes -= entry.bytes;
+
+			MongoDBNearCache.unindex(this.scopeIndex, scopeKey(entry.namespace, entry.identifier), entry.key);
+			for (Object documentId : entry.documentIds) MongoDBNearCache.unindex(this.documentIndex, documentKey(entry.namespace, documentId), entry.key);
+		}
+	}
+
+	/**
+	 * A cached result of load() or loadWithPrefix().
+	 */
+	private static class CacheEntry {
+
+		private final String key;
+		private final String namespace;
+		private final String identifier;
+		private final String id;
+		private final boolean prefix;
+		private final Object value;
+		private final List<Object> documentIds;
+		private final long bytes;
+
+		private CacheEntry(String key, String namespace, String identifier, String id, boolean prefix, Object value, List<Object> documentIds, long bytes) {
+
+			this.key = key;
+			this.namespace = namespace;
+			this.identifier = identifier;
+			this.id = id;
+			this.prefix = prefix;
+			this.value = value;
+			this.documentIds = documentIds;
+			this.bytes = bytes;
+		}
+	}
+}
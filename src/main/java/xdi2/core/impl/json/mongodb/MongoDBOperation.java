@@ -0,0 +1,21 @@
+package xdi2.core.impl.json.mongodb;
+
+/**
+ * The operations of a <code>MongoDBJSONStore</code>, as seen by write concern policies and metrics.
+ */
+public enum MongoDBOperation {
+
+	LOAD,
+	LOAD_WITH_PREFIX,
+	SAVE,
+	SAVE_TO_ARRAY,
+	SAVE_TO_OBJECT,
+	DELETE,
+	DELETE_FROM_ARRAY,
+	DELETE_FROM_OBJECT,
+
+	/**
+	 * The collected writes of a transaction, sent as one bulk operation.
+	 */
+	BULK
+}
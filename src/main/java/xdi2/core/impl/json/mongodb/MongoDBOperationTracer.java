@@ -0,0 +1,267 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a sample of the operations of <code>MongoDBJSONStore</code>s in a fixed-size ring buffer,
+ * so that diagnostics can stay switched on in production.
+ *
+ * Recording an operation only stores references and numbers; nothing is formatted until the
+ * buffer is read. With a sample interval of n, every n-th operation is kept.
+ *
+ * The shared instance is registered with the platform MBean server as xdi2.mongodb:type=Tracer.
+ */
+public class MongoDBOperationTracer implements MongoDBOperationTracerMXBean {
+
+	private static final Logger log = LoggerFactory.getLogger(MongoDBOperationTracer.class);
+
+	public static final String OBJECT_NAME = "xdi2.mongodb:type=Tracer";
+
+	public static final int DEFAULT_CAPACITY = 1000;
+	public static final int DEFAULT_SAMPLE_INTERVAL = 1;
+
+	private static MongoDBOperationTracer instance = null;
+
+	private final AtomicReferenceArray<Trace> traces;
+	private final AtomicLong operations;
+	private final AtomicLong sequence;
+	private volatile int sampleInterval;
+
+	public MongoDBOperationTracer(int capacity, int sampleInterval) {
+
+		if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+
+		this.traces = new AtomicReferenceArray<Trace> (capacity);
+		this.operations = new AtomicLong();
+		this.sequence = new AtomicLong();
+		this.sampleInterval = Math.max(1, sampleInterval);
+	}
+
+	public MongoDBOperationTracer() {
+
+		this(DEFAULT_CAPACITY, DEFAULT_SAMPLE_INTERVAL);
+	}
+
+	/**
+	 * Returns the shared instance, registering it with JMX on first use.
+	 */
+	public static synchronized MongoDBOperationTracer getInstance() {
+
+		if (instance == null) {
+
+			instance = new MongoDBOperationTracer();
+			instance.register(OBJECT_NAME);
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Registers this instance with the platform MBean server.
+	 */
+	public void register(String objectName) {
+
+		try {
+
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(objectName));
+		} catch (Exception ex) {
+
+			log.warn("Cannot register " + objectName + " with JMX: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Called by a store after each operation.
+	 *
+	 * @param operation the operation.
+	 * @param graph the graph identifier.
+	 * @param id the context.
+	 * @param key the key within the context, or null.
+	 * @param size the estimated size of the documents read or written.
+	 * @param nanos how long the operation took.
+	 * @param failed whether the operation threw an exception.
+	 */
+	public void trace(MongoDBOperation operation, String graph, String id, String key, long size, long nanos, boolean failed) {
+
+		this.trace(operation, graph, id, key, size, nanos, false, failed);
+	}
+
+	/**
+	 * Called by a store after each operation.
+	 *
+	 * @param cached whether a read was answered without a query, e.g. from the near-cache.
+	 */
+	public void trace(MongoDBOperation operation, String graph, String id, String key, long size, long nanos, boolean cached, boolean failed) {
+
+		long count = this.operations.getAndIncrement();
+
+		int sampleInterval = this.sampleInterval;
+		if (sampleInterval > 1 && count % sampleInterval != 0) return;
+
+		long sequence = this.sequence.getAndIncrement();
+
+		this.traces.set((int) (sequence % this.traces.length()), new Trace(sequence, System.currentTimeMillis(), operation, graph, id, key, size, nanos, cached, failed));
+	}
+
+	/**
+	 * @return the sequence number the next kept operation will get.
+	 */
+	public long getSequence() {
+
+		return this.sequence.get();
+	}
+
+	/**
+	 * Counts the kept operations with a sequence number of at least the given one.
+	 *
+	 * @param fromSequence the sequence number of the first operation to count.
+	 * @param operations the operations to count.
+	 * @param cached true to count only reads answered without a query, false to count only the
+	 * other operations, or null to count both.
+	 * @return the number of kept operations, which is smaller than the number of operations that
+	 * ran if operations are sampled or were overwritten meanwhile.
+	 */
+	public long count(long fromSequence, Collection<MongoDBOperation> operations, Boolean cached) {
+
+		long count = 0;
+
+		for (Trace trace : this.getTraces(fromSequence)) {
+
+			if (! operations.contains(trace.operation)) continue;
+			if (cached != null && cached.booleanValue() != trace.cached) continue;
+
+			count++;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Renders the kept operations with a sequence number of at least the given one, the oldest first.
+	 */
+	public List<String> render(long fromSequence) {
+
+		List<Trace> traces = this.getTraces(fromSequence);
+
+		SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+		List<String> lines = new ArrayList<String> (traces.size());
+
+		for (Trace trace : traces) {
+
+			StringBuilder buffer = new StringBuilder();
+
+			buffer.append(format.format(new Date(trace.timestamp))).append(" ");
+			buffer.append(trace.operation).append(" ");
+			buffer.append(trace.graph).append(" ");
+			buffer.append(trace.id);
+			if (trace.key != null) buffer.append(" ").append(trace.key);
+			buffer.append(" ").append(trace.size).append(" bytes");
+			buffer.append(" ").append(trace.nanos / 1000).append(" us");
+			if (trace.cached) buffer.append(" cached");
+			if (trace.failed) buffer.append(" FAILED");
+
+			lines.add(buffer.toString());
+		}
+
+		return lines;
+	}
+
+	private List<Trace> getTraces(long fromSequence) {
+
+		List<Trace> traces = new ArrayList<Trace> ();
+
+		long to = this.sequence.get();
+		long from = Math.max(fromSequence, to - this.traces.length());
+
+		for (long sequence = from; sequence < to; sequence++) {
+
+			Trace trace = this.traces.get((int) (sequence % this.traces.length()));
+
+			// skip slots that were not written yet or were overwritten meanwhile
+
+			if (trace != null && trace.sequence == sequence) traces.add(trace);
+		}
+
+		return traces;
+	}
+
+	/*
+	 * JMX
+	 */
+
+	@Override
+	public List<String> getTraces() {
+
+		return this.render(0);
+	}
+
+	@Override
+	public int getCapacity() {
+
+		return this.traces.length();
+	}
+
+	@Override
+	public int getSampleInterval() {
+
+		return this.sampleInterval;
+	}
+
+	@Override
+	public void setSampleInterval(int sampleInterval) {
+
+		this.sampleInterval = Math.max(1, sampleInterval);
+	}
+
+	@Override
+	public long getOperations() {
+
+		return this.operations.get();
+	}
+
+	@Override
+	public void clear() {
+
+		for (int i = 0; i < this.traces.length(); i++) this.traces.set(i, null);
+	}
+
+	private static class Trace {
+
+		private final long sequence;
+		private final long timestamp;
+		private final MongoDBOperation operation;
+		private final String graph;
+		private final String id;
+		private final String key;
+		private final long size;
+		private final long nanos;
+		private final boolean cached;
+		private final boolean failed;
+
+		private Trace(long sequence, long timestamp, MongoDBOperation operation, String graph, String id, String key, long size, long nanos, boolean cached, boolean failed) {
+
+			this.sequence = sequence;
+			this.timestamp = timestamp;
+			this.operation = operation;
+			this.graph = graph;
+			this.id = id;
+			this.key = key;
+			this.size = size;
+			this.nanos = nanos;
+			this.cached = cached;
+			this.failed = failed;
+		}
+	}
+}
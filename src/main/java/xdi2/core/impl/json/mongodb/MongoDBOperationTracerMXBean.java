@@ -0,0 +1,21 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.util.List;
+
+/**
+ * The JMX view of <code>MongoDBOperationTracer</code>.
+ */
+public interface MongoDBOperationTracerMXBean {
+
+	public List<String> getTraces();
+
+	public int getCapacity();
+
+	public int getSampleInterval();
+
+	public void setSampleInterval(int sampleInterval);
+
+	public long getOperations();
+
+	public void clear();
+}
@@ -0,0 +1,307 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+
+/**
+ * Emits the changes of all XDI2 context collections by tailing the oplog of a replica set.
+ *
+ * The oplog is read by a daemon thread, starting at its current end. If reading fails,
+ * listeners are reset and tailing continues from the last entry seen, after waiting
+ * RETRY_MILLIS. The tailer also waits when the server ends an idle cursor.
+ *
+ * Commands are only passed on if they drop or rename a context collection, or drop a database.
+ * Implicit creations of databases, collections and indexes are ignored.
+ *
+ * Standalone servers have no oplog; there the tailer stops with a warning, and near-caches
+ * only see the writes of their own process.
+ */
+public class MongoDBOplogTailer implements MongoDBChangeSource, Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(MongoDBOplogTailer.class);
+
+	public static final String OPLOG_DBNAME = "local";
+	public static final String OPLOG_COLLECTION = "oplog.rs";
+
+	public static final long RETRY_MILLIS = 1000;
+
+	private static final Pattern NAMESPACES = Pattern.compile("\\." + MongoDBJSONStore.XDI2_DBCOLLECTION + "(_\\d+)?$|\\.\\$cmd$");
+	private static final Pattern CONTEXT_NAMESPACES = Pattern.compile("\\." + MongoDBJSONStore.XDI2_DBCOLLECTION + "(_\\d+)?$");
+	private static final String COMMAND_NAMESPACE = ".$cmd";
+
+	private MongoClient mongoClient;
+	private List<MongoDBChangeListener> listeners;
+	private Object lastTimestamp;
+	private volatile boolean running;
+	private volatile DBCursor cursor;
+	private Thread thread;
+
+	public MongoDBOplogTailer(MongoClient mongoClient) {
+
+		this.mongoClient = mongoClient;
+		this.listeners = new CopyOnWriteArrayList<MongoDBChangeListener> ();
+		this.lastTimestamp = null;
+		this.running = false;
+	}
+
+	public synchronized void start() {
+
+		if (this.running) return;
+
+		this.running = true;
+		this.thread = new Thread(this, "xdi2-mongodb-oplog");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	@Override
+	public synchronized void close() {
+
+		if (! this.running) return;
+
+		this.running = false;
+		this.thread.interrupt();
+
+		DBCursor cursor = this.cursor;
+		if (cursor != null) cursor.close();
+	}
+
+	@Override
+	public void addListener(MongoDBChangeListener listener) {
+
+		this.listeners.add(listener);
+	}
+
+	@Override
+	public void removeListener(MongoDBChangeListener listener) {
+
+		this.listeners.remove(listener);
+	}
+
+	@Override
+	public void run() {
+
+		try {
+
+			if (! this.mongoClient.getDB(OPLOG_DBNAME).collectionExists(OPLOG_COLLECTION)) {
+
+				log.warn("No oplog found, not tailing. Writes of other processes will not be seen by near-caches.");
+				this.running = false;
+				return;
+			}
+		} catch (Exception ex) {
+
+			log.warn("Cannot check for the oplog: " + ex.getMessage());
+		}
+
+		while (this.running) {
+
+			boolean received;
+
+			try {
+
+				received = this.tail();
+			} catch (Exception ex) {
+
+				if (! this.running) break;
+
+				log.warn("Cannot tail the oplog, resetting listeners: " + ex.getMessage());
+				this.fireReset();
+
+				received = false;
+			}
+
+			// wait before querying again if the cursor ended without entries
+
+			if (! received && this.running) {
+
+				try {
+
+					Thread.sleep(RETRY_MILLIS);
+				} catch (InterruptedException ex) {
+
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the oplog until the cursor ends.
+	 *
+	 * @return true if any entries were read.
+	 */
+	private boolean tail() {
+
+		DBCollection oplog = this.mongoClient.getDB(OPLOG_DBNAME).getCollection(OPLOG_COLLECTION);
+		boolean received = false;
+
+		if (this.lastTimestamp == null) {
+
+			DBCursor last = oplog.find().sort(new BasicDBObject("$natural", Integer.valueOf(-1))).limit(1);
+
+			try {
+
+				this.lastTimestamp = last.hasNext() ? last.next().get("ts") : null;
+			} finally {
+
+				last.close();
+			}
+		}
+
+		BasicDBObject query = new BasicDBObject("ns", NAMESPACES);
+		if (this.lastTimestamp != null) query.append("ts", new BasicDBObject("$gt", this.lastTimestamp));
+
+		if (log.isDebugEnabled()) {
+			log.debug("tail() - from " + this.lastTimestamp);
+		}
+
+		this.cursor = oplog.find(query)
+				.addOption(Bytes.QUERYOPTION_TAILABLE)
+				.addOption(Bytes.QUERYOPTION_AWAITDATA)
+				.addOption(Bytes.QUERYOPTION_OPLOGREPLAY)
+				.addOption(Bytes.QUERYOPTION_NOTIMEOUT);
+
+		try {
+
+			while (this.running) {
+
+				DBObject entry = this.cursor.tryNext();
+
+				if (entry == null) {
+
+					// the server closes tailable cursors that run past the end of a capped collection
+
+					if (this.cursor.getCursorId() == 0) return received;
+
+					continue;
+				}
+
+				received = true;
+
+				this.lastTimestamp = entry.get("ts");
+				this.fire(entry);
+			}
+		} finally {
+
+			this.cursor.close();
+			this.cursor = null;
+		}
+
+		return received;
+	}
+
+	private void fire(DBObject entry) {
+
+		String op = (String) entry.get("op");
+		String namespace = (String) entry.get("ns");
+
+		if ("c".equals(op)) {
+
+			for (String dropped : toDroppedNamespaces(namespace, (DBObject) entry.get("o"))) this.fireDrop(dropped);
+			return;
+		}
+
+		MongoDBChangeEvent event = toChangeEvent(op, namespace, entry);
+		if (event == null) return;
+
+		if (log.isTraceEnabled()) {
+			log.trace("fire() - " + op + " " + event);
+		}
+
+		for (MongoDBChangeListener listener : this.listeners) listener.onChange(event);
+	}
+
+	private void fireReset() {
+
+		for (MongoDBChangeListener listener : this.listeners) listener.onReset();
+	}
+
+	private void fireDrop(String namespace) {
+
+		if (log.isDebugEnabled()) {
+			log.debug("fireDrop() - " + namespace);
+		}
+
+		for (MongoDBChangeListener listener : this.listeners) listener.onDrop(namespace);
+	}
+
+	/**
+	 * Returns the namespaces a command removes contexts from: context collections that are
+	 * dropped or renamed, and dropped databases as their name followed by a dot.
+	 * Other commands, e.g. the implicit creation of a collection, return nothing.
+	 */
+	public static List<String> toDroppedNamespaces(String namespace, DBObject command) {
+
+		List<String> dropped = new ArrayList<String> ();
+		if (namespace == null || command == null || ! namespace.endsWith(COMMAND_NAMESPACE)) return dropped;
+
+		String dbName = namespace.substring(0, namespace.length() - COMMAND_NAMESPACE.length());
+
+		if (command.get("drop") instanceof String) {
+
+			String dropNamespace = dbName + "." + command.get("drop");
+			if (CONTEXT_NAMESPACES.matcher(dropNamespace).find()) dropped.add(dropNamespace);
+		} else if (command.containsField("dropDatabase")) {
+
+			dropped.add(dbName + ".");
+		} else if (command.get("renameCollection") instanceof String) {
+
+			String from = (String) command.get("renameCollection");
+			String to = command.get("to") instanceof String ? (String) command.get("to") : null;
+
+			if (CONTEXT_NAMESPACES.matcher(from).find()) dropped.add(from);
+			if (to != null && CONTEXT_NAMESPACES.matcher(to).find()) dropped.add(to);
+		}
+
+		return dropped;
+	}
+
+	/**
+	 * Turns an oplog entry into a change event. Inserts contain the whole document,
+	 * updates and deletes only the _id.
+	 */
+	static MongoDBChangeEvent toChangeEvent(String op, String namespace, DBObject entry) {
+
+		DBObject object;
+
+		if ("i".equals(op) || "d".equals(op)) {
+
+			object = (DBObject) entry.get("o");
+		} else if ("u".equals(op)) {
+
+			object = (DBObject) entry.get("o2");
+		} else {
+
+			return null;
+		}
+
+		if (object == null) return null;
+
+		Object documentId = object.get("_id");
+		Object identifier = object.get(MongoDBJSONStore.XDI2_OBJ_ID);
+		Object key = object.get(MongoDBJSONStore.XDI2_OBJ_KEY);
+
+		// in collections of a single graph, the key is the _id
+
+		if (identifier == null && key == null && documentId instanceof String) key = documentId;
+
+		// graphs in the compact format are identified by their number
+
+		if (identifier instanceof Number) identifier = identifier.toString();
+
+		return new MongoDBChangeEvent(namespace, documentId, identifier instanceof String ? (String) identifier : null, key instanceof String ? (String) key : null);
+	}
+}
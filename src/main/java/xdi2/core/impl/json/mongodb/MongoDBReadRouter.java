@@ -0,0 +1,115 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.mongodb.ReadPreference;
+
+/**
+ * Chooses the read preference of each read, so that reads can go to secondaries
+ * while every graph still reads its own writes.
+ *
+ * After a graph was written, its reads go to the primary for a window that should be
+ * longer than the usual replication lag. Reads that fill a near-cache always go to the
+ * primary. Other reads use the configured read preference.
+ * Writes are remembered per process, so reads of a graph on another node only see
+ * writes of this node once they have been replicated.
+ */
+public class MongoDBReadRouter {
+
+	public static final long DEFAULT_PRIMARY_WINDOW_MILLIS = 5000;
+	public static final int DEFAULT_MAX_GRAPHS = 10000;
+
+	private final ReadPreference readPreference;
+	private final long primaryWindowMillis;
+	private final Map<String, Long> lastWrites;
+
+	/**
+	 * @param readPreference the read preference for graphs that were not written recently, e.g. secondaryPreferred.
+	 * @param primaryWindowMillis how long a graph reads from the primary after it was written.
+	 * @param maxGraphs how many recently written graphs to remember. If more graphs are written
+	 * within the window, the oldest ones read from secondaries early.
+	 */
+	public MongoDBReadRouter(ReadPreference readPreference, long primaryWindowMillis, final int maxGraphs) {
+
+		this.readPreference = readPreference;
+		this.primaryWindowMillis = primaryWindowMillis;
+		this.lastWrites = new LinkedHashMap<String, Long> (16, 0.75f, false) {
+
+			private static final long serialVersionUID = -6043460170962389405L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+
+				return this.size() > maxGraphs;
+			}
+		};
+	}
+
+	public MongoDBReadRouter(ReadPreference readPreference) {
+
+		this(readPreference, DEFAULT_PRIMARY_WINDOW_MILLIS, DEFAULT_MAX_GRAPHS);
+	}
+
+	/**
+	 * @param graph the namespace and identifier of a graph.
+	 * @return the read preference for the next read of the graph.
+	 */
+	public ReadPreference getReadPreference(String graph) {
+
+		Long lastWrite;
+
+		synchronized (this.lastWrites) {
+
+			lastWrite = this.lastWrites.get(graph);
+
+			if (lastWrite != null && System.currentTimeMillis() - lastWrite.longValue() >= this.primaryWindowMillis) {
+
+				this.lastWrites.remove(graph);
+				lastWrite = null;
+			}
+		}
+
+		return lastWrite != null ? ReadPreference.primary() : this.readPreference;
+	}
+
+	/**
+	 * @param graph the namespace and identifier of a graph.
+	 * @param cached whether the result of the read is put into a near-cache.
+	 * @return the read preference for the next read of the graph. Reads into a near-cache always go
+	 * to the primary: the near-cache is invalidated from the primary's oplog, so a lagging secondary
+	 * could put a document back into it that was already invalidated.
+	 */
+	public ReadPreference getReadPreference(String graph, boolean cached) {
+
+		if (cached) return ReadPreference.primary();
+
+		return this.getReadPreference(graph);
+	}
+
+	/**
+	 * Pins a graph to the primary, after it was written.
+	 *
+	 * @param graph the namespace and identifier of a graph.
+	 */
+	public void onWrite(String graph) {
+
+		synchronized (this.lastWrites) {
+
+			// re-insert, so that the map stays ordered by the time of the last write
+
+			this.lastWrites.remove(graph);
+			this.lastWrites.put(graph, Long.valueOf(System.currentTimeMillis()));
+		}
+	}
+
+	public ReadPreference getDefaultReadPreference() {
+
+		return this.readPreference;
+	}
+
+	public long getPrimaryWindowMillis() {
+
+		return this.primaryWindowMillis;
+	}
+}
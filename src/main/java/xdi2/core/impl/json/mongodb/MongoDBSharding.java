@@ -0,0 +1,183 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.bson.types.MinKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Shards the shared collection by graph, so that a cluster of replica sets can take the writes
+ * of all graphs, while all contexts of one graph stay on one shard.
+ *
+ * The shard key is the graph identifier <code>id</code>, which is hashed by default. Every query
+ * of a <code>MongoDBJSONStore</code> on the shared collection has an equality condition on
+ * <code>id</code>, so mongos sends it to a single shard.
+ *
+ * With the ranged shard key <code>{id:1, key:1}</code> instead, zones can place graphs on specific
+ * shards by the prefix of their identifier, e.g. all graphs starting with "([=]" on the shards
+ * of the zone "people". The shards must be added to the zones by the administrator. Zones match
+ * identifiers as they are stored, so they cannot be used with hashed identifiers or with graph
+ * numbers of the compact format.
+ *
+ * Sharding is set up once per process and collection, when the first graph is opened.
+ * Nothing happens if the client is not connected to a mongos.
+ */
+public class MongoDBSharding {
+
+	private static final Logger log = LoggerFactory.getLogger(MongoDBSharding.class);
+
+	public static final String HASHED = "hashed";
+
+	private static final int ALREADY_INITIALIZED = 23;
+
+	private Boolean hashedFlag;
+	private Map<String, String> zones;
+
+	public MongoDBSharding() {
+
+		this.hashedFlag = Boolean.TRUE;
+		this.zones = new LinkedHashMap<String, String> ();
+	}
+
+	/**
+	 * @return the shard key of the shared collection.
+	 */
+	public DBObject getShardKey() {
+
+		if (Boolean.TRUE.equals(this.hashedFlag)) return new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, HASHED);
+
+		return new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, Integer.valueOf(1)).append(MongoDBJSONStore.XDI2_OBJ_KEY, Integer.valueOf(1));
+	}
+
+	/**
+	 * Enables sharding for the database of a shared collection, shards the collection, and updates the zone ranges.
+	 * The indexes of the collection must already exist.
+	 *
+	 * @param dbCollection the shared collection holding XDI2 graphs.
+	 */
+	public void shardCollection(DBCollection dbCollection) {
+
+		DB adminDB = dbCollection.getDB().getSisterDB("admin");
+
+		if (! isRouter(adminDB)) {
+
+			log.warn("shardCollection() - " + dbCollection.getFullName() + " not connected to a mongos, not sharding");
+			return;
+		}
+
+		if (! isSharded(dbCollection)) {
+
+			if (log.isInfoEnabled()) {
+				log.info("shardCollection() - " + dbCollection.getFullName() + " sharding on " + this.getShardKey());
+			}
+
+			CommandResult result = adminDB.command(new BasicDBObject("enableSharding", dbCollection.getDB().getName()));
+			if (! result.ok() && result.getInt("code") != ALREADY_INITIALIZED) result.throwOnError();
+
+			if (Boolean.TRUE.equals(this.hashedFlag)) dbCollection.createIndex(this.getShardKey());
+
+			result = adminDB.command(new BasicDBObject("shardCollection", dbCollection.getFullName()).append("key", this.getShardKey()));
+
+			// another node may have sharded it at the same time
+
+			if (! result.ok() && ! isSharded(dbCollection)) result.throwOnError();
+		}
+
+		if (this.zones.isEmpty()) return;
+
+		if (Boolean.TRUE.equals(this.hashedFlag)) {
+
+			log.warn("shardCollection() - " + dbCollection.getFullName() + " zones need a ranged shard key, ignoring them");
+			return;
+		}
+
+		for (Entry<String, String> zone : this.zones.entrySet()) {
+
+			DBObject[] range = getZoneRange(zone.getKey());
+
+			if (range == null) {
+
+				log.warn("shardCollection() - " + dbCollection.getFullName() + " cannot make a range for the prefix " + zone.getKey());
+				continue;
+			}
+
+			if (log.isInfoEnabled()) {
+				log.info("shardCollection() - " + dbCollection.getFullName() + " zone " + zone.getValue() + " for " + zone.getKey());
+			}
+
+			CommandResult result = adminDB.command(new BasicDBObject("updateZoneKeyRange", dbCollection.getFullName()).append("min", range[0]).append("max", range[1]).append("zone", zone.getValue()));
+			if (! result.ok()) log.warn("shardCollection() - " + dbCollection.getFullName() + " zone " + zone.getValue() + " failed - " + result.getErrorMessage());
+		}
+	}
+
+	/**
+	 * Returns the range of the ranged shard key that holds the graphs whose identifier starts with a prefix.
+	 *
+	 * @param prefix the identifier prefix.
+	 * @return the lower bound (inclusive) and upper bound (exclusive), or null if there is no such range.
+	 */
+	public static DBObject[] getZoneRange(String prefix) {
+
+		if (prefix.length() == 0) return null;
+
+		String upperBound = MongoDBJSONStore.toMongoUpperBound(prefix);
+		if (upperBound == null) return null;
+
+		return new DBObject[] {
+				new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, prefix).append(MongoDBJSONStore.XDI2_OBJ_KEY, new MinKey()),
+				new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, upperBound).append(MongoDBJSONStore.XDI2_OBJ_KEY, new MinKey())
+		};
+	}
+
+	private static boolean isRouter(DB adminDB) {
+
+		try {
+
+			return "isdbgrid".equals(adminDB.command("isMaster").get("msg"));
+		} catch (MongoException ex) {
+
+			log.warn("isRouter() - " + ex.getMessage());
+			return false;
+		}
+	}
+
+	private static boolean isSharded(DBCollection dbCollection) {
+
+		CommandResult result = dbCollection.getDB().command(new BasicDBObject("collStats", dbCollection.getName()));
+
+		return result.ok() && Boolean.TRUE.equals(result.get("sharded"));
+	}
+
+	/*
+	 * Getters and setters
+	 */
+
+	public Boolean getHashedFlag() {
+		return this.hashedFlag;
+	}
+
+	public void setHashedFlag(Boolean hashedFlag) {
+		this.hashedFlag = hashedFlag;
+	}
+
+	/**
+	 * @return the zones of graphs, by identifier prefix.
+	 */
+	public Map<String, String> getZones() {
+		return this.zones;
+	}
+
+	public void setZones(Map<String, String> zones) {
+		this.zones = zones;
+	}
+}
@@ -0,0 +1,116 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.beans.ConstructorProperties;
+import java.util.Date;
+
+/**
+ * An operation of a <code>MongoDBJSONStore</code> that took longer than the threshold of the
+ * <code>MongoDBSlowOperationDetector</code>, with the plan the server chose for its query.
+ *
+ * The plan fields are only known if the query was explained; otherwise the plan summary is null
+ * and the counts are -1.
+ */
+public class MongoDBSlowOperation {
+
+	private final long timestamp;
+	private final String operation;
+	private final String namespace;
+	private final String identifier;
+	private final String id;
+	private final long micros;
+	private final String queryShape;
+	private final String planSummary;
+	private final boolean collectionScan;
+	private final long keysExamined;
+	private final long docsExamined;
+	private final long returned;
+
+	@ConstructorProperties({ "timestamp", "operation", "namespace", "identifier", "id", "micros", "queryShape", "planSummary", "collectionScan", "keysExamined", "docsExamined", "returned" })
+	public MongoDBSlowOperation(long timestamp, String operation, String namespace, String identifier, String id, long micros, String queryShape, String planSummary, boolean collectionScan, long keysExamined, long docsExamined, long returned) {
+
+		this.timestamp = timestamp;
+		this.operation = operation;
+		this.namespace = namespace;
+		this.identifier = identifier;
+		this.id = id;
+		this.micros = micros;
+		this.queryShape = queryShape;
+		this.planSummary = planSummary;
+		this.collectionScan = collectionScan;
+		this.keysExamined = keysExamined;
+		this.docsExamined = docsExamined;
+		this.returned = returned;
+	}
+
+	public long getTimestamp() {
+		return this.timestamp;
+	}
+
+	public String getOperation() {
+		return this.operation;
+	}
+
+	public String getNamespace() {
+		return this.namespace;
+	}
+
+	public String getIdentifier() {
+		return this.identifier;
+	}
+
+	public String getId() {
+		return this.id;
+	}
+
+	public long getMicros() {
+		return this.micros;
+	}
+
+	public String getQueryShape() {
+		return this.queryShape;
+	}
+
+	public String getPlanSummary() {
+		return this.planSummary;
+	}
+
+	public boolean isCollectionScan() {
+		return this.collectionScan;
+	}
+
+	public long getKeysExamined() {
+		return this.keysExamined;
+	}
+
+	public long getDocsExamined() {
+		return this.docsExamined;
+	}
+
+	public long getReturned() {
+		return this.returned;
+	}
+
+	@Override
+	public String toString() {
+
+		StringBuilder buffer = new StringBuilder();
+
+		buffer.append(new Date(this.timestamp)).append(" ");
+		buffer.append(this.operation).append(" ").append(this.micros / 1000).append(" ms ");
+		buffer.append(this.namespace).append(" ");
+		if (this.identifier != null) buffer.append(this.identifier).append(" ");
+		buffer.append(this.id).append(" ");
+		buffer.append(this.queryShape);
+
+		if (this.planSummary != null) {
+
+			buffer.append(" plan=").append(this.planSummary);
+			buffer.append(" keysExamined=").append(this.keysExamined);
+			buffer.append(" docsExamined=").append(this.docsExamined);
+			buffer.append(" returned=").append(this.returned);
+			if (this.collectionScan) buffer.append(" COLLECTION SCAN");
+		}
+
+		return buffer.toString();
+	}
+}
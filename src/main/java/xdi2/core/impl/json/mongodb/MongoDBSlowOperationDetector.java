@@ -0,0 +1,397 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * Keeps the most recent operations of <code>MongoDBJSONStore</code>s that took longer than a threshold,
+ * together with the shape of their query and the plan the server chose for it.
+ *
+ * The plan is found by explaining the query on a background thread, so the slow operation itself
+ * is not delayed further. Since explaining runs the query again, each query shape is explained at
+ * most once per explain interval; later occurrences are kept without a plan.
+ *
+ * The shared instance is registered with the platform MBean server as xdi2.mongodb:type=SlowOperations.
+ */
+public class MongoDBSlowOperationDetector implements MongoDBSlowOperationDetectorMXBean {
+
+	private static final Logger log = LoggerFactory.getLogger(MongoDBSlowOperationDetector.class);
+
+	public static final String OBJECT_NAME = "xdi2.mongodb:type=SlowOperations";
+
+	public static final long DEFAULT_THRESHOLD_MILLIS = 100;
+	public static final int DEFAULT_CAPACITY = 100;
+	public static final long DEFAULT_EXPLAIN_INTERVAL_MILLIS = 60000;
+
+	private static final int MAX_EXPLAINED_SHAPES = 1000;
+	private static final int MAX_PENDING_EXPLAINS = 16;
+
+	private static MongoDBSlowOperationDetector instance = null;
+
+	private volatile long thresholdNanos;
+	private volatile boolean explainFlag;
+	private volatile long explainIntervalMillis;
+
+	private final MongoDBSlowOperation[] slowOperations;
+	private int next;
+	private final AtomicLong detected;
+	private final Map<String, Long> explained;
+	private ThreadPoolExecutor explainExecutor;
+
+	public MongoDBSlowOperationDetector(long thresholdMillis, int capacity) {
+
+		if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+
+		this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+		this.explainFlag = true;
+		this.explainIntervalMillis = DEFAULT_EXPLAIN_INTERVAL_MILLIS;
+
+		this.slowOperations = new MongoDBSlowOperation[capacity];
+		this.next = 0;
+		this.detected = new AtomicLong();
+		this.explained = new LinkedHashMap<String, Long> (16, 0.75f, true) {
+
+			private static final long serialVersionUID = 2318204871932043725L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+
+				return this.size() > MAX_EXPLAINED_SHAPES;
+			}
+		};
+		this.explainExecutor = null;
+	}
+
+	public MongoDBSlowOperationDetector() {
+
+		this(DEFAULT_THRESHOLD_MILLIS, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Returns the shared instance, registering it with JMX on first use.
+	 */
+	public static synchronized MongoDBSlowOperationDetector getInstance() {
+
+		if (instance == null) {
+
+			instance = new MongoDBSlowOperationDetector();
+			instance.register(OBJECT_NAME);
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Registers this instance with the platform MBean server.
+	 */
+	public void register(String objectName) {
+
+		try {
+
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(objectName));
+		} catch (Exception ex) {
+
+			log.warn("Cannot register " + objectName + " with JMX: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * @return whether an operation that took this long is slow.
+	 */
+	public boolean isSlow(long nanos) {
+
+		return nanos >= this.thresholdNanos;
+	}
+
+	/**
+	 * Called by a store after an operation that took longer than the threshold.
+	 *
+	 * @param dbCollection the collection the query ran on.
+	 * @param operation the operation.
+	 * @param identifier the graph identifier, if the collection is shared by several graphs.
+	 * @param id the context the operation was called with.
+	 * @param query the query of the operation.
+	 * @param nanos how long the operation took.
+	 */
+	public void onSlowOperation(final DBCollection dbCollection, final MongoDBOperation operation, final String identifier, final String id, final DBObject query, final long nanos) {
+
+		this.detected.incrementAndGet();
+
+		final long timestamp = System.currentTimeMillis();
+		final String namespace = dbCollection.getFullName();
+		final String queryShape = toQueryShape(query).toString();
+
+		if (log.isDebugEnabled()) {
+			log.debug("onSlowOperation() - " + operation + " " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms " + namespace + " " + identifier + " " + id + " " + queryShape);
+		}
+
+		if (this.explainFlag && this.shouldExplain(namespace + " " + queryShape, timestamp)) {
+
+			try {
+
+				this.getExplainExecutor().execute(new Runnable() {
+
+					@Override
+					public void run() {
+
+						DBObject explain = null;
+
+						try {
+
+							explain = dbCollection.find(query).explain();
+						} catch (Exception ex) {
+
+							log.warn("Cannot explain " + namespace + " " + queryShape + ": " + ex.getMessage());
+						}
+
+						MongoDBSlowOperationDetector.this.add(toSlowOperation(timestamp, operation, namespace, identifier, id, nanos, queryShape, explain));
+					}
+				});
+
+				return;
+			} catch (RejectedExecutionException ex) {
+
+				// too many explains pending, keep it without a plan
+			}
+		}
+
+		this.add(toSlowOperation(timestamp, operation, namespace, identifier, id, nanos, queryShape, null));
+	}
+
+	private boolean shouldExplain(String shape, long timestamp) {
+
+		synchronized (this.explained) {
+
+			Long lastExplained = this.explained.get(shape);
+			if (lastExplained != null && timestamp - lastExplained.longValue() < this.explainIntervalMillis) return false;
+
+			this.explained.put(shape, Long.valueOf(timestamp));
+			return true;
+		}
+	}
+
+	private synchronized ThreadPoolExecutor getExplainExecutor() {
+
+		if (this.explainExecutor == null) {
+
+			this.explainExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable> (MAX_PENDING_EXPLAINS), new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+
+					Thread thread = new Thread(runnable, "xdi2-mongodb-explain");
+					thread.setDaemon(true);
+
+					return thread;
+				}
+			});
+			this.explainExecutor.allowCoreThreadTimeOut(true);
+		}
+
+		return this.explainExecutor;
+	}
+
+	private synchronized void add(MongoDBSlowOperation slowOperation) {
+
+		this.slowOperations[this.next] = slowOperation;
+		this.next = (this.next + 1) % this.slowOperations.length;
+	}
+
+	/*
+	 * Query shapes and plans
+	 */
+
+	/**
+	 * Replaces the values of a query with placeholders, so that queries which differ only
+	 * in their values have the same shape. Regular expressions keep their options.
+	 */
+	public static Object toQueryShape(Object value) {
+
+		if (value instanceof BasicDBList) {
+
+			BasicDBList shape = new BasicDBList();
+			for (Object element : (BasicDBList) value) shape.add(toQueryShape(element));
+
+			return shape;
+		}
+
+		if (value instanceof DBObject) {
+
+			DBObject shape = new BasicDBObject();
+			for (String key : ((DBObject) value).keySet()) shape.put(key, toQueryShape(((DBObject) value).get(key)));
+
+			return shape;
+		}
+
+		if (value instanceof Pattern) return "/?/" + (((Pattern) value).flags() == 0 ? "" : Integer.toString(((Pattern) value).flags()));
+
+		return "?";
+	}
+
+	/**
+	 * Reads the plan of an explain result, as returned by MongoDB 3.0 and later, or by earlier versions.
+	 */
+	public static MongoDBSlowOperation toSlowOperation(long timestamp, MongoDBOperation operation, String namespace, String identifier, String id, long nanos, String queryShape, DBObject explain) {
+
+		long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+
+		if (explain == null) return new MongoDBSlowOperation(timestamp, operation.name(), namespace, identifier, id, micros, queryShape, null, false, -1, -1, -1);
+
+		DBObject queryPlanner = (DBObject) explain.get("queryPlanner");
+
+		if (queryPlanner != null) {
+
+			StringBuilder planSummary = new StringBuilder();
+			boolean collectionScan = false;
+
+			for (DBObject stage = (DBObject) queryPlanner.get("winningPlan"); stage != null; stage = (DBObject) stage.get("inputStage")) {
+
+				if (planSummary.length() > 0) planSummary.append(" <- ");
+				planSummary.append(stage.get("stage"));
+				if (stage.get("indexName") != null) planSummary.append(" ").append(stage.get("indexName"));
+
+				if ("COLLSCAN".equals(stage.get("stage"))) collectionScan = true;
+			}
+
+			DBObject executionStats = (DBObject) explain.get("executionStats");
+
+			long keysExamined = executionStats == null ? -1 : toLong(executionStats.get("totalKeysExamined"));
+			long docsExamined = executionStats == null ? -1 : toLong(executionStats.get("totalDocsExamined"));
+			long returned = executionStats == null ? -1 : toLong(executionStats.get("nReturned"));
+
+			return new MongoDBSlowOperation(timestamp, operation.name(), namespace, identifier, id, micros, queryShape, planSummary.toString(), collectionScan, keysExamined, docsExamined, returned);
+		} else {
+
+			String cursor = (String) explain.get("cursor");
+			boolean collectionScan = cursor != null && cursor.startsWith("BasicCursor");
+
+			return new MongoDBSlowOperation(timestamp, operation.name(), namespace, identifier, id, micros, queryShape, cursor, collectionScan, toLong(explain.get("nscanned")), toLong(explain.get("nscannedObjects")), toLong(explain.get("n")));
+		}
+	}
+
+	private static long toLong(Object value) {
+
+		return value instanceof Number ? ((Number) value).longValue() : -1;
+	}
+
+	/*
+	 * JMX
+	 */
+
+	@Override
+	public long getThresholdMillis() {
+
+		return TimeUnit.NANOSECONDS.toMillis(this.thresholdNanos);
+	}
+
+	@Override
+	public void setThresholdMillis(long thresholdMillis) {
+
+		this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+	}
+
+	@Override
+	public boolean getExplainFlag() {
+
+		return this.explainFlag;
+	}
+
+	@Override
+	public void setExplainFlag(boolean explainFlag) {
+
+		this.explainFlag = explainFlag;
+	}
+
+	@Override
+	public long getDetected() {
+
+		return this.detected.get();
+	}
+
+	/**
+	 * @return the kept slow operations, the most recent first.
+	 */
+	@Override
+	public synchronized List<MongoDBSlowOperation> getSlowOperations() {
+
+		List<MongoDBSlowOperation> slowOperations = new ArrayList<MongoDBSlowOperation> ();
+
+		for (int i = 1; i <= this.slowOperations.length; i++) {
+
+			MongoDBSlowOperation slowOperation = this.slowOperations[(this.next - i + this.slowOperations.length) % this.slowOperations.length];
+			if (slowOperation == null) break;
+
+			slowOperations.add(slowOperation);
+		}
+
+		return slowOperations;
+	}
+
+	/**
+	 * @return the kept slow operations whose query was answered by a collection scan, the most recent first.
+	 */
+	@Override
+	public List<MongoDBSlowOperation> getCollectionScans() {
+
+		List<MongoDBSlowOperation> collectionScans = new ArrayList<MongoDBSlowOperation> ();
+
+		for (MongoDBSlowOperation slowOperation : this.getSlowOperations()) {
+
+			if (slowOperation.isCollectionScan()) collectionScans.add(slowOperation);
+		}
+
+		return collectionScans;
+	}
+
+	@Override
+	public void clear() {
+
+		synchronized (this) {
+
+			for (int i = 0; i < this.slowOperations.length; i++) this.slowOperations[i] = null;
+			this.next = 0;
+		}
+
+		synchronized (this.explained) {
+
+			this.explained.clear();
+		}
+
+		this.detected.set(0);
+	}
+
+	public long getExplainIntervalMillis() {
+
+		return this.explainIntervalMillis;
+	}
+
+	public void setExplainIntervalMillis(long explainIntervalMillis) {
+
+		this.explainIntervalMillis = explainIntervalMillis;
+	}
+
+	public int getCapacity() {
+
+		return this.slowOperations.length;
+	}
+}
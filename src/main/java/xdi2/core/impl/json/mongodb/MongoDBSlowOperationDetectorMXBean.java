@@ -0,0 +1,25 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.util.List;
+
+/**
+ * The JMX view of <code>MongoDBSlowOperationDetector</code>.
+ */
+public interface MongoDBSlowOperationDetectorMXBean {
+
+	public long getThresholdMillis();
+
+	public void setThresholdMillis(long thresholdMillis);
+
+	public boolean getExplainFlag();
+
+	public void setExplainFlag(boolean explainFlag);
+
+	public long getDetected();
+
+	public List<MongoDBSlowOperation> getSlowOperations();
+
+	public List<MongoDBSlowOperation> getCollectionScans();
+
+	public void clear();
+}
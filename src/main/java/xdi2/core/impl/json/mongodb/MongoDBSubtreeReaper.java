@@ -0,0 +1,472 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+/**
+ * Deletes subtrees of contexts in bounded batches, so that deleting a large subtree
+ * neither keeps the server busy with one huge remove nor floods the replicas.
+ *
+ * Each batch looks up the _ids of the next contexts in the key range of the subtree, and
+ * removes just those. With a write concern that waits for replicas (e.g. MAJORITY), every
+ * batch also waits for replication to catch up.
+ *
+ * Subtrees can be deleted in the background. Until they are gone, stores hide them from reads
+ * and make writes into them wait. This is tracked per process, so other nodes see the subtree
+ * shrink batch by batch.
+ *
+ * A background deletion that fails is retried with a growing delay, and stays hidden meanwhile.
+ * If it still fails after the last retry, the rest of the subtree becomes visible again; such
+ * deletions are counted and listed as failed.
+ *
+ * The shared instance is registered with the platform MBean server as xdi2.mongodb:type=SubtreeReaper.
+ */
+public class MongoDBSubtreeReaper implements MongoDBSubtreeReaperMXBean {
+
+	private static final Logger log = LoggerFactory.getLogger(MongoDBSubtreeReaper.class);
+
+	public static final String OBJECT_NAME = "xdi2.mongodb:type=SubtreeReaper";
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	public static final int DEFAULT_THREADS = 1;
+	public static final int DEFAULT_MAX_RETRIES = 5;
+	public static final long DEFAULT_RETRY_DELAY_MILLIS = 1000;
+
+	private static final long MAX_RETRY_DELAY_MILLIS = 60000;
+	private static final int MAX_FINISHED = 100;
+	private static final int LOG_EVERY_BATCHES = 100;
+
+	private static MongoDBSubtreeReaper instance = null;
+
+	private final ScheduledExecutorService executorService;
+	private final ConcurrentMap<String, List<MongoDBDeleteProgress>> pending;
+	private final LinkedList<MongoDBDeleteProgress> finished;
+	private final AtomicLong failed;
+
+	private volatile int maxRetries;
+	private volatile long retryDelayMillis;
+
+	public MongoDBSubtreeReaper(int threads) {
+
+		this.executorService = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+
+				Thread thread = new Thread(runnable, "xdi2-mongodb-reaper-" + this.count.incrementAndGet());
+				thread.setDaemon(true);
+
+				return thread;
+			}
+		});
+
+		this.pending = new ConcurrentHashMap<String, List<MongoDBDeleteProgress>> ();
+		this.finished = new LinkedList<MongoDBDeleteProgress> ();
+		this.failed = new AtomicLong();
+
+		this.maxRetries = DEFAULT_MAX_RETRIES;
+		this.retryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+	}
+
+	public MongoDBSubtreeReaper() {
+
+		this(DEFAULT_THREADS);
+	}
+
+	/**
+	 * Returns the shared instance, registering it with JMX on first use.
+	 */
+	public static synchronized MongoDBSubtreeReaper getInstance() {
+
+		if (instance == null) {
+
+			instance = new MongoDBSubtreeReaper();
+			instance.register(OBJECT_NAME);
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Registers this instance with the platform MBean server.
+	 */
+	public void register(String objectName) {
+
+		try {
+
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(objectName));
+		} catch (Exception ex) {
+
+			log.warn("Cannot register " + objectName + " with JMX: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Starts deleting a subtree in the background. It is hidden from reads right away, and
+	 * writes into it wait until the whole subtree is deleted.
+	 *
+	 * @param dbCollection the collection holding the graph.
+	 * @param graph the namespace and identifier of the graph.
+	 * @param prefix the key prefix of the subtree.
+	 * @param query the query matching the subtree.
+	 * @param batchSize how many contexts to remove at a time.
+	 * @param writeConcern the write concern of each batch.
+	 * @param afterDelete called when the subtree is deleted, or null.
+	 * @return the progress of the deletion.
+	 */
+	public MongoDBDeleteProgress submit(final DBCollection dbCollection, final String graph, final String prefix, final DBObject query, final int batchSize, final WriteConcern writeConcern, final Runnable afterDelete) {
+
+		final MongoDBDeleteProgress progress = new MongoDBDeleteProgress(graph, prefix);
+
+		synchronized (this.pending) {
+
+			List<MongoDBDeleteProgress> pendingProgresses = this.pending.get(graph);
+
+			if (pendingProgresses == null) {
+
+				pendingProgresses = new CopyOnWriteArrayList<MongoDBDeleteProgress> ();
+				this.pending.put(graph, pendingProgresses);
+			}
+
+			pendingProgresses.add(progress);
+		}
+
+		this.executorService.execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				Exception failure = null;
+
+				try {
+
+					failure = deleteBatches(dbCollection, query, batchSize, writeConcern, progress);
+					if (failure != null && MongoDBSubtreeReaper.this.retry(this, progress, failure)) return;
+				} catch (RuntimeException ex) {
+
+					failure = ex;
+				}
+
+				MongoDBSubtreeReaper.this.finish(progress, failure, afterDelete);
+			}
+		});
+
+		return progress;
+	}
+
+	/**
+	 * Runs a failed deletion again after a delay that doubles with every retry.
+	 * The next run continues with the contexts that are left.
+	 *
+	 * @return whether the deletion will be retried.
+	 */
+	private boolean retry(Runnable deletion, MongoDBDeleteProgress progress, Exception failure) {
+
+		int retries = progress.getRetries();
+		if (retries >= this.maxRetries) return false;
+
+		long delayMillis = Math.min(this.retryDelayMillis << Math.min(retries, 30), MAX_RETRY_DELAY_MILLIS);
+
+		log.warn("delete() - " + progress.getGraph() + " " + progress.getPrefix() + " failed, retrying in " + delayMillis + " ms: " + failure.getMessage());
+
+		try {
+
+			this.executorService.schedule(deletion, delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException ex) {
+
+			return false;
+		}
+
+		progress.onRetry();
+
+		return true;
+	}
+
+	private void finish(MongoDBDeleteProgress progress, Exception failure, Runnable afterDelete) {
+
+		if (failure != null) {
+
+			log.error("delete() - " + progress.getGraph() + " " + progress.getPrefix() + " failed after " + progress.getRetries() + " retries, the rest of the subtree is visible again: " + failure.getMessage(), failure);
+			this.failed.incrementAndGet();
+		}
+
+		// invalidate caches before the subtree is visible again, and wake up waiting writes last
+
+		try {
+
+			if (afterDelete != null) afterDelete.run();
+		} finally {
+
+			this.onFinished(progress);
+			progress.onDone(failure);
+		}
+
+		if (log.isDebugEnabled()) {
+			log.debug("delete() - " + progress);
+		}
+	}
+
+	/**
+	 * Deletes a subtree in batches, in the calling thread.
+	 */
+	public static MongoDBDeleteProgress delete(DBCollection dbCollection, String graph, String prefix, DBObject query, int batchSize, WriteConcern writeConcern) {
+
+		MongoDBDeleteProgress progress = new MongoDBDeleteProgress(graph, prefix);
+
+		Exception failure = deleteBatches(dbCollection, query, batchSize, writeConcern, progress);
+		progress.onDone(failure);
+
+		if (log.isDebugEnabled()) {
+			log.debug("delete() - " + progress);
+		}
+
+		if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+
+		return progress;
+	}
+
+	/**
+	 * Removes batches until the subtree is gone or a batch fails.
+	 *
+	 * @return the exception that stopped the deletion, or null.
+	 */
+	private static Exception deleteBatches(DBCollection dbCollection, DBObject query, int batchSize, WriteConcern writeConcern, MongoDBDeleteProgress progress) {
+
+		try {
+
+			DBObject fields = new BasicDBObject("_id", Integer.valueOf(1));
+
+			while (true) {
+
+				List<Object> documentIds = new ArrayList<Object> (batchSize);
+
+				DBCursor cursor = dbCollection.find(query, fields).limit(batchSize);
+
+				try {
+
+					while (cursor.hasNext()) documentIds.add(cursor.next().get("_id"));
+				} finally {
+
+					cursor.close();
+				}
+
+				if (documentIds.isEmpty()) break;
+
+				dbCollection.remove(getBatchQuery(query, documentIds), writeConcern);
+				progress.onBatch(documentIds.size());
+
+				if (log.isDebugEnabled() && progress.getBatches() % LOG_EVERY_BATCHES == 0) {
+					log.debug("delete() - " + progress);
+				}
+
+				if (documentIds.size() < batchSize) break;
+			}
+		} catch (Exception ex) {
+
+			log.warn("delete() - " + progress.getGraph() + " " + progress.getPrefix() + " failed: " + ex.getMessage(), ex);
+			return ex;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the query removing a batch of documents of a subtree. It keeps the conditions of the
+	 * subtree query, so that on a sharded collection it is sent only to the shard of the graph.
+	 *
+	 * @param query the query matching the subtree.
+	 * @param documentIds the _ids of the documents in the batch.
+	 * @return the query matching the documents in the batch.
+	 */
+	public static DBObject getBatchQuery(DBObject query, List<Object> documentIds) {
+
+		BasicDBObject batchQuery = new BasicDBObject(query.toMap());
+		batchQuery.put("_id", new BasicDBObject("$in", documentIds));
+
+		return batchQuery;
+	}
+
+	private void onFinished(MongoDBDeleteProgress progress) {
+
+		// listed as finished before it is no longer pending, so it is always in one of the lists
+
+		synchronized (this.finished) {
+
+			this.finished.addFirst(progress);
+			if (this.finished.size() > MAX_FINISHED) this.finished.removeLast();
+		}
+
+		synchronized (this.pending) {
+
+			List<MongoDBDeleteProgress> pendingProgresses = this.pending.get(progress.getGraph());
+
+			if (pendingProgresses != null) {
+
+				pendingProgresses.remove(progress);
+				if (pendingProgresses.isEmpty()) this.pending.remove(progress.getGraph());
+			}
+		}
+	}
+
+	/**
+	 * @param graph the namespace and identifier of a graph.
+	 * @param id a context key.
+	 * @return the deletion of a subtree containing the context that is still running, or null.
+	 */
+	public MongoDBDeleteProgress getPending(String graph, String id) {
+
+		if (this.pending.isEmpty()) return null;
+
+		List<MongoDBDeleteProgress> pendingProgresses = this.pending.get(graph);
+		if (pendingProgresses == null) return null;
+
+		for (MongoDBDeleteProgress progress : pendingProgresses) {
+
+			if (progress.covers(id)) return progress;
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return whether a context is in a subtree that is still being deleted.
+	 */
+	public boolean isHidden(String graph, String id) {
+
+		return this.getPending(graph, id) != null;
+	}
+
+	/**
+	 * @return whether any subtree of the graph is still being deleted.
+	 */
+	public boolean hasPending(String graph) {
+
+		if (this.pending.isEmpty()) return false;
+
+		List<MongoDBDeleteProgress> pendingProgresses = this.pending.get(graph);
+
+		return pendingProgresses != null && ! pendingProgresses.isEmpty();
+	}
+
+	/**
+	 * Waits until no subtree containing the context is being deleted any more.
+	 */
+	public void await(String graph, String id) throws InterruptedException {
+
+		for (MongoDBDeleteProgress progress = this.getPending(graph, id); progress != null; progress = this.getPending(graph, id)) {
+
+			progress.await();
+		}
+	}
+
+	/**
+	 * @return the deletions that are still running.
+	 */
+	public List<MongoDBDeleteProgress> getPending() {
+
+		List<MongoDBDeleteProgress> pendingProgresses = new ArrayList<MongoDBDeleteProgress> ();
+		for (List<MongoDBDeleteProgress> progresses : this.pending.values()) pendingProgresses.addAll(progresses);
+
+		return pendingProgresses;
+	}
+
+	/**
+	 * @return the most recently finished deletions, the most recent first.
+	 */
+	public List<MongoDBDeleteProgress> getFinished() {
+
+		synchronized (this.finished) {
+
+			return new ArrayList<MongoDBDeleteProgress> (this.finished);
+		}
+	}
+
+	/*
+	 * JMX
+	 */
+
+	@Override
+	public List<String> getPendingDeletions() {
+
+		List<String> pendingDeletions = new ArrayList<String> ();
+		for (MongoDBDeleteProgress progress : this.getPending()) pendingDeletions.add(progress.toString());
+
+		return pendingDeletions;
+	}
+
+	@Override
+	public List<String> getFailedDeletions() {
+
+		List<String> failedDeletions = new ArrayList<String> ();
+
+		for (MongoDBDeleteProgress progress : this.getFinished()) {
+
+			if (progress.getFailure() != null) failedDeletions.add(progress.toString());
+		}
+
+		return failedDeletions;
+	}
+
+	@Override
+	public long getFailed() {
+
+		return this.failed.get();
+	}
+
+	@Override
+	public int getMaxRetries() {
+
+		return this.maxRetries;
+	}
+
+	@Override
+	public void setMaxRetries(int maxRetries) {
+
+		this.maxRetries = maxRetries;
+	}
+
+	@Override
+	public long getRetryDelayMillis() {
+
+		return this.retryDelayMillis;
+	}
+
+	@Override
+	public void setRetryDelayMillis(long retryDelayMillis) {
+
+		this.retryDelayMillis = retryDelayMillis;
+	}
+
+	/**
+	 * Stops taking new deletions. Running deletions are finished, but not retried.
+	 */
+	public void shutdown() {
+
+		this.executorService.shutdown();
+	}
+}
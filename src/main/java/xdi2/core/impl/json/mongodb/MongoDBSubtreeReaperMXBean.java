@@ -0,0 +1,23 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.util.List;
+
+/**
+ * The JMX view of <code>MongoDBSubtreeReaper</code>.
+ */
+public interface MongoDBSubtreeReaperMXBean {
+
+	public List<String> getPendingDeletions();
+
+	public List<String> getFailedDeletions();
+
+	public long getFailed();
+
+	public int getMaxRetries();
+
+	public void setMaxRetries(int maxRetries);
+
+	public long getRetryDelayMillis();
+
+	public void setRetryDelayMillis(long retryDelayMillis);
+}
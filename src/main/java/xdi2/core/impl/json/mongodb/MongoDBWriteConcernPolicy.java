@@ -0,0 +1,287 @@
+package xdi2.core.impl.json.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.mongodb.WriteConcern;
+
+/**
+ * Chooses the write concern of each write of a <code>MongoDBJSONStore</code>.
+ *
+ * Rules are checked in the order they were added; the first rule whose operations, context
+ * pattern and key pattern match decides. Otherwise the write concern of the operation is used,
+ * then the default write concern. If none is set, the write uses the client's write concern.
+ *
+ * For example, saveToObject on timestamp contexts can be made unacknowledged, while writes
+ * to link contracts and of $ref relations wait for a majority:
+ *
+ * <pre>
+ * policy.addRule(Pattern.compile("\\$do"), WriteConcern.MAJORITY);
+ * policy.addRule(null, Pattern.compile("^/\\$ref$"), WriteConcern.MAJORITY);
+ * policy.addRule(Pattern.compile("&lt;\\$t&gt;$"), WriteConcern.UNACKNOWLEDGED, MongoDBOperation.SAVE_TO_OBJECT);
+ * </pre>
+ *
+ * A bulk operation waits as long as the most demanding of its writes would on its own.
+ */
+public class MongoDBWriteConcernPolicy {
+
+	private WriteConcern defaultWriteConcern;
+	private Map<MongoDBOperation, WriteConcern> operationWriteConcerns;
+	private List<Rule> rules;
+
+	public MongoDBWriteConcernPolicy() {
+
+		this.defaultWriteConcern = null;
+		this.operationWriteConcerns = new EnumMap<MongoDBOperation, WriteConcern> (MongoDBOperation.class);
+		this.rules = new ArrayList<Rule> ();
+	}
+
+	/**
+	 * @param operation the kind of write.
+	 * @param id the context that is written, or null for bulk operations.
+	 * @return the write concern, or null to use the client's.
+	 */
+	public WriteConcern getWriteConcern(MongoDBOperation operation, String id) {
+
+		return this.getWriteConcern(operation, id, null);
+	}
+
+	/**
+	 * @param operation the kind of write.
+	 * @param id the context that is written, or null for bulk operations.
+	 * @param key the key within the context that is written, or null if the whole context is written.
+	 * @return the write concern, or null to use the client's.
+	 */
+	public WriteConcern getWriteConcern(MongoDBOperation operation, String id, String key) {
+
+		WriteConcern writeConcern = this.getRuleWriteConcern(operation, id, key);
+		if (writeConcern != null) return writeConcern;
+
+		return this.getOperationWriteConcern(operation);
+	}
+
+	/**
+	 * Returns the write concern of a bulk operation. This is the strongest of the write concern of
+	 * BULK and of those the rules and operations give its writes, so that e.g. a rule requiring a
+	 * majority for link contracts still applies when they are written in a bulk operation.
+	 *
+	 * @param writes the writes in the bulk operation.
+	 * @return the write concern, or null to use the client's.
+	 */
+	public WriteConcern getBulkWriteConcern(Collection<Write> writes) {
+
+		WriteConcern bulkWriteConcern = this.getOperationWriteConcern(MongoDBOperation.BULK);
+
+		for (Write write : writes) {
+
+			WriteConcern writeConcern = this.getRuleWriteConcern(write.getOperation(), write.getId(), write.getKey());
+			if (writeConcern == null) writeConcern = this.operationWriteConcerns.get(write.getOperation());
+
+			if (writeConcern != null) bulkWriteConcern = getStronger(bulkWriteConcern, writeConcern);
+		}
+
+		return bulkWriteConcern;
+	}
+
+	private WriteConcern getRuleWriteConcern(MongoDBOperation operation, String id, String key) {
+
+		if (id == null) return null;
+
+		for (Rule rule : this.rules) {
+
+			if (rule.matches(operation, id, key)) return rule.writeConcern;
+		}
+
+		return null;
+	}
+
+	private WriteConcern getOperationWriteConcern(MongoDBOperation operation) {
+
+		WriteConcern writeConcern = this.operationWriteConcerns.get(operation);
+		if (writeConcern != null) return writeConcern;
+
+		return this.defaultWriteConcern;
+	}
+
+	/**
+	 * Returns the write concern that waits for more: for more servers, then for the journal.
+	 * A majority or a tag set counts as more than any number of servers. Null stands for the
+	 * client's write concern and counts as acknowledged by one server.
+	 *
+	 * @return one of the two write concerns, the first one if both are as strong.
+	 */
+	public static WriteConcern getStronger(WriteConcern writeConcern, WriteConcern otherWriteConcern) {
+
+		return getStrength(otherWriteConcern) > getStrength(writeConcern) ? otherWriteConcern : writeConcern;
+	}
+
+	private static long getStrength(WriteConcern writeConcern) {
+
+		if (writeConcern == null) return 2;
+
+		Object w = writeConcern.getWObject();
+		long servers = w == null ? 1 : (w instanceof Number ? ((Number) w).longValue() : Integer.MAX_VALUE);
+
+		return 2 * servers + (writeConcern.getJ() || writeConcern.getFsync() ? 1 : 0);
+	}
+
+	/**
+	 * Adds a rule for writes to contexts matching a pattern.
+	 *
+	 * @param pattern the pattern that must be found in the context.
+	 * @param writeConcern the write concern.
+	 * @param operations the kinds of writes the rule applies to, or none for all.
+	 */
+	public void addRule(Pattern pattern, WriteConcern writeConcern, MongoDBOperation... operations) {
+
+		this.addRule(pattern, null, writeConcern, operations);
+	}
+
+	/**
+	 * Adds a rule for writes of keys matching a pattern, e.g. the arcs of some relations.
+	 * Such a rule does not apply to writes of whole contexts.
+	 *
+	 * @param pattern the pattern that must be found in the context, or null for all contexts.
+	 * @param keyPattern the pattern that must be found in the key, or null for all keys.
+	 * @param writeConcern the write concern.
+	 * @param operations the kinds of writes the rule applies to, or none for all.
+	 */
+	public void addRule(Pattern pattern, Pattern keyPattern, WriteConcern writeConcern, MongoDBOperation... operations) {
+
+		this.rules.add(new Rule(pattern, keyPattern, writeConcern, operations));
+	}
+
+	/**
+	 * Adds rules from configuration, as context patterns and write concern names (e.g. "MAJORITY").
+	 */
+	public void setRules(Map<String, String> rules) {
+
+		for (Map.Entry<String, String> rule : rules.entrySet()) {
+
+			this.addRule(Pattern.compile(rule.getKey()), toWriteConcern(rule.getValue()));
+		}
+	}
+
+	/**
+	 * Adds rules from configuration, as key patterns and write concern names (e.g. "MAJORITY").
+	 */
+	public void setKeyRules(Map<String, String> keyRules) {
+
+		for (Map.Entry<String, String> rule : keyRules.entrySet()) {
+
+			this.addRule(null, Pattern.compile(rule.getKey()), toWriteConcern(rule.getValue()));
+		}
+	}
+
+	public WriteConcern getWriteConcern(MongoDBOperation operation) {
+
+		return this.operationWriteConcerns.get(operation);
+	}
+
+	public void setWriteConcern(MongoDBOperation operation, WriteConcern writeConcern) {
+
+		if (writeConcern == null) this.operationWriteConcerns.remove(operation); else this.operationWriteConcerns.put(operation, writeConcern);
+	}
+
+	/**
+	 * Sets the write concerns of operations from configuration, as operation names (e.g. "SAVE_TO_OBJECT")
+	 * and write concern names (e.g. "UNACKNOWLEDGED").
+	 */
+	public void setOperationWriteConcerns(Map<String, String> operationWriteConcerns) {
+
+		for (Map.Entry<String, String> entry : operationWriteConcerns.entrySet()) {
+
+			this.setWriteConcern(MongoDBOperation.valueOf(entry.getKey()), toWriteConcern(entry.getValue()));
+		}
+	}
+
+	public WriteConcern getDefaultWriteConcern() {
+
+		return this.defaultWriteConcern;
+	}
+
+	public void setDefaultWriteConcern(WriteConcern defaultWriteConcern) {
+
+		this.defaultWriteConcern = defaultWriteConcern;
+	}
+
+	private static WriteConcern toWriteConcern(String name) {
+
+		WriteConcern writeConcern = WriteConcern.valueOf(name);
+		if (writeConcern == null) throw new IllegalArgumentException("Unknown write concern: " + name);
+
+		return writeConcern;
+	}
+
+	/**
+	 * A write in a bulk operation.
+	 */
+	public static class Write {
+
+		private final MongoDBOperation operation;
+		private final String id;
+		private final String key;
+
+		/**
+		 * @param operation the kind of write.
+		 * @param id the context that is written.
+		 * @param key the key within the context that is written, or null if the whole context is written.
+		 */
+		public Write(MongoDBOperation operation, String id, String key) {
+
+			this.operation = operation;
+			this.id = id;
+			this.key = key;
+		}
+
+		public MongoDBOperation getOperation() {
+
+			return this.operation;
+		}
+
+		public String getId() {
+
+			return this.id;
+		}
+
+		public String getKey() {
+
+			return this.key;
+		}
+	}
+
+	private static class Rule {
+
+		private final Pattern pattern;
+		private final Pattern keyPattern;
+		private final WriteConcern writeConcern;
+		private final MongoDBOperation[] operations;
+
+		private Rule(Pattern pattern, Pattern keyPattern, WriteConcern writeConcern, MongoDBOperation[] operations) {
+
+			this.pattern = pattern;
+			this.keyPattern = keyPattern;
+			this.writeConcern = writeConcern;
+			this.operations = operations;
+		}
+
+		private boolean matches(MongoDBOperation operation, String id, String key) {
+
+			if (this.operations.length > 0) {
+
+				boolean found = false;
+				for (MongoDBOperation o : this.operations) if (o == operation) found = true;
+
+				if (! found) return false;
+			}
+
+			if (this.keyPattern != null && (key == null || ! this.keyPattern.matcher(key).find())) return false;
+
+			return this.pattern == null || this.pattern.matcher(id).find();
+		}
+	}
+}
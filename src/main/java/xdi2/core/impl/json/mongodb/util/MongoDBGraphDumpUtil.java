@@ -0,0 +1,111 @@
+package xdi2.core.impl.json.mongodb.util;
+
+import java.io.File;
+
+import xdi2.core.impl.json.mongodb.MongoDBGraphDump;
+import xdi2.core.impl.json.mongodb.MongoDBJSONGraphFactory;
+
+/**
+ * This <code>MongoDBGraphDumpUtil</code> class exports a single XDI2 graph into
+ * a file, or imports such a file into a graph, e.g. for backups or for moving
+ * a graph to another server without dumping the whole shared collection.
+ */
+public class MongoDBGraphDumpUtil
+{
+	/**
+	 * Prints out the usage of this utility.
+	 */
+	private static void usage() {
+		String name = MongoDBGraphDumpUtil.class.getName();
+		System.out.println("Usage: java " + name + " -export|-import -id identifier -file file [-host host[:port]] [-bson|-json] [-hash] [-separate] [-buckets n] [-compact] [-threads n]");
+		System.out.println("");
+		System.out.println("Default: -host    localhost");
+		System.out.println("         -bson    records are BSON documents; -json writes one line of JSON per record");
+		System.out.println("         -hash    the graph identifier is hashed, as with hashIdentifierFlag");
+		System.out.println("         -separate  the graph has its own database instead of the shared collection");
+		System.out.println("         -buckets n  the shared database is split into n bucket collections");
+		System.out.println("         -compact the graph uses the compact format if it is new");
+		System.out.println("         -threads " + MongoDBGraphDump.DEFAULT_THREADS + " batches imported in parallel");
+		System.exit(1);
+	}
+
+	public static void main(String args[]) {
+		Boolean export   = null;
+		String  id       = null;
+		String  file     = null;
+		String  host     = MongoDBJSONGraphFactory.DEFAULT_HOST;
+		Integer port     = MongoDBJSONGraphFactory.DEFAULT_PORT;
+		MongoDBGraphDump.Format format = MongoDBGraphDump.Format.BSON;
+		Boolean useHash  = Boolean.FALSE;
+		Boolean shared   = Boolean.TRUE;
+		Integer buckets  = null;
+		Boolean compact  = Boolean.FALSE;
+		int     threads  = MongoDBGraphDump.DEFAULT_THREADS;
+		int     i;
+		for (i = 0; i < args.length; i++) {
+			if ("-export".equals(args[i])) {
+				export = Boolean.TRUE;
+			} else if ("-import".equals(args[i])) {
+				export = Boolean.FALSE;
+			} else if ("-bson".equals(args[i])) {
+				format = MongoDBGraphDump.Format.BSON;
+			} else if ("-json".equals(args[i])) {
+				format = MongoDBGraphDump.Format.JSON;
+			} else if ("-hash".equals(args[i])) {
+				useHash = Boolean.TRUE;
+			} else if ("-separate".equals(args[i])) {
+				shared = Boolean.FALSE;
+			} else if ("-compact".equals(args[i])) {
+				compact = Boolean.TRUE;
+			} else if ("-id".equals(args[i]) && ((i + 1) < args.length)) {
+				id = args[++i];
+			} else if ("-file".equals(args[i]) && ((i + 1) < args.length)) {
+				file = args[++i];
+			} else if ("-host".equals(args[i]) && ((i + 1) < args.length)) {
+				host = args[++i];
+			} else if ("-buckets".equals(args[i]) && ((i + 1) < args.length)) {
+				buckets = Integer.valueOf(args[++i]);
+			} else if ("-threads".equals(args[i]) && ((i + 1) < args.length)) {
+				threads = Integer.parseInt(args[++i]);
+			} else {
+				usage();
+			}
+		}
+		if ((export == null) || (id == null) || (file == null)) {
+			usage();
+		}
+		try
+		{
+			i = host.indexOf(":");
+			if (i > 0) {
+				port = Integer.valueOf(host.substring(i + 1));
+				host = host.substring(0, i);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			usage();
+		}
+		MongoDBJSONGraphFactory graphFactory = new MongoDBJSONGraphFactory();
+		graphFactory.setHost(host);
+		graphFactory.setPort(port);
+		graphFactory.setHashIdentifierFlag(useHash);
+		graphFactory.setSharedDatabaseFlag(shared);
+		graphFactory.setBucketCount(buckets);
+		graphFactory.setCompactFlag(compact);
+		try {
+			long start = System.currentTimeMillis();
+			long count;
+			if (export.booleanValue()) {
+				count = graphFactory.exportGraph(id, new File(file), format);
+				System.out.println("Exported graph " + id + " into " + file + ": " + count + " records in " + (System.currentTimeMillis() - start) + " ms");
+			} else {
+				count = graphFactory.importGraph(id, new File(file), threads);
+				System.out.println("Imported graph " + id + " from " + file + ": " + count + " records in " + (System.currentTimeMillis() - start) + " ms");
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
@@ -1,22 +1,49 @@
 package xdi2.core.impl.json.mongodb.util;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 
+import xdi2.core.impl.json.mongodb.MongoDBCompactSchema;
 import xdi2.core.impl.json.mongodb.MongoDBJSONGraphFactory;
 import xdi2.core.impl.json.mongodb.MongoDBJSONStore;
 
 /**
  * This <code>MongoDBStoreCombineUtil</code> class combines the existing
  * XDI2 graphs stored in its own MongoDB database into a single MongoDB database.
+ * The graphs can be kept in a single collection or spread over bucket collections,
+ * and a single collection can be split into bucket collections.
  */
 public class MongoDBStoreCombineUtil
 {
@@ -48,8 +75,30 @@ public class MongoDBStoreCombineUtil
 	private Boolean     dryRun;
 	private MongoClient srcClient;
 	private MongoClient dstClient;
-	private int         cntUnknownIds;
+	private AtomicInteger cntUnknownIds;
 	private Boolean     switchFlag;
+	private int         threads;
+	private int         batchSize;
+	private int         buckets;
+	private String      checkpointFile;
+	private String      candidateFile;
+	private Map<String, String> identifiers;
+
+	private BufferedWriter checkpointWriter;
+	private long        startTime;
+	private AtomicInteger totalGraphs;
+	private AtomicLong  totalRecords;
+	private AtomicLong  totalSkipped;
+
+	public static final int DEFAULT_THREADS    = 4;
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	private static final int DUPLICATE_KEY_ERROR = 11000;
+
+	/**
+	 * A cloud number, e.g. [=]!:uuid:97ec0032-350f-4ccc-ab99-9ed09c1f994c
+	 */
+	private static final Pattern CLOUD_NUMBER = Pattern.compile("\\[[=@+]\\](![\\w:.\\-]+)+");
 
 	/**
 	 * Constractor for instantiating a <code>MongoDBStoreCombineUtil</code> for
@@ -73,8 +122,65 @@ public class MongoDBStoreCombineUtil
 		this.dryRun  = dryRun;
 		this.srcClient = null;
 		this.dstClient = null;
-		this.cntUnknownIds = 0;
+		this.cntUnknownIds = new AtomicInteger();
 		this.switchFlag = Boolean.FALSE;
+		this.threads = DEFAULT_THREADS;
+		this.batchSize = DEFAULT_BATCH_SIZE;
+		this.buckets = 0;
+		this.checkpointFile = null;
+		this.candidateFile = null;
+		this.identifiers = new HashMap<String, String>();
+		this.totalGraphs = new AtomicInteger();
+		this.totalRecords = new AtomicLong();
+		this.totalSkipped = new AtomicLong();
+	}
+
+	/**
+	 * Sets the number of databases copied in parallel.
+	 *
+	 * @param threads the number of worker threads.
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Sets the number of records inserted with one bulk operation.
+	 *
+	 * @param batchSize the number of records per batch.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Sets the number of bucket collections the graphs are spread over in the target,
+	 * as with the bucketCount of <code>MongoDBJSONGraphFactory</code>.
+	 *
+	 * @param buckets the number of buckets, or 0 for a single collection.
+	 */
+	public void setBuckets(int buckets) {
+		this.buckets = Math.max(0, buckets);
+	}
+
+	/**
+	 * Sets the file that records which databases have been copied completely,
+	 * so that an interrupted run can be resumed.
+	 *
+	 * @param checkpointFile the path of the checkpoint file, or null for none.
+	 */
+	public void setCheckpointFile(String checkpointFile) {
+		this.checkpointFile = checkpointFile;
+	}
+
+	/**
+	 * Sets a file with XDI2 graph identifiers in plaintext, one per line, that are
+	 * added to the identifier table before copying.
+	 *
+	 * @param candidateFile the path of the candidate file, or null for none.
+	 */
+	public void setCandidateFile(String candidateFile) {
+		this.candidateFile = candidateFile;
 	}
 
 	/**
@@ -137,6 +243,23 @@ public class MongoDBStoreCombineUtil
 		return true;
 	}
 
+	/**
+	 * Initializes with existing MongoDB connections, e.g. to an in-memory stand-in.
+	 * The connections are closed by <code>finish()</code>.
+	 *
+	 * @param srcClient the <code>MongoClient</code> of the source MongoDB instance.
+	 * @param dstClient the <code>MongoClient</code> of the target MongoDB instance.
+	 * @return a boolean flag indicating if the operation is successful
+	 */
+	public boolean init(MongoClient srcClient, MongoClient dstClient) {
+		this.srcClient = srcClient;
+		this.dstClient = dstClient;
+		if( (this.srcClient == null) || (this.dstClient == null)) {
+			return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Closes MongoDB connections if needed.
 	 */
@@ -202,107 +325,527 @@ public class MongoDBStoreCombineUtil
 				break;
 			}
 		}
-		if (rtn == null) {
-			for (String id : xdi2_special_ids) {
-				if (db.equals(this.hashIdentifier(id))) {
-					rtn = id;
-					break;
+		return rtn;
+	}
+
+	/**
+	 * Adds an XDI2 graph identifier to the identifier table.
+	 *
+	 * @param identifier the XDI2 graph identifier in plaintext.
+	 */
+	private void addIdentifier(String identifier) {
+		String hash = this.hashIdentifier(identifier);
+		if (hash != null) {
+			this.identifiers.put(hash, identifier);
+		}
+	}
+
+	/**
+	 * Builds the table from hashed database names to XDI2 graph identifiers, so that
+	 * most source databases can be resolved without hashing any candidates.
+	 * The table contains the special identifiers, the identifiers in the candidate file,
+	 * and the cloud numbers found in the contexts of the registry graphs.
+	 *
+	 * @param dbs the names of the source databases.
+	 * @return the number of identifiers in the table.
+	 */
+	public int buildIdentifierTable(Collection<String> dbs) {
+		for (String id : xdi2_special_ids) {
+			this.addIdentifier(id);
+		}
+		if (this.candidateFile != null) {
+			for (String id : readLines(this.candidateFile)) {
+				this.addIdentifier(id);
+			}
+		}
+		for (String id : xdi2_special_ids) {
+			String db = this.hashIdentifier(id);
+			if (db == null || ! dbs.contains(db)) {
+				continue;
+			}
+			DBCollection src = this.srcClient.getDB(db).getCollection(MongoDBJSONStore.XDI2_DBCOLLECTION);
+			DBCursor cursor = src.find(new BasicDBObject(), new BasicDBObject("_id", Integer.valueOf(1))).batchSize(this.batchSize);
+			try {
+				while (cursor.hasNext()) {
+					Object key = cursor.next().get("_id");
+					if (! (key instanceof String)) {
+						continue;
+					}
+					Matcher matcher = CLOUD_NUMBER.matcher((String) key);
+					while (matcher.find()) {
+						this.addIdentifier("(" + matcher.group() + ")");
+					}
 				}
+			} finally {
+				cursor.close();
 			}
 		}
-		return rtn;
+		return this.identifiers.size();
+	}
+
+	/**
+	 * Finds the XDI2 graph identifier of an existing XDI2 graph, first in the identifier
+	 * table, then by looking only at the objects that can hold it.
+	 *
+	 * @param db the MongoDB database name of the existing XDI2 graph.
+	 * @param src the <code>DBCollection</code> object for the existing MongoDB database for the XDI2 graph.
+	 * @return the XDI2 graph identifier in plaintext, or null if not found.
+	 */
+	private String findIdentifier(String db, DBCollection src) {
+		String known = this.identifiers.get(db);
+		if (known != null) {
+			return known;
+		}
+		BasicDBList keys = new BasicDBList();
+		keys.add("[=]");
+		keys.add(Boolean.TRUE.equals(this.getSwitchFlag()) ? "[+]" : "[@]");
+		DBCursor cursor = src.find(new BasicDBObject("_id", new BasicDBObject("$in", keys)));
+		try {
+			while (cursor.hasNext()) {
+				String identifier = getIdentifier(db, cursor.next());
+				if (identifier != null) {
+					return identifier;
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		return null;
 	}
 
 	/**
 	 * Copies an XDI2 graph from the existing MongoDB into the new one.
+	 * The objects are streamed from the source and inserted in unordered batches.
+	 * Objects that already exist in the target, e.g. when resuming an interrupted run,
+	 * are skipped.
 	 *
 	 * @param db the MongoDB database name of the existing XDI2 graph.
 	 * @param src the <code>DBCollection</code> object for the existing MongoDB database for the XDI2 graph.
 	 * @param dst the <code>DBCollection</code> object for new MongoDB database.
-	 * @return number of records copied.
+	 * @return the result of copying the graph.
 	 */
-	private int copy(String db, DBCollection src, DBCollection dst) {
-		int rtn = 0;
-		DBCursor cursor = src.find();
+	private CopyResult copy(String db, DBCollection src, DBCollection dst) {
+		CopyResult rtn = new CopyResult();
+		rtn.identifier = findIdentifier(db, src);
+		if (rtn.identifier == null) {
+			this.cntUnknownIds.incrementAndGet();
+		}
+		if (Boolean.TRUE.equals(this.dryRun)) {
+			rtn.records = src.count();
+			return rtn;
+		}
+		String identifier = rtn.identifier;
+		if (Boolean.TRUE.equals(this.useHash)) {
+			identifier = db;
+		}
+		if (identifier == null) {
+			return rtn;
+		}
+		dst = this.getBucket(dst, identifier);
+		DBCursor cursor = src.find().batchSize(this.batchSize);
 		try {
-			List<DBObject> list = new ArrayList<DBObject>();
-			String identifier = null;
+			List<DBObject> batch = new ArrayList<DBObject>(this.batchSize);
 			while (cursor.hasNext()) {
 				DBObject obj = cursor.next();
-				list.add(obj);
-				if (identifier == null) {
-					identifier = getIdentifier(db, obj);
-					if( identifier != null ) {
-						System.out.print("id " + identifier + " ");
-					}
+				Object key = obj.get("_id");
+				obj.removeField("_id");
+				obj.put(MongoDBJSONStore.XDI2_OBJ_KEY, key);
+				obj.put(MongoDBJSONStore.XDI2_OBJ_ID , identifier);
+				batch.add(obj);
+				if (batch.size() >= this.batchSize) {
+					insert(dst, batch, rtn);
 				}
 			}
-			if (identifier == null) {
-				this.cntUnknownIds++;
-			}
-			if (Boolean.FALSE.equals(this.dryRun)) {
-				if (Boolean.TRUE.equals(this.useHash)) {
-					identifier = db;
-				}
-				if (identifier == null) {
-					System.out.print("id NULL ");
-				} else {
-					for (DBObject obj : list) {
-						Object key = obj.get("_id");
-						obj.removeField("_id");
-						obj.put(MongoDBJSONStore.XDI2_OBJ_KEY, key);
-						obj.put(MongoDBJSONStore.XDI2_OBJ_ID , identifier);
-						dst.insert(obj);
-						rtn++;
-					}
-				}
-			} else {
-				rtn = list.size();
-			}
-			list.clear();
-		} catch (Exception e) {
-			e.printStackTrace();
+			insert(dst, batch, rtn);
 		} finally {
 			cursor.close();
 		}
-	
 		return rtn;
 	}
 
 	/**
-	 * Copies all XDI2 graphs from the existing MongoDB databases into the new one.
+	 * Gets the collection an XDI2 graph is copied into.
+	 *
+	 * @param dst the <code>DBCollection</code> object for the single collection in the new MongoDB database.
+	 * @param identifier the XDI2 graph identifier used in the new MongoDB database.
+	 * @return the bucket collection of the graph, or the single collection if there are no buckets.
+	 */
+	private DBCollection getBucket(DBCollection dst, String identifier) {
+		if (this.buckets <= 1) {
+			return dst;
+		}
+		return dst.getDB().getCollection(MongoDBJSONStore.getBucketCollectionName(identifier, this.buckets));
+	}
+
+	/**
+	 * Makes sure the target collections exist with their index.
+	 *
+	 * @param dst the <code>DBCollection</code> object for the single collection in the new MongoDB database.
+	 */
+	private void ensureIndexes(DBCollection dst) {
+		if (this.buckets <= 1) {
+			MongoDBJSONStore.ensureIndex(dst);
+			return;
+		}
+		for (int i = 0; i < this.buckets; i++) {
+			MongoDBJSONStore.ensureIndex(dst.getDB().getCollection(MongoDBJSONStore.getBucketCollectionName(i)));
+		}
+	}
+
+	/**
+	 * Counts the objects in the target collections.
+	 *
+	 * @param dst the <code>DBCollection</code> object for the single collection in the new MongoDB database.
+	 */
+	private long countTarget(DBCollection dst) {
+		if (this.buckets <= 1) {
+			return dst.getCount();
+		}
+		long rtn = 0;
+		for (int i = 0; i < this.buckets; i++) {
+			rtn += dst.getDB().getCollection(MongoDBJSONStore.getBucketCollectionName(i)).getCount();
+		}
+		return rtn;
+	}
+
+	/**
+	 * Inserts a batch of objects with one unordered bulk operation, and clears the batch.
 	 *
-	 * @return number of XDI2 graph copied.
+	 * @param dst the <code>DBCollection</code> object for new MongoDB database.
+	 * @param batch the objects to insert.
+	 * @param result the result to count the inserted and skipped objects in.
+	 */
+	private void insert(DBCollection dst, List<DBObject> batch, CopyResult result) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		BulkWriteOperation bulk = dst.initializeUnorderedBulkOperation();
+		for (DBObject obj : batch) {
+			bulk.insert(obj);
+		}
+		try {
+			bulk.execute();
+			result.records += batch.size();
+		} catch (BulkWriteException e) {
+			int duplicates = 0;
+			for (BulkWriteError error : e.getWriteErrors()) {
+				if (error.getCode() != DUPLICATE_KEY_ERROR) {
+					throw e;
+				}
+				duplicates++;
+			}
+			result.records += batch.size() - duplicates;
+			result.skipped += duplicates;
+		}
+		batch.clear();
+	}
+
+	/**
+	 * Copies all XDI2 graphs from the existing MongoDB databases into the new one,
+	 * using a pool of worker threads. Databases listed in the checkpoint file are skipped,
+	 * and every database that has been copied completely is added to it.
 	 */
 	public void copy() {
-		int totalGraphs  = 0;
-		int totalRecords = 0;
 		DBCollection dst = this.dstClient.getDB(MongoDBJSONStore.XDI2_DBNAME).getCollection(MongoDBJSONStore.XDI2_DBCOLLECTION);
-		BasicDBObject idx = new BasicDBObject();
-		idx.put(MongoDBJSONStore.XDI2_OBJ_KEY, Integer.valueOf(1));
-		idx.put(MongoDBJSONStore.XDI2_OBJ_ID , Integer.valueOf(1));
-		dst.ensureIndex(idx, MongoDBJSONStore.XDI2_OBJ_INDEX, true);
-		long dstCount = dst.getCount();
+		this.ensureIndexes(dst);
+		long dstCount = this.countTarget(dst);
 		System.out.println("Old Records in Target: " + dstCount);
 
 		int dbNameLength = this.hashIdentifier("([=]!:uuid:97ec0032-350f-4ccc-ab99-9ed09c1f994c)]").length();
 
+		List<String> dbs = new ArrayList<String>();
 		List<String> list = this.srcClient.getDatabaseNames();
 		if (list != null) {
 			for (String db : list) {
-				if (db.length() != dbNameLength) {
+				if (db.length() == dbNameLength) {
+					dbs.add(db);
+				}
+			}
+		}
+
+		System.out.println("Identifier Table: " + this.buildIdentifierTable(new HashSet<String>(dbs)) + " identifiers");
+
+		Set<String> done = readCheckpoint();
+		if (! done.isEmpty()) {
+			System.out.println("Resuming: " + done.size() + " graphs already copied according to " + this.checkpointFile);
+		}
+
+		this.startTime = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final String db : dbs) {
+			if (done.contains(db)) {
+				continue;
+			}
+			final DBCollection src = this.srcClient.getDB(db).getCollection(MongoDBJSONStore.XDI2_DBCOLLECTION);
+			final DBCollection target = dst;
+			final int total = dbs.size() - done.size();
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					copyGraph(db, src, target, total);
+				}
+			}));
+		}
+		executor.shutdown();
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		closeCheckpoint();
+
+		System.out.println("Total Graphs: " + this.totalGraphs.get() + " Total Records: " + this.totalRecords.get() + " Skipped Existing Records: " + this.totalSkipped.get() + " " + throughput());
+		System.out.println("Unknown Identifiers: " + this.cntUnknownIds.get() + " New Records in Target: " + (this.countTarget(dst) - dstCount));
+	}
+
+	/**
+	 * Splits the single collection of the existing MongoDB into the bucket collections of the
+	 * new one, which may be the same MongoDB. The objects are read once and inserted in unordered
+	 * batches per bucket, keeping their _id, so an interrupted run can simply be repeated.
+	 * Objects in the compact format only carry the number of their graph, which is resolved
+	 * through the graph numbers of the existing MongoDB; the dictionary and graph numbers are
+	 * copied along. The run fails if a graph number is unknown or conflicts with the target.
+	 */
+	public void copyShared() {
+		if (this.buckets <= 1) {
+			System.out.println("Splitting a single collection needs -buckets");
+			return;
+		}
+		DBCollection src = this.srcClient.getDB(MongoDBJSONStore.XDI2_DBNAME).getCollection(MongoDBJSONStore.XDI2_DBCOLLECTION);
+		DBCollection dst = this.dstClient.getDB(MongoDBJSONStore.XDI2_DBNAME).getCollection(MongoDBJSONStore.XDI2_DBCOLLECTION);
+		this.ensureIndexes(dst);
+		long dstCount = this.countTarget(dst);
+		System.out.println("Old Records in Target: " + dstCount);
+
+		this.startTime = System.currentTimeMillis();
+		Map<Integer, String> graphIdentifiers = MongoDBCompactSchema.getGraphIdentifiers(src.getDB());
+		if (Boolean.FALSE.equals(this.dryRun)) {
+			this.copySchema(src.getDB(), dst.getDB());
+		}
+		CopyResult result = new CopyResult();
+		long compact = 0;
+		Map<String, List<DBObject>> batches = new HashMap<String, List<DBObject>>();
+		DBCursor cursor = src.find().batchSize(this.batchSize);
+		try {
+			while (cursor.hasNext()) {
+				DBObject obj = cursor.next();
+				Object id = obj.get(MongoDBJSONStore.XDI2_OBJ_ID);
+				String identifier;
+				if (id instanceof Number) {
+					identifier = graphIdentifiers.get(Integer.valueOf(((Number) id).intValue()));
+					if (identifier == null) {
+						throw new IllegalStateException("Unknown graph number " + id + " of object " + obj.get("_id"));
+					}
+					compact++;
+				} else if (id instanceof String) {
+					identifier = (String) id;
+				} else {
+					throw new IllegalStateException("No graph identifier in object " + obj.get("_id"));
+				}
+				if (Boolean.TRUE.equals(this.dryRun)) {
+					result.records++;
 					continue;
 				}
-				DBCollection src = this.srcClient.getDB(db).getCollection(MongoDBJSONStore.XDI2_DBCOLLECTION);
-				System.out.print("Move graph " + totalGraphs + " " + db + " ... ");
-				int n = this.copy(db, src, dst);
-				totalGraphs++;
-				totalRecords += n;
-				System.out.println("done. " + n + " records copied.");
+				DBCollection bucket = this.getBucket(dst, identifier);
+				List<DBObject> batch = batches.get(bucket.getName());
+				if (batch == null) {
+					batch = new ArrayList<DBObject>(this.batchSize);
+					batches.put(bucket.getName(), batch);
+				}
+				batch.add(obj);
+				if (batch.size() >= this.batchSize) {
+					insert(bucket, batch, result);
+				}
+			}
+			for (Map.Entry<String, List<DBObject>> entry : batches.entrySet()) {
+				insert(dst.getDB().getCollection(entry.getKey()), entry.getValue(), result);
+			}
+		} finally {
+			cursor.close();
+		}
+		this.totalRecords.set(result.records);
+		this.totalSkipped.set(result.skipped);
+
+		System.out.println("Total Records: " + result.records + " Skipped Existing Records: " + result.skipped + " Compact Records: " + compact + " " + throughput());
+		System.out.println("New Records in Target: " + (this.countTarget(dst) - dstCount));
+	}
+
+	/**
+	 * Copies the dictionary and graph numbers of the compact format, keeping existing entries of the
+	 * target, and raises its counters so no code or number is handed out twice.
+	 *
+	 * @param src the XDI2 database of the existing MongoDB.
+	 * @param dst the XDI2 database of the new MongoDB.
+	 * @throws IllegalStateException if the target maps a code or number differently.
+	 */
+	private void copySchema(DB src, DB dst) {
+		String[] names = new String[] { MongoDBCompactSchema.DICTIONARY_COLLECTION, MongoDBCompactSchema.GRAPHS_COLLECTION };
+		for (String name : names) {
+			DBCollection from = src.getCollection(name);
+			DBCollection to = dst.getCollection(name);
+			CopyResult result = new CopyResult();
+			List<DBObject> batch = new ArrayList<DBObject>(this.batchSize);
+			DBCursor cursor = from.find().batchSize(this.batchSize);
+			try {
+				while (cursor.hasNext()) {
+					DBObject obj = cursor.next();
+					DBObject existing = to.findOne(new BasicDBObject("_id", obj.get("_id")));
+					if (existing != null) {
+						if (! existing.equals(obj)) {
+							throw new IllegalStateException("Entry " + obj.get("_id") + " of " + name + " differs in the target: " + existing + " instead of " + obj);
+						}
+						continue;
+					}
+					batch.add(obj);
+					if (batch.size() >= this.batchSize) {
+						insert(to, batch, result);
+					}
+				}
+				insert(to, batch, result);
+			} finally {
+				cursor.close();
 			}
+			System.out.println("Copied " + result.records + " entries of " + name);
+		}
+		DBCollection counters = dst.getCollection(MongoDBCompactSchema.COUNTERS_COLLECTION);
+		DBCursor cursor = src.getCollection(MongoDBCompactSchema.COUNTERS_COLLECTION).find();
+		try {
+			while (cursor.hasNext()) {
+				DBObject counter = cursor.next();
+				counters.update(new BasicDBObject("_id", counter.get("_id")), new BasicDBObject("$max", new BasicDBObject("seq", counter.get("seq"))), true, false);
+			}
+		} finally {
+			cursor.close();
 		}
-		System.out.println("Total Graphs: " + totalGraphs + " Total Records: " + totalRecords);
-		System.out.println("Unknown Identifiers: " + this.cntUnknownIds + " New Records in Target: " + (dst.getCount() - dstCount));
+	}
+
+	/**
+	 * Copies one XDI2 graph and reports the progress. Runs on a worker thread.
+	 */
+	private void copyGraph(String db, DBCollection src, DBCollection dst, int total) {
+		try {
+			CopyResult result = this.copy(db, src, dst);
+			int n = this.totalGraphs.incrementAndGet();
+			this.totalRecords.addAndGet(result.records);
+			this.totalSkipped.addAndGet(result.skipped);
+			String id = result.identifier == null ? "NULL" : result.identifier;
+			System.out.println("Move graph " + n + "/" + total + " " + db + " id " + id + " ... done. " + result.records + " records copied, " + result.skipped + " skipped. " + throughput());
+			if (Boolean.FALSE.equals(this.dryRun) && (result.identifier != null || Boolean.TRUE.equals(this.useHash))) {
+				writeCheckpoint(db);
+			}
+		} catch (Exception e) {
+			System.out.println("Move graph " + db + " failed: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Gets the number of XDI2 graphs copied so far.
+	 */
+	public int getTotalGraphs() {
+		return this.totalGraphs.get();
+	}
+
+	/**
+	 * Gets the number of records inserted so far.
+	 */
+	public long getTotalRecords() {
+		return this.totalRecords.get();
+	}
+
+	/**
+	 * Gets the number of records skipped so far because they already existed in the target.
+	 */
+	public long getTotalSkipped() {
+		return this.totalSkipped.get();
+	}
+
+	private String throughput() {
+		long millis = Math.max(1, System.currentTimeMillis() - this.startTime);
+		return String.format("[%.1f graphs/s, %.1f records/s]", this.totalGraphs.get() * 1000.0 / millis, this.totalRecords.get() * 1000.0 / millis);
+	}
+
+	/**
+	 * Reads the names of the databases that have already been copied.
+	 *
+	 * @return the database names in the checkpoint file, or an empty set if there is none.
+	 */
+	private Set<String> readCheckpoint() {
+		if (this.checkpointFile == null) {
+			return new HashSet<String>();
+		}
+		return new HashSet<String>(readLines(this.checkpointFile));
+	}
+
+	/**
+	 * Reads the non-empty lines of a file.
+	 *
+	 * @param file the path of the file.
+	 * @return the trimmed lines, or an empty list if the file does not exist.
+	 */
+	private static List<String> readLines(String file) {
+		List<String> rtn = new ArrayList<String>();
+		if (! new File(file).exists()) {
+			return rtn;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().length() > 0) {
+					rtn.add(line.trim());
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		return rtn;
+	}
+
+	/**
+	 * Appends a database name to the checkpoint file.
+	 */
+	private synchronized void writeCheckpoint(String db) throws IOException {
+		if (this.checkpointFile == null) {
+			return;
+		}
+		if (this.checkpointWriter == null) {
+			this.checkpointWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.checkpointFile, true), "UTF-8"));
+		}
+		this.checkpointWriter.write(db);
+		this.checkpointWriter.newLine();
+		this.checkpointWriter.flush();
+	}
+
+	private synchronized void closeCheckpoint() {
+		if (this.checkpointWriter != null) {
+			try {
+				this.checkpointWriter.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			this.checkpointWriter = null;
+		}
+	}
+
+	/**
+	 * The result of copying one XDI2 graph.
+	 */
+	private static class CopyResult {
+		private String identifier;
+		private long   records;
+		private long   skipped;
 	}
 
 	/**
@@ -310,11 +853,17 @@ public class MongoDBStoreCombineUtil
 	 */
 	private static void usage() {
 		String name = MongoDBStoreCombineUtil.class.getName();
-		System.out.println("Usage: java " + name + " [-sid specialid]* [-hash|-nohash] [-switch] [-test|-copy] -src sourcedb[:port] -dst targetdb[:port]");
+		System.out.println("Usage: java " + name + " [-sid specialid]* [-hash|-nohash] [-switch] [-test|-copy] [-threads n] [-batch n] [-checkpoint file] [-candidates file] [-buckets n [-shared]] -src sourcedb[:port] -dst targetdb[:port]");
 		System.out.println("");
 		System.out.println("Default: -nohash  does not use hashed values of graph identifiers in the target database"); 
 		System.out.println("         -switch  use [+] instead of [@] for business names");
 		System.out.println("         -test    does not perform actual insert operations in the target database");
+		System.out.println("         -threads " + DEFAULT_THREADS + " databases copied in parallel");
+		System.out.println("         -batch   " + DEFAULT_BATCH_SIZE + " records inserted per bulk operation");
+		System.out.println("         -checkpoint  file recording copied databases, to resume an interrupted run");
+		System.out.println("         -candidates  file with graph identifiers, one per line, to resolve hashed database names");
+		System.out.println("         -buckets n   spread the graphs over n bucket collections in the target database");
+		System.out.println("         -shared      split the single collection of the source database into the buckets");
 		System.exit(1);
 	}
 
@@ -326,6 +875,12 @@ public class MongoDBStoreCombineUtil
 		String  dstHost = null;
 		Integer dstPort = null;
 		Boolean switchC = null;
+		Integer threads = null;
+		Integer batch   = null;
+		String  checkpoint = null;
+		String  candidates = null;
+		Integer buckets = null;
+		boolean shared  = false;
 		int     i;
 		for (i = 0; i < args.length; i++) {
 			if ("-nohash".equals(args[i])) {
@@ -340,6 +895,18 @@ public class MongoDBStoreCombineUtil
 				dryRun = Boolean.TRUE;
 			} else if ("-sid".equals(args[i]) && ((i + 1) < args.length)) {
 				MongoDBStoreCombineUtil.addSpecialId(args[++i]);
+			} else if ("-threads".equals(args[i]) && ((i + 1) < args.length)) {
+				threads = Integer.valueOf(args[++i]);
+			} else if ("-batch".equals(args[i]) && ((i + 1) < args.length)) {
+				batch = Integer.valueOf(args[++i]);
+			} else if ("-checkpoint".equals(args[i]) && ((i + 1) < args.length)) {
+				checkpoint = args[++i];
+			} else if ("-candidates".equals(args[i]) && ((i + 1) < args.length)) {
+				candidates = args[++i];
+			} else if ("-buckets".equals(args[i]) && ((i + 1) < args.length)) {
+				buckets = Integer.valueOf(args[++i]);
+			} else if ("-shared".equals(args[i])) {
+				shared = true;
 			} else if ("-src".equals(args[i]) && ((i + 1) < args.length)) {
 				srcHost = args[++i];
 			} else if ("-dst".equals(args[i]) && ((i + 1) < args.length)) {
@@ -369,15 +936,31 @@ public class MongoDBStoreCombineUtil
 		}
 		MongoDBStoreCombineUtil util = new MongoDBStoreCombineUtil(srcHost, srcPort, dstHost, dstPort, useHash, dryRun);
 		util.setSwitchFlag(switchC);
+		if (threads != null) {
+			util.setThreads(threads.intValue());
+		}
+		if (batch != null) {
+			util.setBatchSize(batch.intValue());
+		}
+		util.setCheckpointFile(checkpoint);
+		util.setCandidateFile(candidates);
+		if (buckets != null) {
+			util.setBuckets(buckets.intValue());
+		}
 		try {
 			if (util.init()) {
-				util.copy();
+				if (shared) {
+					util.copyShared();
+				} else {
+					util.copy();
+				}
 			}
-			util.finish();
 		} catch (Exception ex) {
 			ex.printStackTrace();
+			util.finish();
 			System.exit(1);
 		}
+		util.finish();
 		System.exit(0);
 	}
 }
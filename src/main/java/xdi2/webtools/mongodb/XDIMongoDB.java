@@ -6,8 +6,10 @@ import java.io.InputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -23,7 +25,11 @@ import xdi2.client.XDIClient;
 import xdi2.client.exceptions.Xdi2ClientException;
 import xdi2.client.impl.http.XDIHttpClient;
 import xdi2.core.Graph;
-import xdi2.core.impl.json.JSONGraph;
+import xdi2.core.impl.json.mongodb.MongoDBHistogramMetrics;
+import xdi2.core.impl.json.mongodb.MongoDBOperation;
+import xdi2.core.impl.json.mongodb.MongoDBOperationTracer;
+import xdi2.core.impl.json.mongodb.MongoDBSlowOperation;
+import xdi2.core.impl.json.mongodb.MongoDBSlowOperationDetector;
 import xdi2.core.impl.memory.MemoryGraphFactory;
 import xdi2.core.io.XDIReader;
 import xdi2.core.io.XDIReaderRegistry;
@@ -39,6 +45,9 @@ public class XDIMongoDB extends HttpServlet implements HttpRequestHandler {
 
 	private static final Logger log = LoggerFactory.getLogger(XDIMongoDB.class);
 
+	private static final Set<MongoDBOperation> LOADS = EnumSet.of(MongoDBOperation.LOAD, MongoDBOperation.LOAD_WITH_PREFIX);
+	private static final Set<MongoDBOperation> WRITES = EnumSet.complementOf(EnumSet.of(MongoDBOperation.LOAD, MongoDBOperation.LOAD_WITH_PREFIX));
+
 	private static MemoryGraphFactory graphFactory;
 	private static List<String> sampleInputs;
 	private static String sampleEndpoint;
@@ -126,6 +135,7 @@ public class XDIMongoDB extends HttpServlet implements HttpRequestHandler {
 		String output = "";
 		String stats = "-1";
 		String mongoDBApiLog = "";
+		String slowOperations = "";
 		String error = null;
 
 		Properties xdiResultWriterParameters = new Properties();
@@ -140,14 +150,17 @@ public class XDIMongoDB extends HttpServlet implements HttpRequestHandler {
 		MessageEnvelope messageEnvelope = null;
 		MessagingResponse messagingResponse = null;
 
-		long start = System.currentTimeMillis();
+		MongoDBHistogramMetrics metrics = MongoDBHistogramMetrics.getInstance();
 
-		try {
+		MongoDBSlowOperationDetector slowOperationDetector = MongoDBSlowOperationDetector.getInstance();
+		long detectedBefore = slowOperationDetector.getDetected();
 
-			// reset MongoDB logs
+		MongoDBOperationTracer operationTracer = MongoDBOperationTracer.getInstance();
+		long sequenceBefore = operationTracer.getSequence();
 
-			((JSONGraph) this.getGraph()).setLogEnabled(true);
-			((JSONGraph) this.getGraph()).resetLogBuffer();
+		long start = System.currentTimeMillis();
+
+		try {
 
 			// parse the message envelope
 
@@ -191,13 +204,28 @@ public class XDIMongoDB extends HttpServlet implements HttpRequestHandler {
 
 		long stop = System.currentTimeMillis();
 
+		// count the operations traced while this request ran, instead of all operations of the process
+
+		long traced = operationTracer.getSequence() - sequenceBefore;
+
 		stats = "";
 		stats += Long.toString(stop - start) + " ms time. ";
-		stats += Integer.toString(count(((JSONGraph) this.getGraph()).getLogBuffer().toString(), "cache HIT")) + " load operations from cache. ";
-		stats += Integer.toString(count(((JSONGraph) this.getGraph()).getLogBuffer().toString(), "cache MISS")) + " load operations from store. ";
-		stats += Integer.toString(count(((JSONGraph) this.getGraph()).getLogBuffer().toString(), "\n") - count(((JSONGraph) this.getGraph()).getLogBuffer().toString(), "cache")) + " write operations to store. ";
-
-		mongoDBApiLog = StringEscapeUtils.escapeHtml(((JSONGraph) this.getGraph()).getLogBuffer().toString());
+		stats += Long.toString(operationTracer.count(sequenceBefore, LOADS, Boolean.TRUE)) + " load operations from cache. ";
+		stats += Long.toString(operationTracer.count(sequenceBefore, LOADS, Boolean.FALSE)) + " load operations from store. ";
+		stats += Long.toString(operationTracer.count(sequenceBefore, WRITES, null)) + " write operations to store. ";
+		if (operationTracer.getSampleInterval() > 1) stats += "(1 in " + operationTracer.getSampleInterval() + " operations traced.) ";
+		if (traced > operationTracer.getCapacity()) stats += "(only the last " + operationTracer.getCapacity() + " of " + traced + " traced operations counted.) ";
+		stats += Long.toString(metrics.getLatencyMicros(MongoDBOperation.LOAD).getValueAtPercentile(99.0)) + " us p99 load latency (process-wide). ";
+		stats += Long.toString(metrics.getLatencyMicros(MongoDBOperation.LOAD_WITH_PREFIX).getValueAtPercentile(99.0)) + " us p99 loadWithPrefix latency (process-wide). ";
+		stats += Long.toString(slowOperationDetector.getDetected() - detectedBefore) + " slow operations (over " + slowOperationDetector.getThresholdMillis() + " ms). ";
+
+		StringBuilder buffer = new StringBuilder();
+		for (MongoDBSlowOperation slowOperation : slowOperationDetector.getSlowOperations()) buffer.append(slowOperation).append("\n");
+		slowOperations = StringEscapeUtils.escapeHtml(buffer.toString());
+
+		StringBuilder traces = new StringBuilder();
+		for (String trace : operationTracer.render(sequenceBefore)) traces.append(trace).append("\n");
+		mongoDBApiLog = StringEscapeUtils.escapeHtml(traces.toString());
 
 		// display results
 
@@ -211,6 +239,7 @@ public class XDIMongoDB extends HttpServlet implements HttpRequestHandler {
 		request.setAttribute("output", output);
 		request.setAttribute("stats", stats);
 		request.setAttribute("mongoDBApiLog", mongoDBApiLog);
+		request.setAttribute("slowOperations", slowOperations);
 		request.setAttribute("error", error);
 
 		request.getRequestDispatcher("/XDIMongoDB.jsp").forward(request, response);
@@ -225,19 +254,4 @@ public class XDIMongoDB extends HttpServlet implements HttpRequestHandler {
 
 		this.graph = graph;
 	}
-
-	private static int count(String string, String subString) {
-
-		int count = 0, pos = 0;
-
-		while (true) {
-
-			pos = string.indexOf(subString, pos + 1);
-			if (pos == -1) break;
-
-			count++;
-		}
-
-		return count;
-	}
 }
@@ -72,6 +72,11 @@
 		<div class="result"><pre><%= request.getAttribute("mongoDBApiLog") %></pre></div><br>
 	<% } %>
 
+	<% if (request.getAttribute("slowOperations") != null && ((String) request.getAttribute("slowOperations")).length() > 0) { %>
+		<p class="subheader">Recent slow operations</p>
+		<div class="result"><pre><%= request.getAttribute("slowOperations") %></pre></div><br>
+	<% } %>
+
 	<% if (request.getAttribute("output") != null) { %>
 		<div class="result"><pre><%= request.getAttribute("output") %></pre></div><br>
 	<% } %>
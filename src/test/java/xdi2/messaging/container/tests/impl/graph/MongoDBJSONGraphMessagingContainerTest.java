@@ -4,25 +4,18 @@ import java.io.IOException;
 
 import xdi2.core.Graph;
 import xdi2.core.impl.json.mongodb.MongoDBJSONGraphFactory;
-import xdi2.core.impl.json.mongodb.MongoDBJSONStore;
 import xdi2.messaging.container.tests.impl.graph.AbstractGraphMessagingContainerTest;
+import xdi2.tests.core.impl.json.mongodb.MongoDBTestSupport;
 
 public class MongoDBJSONGraphMessagingContainerTest extends AbstractGraphMessagingContainerTest {
 
-	private static MongoDBJSONGraphFactory graphFactory = new MongoDBJSONGraphFactory();
-
-	public static final String HOST = "localhost";
-
-	static {
-		graphFactory.setHost(HOST);
-		graphFactory.setMockFlag(Boolean.TRUE);
-	}
+	private static MongoDBJSONGraphFactory graphFactory = MongoDBTestSupport.createGraphFactory();
 
 	@Override
 	protected void setUp() throws Exception {
 
 		super.setUp();
-		MongoDBJSONStore.cleanup(HOST, null, Boolean.TRUE);
+		MongoDBTestSupport.cleanup();
 	}
 
 	@Override
@@ -30,7 +23,7 @@ public class MongoDBJSONGraphMessagingContainerTest extends AbstractGraphMessagi
 
 		super.tearDown();
 
-		MongoDBJSONStore.cleanup(HOST, null, Boolean.TRUE);
+		MongoDBTestSupport.cleanup();
 	}
 
 	@Override
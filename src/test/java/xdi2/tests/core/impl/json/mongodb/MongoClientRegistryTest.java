@@ -0,0 +1,138 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import xdi2.core.impl.json.mongodb.MongoClientRegistry;
+import xdi2.core.impl.json.mongodb.MongoDBJSONGraphFactory;
+
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+
+/**
+ * Checks the reference counts of shared clients. Creating a client does not connect
+ * to the server, so no MongoDB is needed.
+ */
+public class MongoClientRegistryTest extends TestCase {
+
+	private static final long IDLE_TIMEOUT = 100L;
+
+	private long idleTimeout;
+
+	@Override
+	protected void setUp() throws Exception {
+
+		super.setUp();
+
+		this.idleTimeout = MongoClientRegistry.getIdleTimeout();
+		MongoClientRegistry.setIdleTimeout(IDLE_TIMEOUT);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		super.tearDown();
+
+		MongoClientRegistry.setIdleTimeout(this.idleTimeout);
+	}
+
+	public void testShared() throws Exception {
+
+		MongoClient mongoClient = MongoClientRegistry.acquire(new ServerAddress("localhost", 27101), null);
+
+		assertSame(mongoClient, MongoClientRegistry.acquire(new ServerAddress("localhost", 27101), null));
+		assertNotSame(mongoClient, MongoClientRegistry.acquire(new ServerAddress("localhost", 27102), null));
+		assertNotSame(mongoClient, MongoClientRegistry.acquire(Arrays.asList(new ServerAddress("localhost", 27101)), null));
+	}
+
+	public void testReferences() throws Exception {
+
+		ServerAddress serverAddress = new ServerAddress("localhost", 27103);
+
+		MongoClient mongoClient = MongoClientRegistry.acquire(serverAddress, null);
+		MongoClientRegistry.acquire(serverAddress, null);
+		MongoClientRegistry.retain(mongoClient);
+
+		// one reference is left, so the client stays open
+
+		MongoClientRegistry.release(mongoClient);
+		MongoClientRegistry.release(mongoClient);
+		Thread.sleep(3 * IDLE_TIMEOUT);
+
+		assertSame(mongoClient, MongoClientRegistry.acquire(serverAddress, null));
+
+		MongoClientRegistry.release(mongoClient);
+		MongoClientRegistry.release(mongoClient);
+		Thread.sleep(3 * IDLE_TIMEOUT);
+
+		// the client was closed, so a new one is created
+
+		MongoClient newMongoClient = MongoClientRegistry.acquire(serverAddress, null);
+
+		assertNotSame(mongoClient, newMongoClient);
+		assertSame(newMongoClient, MongoClientRegistry.acquire(serverAddress, null));
+	}
+
+	public void testIdleTimeout() throws Exception {
+
+		ServerAddress serverAddress = new ServerAddress("localhost", 27104);
+
+		MongoClient mongoClient = MongoClientRegistry.acquire(serverAddress, null);
+
+		// released and acquired again within the idle timeout, several times
+
+		for (int i = 0; i < 5; i++) {
+
+			MongoClientRegistry.release(mongoClient);
+			Thread.sleep(IDLE_TIMEOUT / 2);
+			assertSame(mongoClient, MongoClientRegistry.acquire(serverAddress, null));
+		}
+
+		// the client is only closed after it was idle for the whole timeout
+
+		MongoClientRegistry.release(mongoClient);
+		Thread.sleep(IDLE_TIMEOUT / 2);
+		assertSame(mongoClient, MongoClientRegistry.acquire(serverAddress, null));
+		MongoClientRegistry.release(mongoClient);
+		Thread.sleep(IDLE_TIMEOUT / 2);
+		assertSame(mongoClient, MongoClientRegistry.acquire(serverAddress, null));
+
+		MongoClientRegistry.release(mongoClient);
+		Thread.sleep(3 * IDLE_TIMEOUT);
+
+		assertNotSame(mongoClient, MongoClientRegistry.acquire(serverAddress, null));
+	}
+
+	public void testPin() throws Exception {
+
+		MongoClient mongoClient = MongoDBJSONGraphFactory.getMongoClient("localhost", Integer.valueOf(27105));
+
+		// clients from getMongoClient() stay open, also if their callers release them
+
+		MongoClientRegistry.release(mongoClient);
+		MongoClientRegistry.release(mongoClient);
+		Thread.sleep(3 * IDLE_TIMEOUT);
+
+		assertSame(mongoClient, MongoDBJSONGraphFactory.getMongoClient("localhost", Integer.valueOf(27105)));
+		assertSame(mongoClient, MongoDBJSONGraphFactory.acquireMongoClient("localhost", Integer.valueOf(27105), null));
+	}
+
+	public void testForeignClient() throws Exception {
+
+		ServerAddress serverAddress = new ServerAddress("localhost", 27106);
+		MongoClient foreignMongoClient = new MongoClient(serverAddress, null);
+
+		MongoClientRegistry.retain(foreignMongoClient);
+		MongoClientRegistry.pin(foreignMongoClient);
+		MongoClientRegistry.release(foreignMongoClient);
+		MongoClientRegistry.release(null);
+
+		// foreign clients are not taken into the registry
+
+		MongoClient mongoClient = MongoClientRegistry.acquire(serverAddress, null);
+
+		assertNotSame(foreignMongoClient, mongoClient);
+
+		foreignMongoClient.close();
+	}
+}
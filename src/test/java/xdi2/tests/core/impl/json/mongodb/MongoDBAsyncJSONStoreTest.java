@@ -0,0 +1,300 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import xdi2.core.impl.json.mongodb.MongoDBAsyncJSONStore;
+import xdi2.core.impl.json.mongodb.MongoDBJSONStore;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Checks the order of asynchronous writes and reads, the batching of loads, and rejected operations.
+ * The store keeps its contexts in memory, so no MongoDB is needed.
+ */
+public class MongoDBAsyncJSONStoreTest extends TestCase {
+
+	private ExecutorService executorService;
+
+	@Override
+	protected void setUp() throws Exception {
+
+		super.setUp();
+
+		this.executorService = Executors.newFixedThreadPool(4);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		super.tearDown();
+
+		this.executorService.shutdownNow();
+	}
+
+	public void testWriteOrder() throws Exception {
+
+		MemoryJSONStore jsonStore = new MemoryJSONStore();
+		MongoDBAsyncJSONStore asyncJSONStore = new MongoDBAsyncJSONStore(jsonStore, this.executorService);
+
+		List<Future<Void>> futures = new ArrayList<Future<Void>> ();
+		for (int i = 0; i < 50; i++) futures.add(asyncJSONStore.saveToObjectAsync("=a", "&", new JsonPrimitive(Integer.valueOf(i))));
+		for (Future<Void> future : futures) future.get(10, TimeUnit.SECONDS);
+
+		assertEquals(50, jsonStore.writes.size());
+		for (int i = 0; i < 50; i++) assertEquals(new JsonPrimitive(Integer.valueOf(i)), jsonStore.writes.get(i));
+
+		assertEquals(new JsonPrimitive(Integer.valueOf(49)), asyncJSONStore.loadAsync("=a").get(10, TimeUnit.SECONDS).get("&"));
+	}
+
+	public void testReadAfterWrite() throws Exception {
+
+		MemoryJSONStore jsonStore = new MemoryJSONStore();
+		jsonStore.writeDelayMillis = 100;
+		MongoDBAsyncJSONStore asyncJSONStore = new MongoDBAsyncJSONStore(jsonStore, this.executorService);
+
+		asyncJSONStore.saveToObjectAsync("=a", "&", new JsonPrimitive("old"));
+		asyncJSONStore.saveToObjectAsync("=a", "&", new JsonPrimitive("new"));
+
+		// the reads do not wait for the writes to finish, but run after them
+
+		Future<JsonObject> load = asyncJSONStore.loadAsync("=a");
+		Future<Map<String, JsonObject>> loadWithPrefix = asyncJSONStore.loadWithPrefixAsync("=a");
+		Future<Map<String, JsonObject>> loadAll = asyncJSONStore.loadAllAsync(Collections.singletonList("=a"));
+
+		assertEquals(new JsonPrimitive("new"), load.get(10, TimeUnit.SECONDS).get("&"));
+		assertEquals(new JsonPrimitive("new"), loadWithPrefix.get(10, TimeUnit.SECONDS).get("=a").get("&"));
+		assertEquals(new JsonPrimitive("new"), loadAll.get(10, TimeUnit.SECONDS).get("=a").get("&"));
+	}
+
+	public void testLoadBatch() throws Exception {
+
+		MemoryJSONStore jsonStore = new MemoryJSONStore();
+		MongoDBAsyncJSONStore asyncJSONStore = new MongoDBAsyncJSONStore(jsonStore, this.executorService);
+
+		asyncJSONStore.saveToObjectAsync("=a", "&", new JsonPrimitive("a"));
+		asyncJSONStore.saveToObjectAsync("=b", "&", new JsonPrimitive("b"));
+
+		// hold back the writes, so the loads behind them wait together
+
+		jsonStore.writeLatch = new CountDownLatch(1);
+		Future<Void> write = asyncJSONStore.saveToObjectAsync("=c", "&", new JsonPrimitive("c"));
+
+		Future<JsonObject> a = asyncJSONStore.loadAsync("=a");
+		Future<JsonObject> b = asyncJSONStore.loadAsync("=b");
+		Future<JsonObject> c = asyncJSONStore.loadAsync("=c");
+		Future<JsonObject> d = asyncJSONStore.loadAsync("=d");
+		Future<JsonObject> otherA = asyncJSONStore.loadAsync("=a");
+
+		assertFalse(a.isDone());
+
+		jsonStore.writeLatch.countDown();
+		write.get(10, TimeUnit.SECONDS);
+
+		assertEquals(new JsonPrimitive("a"), a.get(10, TimeUnit.SECONDS).get("&"));
+		assertEquals(new JsonPrimitive("b"), b.get(10, TimeUnit.SECONDS).get("&"));
+		assertEquals(new JsonPrimitive("c"), c.get(10, TimeUnit.SECONDS).get("&"));
+		assertNull(d.get(10, TimeUnit.SECONDS));
+		assertEquals(new JsonPrimitive("a"), otherA.get(10, TimeUnit.SECONDS).get("&"));
+
+		assertEquals(0, jsonStore.loads.size());
+		assertEquals(1, jsonStore.loadAlls.size());
+		assertEquals(Arrays.asList("=a", "=b", "=c", "=d"), jsonStore.loadAlls.get(0));
+	}
+
+	public void testLoadFailure() throws Exception {
+
+		MemoryJSONStore jsonStore = new MemoryJSONStore();
+		jsonStore.failure = new IOException("down");
+		MongoDBAsyncJSONStore asyncJSONStore = new MongoDBAsyncJSONStore(jsonStore, this.executorService);
+
+		try {
+
+			asyncJSONStore.loadAsync("=a").get(10, TimeUnit.SECONDS);
+			fail("The load should fail");
+		} catch (ExecutionException ex) {
+
+			assertSame(jsonStore.failure, ex.getCause());
+		}
+	}
+
+	public void testRejection() throws Exception {
+
+		RejectingExecutorService rejectingExecutorService = new RejectingExecutorService();
+		MemoryJSONStore jsonStore = new MemoryJSONStore();
+		MongoDBAsyncJSONStore asyncJSONStore = new MongoDBAsyncJSONStore(jsonStore, rejectingExecutorService);
+
+		rejectingExecutorService.rejecting = true;
+
+		Future<Void> write = asyncJSONStore.saveToObjectAsync("=a", "&", new JsonPrimitive("a"));
+		Future<JsonObject> load = asyncJSONStore.loadAsync("=a");
+
+		assertRejected(write);
+		assertRejected(load);
+
+		// later operations still run, and loads do not join the rejected batch
+
+		rejectingExecutorService.rejecting = false;
+
+		assertNull(asyncJSONStore.loadAsync("=a").get(10, TimeUnit.SECONDS));
+
+		asyncJSONStore.saveToObjectAsync("=a", "&", new JsonPrimitive("b")).get(10, TimeUnit.SECONDS);
+
+		assertEquals(new JsonPrimitive("b"), asyncJSONStore.loadAsync("=a").get(10, TimeUnit.SECONDS).get("&"));
+		assertEquals(1, jsonStore.writes.size());
+	}
+
+	private static void assertRejected(Future<?> future) throws Exception {
+
+		try {
+
+			future.get(10, TimeUnit.SECONDS);
+			fail("The operation should be rejected");
+		} catch (ExecutionException ex) {
+
+			assertTrue(ex.getCause() instanceof RejectedExecutionException);
+		}
+	}
+
+	/**
+	 * Keeps the contexts in memory, and records the operations.
+	 */
+	private static class MemoryJSONStore extends MongoDBJSONStore {
+
+		private final Map<String, JsonObject> jsonObjects = new ConcurrentHashMap<String, JsonObject> ();
+		private final List<JsonElement> writes = Collections.synchronizedList(new ArrayList<JsonElement> ());
+		private final List<String> loads = Collections.synchronizedList(new ArrayList<String> ());
+		private final List<List<String>> loadAlls = Collections.synchronizedList(new ArrayList<List<String>> ());
+
+		private volatile long writeDelayMillis = 0;
+		private volatile CountDownLatch writeLatch = null;
+		private volatile IOException failure = null;
+
+		private MemoryJSONStore() {
+
+			super(null, "=memory", Boolean.TRUE, Boolean.TRUE);
+		}
+
+		@Override
+		public void saveToObject(String id, String key, JsonElement jsonElement) throws IOException {
+
+			try {
+
+				if (this.writeLatch != null) this.writeLatch.await();
+				if (this.writeDelayMillis > 0) Thread.sleep(this.writeDelayMillis);
+			} catch (InterruptedException ex) {
+
+				throw new IOException(ex);
+			}
+
+			JsonObject jsonObject = new JsonObject();
+			jsonObject.add(key, jsonElement);
+
+			this.jsonObjects.put(id, jsonObject);
+			this.writes.add(jsonElement);
+		}
+
+		@Override
+		public JsonObject load(String id) throws IOException {
+
+			if (this.failure != null) throw this.failure;
+
+			this.loads.add(id);
+
+			return this.jsonObjects.get(id);
+		}
+
+		@Override
+		public Map<String, JsonObject> loadAll(Collection<String> ids) throws IOException {
+
+			if (this.failure != null) throw this.failure;
+
+			this.loadAlls.add(new ArrayList<String> (ids));
+
+			Map<String, JsonObject> jsonObjects = new HashMap<String, JsonObject> ();
+
+			for (String id : ids) {
+
+				if (this.jsonObjects.containsKey(id)) jsonObjects.put(id, this.jsonObjects.get(id));
+			}
+
+			return jsonObjects;
+		}
+
+		@Override
+		public Map<String, JsonObject> loadWithPrefix(String id) throws IOException {
+
+			Map<String, JsonObject> jsonObjects = new HashMap<String, JsonObject> ();
+
+			for (Map.Entry<String, JsonObject> entry : this.jsonObjects.entrySet()) {
+
+				if (entry.getKey().startsWith(id)) jsonObjects.put(entry.getKey(), entry.getValue());
+			}
+
+			return jsonObjects;
+		}
+	}
+
+	/**
+	 * Runs every task on a new thread, or rejects it.
+	 */
+	private static class RejectingExecutorService extends AbstractExecutorService {
+
+		private volatile boolean rejecting = false;
+
+		@Override
+		public void execute(Runnable command) {
+
+			if (this.rejecting) throw new RejectedExecutionException("rejecting");
+
+			new Thread(command).start();
+		}
+
+		@Override
+		public void shutdown() {
+
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+
+			return Collections.emptyList();
+		}
+
+		@Override
+		public boolean isShutdown() {
+
+			return false;
+		}
+
+		@Override
+		public boolean isTerminated() {
+
+			return false;
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) {
+
+			return true;
+		}
+	}
+}
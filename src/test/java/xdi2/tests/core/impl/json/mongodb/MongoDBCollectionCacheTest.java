@@ -0,0 +1,124 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import junit.framework.TestCase;
+import xdi2.core.impl.json.mongodb.MongoDBCollectionCache;
+import xdi2.core.impl.json.mongodb.MongoDBJSONStore;
+
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+
+public class MongoDBCollectionCacheTest extends TestCase {
+
+	private static final String DB_NAME = "xdi2-collection-cache-test";
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		super.tearDown();
+
+		MongoDBTestSupport.getMockDB().getMongo().dropDatabase(DB_NAME);
+	}
+
+	public void testLeastRecentlyUsed() throws Exception {
+
+		CountingClient mongoClient = new CountingClient();
+		MongoDBCollectionCache collectionCache = new MongoDBCollectionCache(3);
+
+		try {
+
+			collectionCache.getCollection(mongoClient, DB_NAME, "a", false, null);
+			collectionCache.getCollection(mongoClient, DB_NAME, "b", false, null);
+			collectionCache.getCollection(mongoClient, DB_NAME, "c", false, null);
+			collectionCache.getCollection(mongoClient, DB_NAME, "a", false, null);
+
+			assertEquals(3, mongoClient.lookups);
+
+			// b was used least recently, so it makes room for d
+
+			collectionCache.getCollection(mongoClient, DB_NAME, "d", false, null);
+
+			assertEquals(4, mongoClient.lookups);
+			assertEquals(3, collectionCache.size());
+
+			collectionCache.getCollection(mongoClient, DB_NAME, "a", false, null);
+			collectionCache.getCollection(mongoClient, DB_NAME, "c", false, null);
+			collectionCache.getCollection(mongoClient, DB_NAME, "d", false, null);
+
+			assertEquals(4, mongoClient.lookups);
+
+			collectionCache.getCollection(mongoClient, DB_NAME, "b", false, null);
+
+			assertEquals(5, mongoClient.lookups);
+			assertEquals(3, collectionCache.size());
+		} finally {
+
+			mongoClient.close();
+		}
+	}
+
+	public void testIndexOnce() throws Exception {
+
+		CountingClient mongoClient = new CountingClient();
+		CountingClient otherMongoClient = new CountingClient();
+		MongoDBCollectionCache collectionCache = new MongoDBCollectionCache(1);
+
+		try {
+
+			DBCollection dbCollection = collectionCache.getCollection(mongoClient, DB_NAME, MongoDBJSONStore.XDI2_DBCOLLECTION, true, null);
+
+			assertTrue(dbCollection.getIndexInfo().size() > 1);
+
+			// evicted and looked up again, but the indexes are not checked again
+
+			dbCollection.dropIndexes();
+			collectionCache.getCollection(mongoClient, DB_NAME, "other", false, null);
+			collectionCache.getCollection(mongoClient, DB_NAME, MongoDBJSONStore.XDI2_DBCOLLECTION, true, null);
+
+			assertEquals(3, mongoClient.lookups);
+			assertEquals(1, dbCollection.getIndexInfo().size());
+
+			// another client checks them once more
+
+			collectionCache.getCollection(otherMongoClient, DB_NAME, MongoDBJSONStore.XDI2_DBCOLLECTION, true, null);
+
+			assertTrue(dbCollection.getIndexInfo().size() > 1);
+		} finally {
+
+			mongoClient.close();
+			otherMongoClient.close();
+		}
+	}
+
+	/**
+	 * Counts the lookups of databases, and takes them from the client of the mock database.
+	 * It does not connect by itself.
+	 */
+	private static class CountingClient extends MongoClient {
+
+		private int lookups;
+
+		private CountingClient() throws Exception {
+
+			super(new ServerAddress("localhost", 27199), MongoClientOptions.builder().build());
+
+			this.lookups = 0;
+		}
+
+		@Override
+		public DB getDB(String dbName) {
+
+			this.lookups++;
+
+			try {
+
+				return MongoDBTestSupport.getMockDB().getMongo().getDB(dbName);
+			} catch (Exception ex) {
+
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+}
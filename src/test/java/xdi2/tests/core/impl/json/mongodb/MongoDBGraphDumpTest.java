@@ -0,0 +1,81 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+import xdi2.core.Graph;
+import xdi2.core.impl.json.mongodb.MongoDBGraphDump;
+import xdi2.core.impl.json.mongodb.MongoDBJSONGraphFactory;
+import xdi2.core.syntax.XDIStatement;
+
+public class MongoDBGraphDumpTest extends TestCase {
+
+	private static final String[] STATEMENTS = new String[] {
+		"=markus/+friend/=animesh",
+		"=markus/+friend/=drummond",
+		"=markus<#email>/&/\"markus@example.com\"",
+		"=animesh<#name>/&/\"Animesh\""
+	};
+
+	private MongoDBJSONGraphFactory graphFactory;
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+
+		super.setUp();
+
+		MongoDBTestSupport.cleanup();
+
+		this.graphFactory = MongoDBTestSupport.createGraphFactory();
+
+		this.file = File.createTempFile("xdi2-graph-dump", ".gz");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		super.tearDown();
+
+		this.file.delete();
+
+		MongoDBTestSupport.cleanup();
+	}
+
+	public void testBSON() throws Exception {
+
+		this.exportAndImport(MongoDBGraphDump.Format.BSON, this.graphFactory);
+	}
+
+	public void testJSON() throws Exception {
+
+		this.exportAndImport(MongoDBGraphDump.Format.JSON, this.graphFactory);
+	}
+
+	public void testIntoCompactFormat() throws Exception {
+
+		MongoDBJSONGraphFactory compactGraphFactory = MongoDBTestSupport.createGraphFactory();
+		compactGraphFactory.setCompactFlag(Boolean.TRUE);
+
+		this.exportAndImport(MongoDBGraphDump.Format.BSON, compactGraphFactory);
+	}
+
+	private void exportAndImport(MongoDBGraphDump.Format format, MongoDBJSONGraphFactory targetGraphFactory) throws Exception {
+
+		Graph graph = this.graphFactory.openGraph("(=markus)");
+		for (String statement : STATEMENTS) graph.setStatement(XDIStatement.create(statement));
+		graph.close();
+
+		long exported = this.graphFactory.exportGraph("(=markus)", this.file, format);
+		assertTrue(exported > 0);
+
+		// a graph can be imported under another identifier, and importing twice replaces the contexts
+
+		assertEquals(exported, targetGraphFactory.importGraph("(=copy)", this.file, 2));
+		assertEquals(exported, targetGraphFactory.importGraph("(=copy)", this.file, 2));
+
+		Graph copy = targetGraphFactory.openGraph("(=copy)");
+		for (String statement : STATEMENTS) assertTrue(statement, copy.containsStatement(XDIStatement.create(statement)));
+		copy.close();
+	}
+}
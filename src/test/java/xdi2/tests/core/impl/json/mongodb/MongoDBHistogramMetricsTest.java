@@ -0,0 +1,90 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import java.util.Map;
+
+import junit.framework.TestCase;
+import xdi2.core.impl.json.mongodb.MongoDBHistogramMetrics;
+import xdi2.core.impl.json.mongodb.MongoDBOperation;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Checks the counts and distributions of the metrics, and their JMX view.
+ */
+public class MongoDBHistogramMetricsTest extends TestCase {
+
+	public void testRecord() throws Exception {
+
+		MongoDBHistogramMetrics metrics = new MongoDBHistogramMetrics();
+
+		for (int i = 1; i <= 100; i++) metrics.record(MongoDBOperation.LOAD, i * 1000000L, i * 10, 1, false);
+
+		metrics.record(MongoDBOperation.LOAD_WITH_PREFIX, 5000, 300, 3, true);
+		metrics.record(MongoDBOperation.LOAD_WITH_PREFIX, -1, -1, 0, false);
+
+		assertEquals(100, metrics.getCount(MongoDBOperation.LOAD));
+		assertEquals(0, metrics.getFailures(MongoDBOperation.LOAD));
+		assertEquals(100, metrics.getCursorBatches(MongoDBOperation.LOAD));
+
+		assertEquals(2, metrics.getCount(MongoDBOperation.LOAD_WITH_PREFIX));
+		assertEquals(1, metrics.getFailures(MongoDBOperation.LOAD_WITH_PREFIX));
+		assertEquals(3, metrics.getCursorBatches(MongoDBOperation.LOAD_WITH_PREFIX));
+
+		assertEquals(0, metrics.getCount(MongoDBOperation.SAVE));
+
+		// latencies in microseconds, within the precision of two significant digits
+
+		Histogram latencyMicros = metrics.getLatencyMicros(MongoDBOperation.LOAD);
+
+		assertEquals(100, latencyMicros.getTotalCount());
+		assertEquals(99000.0, latencyMicros.getValueAtPercentile(99.0), 1000.0);
+		assertEquals(50000.0, latencyMicros.getValueAtPercentile(50.0), 500.0);
+		assertEquals(100000.0, latencyMicros.getMaxValue(), 1000.0);
+
+		assertEquals(990.0, metrics.getDocumentBytes(MongoDBOperation.LOAD).getValueAtPercentile(99.0), 10.0);
+
+		// negative values are recorded as 0
+
+		assertEquals(0, metrics.getLatencyMicros(MongoDBOperation.LOAD_WITH_PREFIX).getValueAtPercentile(1.0));
+		assertEquals(2, metrics.getDocumentBytes(MongoDBOperation.LOAD_WITH_PREFIX).getTotalCount());
+	}
+
+	public void testCopy() throws Exception {
+
+		MongoDBHistogramMetrics metrics = new MongoDBHistogramMetrics();
+
+		metrics.record(MongoDBOperation.SAVE, 1000, 10, 0, false);
+
+		Histogram latencyMicros = metrics.getLatencyMicros(MongoDBOperation.SAVE);
+
+		metrics.record(MongoDBOperation.SAVE, 1000, 10, 0, false);
+
+		assertEquals(1, latencyMicros.getTotalCount());
+		assertEquals(2, metrics.getLatencyMicros(MongoDBOperation.SAVE).getTotalCount());
+	}
+
+	public void testJMX() throws Exception {
+
+		MongoDBHistogramMetrics metrics = new MongoDBHistogramMetrics();
+
+		metrics.record(MongoDBOperation.DELETE, 2000000, 0, 0, true);
+
+		Map<String, Long> counts = metrics.getCounts();
+
+		assertEquals(MongoDBOperation.values().length, counts.size());
+		assertEquals(Long.valueOf(1), counts.get("DELETE"));
+		assertEquals(Long.valueOf(0), counts.get("LOAD"));
+		assertEquals(Long.valueOf(1), metrics.getFailures().get("DELETE"));
+		assertEquals(2000.0, metrics.getMaxLatencyMicros().get("DELETE").longValue(), 20.0);
+		assertEquals(2000.0, metrics.getP99LatencyMicros().get("DELETE").longValue(), 20.0);
+		assertEquals(MongoDBOperation.values().length, metrics.getMeanLatencyMicros().size());
+
+		// reset starts over
+
+		metrics.reset();
+
+		assertEquals(Long.valueOf(0), metrics.getCounts().get("DELETE"));
+		assertEquals(Long.valueOf(0), metrics.getFailures().get("DELETE"));
+		assertEquals(0, metrics.getLatencyMicros(MongoDBOperation.DELETE).getTotalCount());
+	}
+}
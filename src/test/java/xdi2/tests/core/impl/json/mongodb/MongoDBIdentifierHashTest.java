@@ -0,0 +1,52 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import xdi2.core.impl.json.mongodb.MongoDBJSONGraphFactory;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Checks that hashed identifiers stay the same as the database names of existing graphs.
+ */
+public class MongoDBIdentifierHashTest extends TestCase {
+
+	private static final int RUNS = 2000;
+
+	private static final String CHARS = "abcXYZ019 +=@$!*()[]{}<>&#:.-_/\\\"'\t\n\u00e4\u20ac\ud83d\ude00\ud800";
+
+	public void testKnownHashes() throws Exception {
+
+		assertEquals("9T29NgZSKxKmFA8hFyC3RrvVU9sI9o1Sv8soiJGLhZc=", MongoDBJSONGraphFactory.hashIdentifier("([=]!:uuid:97ec0032-350f-4ccc-ab99-9ed09c1f994c)"));
+		assertEquals("haruF2soKuG9ZJ0MovYsQcoxv9BWblTiQSAsJBH7OZ0=", MongoDBJSONGraphFactory.hashIdentifier("REGISTRY"));
+	}
+
+	public void testRandomIdentifiers() throws Exception {
+
+		Random random = new Random(4713L);
+
+		for (int i = 0; i < RUNS; i++) {
+
+			StringBuilder identifier = new StringBuilder();
+			int length = random.nextInt(600);
+			for (int j = 0; j < length; j++) identifier.append(CHARS.charAt(random.nextInt(CHARS.length())));
+
+			assertEquals(identifier.toString(), hashIdentifierText(identifier.toString()), MongoDBJSONGraphFactory.hashIdentifier(identifier.toString()));
+			assertEquals(identifier.toString(), hashIdentifierText(identifier.toString()), MongoDBJSONGraphFactory.hashIdentifier(identifier.toString()));
+		}
+	}
+
+	/**
+	 * The original implementation.
+	 */
+	private static String hashIdentifierText(String identifier) throws Exception {
+
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		String string = new String(Base64.encodeBase64(digest.digest(identifier.getBytes(Charset.forName("UTF-8")))), Charset.forName("UTF-8"));
+
+		return string.replace('+', '-').replace('/', '_');
+	}
+}
@@ -0,0 +1,161 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import xdi2.core.impl.json.mongodb.MongoDBJSONConverter;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.mongodb.util.JSON;
+
+/**
+ * Checks the direct converter against the JSON string round-trips it replaces,
+ * using randomly generated JSON trees.
+ */
+public class MongoDBJSONConverterTest extends TestCase {
+
+	private static final Gson gson = new GsonBuilder().disableHtmlEscaping().serializeNulls().create();
+
+	private static final int RUNS = 2000;
+	private static final int MAX_DEPTH = 4;
+
+	private static final String CHARS = "abcXYZ019 +=@$!*()[]{}<>&#:.-_/\\\"'\t\n\u00e4\u20ac";
+
+	public void testToMongoElement() throws Exception {
+
+		Random random = new Random(4711L);
+
+		for (int i = 0; i < RUNS; i++) {
+
+			JsonElement jsonElement = randomElement(random, 0);
+
+			Object expected = toMongoElementText(jsonElement);
+			Object actual = MongoDBJSONConverter.toMongoElement(jsonElement);
+
+			assertEquals(jsonElement.toString(), expected, actual);
+			assertEquals(jsonElement.toString(), JSON.serialize(expected), JSON.serialize(actual));
+		}
+	}
+
+	public void testFromMongoElement() throws Exception {
+
+		Random random = new Random(4712L);
+
+		for (int i = 0; i < RUNS; i++) {
+
+			Object object = toMongoElementText(randomElement(random, 0));
+
+			JsonElement expected = fromMongoElementText(object);
+			JsonElement actual = MongoDBJSONConverter.fromMongoElement(object);
+
+			assertEquals(JSON.serialize(object), expected, actual);
+			assertEquals(JSON.serialize(object), gson.toJson(expected), gson.toJson(actual));
+		}
+	}
+
+	public void testRoundTrip() throws Exception {
+
+		Random random = new Random(4713L);
+
+		for (int i = 0; i < RUNS; i++) {
+
+			JsonElement jsonElement = randomElement(random, 0);
+
+			assertEquals(fromMongoElementText(toMongoElementText(jsonElement)), MongoDBJSONConverter.fromMongoElement(MongoDBJSONConverter.toMongoElement(jsonElement)));
+		}
+	}
+
+	public void testExtendedJson() throws Exception {
+
+		JsonObject jsonObject = new JsonObject();
+		jsonObject.add("$oid", new JsonPrimitive("4f2a3b4c5d6e7f8091a2b3c4"));
+
+		Object expected = toMongoElementText(jsonObject);
+		Object actual = MongoDBJSONConverter.toMongoElement(jsonObject);
+
+		assertEquals(expected, actual);
+		assertEquals(fromMongoElementText(expected), MongoDBJSONConverter.fromMongoElement(actual));
+	}
+
+	/*
+	 * The text-based conversion previously used by MongoDBJSONStore
+	 */
+
+	private static Object toMongoElementText(JsonElement jsonElement) {
+
+		return JSON.parse(gson.toJson(jsonElement));
+	}
+
+	private static JsonElement fromMongoElementText(Object object) throws IOException {
+
+		StringBuilder builder = new StringBuilder();
+		JSON.serialize(object, builder);
+
+		return gson.getAdapter(JsonArray.class).fromJson("[" + builder.toString() + "]").get(0);
+	}
+
+	/*
+	 * Random JSON trees
+	 */
+
+	private static JsonElement randomElement(Random random, int depth) {
+
+		int choice = random.nextInt(depth < MAX_DEPTH ? 10 : 8);
+
+		switch (choice) {
+
+		case 0: return JsonNull.INSTANCE;
+		case 1: return new JsonPrimitive(Boolean.valueOf(random.nextBoolean()));
+		case 2: return new JsonPrimitive(Integer.valueOf(random.nextInt()));
+		case 3: return new JsonPrimitive(Long.valueOf(random.nextBoolean() ? random.nextLong() : random.nextInt(1000)));
+		case 4: return new JsonPrimitive(Double.valueOf(random.nextBoolean() ? random.nextDouble() * 1e6 : random.nextInt(1000)));
+		case 5: return gson.fromJson(randomNumberText(random), JsonElement.class);
+		case 6:
+		case 7: return new JsonPrimitive(randomString(random));
+		case 8: {
+
+			JsonArray jsonArray = new JsonArray();
+			int size = random.nextInt(5);
+			for (int i = 0; i < size; i++) jsonArray.add(randomElement(random, depth + 1));
+
+			return jsonArray;
+		}
+		default: {
+
+			JsonObject jsonObject = new JsonObject();
+			int size = random.nextInt(5);
+			for (int i = 0; i < size; i++) jsonObject.add(randomString(random).replace("$", "").replace(".", ""), randomElement(random, depth + 1));
+
+			return jsonObject;
+		}
+		}
+	}
+
+	private static String randomNumberText(Random random) {
+
+		switch (random.nextInt(4)) {
+
+		case 0: return Integer.toString(random.nextInt());
+		case 1: return Long.toString(random.nextLong());
+		case 2: return Double.toString(random.nextGaussian() * 1e3);
+		default: return Integer.toString(random.nextInt(100)) + "e" + Integer.toString(random.nextInt(10));
+		}
+	}
+
+	private static String randomString(Random random) {
+
+		int length = random.nextInt(12);
+		StringBuilder builder = new StringBuilder(length);
+
+		for (int i = 0; i < length; i++) builder.append(CHARS.charAt(random.nextInt(CHARS.length())));
+
+		return builder.toString();
+	}
+}
@@ -0,0 +1,180 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import xdi2.core.impl.json.mongodb.MongoDBDeleteProgress;
+import xdi2.core.impl.json.mongodb.MongoDBJSONCursor;
+import xdi2.core.impl.json.mongodb.MongoDBJSONStore;
+import xdi2.core.impl.json.mongodb.MongoDBSubtreeReaper;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.mongodb.BasicDBObject;
+
+public class MongoDBJSONCursorTest extends TestCase {
+
+	private static final String[] IDS = new String[] { "=a", "=a/1", "=a/2", "=a/2/1", "=a/2/2", "=a/3", "=a/4", "=a/5", "=a/6" };
+
+	@Override
+	protected void setUp() throws Exception {
+
+		super.setUp();
+
+		MongoDBTestSupport.cleanup();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		super.tearDown();
+
+		MongoDBTestSupport.cleanup();
+	}
+
+	public void testBatches() throws Exception {
+
+		MongoDBJSONStore jsonStore = openStore(null);
+		save(jsonStore, "=b");
+
+		// more contexts than fit into one batch
+
+		List<String> ids = new ArrayList<String> ();
+		MongoDBJSONCursor cursor = jsonStore.iterateWithPrefix("=a");
+
+		for (Map.Entry<String, JsonObject> entry : cursor) {
+
+			assertEquals(new JsonPrimitive(entry.getKey()), entry.getValue().get("&"));
+			ids.add(entry.getKey());
+		}
+
+		Collections.sort(ids);
+
+		assertEquals(Arrays.asList(IDS), ids);
+		assertFalse(cursor.hasNext());
+
+		jsonStore.close();
+	}
+
+	public void testClose() throws Exception {
+
+		MongoDBJSONStore jsonStore = openStore(null);
+
+		MongoDBJSONCursor cursor = jsonStore.iterateWithPrefix("=a");
+
+		assertTrue(Arrays.asList(IDS).contains(cursor.next().getKey()));
+		assertTrue(Arrays.asList(IDS).contains(cursor.next().getKey()));
+		assertTrue(cursor.hasNext());
+
+		// stopped within the first batch, also when an entry was already fetched
+
+		cursor.close();
+
+		assertFalse(cursor.hasNext());
+
+		try {
+
+			cursor.next();
+			fail("The cursor should be closed");
+		} catch (NoSuchElementException ex) {
+
+		}
+
+		cursor.close();
+
+		jsonStore.close();
+	}
+
+	public void testEmpty() throws Exception {
+
+		MongoDBJSONStore jsonStore = openStore(null);
+
+		MongoDBJSONCursor cursor = jsonStore.iterateWithPrefix("=c");
+
+		assertFalse(cursor.hasNext());
+		assertFalse(cursor.iterator().hasNext());
+
+		jsonStore.close();
+	}
+
+	public void testHidden() throws Exception {
+
+		MongoDBSubtreeReaper subtreeReaper = new MongoDBSubtreeReaper();
+		MongoDBJSONStore jsonStore = openStore(subtreeReaper);
+
+		// keep the only reaper thread busy, so the subtree stays hidden
+
+		final CountDownLatch latch = new CountDownLatch(1);
+
+		subtreeReaper.submit(MongoDBTestSupport.getMockDB().getCollection(MongoDBJSONStore.XDI2_DBCOLLECTION), "blocker", "", new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_KEY, "blocker"), 1, null, new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+
+					latch.await();
+				} catch (InterruptedException ex) {
+
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		MongoDBDeleteProgress progress = jsonStore.deleteSubtree("=a/2");
+
+		try {
+
+			List<String> ids = new ArrayList<String> ();
+			for (Map.Entry<String, JsonObject> entry : jsonStore.iterateWithPrefix("=a")) ids.add(entry.getKey());
+			Collections.sort(ids);
+
+			assertEquals(Arrays.asList("=a", "=a/1", "=a/3", "=a/4", "=a/5", "=a/6"), ids);
+
+			// also when the hidden contexts come last
+
+			ids.clear();
+			for (Map.Entry<String, JsonObject> entry : jsonStore.iterateWithPrefix("=a/2")) ids.add(entry.getKey());
+
+			assertTrue(ids.isEmpty());
+		} finally {
+
+			latch.countDown();
+		}
+
+		assertTrue(progress.await(10, TimeUnit.SECONDS));
+
+		jsonStore.close();
+		subtreeReaper.shutdown();
+	}
+
+	private static MongoDBJSONStore openStore(MongoDBSubtreeReaper subtreeReaper) throws IOException {
+
+		MongoDBTestSupport.TestGraphFactory graphFactory = MongoDBTestSupport.createGraphFactory();
+		graphFactory.setCursorBatchSize(Integer.valueOf(2));
+
+		if (subtreeReaper != null) {
+
+			graphFactory.setBackgroundDeleteFlag(Boolean.TRUE);
+			graphFactory.setSubtreeReaper(subtreeReaper);
+		}
+
+		MongoDBJSONStore jsonStore = graphFactory.openStore("=cursor");
+		save(jsonStore, IDS);
+
+		return jsonStore;
+	}
+
+	private static void save(MongoDBJSONStore jsonStore, String... ids) throws IOException {
+
+		for (String id : ids) jsonStore.saveToObject(id, "&", new JsonPrimitive(id));
+	}
+}
@@ -0,0 +1,284 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import xdi2.core.GraphFactory;
+import xdi2.core.impl.json.mongodb.MongoDBDeleteProgress;
+import xdi2.core.impl.json.mongodb.MongoDBJSONGraphFactory;
+import xdi2.core.impl.json.mongodb.MongoDBJSONStore;
+import xdi2.core.impl.json.mongodb.MongoDBSubtreeReaper;
+import xdi2.tests.core.impl.AbstractGraphTest;
+
+import com.google.gson.JsonPrimitive;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+public class MongoDBJSONGraphBackgroundDeleteTest extends AbstractGraphTest {
+
+	private static MongoDBJSONGraphFactory graphFactory = MongoDBTestSupport.createGraphFactory();
+
+	static {
+		
+		graphFactory.setDeleteBatchSize(Integer.valueOf(2));
+		graphFactory.setBackgroundDeleteFlag(Boolean.TRUE);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+
+		super.setUp();
+
+		MongoDBTestSupport.cleanup();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		super.tearDown();
+
+		MongoDBTestSupport.cleanup();
+	}
+
+	@Override
+	protected GraphFactory getGraphFactory() {
+
+		return graphFactory;
+	}
+
+	@Override
+	protected boolean supportsPersistence() {
+
+		return true;
+	}
+
+	public void testDeleteSubtree() throws Exception {
+
+		MongoDBTestSupport.TestGraphFactory batchGraphFactory = MongoDBTestSupport.createGraphFactory();
+		batchGraphFactory.setDeleteBatchSize(Integer.valueOf(2));
+
+		MongoDBJSONStore jsonStore = batchGraphFactory.openStore("=batches");
+		save(jsonStore, "=a", "=a/1", "=a/2", "=a/3", "=a/4", "=b");
+
+		// without a reaper, the subtree is deleted right away
+
+		MongoDBDeleteProgress progress = jsonStore.deleteSubtree("=a");
+
+		assertTrue(progress.isDone());
+		assertNull(progress.getFailure());
+		assertEquals(5, progress.getDeleted());
+		assertEquals(3, progress.getBatches());
+
+		assertNull(jsonStore.load("=a/1"));
+		assertEquals(new JsonPrimitive("=b"), jsonStore.load("=b").get("&"));
+		assertEquals(1, contexts().count());
+
+		jsonStore.close();
+	}
+
+	public void testBackgroundDeleteSubtree() throws Exception {
+
+		MongoDBSubtreeReaper subtreeReaper = new MongoDBSubtreeReaper();
+
+		MongoDBTestSupport.TestGraphFactory reaperGraphFactory = MongoDBTestSupport.createGraphFactory();
+		reaperGraphFactory.setDeleteBatchSize(Integer.valueOf(2));
+		reaperGraphFactory.setBackgroundDeleteFlag(Boolean.TRUE);
+		reaperGraphFactory.setSubtreeReaper(subtreeReaper);
+
+		final MongoDBJSONStore jsonStore = reaperGraphFactory.openStore("=reaper");
+		save(jsonStore, "=a", "=a/1", "=a/2", "=a/3", "=a/4", "=b");
+
+		// keep the only reaper thread busy until the subtree has been checked
+
+		final CountDownLatch latch = new CountDownLatch(1);
+
+		MongoDBDeleteProgress blocker = subtreeReaper.submit(contexts(), "blocker", "", new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_KEY, "blocker"), 1, null, new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+
+					latch.await();
+				} catch (InterruptedException ex) {
+
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		MongoDBDeleteProgress progress = jsonStore.deleteSubtree("=a");
+
+		assertFalse(progress.isDone());
+		assertTrue(subtreeReaper.getPending().contains(progress));
+		assertFalse(subtreeReaper.getFinished().contains(progress));
+
+		// hidden from reads while it is still stored
+
+		assertNull(jsonStore.load("=a"));
+		assertNull(jsonStore.load("=a/1"));
+		assertEquals(new JsonPrimitive("=b"), jsonStore.load("=b").get("&"));
+		assertEquals(6, contexts().count());
+
+		// a write into the subtree waits for the deletion
+
+		final IOException[] failure = new IOException[1];
+
+		Thread writer = new Thread() {
+
+			@Override
+			public void run() {
+
+				try {
+
+					jsonStore.saveToObject("=a/1", "&", new JsonPrimitive("new"));
+				} catch (IOException ex) {
+
+					failure[0] = ex;
+				}
+			}
+		};
+
+		writer.start();
+		writer.join(500);
+
+		assertTrue(writer.isAlive());
+		assertEquals(6, contexts().count());
+
+		latch.countDown();
+
+		assertTrue(progress.await(10, TimeUnit.SECONDS));
+		writer.join(10000);
+
+		assertFalse(writer.isAlive());
+		assertNull(failure[0]);
+
+		assertNull(progress.getFailure());
+		assertEquals(5, progress.getDeleted());
+		assertEquals(3, progress.getBatches());
+		assertTrue(progress.getFinished() >= progress.getStarted());
+
+		assertTrue(blocker.isDone());
+		assertTrue(subtreeReaper.getPending().isEmpty());
+		assertEquals(progress, subtreeReaper.getFinished().get(0));
+		assertEquals(blocker, subtreeReaper.getFinished().get(1));
+
+		// only the write that waited is left of the subtree
+
+		assertNull(jsonStore.load("=a"));
+		assertNull(jsonStore.load("=a/2"));
+		assertEquals(new JsonPrimitive("new"), jsonStore.load("=a/1").get("&"));
+		assertEquals(2, contexts().count());
+
+		jsonStore.close();
+		subtreeReaper.shutdown();
+	}
+
+	public void testRetry() throws Exception {
+
+		MongoDBSubtreeReaper subtreeReaper = new MongoDBSubtreeReaper();
+		subtreeReaper.setRetryDelayMillis(10);
+
+		for (int i = 0; i < 5; i++) contexts().insert(new BasicDBObject("tree", "a"));
+		contexts().insert(new BasicDBObject("tree", "b"));
+
+		// the first two runs fail, the second retry deletes the subtree
+
+		FailingCollection dbCollection = new FailingCollection(contexts(), 2);
+		MongoDBDeleteProgress progress = subtreeReaper.submit(dbCollection, "graph", "=a", new BasicDBObject("tree", "a"), 2, null, null);
+
+		assertTrue(progress.await(10, TimeUnit.SECONDS));
+
+		assertNull(progress.getFailure());
+		assertEquals(2, progress.getRetries());
+		assertEquals(5, progress.getDeleted());
+		assertEquals(1, contexts().count());
+
+		assertEquals(0, subtreeReaper.getFailed());
+		assertTrue(subtreeReaper.getFailedDeletions().isEmpty());
+		assertFalse(subtreeReaper.isHidden("graph", "=a/1"));
+
+		subtreeReaper.shutdown();
+	}
+
+	public void testRetriesExhausted() throws Exception {
+
+		MongoDBSubtreeReaper subtreeReaper = new MongoDBSubtreeReaper();
+		subtreeReaper.setRetryDelayMillis(10);
+		subtreeReaper.setMaxRetries(2);
+
+		for (int i = 0; i < 5; i++) contexts().insert(new BasicDBObject("tree", "a"));
+
+		FailingCollection dbCollection = new FailingCollection(contexts(), Integer.MAX_VALUE);
+		MongoDBDeleteProgress progress = subtreeReaper.submit(dbCollection, "graph", "=a", new BasicDBObject("tree", "a"), 2, null, null);
+
+		assertTrue(progress.await(10, TimeUnit.SECONDS));
+
+		// given up after the last retry, so the subtree is visible again and the failure is listed
+
+		assertTrue(progress.getFailure() instanceof MongoException);
+		assertEquals(2, progress.getRetries());
+		assertEquals(3, dbCollection.failures);
+		assertEquals(5, contexts().count());
+
+		assertEquals(1, subtreeReaper.getFailed());
+		assertEquals(1, subtreeReaper.getFailedDeletions().size());
+		assertEquals(progress, subtreeReaper.getFinished().get(0));
+		assertFalse(subtreeReaper.isHidden("graph", "=a/1"));
+
+		subtreeReaper.shutdown();
+	}
+
+	private static void save(MongoDBJSONStore jsonStore, String... ids) throws IOException {
+
+		for (String id : ids) jsonStore.saveToObject(id, "&", new JsonPrimitive(id));
+	}
+
+	private static DBCollection contexts() throws Exception {
+
+		return MongoDBTestSupport.getMockDB().getCollection(MongoDBJSONStore.XDI2_DBCOLLECTION);
+	}
+
+	/**
+	 * Fails a number of finds, and otherwise passes them and removes on to another collection.
+	 */
+	private static class FailingCollection extends DBCollection {
+
+		private final DBCollection dbCollection;
+		private final int fail;
+		private int failures;
+
+		private FailingCollection(DBCollection dbCollection, int fail) {
+
+			super(dbCollection.getDB(), dbCollection.getName());
+
+			this.dbCollection = dbCollection;
+			this.fail = fail;
+			this.failures = 0;
+		}
+
+		@Override
+		public DBCursor find(DBObject query, DBObject fields) {
+
+			if (this.failures < this.fail) {
+
+				this.failures++;
+				throw new MongoException("failure " + this.failures);
+			}
+
+			return this.dbCollection.find(query, fields);
+		}
+
+		@Override
+		public WriteResult remove(DBObject query, WriteConcern writeConcern) {
+
+			return this.dbCollection.remove(query, writeConcern);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import xdi2.core.GraphFactory;
+import xdi2.core.impl.json.mongodb.MongoDBJSONStore;
+import xdi2.tests.core.impl.AbstractGraphTest;
+
+import com.google.gson.JsonPrimitive;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+
+public class MongoDBJSONGraphBucketTest extends AbstractGraphTest {
+
+	private static MongoDBTestSupport.TestGraphFactory graphFactory = MongoDBTestSupport.createGraphFactory();
+
+	static {
+		
+		graphFactory.setSharedDatabaseFlag(Boolean.TRUE);
+		graphFactory.setBucketCount(Integer.valueOf(8));
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+
+		super.setUp();
+
+		MongoDBTestSupport.cleanup();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		super.tearDown();
+
+		MongoDBTestSupport.cleanup();
+	}
+
+	@Override
+	protected GraphFactory getGraphFactory() {
+
+		return graphFactory;
+	}
+
+	@Override
+	protected boolean supportsPersistence() {
+
+		return true;
+	}
+
+	public void testBucketCollectionName() throws Exception {
+
+		String bucket = MongoDBJSONStore.getBucketCollectionName("(=markus)", 8);
+
+		assertTrue(bucket.startsWith(MongoDBJSONStore.XDI2_DBCOLLECTION + "_"));
+		assertEquals(bucket, MongoDBJSONStore.getBucketCollectionName("(=markus)", 8));
+
+		int bucketNumber = Integer.parseInt(bucket.substring(MongoDBJSONStore.XDI2_DBCOLLECTION.length() + 1));
+		assertTrue(bucketNumber >= 0 && bucketNumber < 8);
+	}
+
+	public void testBuckets() throws Exception {
+
+		String[] identifiers = new String[] { "=one", "=two", "=three", "=four", "=five", "=six" };
+
+		for (String identifier : identifiers) {
+
+			MongoDBJSONStore jsonStore = graphFactory.openStore(identifier);
+			jsonStore.saveToObject("=a", "&", new JsonPrimitive(identifier));
+			jsonStore.close();
+		}
+
+		DB db = MongoDBTestSupport.getMockDB();
+
+		// every graph is stored only in its own bucket
+
+		assertEquals(0, db.getCollection(MongoDBJSONStore.XDI2_DBCOLLECTION).count());
+
+		long count = 0;
+
+		for (int i = 0; i < 8; i++) count += db.getCollection(MongoDBJSONStore.getBucketCollectionName(i)).count();
+
+		assertEquals(identifiers.length, count);
+
+		for (String identifier : identifiers) {
+
+			String bucket = MongoDBJSONStore.getBucketCollectionName(identifier, 8);
+
+			assertEquals(1, db.getCollection(bucket).count(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, identifier)));
+
+			MongoDBJSONStore jsonStore = graphFactory.openStore(identifier);
+			assertEquals(new JsonPrimitive(identifier), jsonStore.load("=a").get("&"));
+			jsonStore.close();
+		}
+	}
+}
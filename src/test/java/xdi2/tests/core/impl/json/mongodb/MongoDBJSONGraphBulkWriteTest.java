@@ -0,0 +1,151 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import xdi2.core.GraphFactory;
+import xdi2.core.impl.json.mongodb.MongoDBJSONStore;
+import xdi2.tests.core.impl.AbstractGraphTest;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+
+public class MongoDBJSONGraphBulkWriteTest extends AbstractGraphTest {
+
+	private static MongoDBTestSupport.TestGraphFactory graphFactory = MongoDBTestSupport.createGraphFactory();
+
+	static {
+		
+		graphFactory.setBulkWriteFlag(Boolean.TRUE);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+
+		super.setUp();
+
+		MongoDBTestSupport.cleanup();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		super.tearDown();
+
+		MongoDBTestSupport.cleanup();
+	}
+
+	@Override
+	protected GraphFactory getGraphFactory() {
+
+		return graphFactory;
+	}
+
+	@Override
+	protected boolean supportsPersistence() {
+
+		return true;
+	}
+
+	public void testCommit() throws Exception {
+
+		MongoDBJSONStore jsonStore = graphFactory.openStore("=bulk");
+
+		// writes are only batched, since a read sends them
+
+		assertFalse(jsonStore.supportsTransactions());
+
+		jsonStore.beginTransaction();
+
+		jsonStore.saveToObject("=a", "&", new JsonPrimitive("a"));
+		jsonStore.saveToArray("=a", "/+friend", new JsonPrimitive("=b"));
+		jsonStore.saveToObject("=b", "&", new JsonPrimitive("b"));
+
+		// nothing is sent before the commit
+
+		assertEquals(0, contexts().count());
+
+		jsonStore.commitTransaction();
+
+		// the writes to the same context were merged into one document
+
+		assertEquals(2, contexts().count());
+		assertEquals(1, contexts().count(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_KEY, "=a")));
+
+		JsonObject jsonObject = jsonStore.load("=a");
+
+		assertEquals(new JsonPrimitive("a"), jsonObject.get("&"));
+		assertEquals(new JsonPrimitive("=b"), jsonObject.getAsJsonArray("/+friend").get(0));
+		assertEquals(new JsonPrimitive("b"), jsonStore.load("=b").get("&"));
+
+		jsonStore.close();
+	}
+
+	public void testReadInTransaction() throws Exception {
+
+		MongoDBJSONStore jsonStore = graphFactory.openStore("=bulk");
+
+		jsonStore.beginTransaction();
+
+		jsonStore.saveToObject("=a", "&", new JsonPrimitive("a"));
+
+		assertEquals(0, contexts().count());
+
+		// a read sends the writes collected so far
+
+		assertEquals(new JsonPrimitive("a"), jsonStore.load("=a").get("&"));
+		assertEquals(1, contexts().count());
+
+		jsonStore.saveToObject("=b", "&", new JsonPrimitive("b"));
+		jsonStore.commitTransaction();
+
+		assertEquals(2, contexts().count());
+
+		jsonStore.close();
+	}
+
+	public void testRollback() throws Exception {
+
+		MongoDBJSONStore jsonStore = graphFactory.openStore("=bulk");
+
+		jsonStore.saveToObject("=a", "&", new JsonPrimitive("a"));
+
+		jsonStore.beginTransaction();
+
+		jsonStore.saveToObject("=b", "&", new JsonPrimitive("b"));
+		jsonStore.delete("=a");
+
+		jsonStore.rollbackTransaction();
+
+		assertEquals(1, contexts().count());
+		assertEquals(new JsonPrimitive("a"), jsonStore.load("=a").get("&"));
+		assertNull(jsonStore.load("=b"));
+
+		jsonStore.close();
+	}
+
+	public void testRollbackAfterRead() throws Exception {
+
+		MongoDBJSONStore jsonStore = graphFactory.openStore("=bulk");
+
+		jsonStore.beginTransaction();
+
+		jsonStore.saveToObject("=a", "&", new JsonPrimitive("a"));
+		jsonStore.load("=a");
+		jsonStore.saveToObject("=b", "&", new JsonPrimitive("b"));
+
+		jsonStore.rollbackTransaction();
+
+		// the read sent the first write, so only the second one is discarded
+
+		assertEquals(1, contexts().count());
+		assertEquals(new JsonPrimitive("a"), jsonStore.load("=a").get("&"));
+		assertNull(jsonStore.load("=b"));
+
+		jsonStore.close();
+	}
+
+	private static DBCollection contexts() throws Exception {
+
+		return MongoDBTestSupport.getMockDB().getCollection(MongoDBJSONStore.XDI2_DBCOLLECTION);
+	}
+}
@@ -0,0 +1,196 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import java.util.regex.Pattern;
+
+import xdi2.core.GraphFactory;
+import xdi2.core.impl.json.mongodb.MongoDBJSONStore;
+import xdi2.tests.core.impl.AbstractGraphTest;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+public class MongoDBJSONGraphCompactTest extends AbstractGraphTest {
+
+	private static final Pattern CODE = Pattern.compile("[0-9A-Z]+");
+
+	private static MongoDBTestSupport.TestGraphFactory graphFactory = MongoDBTestSupport.createGraphFactory();
+
+	static {
+		
+		graphFactory.setCompactFlag(Boolean.TRUE);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+
+		super.setUp();
+
+		MongoDBTestSupport.cleanup();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		super.tearDown();
+
+		MongoDBTestSupport.cleanup();
+	}
+
+	@Override
+	protected GraphFactory getGraphFactory() {
+
+		return graphFactory;
+	}
+
+	@Override
+	protected boolean supportsPersistence() {
+
+		return true;
+	}
+
+	public void testCompactDocuments() throws Exception {
+
+		MongoDBJSONStore jsonStore = graphFactory.openStore("=compact");
+
+		jsonStore.saveToObject("=a", "&", new JsonPrimitive("a"));
+		jsonStore.saveToArray("=a", "/+friend", new JsonPrimitive("=b"));
+		jsonStore.save("=b", literal("b"));
+
+		DBCursor cursor = contexts().find(new BasicDBObject());
+		int count = 0;
+
+		try {
+
+			while (cursor.hasNext()) {
+
+				DBObject object = cursor.next();
+
+				assertTrue(object.get(MongoDBJSONStore.XDI2_OBJ_ID) instanceof Number);
+				assertEquals(Integer.valueOf(2), Integer.valueOf(((Number) object.get(MongoDBJSONStore.XDI2_OBJ_VERSION)).intValue()));
+
+				for (String field : object.keySet()) {
+
+					if (isFixedField(field)) continue;
+					assertTrue(field, CODE.matcher(field).matches());
+				}
+
+				count++;
+			}
+		} finally {
+
+			cursor.close();
+		}
+
+		assertEquals(2, count);
+
+		assertEquals(new JsonPrimitive("a"), jsonStore.load("=a").get("&"));
+		assertEquals(literal("b"), jsonStore.load("=b"));
+
+		jsonStore.close();
+	}
+
+	public void testUnknownKeys() throws Exception {
+
+		MongoDBJSONStore jsonStore = graphFactory.openStore("=compact");
+
+		jsonStore.saveToObject("=a", "&", new JsonPrimitive("a"));
+
+		DBCollection dictionary = MongoDBTestSupport.getMockDB().getCollection("dictionary");
+		long size = dictionary.count();
+
+		// reading or removing keys nobody wrote does not add them to the dictionary
+
+		assertEquals(0, jsonStore.loadRelations("=a", "+unknown").entrySet().size());
+		jsonStore.deleteFromObject("=a", "/+unknown");
+
+		assertEquals(size, dictionary.count());
+		assertEquals(new JsonPrimitive("a"), jsonStore.load("=a").get("&"));
+
+		jsonStore.close();
+	}
+
+	public void testLegacyGraph() throws Exception {
+
+		MongoDBTestSupport.TestGraphFactory legacyGraphFactory = MongoDBTestSupport.createGraphFactory();
+
+		MongoDBJSONStore legacyStore = legacyGraphFactory.openStore("=legacy");
+		legacyStore.saveToObject("=a", "&", new JsonPrimitive("a"));
+		legacyStore.close();
+
+		// the graph keeps the older format when it is opened with the compact format
+
+		MongoDBJSONStore jsonStore = graphFactory.openStore("=legacy");
+		jsonStore.saveToObject("=b", "&", new JsonPrimitive("b"));
+
+		DBCursor cursor = contexts().find(new BasicDBObject());
+
+		try {
+
+			while (cursor.hasNext()) {
+
+				DBObject object = cursor.next();
+
+				assertEquals("=legacy", object.get(MongoDBJSONStore.XDI2_OBJ_ID));
+				assertNull(object.get(MongoDBJSONStore.XDI2_OBJ_VERSION));
+
+				for (String field : object.keySet()) {
+
+					if (isFixedField(field)) continue;
+					assertTrue(field, field.startsWith("-"));
+				}
+			}
+		} finally {
+
+			cursor.close();
+		}
+
+		assertEquals(new JsonPrimitive("a"), jsonStore.load("=a").get("&"));
+		assertEquals(new JsonPrimitive("b"), jsonStore.load("=b").get("&"));
+
+		jsonStore.close();
+	}
+
+	public void testBothFormats() throws Exception {
+
+		MongoDBJSONStore jsonStore = graphFactory.openStore("=compact");
+
+		jsonStore.saveToObject("=a", "&", new JsonPrimitive("a"));
+
+		// a field in the older format, as written by an earlier version
+
+		BasicDBList friends = new BasicDBList();
+		friends.add("=b");
+
+		contexts().update(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_KEY, "=a"), new BasicDBObject("$set", new BasicDBObject("-/+friend", friends)));
+
+		JsonObject jsonObject = jsonStore.load("=a");
+
+		assertEquals(new JsonPrimitive("a"), jsonObject.get("&"));
+		assertEquals(new JsonPrimitive("=b"), jsonObject.getAsJsonArray("/+friend").get(0));
+
+		jsonStore.close();
+	}
+
+	private static DBCollection contexts() throws Exception {
+
+		return MongoDBTestSupport.getMockDB().getCollection(MongoDBJSONStore.XDI2_DBCOLLECTION);
+	}
+
+	private static boolean isFixedField(String field) {
+
+		return "_id".equals(field) || MongoDBJSONStore.XDI2_OBJ_ID.equals(field) || MongoDBJSONStore.XDI2_OBJ_KEY.equals(field) || MongoDBJSONStore.XDI2_OBJ_VERSION.equals(field);
+	}
+
+	private static JsonObject literal(String value) {
+
+		JsonObject jsonObject = new JsonObject();
+		jsonObject.add("&", new JsonPrimitive(value));
+
+		return jsonObject;
+	}
+}
@@ -0,0 +1,152 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import java.util.regex.Pattern;
+
+import xdi2.core.impl.json.mongodb.MongoDBJSONGraphFactory;
+import xdi2.core.impl.json.mongodb.MongoDBJSONStore;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+
+/**
+ * Compares the number of index keys and documents MongoDB examines for prefix queries
+ * on deep context subtrees, using the old regex and the current key range conditions.
+ *
+ * Needs a MongoDB instance and uses the mock database, like the other tests.
+ *
+ * Usage: java MongoDBJSONStorePrefixBenchmark [host] [contexts per level]
+ */
+public class MongoDBJSONStorePrefixBenchmark {
+
+	private static final String GRAPH = "(=!:uuid:1111)";
+
+	private static final String[] PREFIXES = new String[] {
+		"",
+		"=alice",
+		"=alice.smith",
+		"=alice.smith[<#email>]",
+		"=alice.smith[<#email>]<@~0>",
+		"=alice.smith[<#email>]<@~0>#work",
+		"=bob?",
+		"=bob?[#friend]"
+	};
+
+	public static void main(String[] args) throws Exception {
+
+		String host = args.length > 0 ? args[0] : "localhost";
+		int fanout = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+
+		MongoDBJSONStore.cleanup(host, null, Boolean.TRUE);
+
+		MongoClient mongoClient = MongoDBJSONGraphFactory.acquireMongoClient(host, null, null);
+		MongoDBJSONStore store = new MongoDBJSONStore(mongoClient, GRAPH, Boolean.TRUE, Boolean.TRUE);
+
+		// closing the store releases the client, also if init() fails
+
+		try {
+
+			store.init();
+
+			int count = 0;
+			for (String root : new String[] { "=alice", "=alice.smith", "=alicexsmith", "=bob", "=bob?", "=bobby" }) {
+
+				count += populate(store, root, fanout, 4);
+			}
+
+			System.out.println("Contexts: " + count);
+			System.out.println();
+			System.out.println(String.format("%-36s %8s | %10s %10s | %10s %10s", "prefix", "matches", "regex keys", "regex docs", "range keys", "range docs"));
+
+			DBCollection dbCollection = mongoClient.getDB(MongoDBJSONStore.XDI2_DBNAME_MOCK).getCollection(MongoDBJSONStore.XDI2_DBCOLLECTION);
+
+			for (String prefix : PREFIXES) {
+
+				DBObject regexExplain = dbCollection.find(query(toLegacyStartsWithRegex(prefix))).explain();
+				DBObject rangeExplain = dbCollection.find(query(MongoDBJSONStore.toMongoStartsWithCondition(prefix))).explain();
+
+				System.out.println(String.format("%-36s %8d | %10d %10d | %10d %10d",
+						"\"" + prefix + "\"",
+						Long.valueOf(dbCollection.count(query(MongoDBJSONStore.toMongoStartsWithCondition(prefix)))),
+						Long.valueOf(keysExamined(regexExplain)),
+						Long.valueOf(docsExamined(regexExplain)),
+						Long.valueOf(keysExamined(rangeExplain)),
+						Long.valueOf(docsExamined(rangeExplain))));
+			}
+		} finally {
+
+			store.close();
+		}
+
+		MongoDBJSONStore.cleanup(host, null, Boolean.TRUE);
+	}
+
+	private static int populate(MongoDBJSONStore store, String id, int fanout, int depth) throws Exception {
+
+		JsonObject jsonObject = new JsonObject();
+		jsonObject.add("&", new JsonPrimitive(id));
+		store.save(id, jsonObject);
+
+		if (depth == 0) return 1;
+
+		int count = 1;
+		for (int i = 0; i < fanout; i++) {
+
+			String arc = (i % 3 == 0) ? "[<#email>]" : (i % 3 == 1) ? "<@~" + i + ">" : "#work" + i;
+			count += populate(store, id + arc, fanout / 2 + 1, depth - 1);
+		}
+
+		return count;
+	}
+
+	private static DBObject query(Object condition) {
+
+		return new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_KEY, condition).append(MongoDBJSONStore.XDI2_OBJ_ID, GRAPH);
+	}
+
+	/**
+	 * The regex previously built by MongoDBJSONStore.
+	 */
+	private static Pattern toLegacyStartsWithRegex(String string) {
+
+		return Pattern.compile("^" + string
+				.replace("+", "\\+")
+				.replace("=", "\\=")
+				.replace("@", "\\@")
+				.replace("$", "\\$")
+				.replace("!", "\\!")
+				.replace("*", "\\*")
+				.replace("(", "\\(")
+				.replace(")", "\\)")
+				.replace("[", "\\[")
+				.replace("]", "\\]")
+				.replace("{", "\\{")
+				.replace("}", "\\}")
+				.replace("<", "\\<")
+				.replace(">", "\\>")
+				.replace("&", "\\&") + ".*");
+	}
+
+	/*
+	 * explain() output differs between server versions
+	 */
+
+	private static long keysExamined(DBObject explain) {
+
+		DBObject executionStats = (DBObject) explain.get("executionStats");
+		if (executionStats != null) return ((Number) executionStats.get("totalKeysExamined")).longValue();
+
+		return ((Number) explain.get("nscanned")).longValue();
+	}
+
+	private static long docsExamined(DBObject explain) {
+
+		DBObject executionStats = (DBObject) explain.get("executionStats");
+		if (executionStats != null) return ((Number) executionStats.get("totalDocsExamined")).longValue();
+
+		return ((Number) explain.get("nscannedObjects")).longValue();
+	}
+}
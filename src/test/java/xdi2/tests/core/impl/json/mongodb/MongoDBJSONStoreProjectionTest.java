@@ -0,0 +1,121 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import xdi2.core.impl.json.mongodb.MongoDBJSONStore;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Loads parts of contexts stored in the older format, where field names are the keys with a "-" in front.
+ */
+public class MongoDBJSONStoreProjectionTest extends TestCase {
+
+	private MongoDBJSONStore jsonStore;
+
+	@Override
+	protected void setUp() throws Exception {
+
+		super.setUp();
+
+		MongoDBTestSupport.cleanup();
+
+		this.jsonStore = MongoDBTestSupport.createGraphFactory().openStore("=projection");
+
+		this.jsonStore.saveToArray("=a", MongoDBJSONStore.JSON_KEY_CONTEXT, new JsonPrimitive("=a/1"));
+		this.jsonStore.saveToObject("=a", MongoDBJSONStore.JSON_KEY_LITERAL, new JsonPrimitive("a"));
+		this.jsonStore.saveToArray("=a", "/+friend", new JsonPrimitive("=b"));
+		this.jsonStore.saveToArray("=a", "/$is", new JsonPrimitive("=c"));
+		this.jsonStore.saveToObject("=a", "$x", new JsonPrimitive("dollar"));
+		this.jsonStore.saveToObject("=a", "-x", new JsonPrimitive("dash"));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		super.tearDown();
+
+		this.jsonStore.close();
+
+		MongoDBTestSupport.cleanup();
+	}
+
+	public void testOlderFormat() throws Exception {
+
+		DBObject object = MongoDBTestSupport.getMockDB().getCollection(MongoDBJSONStore.XDI2_DBCOLLECTION).findOne(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_KEY, "=a"));
+
+		assertNull(object.get(MongoDBJSONStore.XDI2_OBJ_VERSION));
+		assertEquals("dollar", object.get("-\\$x"));
+		assertEquals("dash", object.get("--x"));
+		assertNotNull(object.get("-/$is"));
+	}
+
+	public void testLoadKeys() throws Exception {
+
+		JsonObject jsonObject = this.jsonStore.load("=a", Arrays.asList("&", "$x", "-x", "/+unknown"));
+
+		assertEquals(keys("&", "$x", "-x"), keys(jsonObject));
+		assertEquals(new JsonPrimitive("a"), jsonObject.get("&"));
+		assertEquals(new JsonPrimitive("dollar"), jsonObject.get("$x"));
+		assertEquals(new JsonPrimitive("dash"), jsonObject.get("-x"));
+
+		assertEquals(keys("/$is"), keys(this.jsonStore.load("=a", Collections.singleton("/$is"))));
+		assertEquals(keys(), keys(this.jsonStore.load("=a", Collections.<String> emptySet())));
+		assertEquals(keys(), keys(this.jsonStore.load("=a", Collections.singleton("/+unknown"))));
+
+		assertNull(this.jsonStore.load("=z", Arrays.asList("&", "$x")));
+	}
+
+	public void testLoadWithout() throws Exception {
+
+		JsonObject jsonObject = this.jsonStore.loadWithout("=a", Arrays.asList("&", "$x", "/+unknown"));
+
+		assertEquals(keys("//", "/+friend", "/$is", "-x"), keys(jsonObject));
+		assertEquals(new JsonPrimitive("dash"), jsonObject.get("-x"));
+
+		assertEquals(keys("//", "&", "/+friend", "/$is", "$x"), keys(this.jsonStore.loadWithout("=a", Collections.singleton("-x"))));
+		assertEquals(keys("//", "&", "/+friend", "/$is", "$x", "-x"), keys(this.jsonStore.loadWithout("=a", Collections.<String> emptySet())));
+
+		assertNull(this.jsonStore.loadWithout("=z", Collections.singleton("&")));
+	}
+
+	public void testLoadRelations() throws Exception {
+
+		JsonObject jsonObject = this.jsonStore.loadRelations("=a");
+
+		assertEquals(keys("/+friend", "/$is", "$x", "-x"), keys(jsonObject));
+		assertEquals(new JsonPrimitive("=b"), ((JsonArray) jsonObject.get("/+friend")).get(0));
+		assertEquals(new JsonPrimitive("=c"), ((JsonArray) jsonObject.get("/$is")).get(0));
+
+		assertEquals(keys("/+friend"), keys(this.jsonStore.loadRelations("=a", "+friend")));
+		assertEquals(keys("/$is"), keys(this.jsonStore.loadRelations("=a", "$is")));
+		assertEquals(keys(), keys(this.jsonStore.loadRelations("=a", "+unknown")));
+
+		assertEquals(keys("//"), keys(this.jsonStore.loadContextNodes("=a")));
+		assertEquals(keys("&"), keys(this.jsonStore.loadLiteral("=a")));
+
+		assertNull(this.jsonStore.loadRelations("=z"));
+	}
+
+	private static Set<String> keys(String... keys) {
+
+		return new HashSet<String> (Arrays.asList(keys));
+	}
+
+	private static Set<String> keys(JsonObject jsonObject) {
+
+		Set<String> keys = new HashSet<String> ();
+		for (Map.Entry<String, ?> entry : jsonObject.entrySet()) keys.add(entry.getKey());
+
+		return keys;
+	}
+}
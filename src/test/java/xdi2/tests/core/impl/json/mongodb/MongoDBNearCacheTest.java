@@ -0,0 +1,250 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import junit.framework.TestCase;
+import xdi2.core.impl.json.mongodb.MongoDBChangeEvent;
+import xdi2.core.impl.json.mongodb.MongoDBChangeListener;
+import xdi2.core.impl.json.mongodb.MongoDBChangeSource;
+import xdi2.core.impl.json.mongodb.MongoDBNearCache;
+import xdi2.core.impl.json.mongodb.MongoDBOplogTailer;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.mongodb.BasicDBObject;
+
+/**
+ * Checks that the near-cache is kept coherent by writes and by the events of a change source.
+ */
+public class MongoDBNearCacheTest extends TestCase {
+
+	private static final String NS = "xdi2graph.contexts";
+	private static final String GRAPH = "(=!:uuid:1111)";
+
+	private MongoDBNearCache nearCache;
+	private LocalChangeSource changeSource;
+
+	@Override
+	protected void setUp() throws Exception {
+
+		super.setUp();
+
+		this.nearCache = new MongoDBNearCache(1024L * 1024L);
+		this.changeSource = new LocalChangeSource();
+		this.changeSource.addListener(this.nearCache);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		this.changeSource.close();
+
+		super.tearDown();
+	}
+
+	public void testLoad() throws Exception {
+
+		assertNull(this.nearCache.getLoad(NS, GRAPH, "=a"));
+
+		this.nearCache.putLoad(NS, GRAPH, "=a", "oid1", literal("a"), this.nearCache.getGeneration());
+
+		JsonElement cached = this.nearCache.getLoad(NS, GRAPH, "=a");
+		assertEquals(literal("a"), cached);
+
+		// callers get their own copies
+
+		cached.getAsJsonObject().add("&", new JsonPrimitive("changed"));
+		assertEquals(literal("a"), this.nearCache.getLoad(NS, GRAPH, "=a"));
+
+		// other graphs in the same collection are separate
+
+		assertNull(this.nearCache.getLoad(NS, "(=!:uuid:2222)", "=a"));
+
+		// an update elsewhere only carries the _id
+
+		this.changeSource.emit(new MongoDBChangeEvent(NS, "oid1", null, null));
+		assertNull(this.nearCache.getLoad(NS, GRAPH, "=a"));
+	}
+
+	public void testMissingContext() throws Exception {
+
+		this.nearCache.putLoad(NS, GRAPH, "=b", null, null, this.nearCache.getGeneration());
+		assertTrue(this.nearCache.getLoad(NS, GRAPH, "=b").isJsonNull());
+
+		// an insert elsewhere carries the whole document
+
+		this.changeSource.emit(new MongoDBChangeEvent(NS, "oid2", GRAPH, "=b"));
+		assertNull(this.nearCache.getLoad(NS, GRAPH, "=b"));
+	}
+
+	public void testPrefix() throws Exception {
+
+		Map<String, JsonObject> jsonObjects = new HashMap<String, JsonObject> ();
+		jsonObjects.put("=a#1", literal("1"));
+		jsonObjects.put("=a#2", literal("2"));
+
+		this.nearCache.putPrefix(NS, GRAPH, "=a", Arrays.<Object> asList("oid1", "oid2"), jsonObjects, this.nearCache.getGeneration());
+		assertEquals(jsonObjects, this.nearCache.getPrefix(NS, GRAPH, "=a"));
+
+		this.changeSource.emit(new MongoDBChangeEvent(NS, "oid2", null, null));
+		assertNull(this.nearCache.getPrefix(NS, GRAPH, "=a"));
+
+		// a new context below the prefix
+
+		this.nearCache.putPrefix(NS, GRAPH, "=a", Arrays.<Object> asList("oid1", "oid2"), jsonObjects, this.nearCache.getGeneration());
+		this.changeSource.emit(new MongoDBChangeEvent(NS, "oid3", GRAPH, "=a#3"));
+		assertNull(this.nearCache.getPrefix(NS, GRAPH, "=a"));
+	}
+
+	public void testWrites() throws Exception {
+
+		Map<String, JsonObject> jsonObjects = new HashMap<String, JsonObject> ();
+		jsonObjects.put("=a#1", literal("1"));
+
+		this.nearCache.putPrefix(NS, GRAPH, "=a", Arrays.<Object> asList("oid1"), jsonObjects, this.nearCache.getGeneration());
+		this.nearCache.putLoad(NS, GRAPH, "=a#1", "oid1", literal("1"), this.nearCache.getGeneration());
+		this.nearCache.putLoad(NS, GRAPH, "=c", "oid4", literal("c"), this.nearCache.getGeneration());
+
+		this.nearCache.invalidate(NS, GRAPH, "=a#1");
+		assertNull(this.nearCache.getPrefix(NS, GRAPH, "=a"));
+		assertNull(this.nearCache.getLoad(NS, GRAPH, "=a#1"));
+		assertNotNull(this.nearCache.getLoad(NS, GRAPH, "=c"));
+
+		this.nearCache.putLoad(NS, GRAPH, "=a#1", "oid1", literal("1"), this.nearCache.getGeneration());
+		this.nearCache.invalidatePrefix(NS, GRAPH, "=a");
+		assertNull(this.nearCache.getLoad(NS, GRAPH, "=a#1"));
+		assertNotNull(this.nearCache.getLoad(NS, GRAPH, "=c"));
+	}
+
+	public void testConcurrentInvalidation() throws Exception {
+
+		long generation = this.nearCache.getGeneration();
+
+		this.changeSource.emit(new MongoDBChangeEvent(NS, "oid1", GRAPH, "=a"));
+
+		// loaded before the change, so it must not be cached
+
+		this.nearCache.putLoad(NS, GRAPH, "=a", "oid1", literal("a"), generation);
+		assertNull(this.nearCache.getLoad(NS, GRAPH, "=a"));
+	}
+
+	public void testOtherGraphs() throws Exception {
+
+		long generation = this.nearCache.getGeneration();
+
+		// changes of other graphs and documents do not affect loads in progress
+
+		this.changeSource.emit(new MongoDBChangeEvent(NS, "oid9", "(=!:uuid:2222)", "=a"));
+		this.changeSource.emit(new MongoDBChangeEvent(NS, "oid9", null, null));
+		this.nearCache.invalidateAll("xdi2graph.contexts_1", GRAPH);
+
+		this.nearCache.putLoad(NS, GRAPH, "=a", "oid1", literal("a"), generation);
+		assertNotNull(this.nearCache.getLoad(NS, GRAPH, "=a"));
+
+		// a change of a document of the result does
+
+		generation = this.nearCache.getGeneration();
+		this.changeSource.emit(new MongoDBChangeEvent(NS, "oid2", null, null));
+
+		this.nearCache.putLoad(NS, GRAPH, "=b", "oid2", literal("b"), generation);
+		assertNull(this.nearCache.getLoad(NS, GRAPH, "=b"));
+	}
+
+	public void testDrop() throws Exception {
+
+		this.nearCache.putLoad(NS, GRAPH, "=a", "oid1", literal("a"), this.nearCache.getGeneration());
+		this.nearCache.putLoad("(=!:uuid:2222).contexts", null, "=a", "=a", literal("a"), this.nearCache.getGeneration());
+
+		// creating collections and indexes drops nothing
+
+		assertTrue(MongoDBOplogTailer.toDroppedNamespaces("xdi2graph.$cmd", new BasicDBObject("create", "contexts")).isEmpty());
+		assertTrue(MongoDBOplogTailer.toDroppedNamespaces("xdi2graph.$cmd", new BasicDBObject("createIndexes", "contexts")).isEmpty());
+		assertTrue(MongoDBOplogTailer.toDroppedNamespaces("xdi2graph.$cmd", new BasicDBObject("drop", "graphs")).isEmpty());
+
+		assertEquals(Arrays.asList(NS), MongoDBOplogTailer.toDroppedNamespaces("xdi2graph.$cmd", new BasicDBObject("drop", "contexts")));
+		assertEquals(Arrays.asList("(=!:uuid:2222)."), MongoDBOplogTailer.toDroppedNamespaces("(=!:uuid:2222).$cmd", new BasicDBObject("dropDatabase", Integer.valueOf(1))));
+
+		// only the dropped namespace is removed
+
+		for (String namespace : MongoDBOplogTailer.toDroppedNamespaces("(=!:uuid:2222).$cmd", new BasicDBObject("dropDatabase", Integer.valueOf(1)))) this.changeSource.drop(namespace);
+
+		assertNull(this.nearCache.getLoad("(=!:uuid:2222).contexts", null, "=a"));
+		assertNotNull(this.nearCache.getLoad(NS, GRAPH, "=a"));
+	}
+
+	public void testReset() throws Exception {
+
+		this.nearCache.putLoad(NS, GRAPH, "=a", "oid1", literal("a"), this.nearCache.getGeneration());
+		this.changeSource.reset();
+
+		assertNull(this.nearCache.getLoad(NS, GRAPH, "=a"));
+		assertEquals(0, this.nearCache.getSize());
+		assertEquals(0, this.nearCache.getBytes());
+	}
+
+	public void testEviction() throws Exception {
+
+		MongoDBNearCache nearCache = new MongoDBNearCache(4096L);
+
+		for (int i = 0; i < 100; i++) nearCache.putLoad(NS, GRAPH, "=a#" + i, "oid" + i, literal("value " + i), nearCache.getGeneration());
+
+		assertTrue(nearCache.getBytes() <= 4096L);
+		assertTrue(nearCache.getSize() < 100);
+		assertNull(nearCache.getLoad(NS, GRAPH, "=a#0"));
+		assertNotNull(nearCache.getLoad(NS, GRAPH, "=a#99"));
+	}
+
+	private static JsonObject literal(String value) {
+
+		JsonObject jsonObject = new JsonObject();
+		jsonObject.add("&", new JsonPrimitive(value));
+
+		return jsonObject;
+	}
+
+	/**
+	 * A change source that emits the events it is given, standing in for the oplog.
+	 */
+	private static class LocalChangeSource implements MongoDBChangeSource {
+
+		private List<MongoDBChangeListener> listeners = new CopyOnWriteArrayList<MongoDBChangeListener> ();
+
+		@Override
+		public void addListener(MongoDBChangeListener listener) {
+
+			this.listeners.add(listener);
+		}
+
+		@Override
+		public void removeListener(MongoDBChangeListener listener) {
+
+			this.listeners.remove(listener);
+		}
+
+		@Override
+		public void close() {
+
+			this.listeners.clear();
+		}
+
+		private void emit(MongoDBChangeEvent event) {
+
+			for (MongoDBChangeListener listener : this.listeners) listener.onChange(event);
+		}
+
+		private void reset() {
+
+			for (MongoDBChangeListener listener : this.listeners) listener.onReset();
+		}
+
+		private void drop(String namespace) {
+
+			for (MongoDBChangeListener listener : this.listeners) listener.onDrop(namespace);
+		}
+	}
+}
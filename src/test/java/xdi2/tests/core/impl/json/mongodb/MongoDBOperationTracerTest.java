@@ -0,0 +1,112 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import xdi2.core.impl.json.mongodb.MongoDBOperation;
+import xdi2.core.impl.json.mongodb.MongoDBOperationTracer;
+
+/**
+ * Checks that the tracer keeps a bounded sample of operations and renders them on demand.
+ */
+public class MongoDBOperationTracerTest extends TestCase {
+
+	public void testRender() throws Exception {
+
+		MongoDBOperationTracer tracer = new MongoDBOperationTracer(10, 1);
+
+		tracer.trace(MongoDBOperation.LOAD, "graph", "=a", null, 120, 3000000, false);
+		tracer.trace(MongoDBOperation.SAVE_TO_OBJECT, "graph", "=a", "&", 10, 1000, true);
+
+		List<String> traces = tracer.render(0);
+
+		assertEquals(2, traces.size());
+		assertTrue(traces.get(0).endsWith("LOAD graph =a 120 bytes 3000 us"));
+		assertTrue(traces.get(1).endsWith("SAVE_TO_OBJECT graph =a & 10 bytes 1 us FAILED"));
+
+		// only the operations since a sequence number
+
+		long sequence = tracer.getSequence();
+		tracer.trace(MongoDBOperation.DELETE, "graph", "=b", null, 0, 1000, false);
+
+		traces = tracer.render(sequence);
+
+		assertEquals(1, traces.size());
+		assertTrue(traces.get(0).contains("DELETE graph =b"));
+	}
+
+	public void testCapacity() throws Exception {
+
+		MongoDBOperationTracer tracer = new MongoDBOperationTracer(10, 1);
+
+		for (int i = 0; i < 25; i++) tracer.trace(MongoDBOperation.LOAD, "graph", "=a#" + i, null, 0, 0, false);
+
+		List<String> traces = tracer.render(0);
+
+		assertEquals(10, traces.size());
+		assertTrue(traces.get(0).contains("=a#15 "));
+		assertTrue(traces.get(9).contains("=a#24 "));
+
+		try {
+
+			new MongoDBOperationTracer(0, 1);
+			fail("A capacity of 0 should be rejected");
+		} catch (IllegalArgumentException ex) {
+
+		}
+
+		tracer = new MongoDBOperationTracer(1, 0);
+		tracer.trace(MongoDBOperation.LOAD, "graph", "=a", null, 0, 0, false);
+		tracer.trace(MongoDBOperation.LOAD, "graph", "=b", null, 0, 0, false);
+
+		assertEquals(1, tracer.getSampleInterval());
+		assertEquals(1, tracer.render(0).size());
+	}
+
+	public void testCount() throws Exception {
+
+		Set<MongoDBOperation> loads = EnumSet.of(MongoDBOperation.LOAD, MongoDBOperation.LOAD_WITH_PREFIX);
+		Set<MongoDBOperation> writes = EnumSet.of(MongoDBOperation.SAVE_TO_OBJECT, MongoDBOperation.DELETE);
+
+		MongoDBOperationTracer tracer = new MongoDBOperationTracer(10, 1);
+
+		tracer.trace(MongoDBOperation.LOAD, "graph", "=a", null, 0, 0, false);
+
+		long sequence = tracer.getSequence();
+
+		tracer.trace(MongoDBOperation.LOAD, "graph", "=a", null, 0, 0, true, false);
+		tracer.trace(MongoDBOperation.LOAD, "graph", "=b", null, 0, 0, false, false);
+		tracer.trace(MongoDBOperation.LOAD_WITH_PREFIX, "graph", "=a", null, 0, 0, true, false);
+		tracer.trace(MongoDBOperation.SAVE_TO_OBJECT, "graph", "=a", "&", 0, 0, false);
+		tracer.trace(MongoDBOperation.DELETE, "graph", "=a", null, 0, 0, true);
+
+		// only the operations since the sequence number
+
+		assertEquals(2, tracer.count(sequence, loads, Boolean.TRUE));
+		assertEquals(1, tracer.count(sequence, loads, Boolean.FALSE));
+		assertEquals(3, tracer.count(sequence, loads, null));
+		assertEquals(2, tracer.count(sequence, writes, null));
+		assertEquals(4, tracer.count(0, loads, null));
+
+		assertTrue(tracer.render(sequence).get(0).endsWith("LOAD graph =a 0 bytes 0 us cached"));
+
+		// overwritten operations are not counted
+
+		for (int i = 0; i < 10; i++) tracer.trace(MongoDBOperation.SAVE_TO_OBJECT, "graph", "=a", "&", 0, 0, false);
+
+		assertEquals(0, tracer.count(sequence, loads, null));
+		assertEquals(10, tracer.count(sequence, writes, null));
+	}
+
+	public void testSampling() throws Exception {
+
+		MongoDBOperationTracer tracer = new MongoDBOperationTracer(100, 10);
+
+		for (int i = 0; i < 50; i++) tracer.trace(MongoDBOperation.LOAD, "graph", "=a#" + i, null, 0, 0, false);
+
+		assertEquals(50, tracer.getOperations());
+		assertEquals(5, tracer.render(0).size());
+	}
+}
@@ -0,0 +1,137 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+import xdi2.core.impl.json.mongodb.MongoDBJSONStore;
+import xdi2.core.impl.json.mongodb.MongoDBNearCache;
+import xdi2.core.impl.json.mongodb.MongoDBReadRouter;
+
+import com.google.gson.JsonPrimitive;
+import com.mongodb.ReadPreference;
+
+/**
+ * Checks that graphs read from the primary after they were written, and that reads into the near-cache
+ * always do.
+ */
+public class MongoDBReadRouterTest extends TestCase {
+
+	private static final String GRAPH = "xdi2graph.contexts (=!:uuid:1111)";
+	private static final String OTHER_GRAPH = "xdi2graph.contexts (=!:uuid:2222)";
+
+	public void testPrimaryWindow() throws Exception {
+
+		MongoDBReadRouter readRouter = new MongoDBReadRouter(ReadPreference.secondaryPreferred(), 200, MongoDBReadRouter.DEFAULT_MAX_GRAPHS);
+
+		assertEquals(ReadPreference.secondaryPreferred(), readRouter.getReadPreference(GRAPH));
+
+		readRouter.onWrite(GRAPH);
+
+		assertEquals(ReadPreference.primary(), readRouter.getReadPreference(GRAPH));
+		assertEquals(ReadPreference.secondaryPreferred(), readRouter.getReadPreference(OTHER_GRAPH));
+
+		Thread.sleep(300);
+
+		assertEquals(ReadPreference.secondaryPreferred(), readRouter.getReadPreference(GRAPH));
+	}
+
+	public void testMaxGraphs() throws Exception {
+
+		MongoDBReadRouter readRouter = new MongoDBReadRouter(ReadPreference.secondaryPreferred(), 60000, 2);
+
+		readRouter.onWrite("=a");
+		readRouter.onWrite("=b");
+		readRouter.onWrite("=a");
+		readRouter.onWrite("=c");
+
+		// the graph written longest ago is forgotten first
+
+		assertEquals(ReadPreference.secondaryPreferred(), readRouter.getReadPreference("=b"));
+		assertEquals(ReadPreference.primary(), readRouter.getReadPreference("=a"));
+		assertEquals(ReadPreference.primary(), readRouter.getReadPreference("=c"));
+	}
+
+	public void testCachedReads() throws Exception {
+
+		MongoDBReadRouter readRouter = new MongoDBReadRouter(ReadPreference.secondaryPreferred());
+
+		assertEquals(ReadPreference.primary(), readRouter.getReadPreference(GRAPH, true));
+		assertEquals(ReadPreference.secondaryPreferred(), readRouter.getReadPreference(GRAPH, false));
+	}
+
+	public void testStoreWithNearCache() throws Exception {
+
+		MongoDBTestSupport.cleanup();
+
+		RecordingReadRouter readRouter = new RecordingReadRouter();
+
+		MongoDBJSONStore jsonStore = MongoDBTestSupport.createGraphFactory().openStore("=router");
+		jsonStore.setReadRouter(readRouter);
+		jsonStore.setNearCache(new MongoDBNearCache());
+
+		jsonStore.saveToObject("=a", "&", new JsonPrimitive("a"));
+		readRouter.cached.clear();
+
+		// reads that fill the near-cache go to the primary, others may go to a secondary
+
+		jsonStore.load("=a");
+		jsonStore.loadWithPrefix("=a");
+		jsonStore.load("=a", Collections.singletonList("&"));
+
+		assertEquals(3, readRouter.cached.size());
+		assertEquals(Boolean.TRUE, readRouter.cached.get(0));
+		assertEquals(Boolean.TRUE, readRouter.cached.get(1));
+		assertEquals(Boolean.FALSE, readRouter.cached.get(2));
+
+		// cache hits are not read at all
+
+		jsonStore.load("=a");
+
+		assertEquals(3, readRouter.cached.size());
+
+		jsonStore.close();
+
+		MongoDBTestSupport.cleanup();
+	}
+
+	public void testStoreWithoutNearCache() throws Exception {
+
+		MongoDBTestSupport.cleanup();
+
+		RecordingReadRouter readRouter = new RecordingReadRouter();
+
+		MongoDBJSONStore jsonStore = MongoDBTestSupport.createGraphFactory().openStore("=router");
+		jsonStore.setReadRouter(readRouter);
+
+		jsonStore.load("=a");
+		jsonStore.loadWithPrefix("=a");
+
+		assertEquals(2, readRouter.cached.size());
+		assertEquals(Boolean.FALSE, readRouter.cached.get(0));
+		assertEquals(Boolean.FALSE, readRouter.cached.get(1));
+
+		jsonStore.close();
+
+		MongoDBTestSupport.cleanup();
+	}
+
+	private static class RecordingReadRouter extends MongoDBReadRouter {
+
+		private final List<Boolean> cached = Collections.synchronizedList(new ArrayList<Boolean> ());
+
+		private RecordingReadRouter() {
+
+			super(ReadPreference.secondaryPreferred());
+		}
+
+		@Override
+		public ReadPreference getReadPreference(String graph, boolean cached) {
+
+			this.cached.add(Boolean.valueOf(cached));
+
+			return super.getReadPreference(graph, cached);
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+import xdi2.core.impl.json.mongodb.MongoDBJSONStore;
+import xdi2.core.impl.json.mongodb.MongoDBSharding;
+import xdi2.core.impl.json.mongodb.MongoDBSubtreeReaper;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Checks the queries on a sharded shared collection against a simulated router,
+ * which sends a query to one shard if it is targeted, and to all shards otherwise.
+ */
+public class MongoDBShardingTest extends TestCase {
+
+	private static final int SHARDS = 4;
+
+	public void testShardKey() throws Exception {
+
+		MongoDBSharding sharding = new MongoDBSharding();
+
+		assertEquals(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, MongoDBSharding.HASHED), sharding.getShardKey());
+
+		sharding.setHashedFlag(Boolean.FALSE);
+
+		assertEquals(Arrays.asList(MongoDBJSONStore.XDI2_OBJ_ID, MongoDBJSONStore.XDI2_OBJ_KEY), Arrays.asList(sharding.getShardKey().keySet().toArray()));
+	}
+
+	public void testTargetedQueries() throws Exception {
+
+		// queries as the store makes them: a context, a prefix, several contexts
+
+		assertEquals(1, route(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, "graph").append(MongoDBJSONStore.XDI2_OBJ_KEY, "=a")).size());
+		assertEquals(1, route(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, "graph").append(MongoDBJSONStore.XDI2_OBJ_KEY, MongoDBJSONStore.toMongoStartsWithCondition("=a"))).size());
+		assertEquals(1, route(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, Integer.valueOf(7)).append(MongoDBJSONStore.XDI2_OBJ_KEY, new BasicDBObject("$in", Arrays.asList("=a", "=b")))).size());
+		assertEquals(1, route(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, new BasicDBObject("$eq", "graph"))).size());
+
+		// queries without a single graph go to all shards
+
+		assertEquals(SHARDS, route(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_KEY, "=a")).size());
+		assertEquals(SHARDS, route(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, new BasicDBObject("$in", Arrays.asList("g1", "g2")))).size());
+
+		// the same graph always goes to the same shard
+
+		assertEquals(route(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, "graph")), route(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, "graph").append(MongoDBJSONStore.XDI2_OBJ_KEY, "=b")));
+	}
+
+	public void testBatchQuery() throws Exception {
+
+		DBObject query = new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, "graph").append(MongoDBJSONStore.XDI2_OBJ_KEY, MongoDBJSONStore.toMongoStartsWithCondition("=a"));
+
+		BasicDBList documentIds = new BasicDBList();
+		documentIds.add("1");
+		documentIds.add("2");
+
+		DBObject batchQuery = MongoDBSubtreeReaper.getBatchQuery(query, documentIds);
+
+		assertEquals(1, route(batchQuery).size());
+		assertEquals(new BasicDBObject("$in", documentIds), batchQuery.get("_id"));
+
+		// the subtree query itself is unchanged
+
+		assertNull(query.get("_id"));
+	}
+
+	public void testZoneRange() throws Exception {
+
+		DBObject[] range = MongoDBSharding.getZoneRange("([=]");
+
+		assertEquals("([=]", range[0].get(MongoDBJSONStore.XDI2_OBJ_ID));
+		assertEquals("([=^", range[1].get(MongoDBJSONStore.XDI2_OBJ_ID));
+
+		assertTrue(inRange("([=]!:uuid:1111)", range));
+		assertTrue(inRange("([=]markus)", range));
+		assertFalse(inRange("([@]!:uuid:2222)", range));
+
+		assertNull(MongoDBSharding.getZoneRange(""));
+	}
+
+	/**
+	 * The simulated router: a targeted query goes to the shard of the hashed graph identifier.
+	 */
+	private static Set<Integer> route(DBObject query) {
+
+		Object target = getTarget(query);
+		Set<Integer> shards = new HashSet<Integer> ();
+
+		if (target != null) {
+
+			shards.add(Integer.valueOf(Math.abs(target.hashCode() % SHARDS)));
+		} else {
+
+			for (int i = 0; i < SHARDS; i++) shards.add(Integer.valueOf(i));
+		}
+
+		return shards;
+	}
+
+	/**
+	 * Returns the graph identifier a query is targeted at, i.e. the value of its equality
+	 * condition on the shard key, or null if mongos has to send the query to all shards.
+	 */
+	private static Object getTarget(DBObject query) {
+
+		Object id = query.get(MongoDBJSONStore.XDI2_OBJ_ID);
+		if (id == null || id instanceof Pattern) return null;
+
+		if (id instanceof DBObject) {
+
+			DBObject condition = (DBObject) id;
+
+			return condition.keySet().size() == 1 ? condition.get("$eq") : null;
+		}
+
+		return id;
+	}
+
+	private static boolean inRange(String identifier, DBObject[] range) {
+
+		return identifier.compareTo((String) range[0].get(MongoDBJSONStore.XDI2_OBJ_ID)) >= 0 && identifier.compareTo((String) range[1].get(MongoDBJSONStore.XDI2_OBJ_ID)) < 0;
+	}
+}
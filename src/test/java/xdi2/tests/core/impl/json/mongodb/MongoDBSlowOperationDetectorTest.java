@@ -0,0 +1,94 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+import xdi2.core.impl.json.mongodb.MongoDBJSONStore;
+import xdi2.core.impl.json.mongodb.MongoDBOperation;
+import xdi2.core.impl.json.mongodb.MongoDBSlowOperation;
+import xdi2.core.impl.json.mongodb.MongoDBSlowOperationDetector;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Checks that slow operations are recorded with their query shape and the plan read from explain output.
+ */
+public class MongoDBSlowOperationDetectorTest extends TestCase {
+
+	public void testQueryShape() throws Exception {
+
+		DBObject range = new BasicDBObject("id", "(=!:uuid:1111)").append("key", MongoDBJSONStore.toMongoStartsWithCondition("=a"));
+		DBObject otherRange = new BasicDBObject("id", "(=!:uuid:2222)").append("key", MongoDBJSONStore.toMongoStartsWithCondition("=b#c"));
+
+		assertEquals(MongoDBSlowOperationDetector.toQueryShape(range), MongoDBSlowOperationDetector.toQueryShape(otherRange));
+		assertEquals(new BasicDBObject("id", "?").append("key", new BasicDBObject("$gte", "?").append("$lt", "?")), MongoDBSlowOperationDetector.toQueryShape(range));
+
+		DBObject regex = new BasicDBObject("_id", Pattern.compile("^\\=a"));
+		assertEquals(new BasicDBObject("_id", "/?/"), MongoDBSlowOperationDetector.toQueryShape(regex));
+	}
+
+	public void testExplain() throws Exception {
+
+		DBObject explain = new BasicDBObject()
+		.append("queryPlanner", new BasicDBObject("winningPlan", new BasicDBObject("stage", "FETCH").append("inputStage", new BasicDBObject("stage", "IXSCAN").append("indexName", "idx_id_key"))))
+		.append("executionStats", new BasicDBObject("nReturned", Integer.valueOf(3)).append("totalKeysExamined", Integer.valueOf(3)).append("totalDocsExamined", Long.valueOf(3)));
+
+		MongoDBSlowOperation slowOperation = MongoDBSlowOperationDetector.toSlowOperation(0, MongoDBOperation.LOAD_WITH_PREFIX, "xdi2graph.contexts", "(=!:uuid:1111)", "=a", 250000000L, "{}", explain);
+
+		assertEquals("LOAD_WITH_PREFIX", slowOperation.getOperation());
+		assertEquals(250000, slowOperation.getMicros());
+		assertEquals("FETCH <- IXSCAN idx_id_key", slowOperation.getPlanSummary());
+		assertFalse(slowOperation.isCollectionScan());
+		assertEquals(3, slowOperation.getKeysExamined());
+		assertEquals(3, slowOperation.getDocsExamined());
+		assertEquals(3, slowOperation.getReturned());
+	}
+
+	public void testExplainCollectionScan() throws Exception {
+
+		DBObject explain = new BasicDBObject()
+		.append("queryPlanner", new BasicDBObject("winningPlan", new BasicDBObject("stage", "DELETE").append("inputStage", new BasicDBObject("stage", "COLLSCAN"))))
+		.append("executionStats", new BasicDBObject("nReturned", Integer.valueOf(0)).append("totalKeysExamined", Integer.valueOf(0)).append("totalDocsExamined", Integer.valueOf(500000)));
+
+		MongoDBSlowOperation slowOperation = MongoDBSlowOperationDetector.toSlowOperation(0, MongoDBOperation.DELETE, "xdi2graph.contexts", null, "=a", 0, "{}", explain);
+
+		assertTrue(slowOperation.isCollectionScan());
+		assertEquals(500000, slowOperation.getDocsExamined());
+	}
+
+	public void testLegacyExplain() throws Exception {
+
+		DBObject explain = new BasicDBObject("cursor", "BasicCursor").append("n", Integer.valueOf(1)).append("nscanned", Integer.valueOf(1000)).append("nscannedObjects", Integer.valueOf(1000));
+
+		MongoDBSlowOperation slowOperation = MongoDBSlowOperationDetector.toSlowOperation(0, MongoDBOperation.LOAD, "graph.contexts", null, "=a", 0, "{}", explain);
+
+		assertTrue(slowOperation.isCollectionScan());
+		assertEquals("BasicCursor", slowOperation.getPlanSummary());
+		assertEquals(1000, slowOperation.getKeysExamined());
+		assertEquals(1, slowOperation.getReturned());
+	}
+
+	public void testWithoutExplain() throws Exception {
+
+		MongoDBSlowOperation slowOperation = MongoDBSlowOperationDetector.toSlowOperation(0, MongoDBOperation.SAVE, "graph.contexts", null, "=a", 0, "{}", null);
+
+		assertNull(slowOperation.getPlanSummary());
+		assertFalse(slowOperation.isCollectionScan());
+		assertEquals(-1, slowOperation.getDocsExamined());
+	}
+
+	public void testCapacity() throws Exception {
+
+		try {
+
+			new MongoDBSlowOperationDetector(100, 0);
+			fail("A capacity of 0 should be rejected");
+		} catch (IllegalArgumentException ex) {
+
+		}
+
+		MongoDBSlowOperationDetector slowOperationDetector = new MongoDBSlowOperationDetector(100, 1);
+		assertEquals(0, slowOperationDetector.getSlowOperations().size());
+	}
+}
@@ -0,0 +1,151 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import java.nio.charset.Charset;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+import xdi2.core.impl.json.mongodb.MongoDBJSONStore;
+
+import com.mongodb.DBObject;
+
+/**
+ * Checks that the conditions of toMongoStartsWithCondition() match the same keys as
+ * String.startsWith(), comparing strings in UTF-8 byte order like MongoDB does.
+ */
+public class MongoDBStartsWithConditionTest extends TestCase {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String[] KEYS = new String[] {
+		"",
+		"=a",
+		"=a/1",
+		"=a!",
+		"=a.b",
+		"=axb",
+		"=a.b/1",
+		"=a*",
+		"=a*b",
+		"=ab",
+		"=a?",
+		"=a?b",
+		"=a\ufffe",
+		"=a\uffff",
+		"=a\uffff/1",
+		"=a\uffff\uffff",
+		"=a\ud7ff",
+		"=a\ud7ff/1",
+		"=a\ud800\udc00",
+		"=a\ud83d\ude00",
+		"=a\ud83d\ude00/1",
+		"=a\ud83d\ude01",
+		"=a\ue000",
+		"=b",
+		"[=]!:uuid:1"
+	};
+
+	public void testEmptyPrefix() throws Exception {
+
+		assertMatches("", DBObject.class);
+	}
+
+	public void testRange() throws Exception {
+
+		assertMatches("=", DBObject.class);
+		assertMatches("=a", DBObject.class);
+		assertMatches("=a/", DBObject.class);
+		assertMatches("=a\ufffe", DBObject.class);
+		assertMatches("=a\ue000", DBObject.class);
+	}
+
+	public void testMaxValue() throws Exception {
+
+		assertMatches("=a\uffff", Pattern.class);
+		assertMatches("=a\uffff\uffff", Pattern.class);
+	}
+
+	public void testSurrogates() throws Exception {
+
+		// incrementing the last character would give a surrogate, or break a surrogate pair
+
+		assertMatches("=a\ud7ff", Pattern.class);
+		assertMatches("=a\ud83d\ude00", Pattern.class);
+	}
+
+	public void testEscaping() throws Exception {
+
+		// special characters keep their meaning in a key range, and are quoted in the regex
+
+		assertMatches("=a.", DBObject.class);
+		assertMatches("=a*", DBObject.class);
+		assertMatches("=a?", DBObject.class);
+
+		assertMatches("=a.b\uffff", Pattern.class);
+		assertMatches("=a*\uffff", Pattern.class);
+		assertMatches("=a?\uffff", Pattern.class);
+		assertMatches("=a.\ud83d\ude00", Pattern.class);
+		assertMatches("[=]!:uuid:1\uffff", Pattern.class);
+
+		Pattern pattern = (Pattern) MongoDBJSONStore.toMongoStartsWithCondition("=a.*?\uffff");
+
+		assertTrue(pattern.matcher("=a.*?\uffff").find());
+		assertFalse(pattern.matcher("=ab*?\uffff").find());
+		assertFalse(pattern.matcher("=a.\uffff").find());
+		assertFalse(pattern.matcher("=a.*\uffff").find());
+		assertFalse(pattern.matcher("x=a.*?\uffff").find());
+	}
+
+	private static void assertMatches(String prefix, Class<?> conditionClass) {
+
+		Object condition = MongoDBJSONStore.toMongoStartsWithCondition(prefix);
+
+		assertTrue(condition.getClass().getName(), conditionClass.isInstance(condition));
+
+		for (String key : KEYS) {
+
+			assertEquals(escape(prefix) + " " + escape(key), key.startsWith(prefix), matches(condition, key));
+			assertEquals(escape(prefix) + " " + escape(key + "/x"), (key + "/x").startsWith(prefix), matches(condition, key + "/x"));
+		}
+	}
+
+	private static boolean matches(Object condition, String key) {
+
+		if (condition instanceof Pattern) return ((Pattern) condition).matcher(key).find();
+
+		DBObject range = (DBObject) condition;
+
+		if (range.get("$gte") != null && compare(key, (String) range.get("$gte")) < 0) return false;
+		if (range.get("$lt") != null && compare(key, (String) range.get("$lt")) >= 0) return false;
+
+		return true;
+	}
+
+	/**
+	 * Compares strings by their UTF-8 bytes, like MongoDB.
+	 */
+	private static int compare(String string1, String string2) {
+
+		byte[] bytes1 = string1.getBytes(UTF8);
+		byte[] bytes2 = string2.getBytes(UTF8);
+
+		for (int i = 0; i < bytes1.length && i < bytes2.length; i++) {
+
+			int difference = (bytes1[i] & 0xff) - (bytes2[i] & 0xff);
+			if (difference != 0) return difference;
+		}
+
+		return bytes1.length - bytes2.length;
+	}
+
+	private static String escape(String string) {
+
+		StringBuilder buffer = new StringBuilder();
+
+		for (char c : string.toCharArray()) {
+
+			if (c < 128) buffer.append(c); else buffer.append(String.format("\\u%04x", Integer.valueOf(c)));
+		}
+
+		return buffer.toString();
+	}
+}
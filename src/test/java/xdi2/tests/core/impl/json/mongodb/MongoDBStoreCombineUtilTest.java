@@ -0,0 +1,265 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+import xdi2.core.impl.json.mongodb.MongoDBCompactSchema;
+import xdi2.core.impl.json.mongodb.MongoDBJSONGraphFactory;
+import xdi2.core.impl.json.mongodb.MongoDBJSONStore;
+import xdi2.core.impl.json.mongodb.util.MongoDBStoreCombineUtil;
+
+import com.github.fakemongo.Fongo;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+
+/**
+ * Copies per-graph databases and a single collection between two in-memory MongoDB stand-ins.
+ */
+public class MongoDBStoreCombineUtilTest extends TestCase {
+
+	private static final String GRAPH_A = "([=]!:uuid:1111)";
+	private static final String GRAPH_B = "([=]!:uuid:2222)";
+
+	private static final int RECORDS = 7;
+
+	private MongoClient srcClient;
+	private MongoClient dstClient;
+	private File checkpointFile;
+
+	@Override
+	protected void setUp() throws Exception {
+
+		super.setUp();
+
+		this.srcClient = new Fongo("xdi2-combine-src").getMongo();
+		this.dstClient = new Fongo("xdi2-combine-dst").getMongo();
+
+		this.checkpointFile = File.createTempFile("xdi2-combine", ".checkpoint");
+		this.checkpointFile.delete();
+
+		createGraph(this.srcClient, GRAPH_A);
+		createGraph(this.srcClient, GRAPH_B);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		super.tearDown();
+
+		this.checkpointFile.delete();
+	}
+
+	public void testCopy() throws Exception {
+
+		MongoDBStoreCombineUtil util = this.createUtil();
+		util.copy();
+
+		// every record of both graphs, in several batches
+
+		assertEquals(2, util.getTotalGraphs());
+		assertEquals(2 * (RECORDS + 1), util.getTotalRecords());
+		assertEquals(0, util.getTotalSkipped());
+
+		DBCollection dst = this.getTarget();
+
+		assertEquals(2 * (RECORDS + 1), dst.count());
+		assertEquals(RECORDS + 1, dst.count(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, GRAPH_A)));
+		assertEquals(RECORDS + 1, dst.count(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, GRAPH_B)));
+		assertEquals(Integer.valueOf(3), dst.findOne(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, GRAPH_B).append(MongoDBJSONStore.XDI2_OBJ_KEY, "=a/3")).get("&"));
+	}
+
+	public void testDuplicates() throws Exception {
+
+		DBCollection dst = this.getTarget();
+		MongoDBJSONStore.ensureIndex(dst);
+
+		dst.insert(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, GRAPH_A).append(MongoDBJSONStore.XDI2_OBJ_KEY, "=a/1").append("&", Integer.valueOf(1)));
+		dst.insert(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, GRAPH_A).append(MongoDBJSONStore.XDI2_OBJ_KEY, "=a/5").append("&", Integer.valueOf(5)));
+
+		MongoDBStoreCombineUtil util = this.createUtil();
+		util.copy();
+
+		// the existing records are skipped, the rest of their batches is still inserted
+
+		assertEquals(2 * (RECORDS + 1) - 2, util.getTotalRecords());
+		assertEquals(2, util.getTotalSkipped());
+		assertEquals(2 * (RECORDS + 1), dst.count());
+		assertEquals(RECORDS + 1, dst.count(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, GRAPH_A)));
+	}
+
+	public void testResume() throws Exception {
+
+		MongoDBStoreCombineUtil util = this.createUtil();
+		util.copy();
+
+		String dbA = MongoDBJSONGraphFactory.hashIdentifier(GRAPH_A);
+		String dbB = MongoDBJSONGraphFactory.hashIdentifier(GRAPH_B);
+
+		assertEquals(new HashSet<String> (Arrays.asList(dbA, dbB)), new HashSet<String> (readLines(this.checkpointFile)));
+
+		// interrupted while copying B: only A is in the checkpoint, and B is only partly in the target
+
+		writeLines(this.checkpointFile, dbA);
+
+		DBCollection dst = this.getTarget();
+
+		for (int i = 4; i <= RECORDS; i++) dst.remove(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, GRAPH_B).append(MongoDBJSONStore.XDI2_OBJ_KEY, "=a/" + i));
+
+		// a record added to A is not copied, since A is not copied again
+
+		this.srcClient.getDB(dbA).getCollection(MongoDBJSONStore.XDI2_DBCOLLECTION).insert(new BasicDBObject("_id", "=a/new"));
+
+		util = this.createUtil();
+		util.copy();
+
+		assertEquals(1, util.getTotalGraphs());
+		assertEquals(RECORDS - 3, util.getTotalRecords());
+		assertEquals(4, util.getTotalSkipped());
+
+		assertEquals(RECORDS + 1, dst.count(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, GRAPH_A)));
+		assertEquals(RECORDS + 1, dst.count(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, GRAPH_B)));
+		assertEquals(new HashSet<String> (Arrays.asList(dbA, dbB)), new HashSet<String> (readLines(this.checkpointFile)));
+	}
+
+	public void testBuckets() throws Exception {
+
+		MongoDBStoreCombineUtil util = this.createUtil();
+		util.setBuckets(4);
+		util.copy();
+
+		DB dstDB = this.dstClient.getDB(MongoDBJSONStore.XDI2_DBNAME);
+
+		// each graph in the bucket of its identifier, as the graph factory would look for it
+
+		for (String identifier : new String[] { GRAPH_A, GRAPH_B }) {
+
+			DBCollection bucket = dstDB.getCollection(MongoDBJSONStore.getBucketCollectionName(identifier, 4));
+
+			assertEquals(RECORDS + 1, bucket.count(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, identifier)));
+		}
+
+		long total = 0;
+		for (int i = 0; i < 4; i++) total += dstDB.getCollection(MongoDBJSONStore.getBucketCollectionName(i)).count();
+
+		assertEquals(2 * (RECORDS + 1), total);
+		assertEquals(0, dstDB.getCollection(MongoDBJSONStore.XDI2_DBCOLLECTION).count());
+	}
+
+	public void testCopyShared() throws Exception {
+
+		DB srcDB = this.srcClient.getDB(MongoDBJSONStore.XDI2_DBNAME);
+		DBCollection src = srcDB.getCollection(MongoDBJSONStore.XDI2_DBCOLLECTION);
+
+		for (int i = 1; i <= RECORDS; i++) {
+
+			src.insert(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, "=a").append(MongoDBJSONStore.XDI2_OBJ_KEY, "=a/" + i));
+			src.insert(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, "=b").append(MongoDBJSONStore.XDI2_OBJ_KEY, "=b/" + i));
+		}
+
+		// a record in the compact format, with the number of its graph
+
+		srcDB.getCollection(MongoDBCompactSchema.GRAPHS_COLLECTION).insert(new BasicDBObject("_id", "=c").append("n", Integer.valueOf(1)));
+		src.insert(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, Integer.valueOf(1)).append(MongoDBJSONStore.XDI2_OBJ_KEY, "=c"));
+
+		MongoDBStoreCombineUtil util = this.createUtil();
+		util.setBuckets(4);
+		util.copyShared();
+
+		assertEquals(2 * RECORDS + 1, util.getTotalRecords());
+
+		DB dstDB = this.dstClient.getDB(MongoDBJSONStore.XDI2_DBNAME);
+
+		assertEquals(RECORDS, dstDB.getCollection(MongoDBJSONStore.getBucketCollectionName("=a", 4)).count(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, "=a")));
+		assertEquals(RECORDS, dstDB.getCollection(MongoDBJSONStore.getBucketCollectionName("=b", 4)).count(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, "=b")));
+		assertEquals(1, dstDB.getCollection(MongoDBJSONStore.getBucketCollectionName("=c", 4)).count(new BasicDBObject(MongoDBJSONStore.XDI2_OBJ_ID, Integer.valueOf(1))));
+		assertEquals("=c", MongoDBCompactSchema.getGraphIdentifiers(dstDB).get(Integer.valueOf(1)));
+
+		// the records keep their _id, so a repeated run skips all of them
+
+		util = this.createUtil();
+		util.setBuckets(4);
+		util.copyShared();
+
+		assertEquals(0, util.getTotalRecords());
+		assertEquals(2 * RECORDS + 1, util.getTotalSkipped());
+	}
+
+	private MongoDBStoreCombineUtil createUtil() {
+
+		MongoDBStoreCombineUtil util = new MongoDBStoreCombineUtil(null, null, null, null, Boolean.FALSE, Boolean.FALSE);
+		util.setThreads(2);
+		util.setBatchSize(3);
+		util.setCheckpointFile(this.checkpointFile.getPath());
+
+		assertTrue(util.init(this.srcClient, this.dstClient));
+
+		return util;
+	}
+
+	private DBCollection getTarget() {
+
+		return this.dstClient.getDB(MongoDBJSONStore.XDI2_DBNAME).getCollection(MongoDBJSONStore.XDI2_DBCOLLECTION);
+	}
+
+	/**
+	 * Creates a graph in its own database, in the format before the databases were combined.
+	 */
+	private static void createGraph(MongoClient mongoClient, String identifier) {
+
+		DBCollection dbCollection = mongoClient.getDB(MongoDBJSONGraphFactory.hashIdentifier(identifier)).getCollection(MongoDBJSONStore.XDI2_DBCOLLECTION);
+
+		BasicDBList numbers = new BasicDBList();
+		numbers.add(identifier.substring("([=]".length(), identifier.length() - 1));
+
+		dbCollection.insert(new BasicDBObject("_id", "[=]").append("", numbers));
+
+		for (int i = 1; i <= RECORDS; i++) dbCollection.insert(new BasicDBObject("_id", "=a/" + i).append("&", Integer.valueOf(i)));
+	}
+
+	private static List<String> readLines(File file) throws Exception {
+
+		List<String> lines = new ArrayList<String> ();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+		try {
+
+			String line;
+			while ((line = reader.readLine()) != null) lines.add(line);
+		} finally {
+
+			reader.close();
+		}
+
+		return lines;
+	}
+
+	private static void writeLines(File file, String... lines) throws Exception {
+
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+
+		try {
+
+			for (String line : lines) {
+
+				writer.write(line);
+				writer.newLine();
+			}
+		} finally {
+
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import java.io.IOException;
+
+import xdi2.core.impl.json.mongodb.MongoClientRegistry;
+import xdi2.core.impl.json.mongodb.MongoDBJSONGraphFactory;
+import xdi2.core.impl.json.mongodb.MongoDBJSONStore;
+
+import com.github.fakemongo.Fongo;
+import com.mongodb.DB;
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+
+/**
+ * Lets the graph tests run against the in-memory MongoDB stand-in of Fongo, or against a real
+ * MongoDB if the system property xdi2.mongodb.host is set (see the "mongodb" profile).
+ * Either way, the tests use the mock database.
+ */
+public class MongoDBTestSupport {
+
+	public static final String HOST_PROPERTY = "xdi2.mongodb.host";
+
+	private static MongoClient memoryClient = null;
+	private static MongoClient hostClient = null;
+
+	private MongoDBTestSupport() { }
+
+	/**
+	 * @return the host of the real MongoDB, or null if the tests run in memory.
+	 */
+	public static String getHost() {
+
+		String host = System.getProperty(HOST_PROPERTY);
+
+		return host == null || host.trim().length() == 0 ? null : host.trim();
+	}
+
+	public static synchronized MongoClient getMemoryClient() {
+
+		if (memoryClient == null) memoryClient = new Fongo("xdi2-tests").getMongo();
+
+		return memoryClient;
+	}
+
+	/**
+	 * Returns the mock database, for checking stored documents.
+	 */
+	public static synchronized DB getMockDB() throws IOException {
+
+		if (getHost() == null) return getMemoryClient().getDB(MongoDBJSONStore.XDI2_DBNAME_MOCK);
+
+		if (hostClient == null) hostClient = MongoClientRegistry.acquire(new ServerAddress(getHost()), null);
+
+		return hostClient.getDB(MongoDBJSONStore.XDI2_DBNAME_MOCK);
+	}
+
+	/**
+	 * Creates a factory for the mock database, in memory or on the real MongoDB.
+	 */
+	public static TestGraphFactory createGraphFactory() {
+
+		TestGraphFactory graphFactory = new TestGraphFactory();
+		graphFactory.setMockFlag(Boolean.TRUE);
+
+		if (getHost() != null) {
+
+			graphFactory.setHost(getHost());
+		} else {
+
+			graphFactory.setMongoClient(getMemoryClient());
+		}
+
+		return graphFactory;
+	}
+
+	/**
+	 * Drops the mock database.
+	 */
+	public static void cleanup() {
+
+		if (getHost() != null) {
+
+			MongoDBJSONStore.cleanup(getHost(), null, Boolean.TRUE);
+		} else {
+
+			MongoDBJSONStore.cleanup(getMemoryClient(), Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * A factory whose stores can be opened directly, to test store methods the graph does not use.
+	 */
+	public static class TestGraphFactory extends MongoDBJSONGraphFactory {
+
+		public MongoDBJSONStore openStore(String identifier) throws IOException {
+
+			return (MongoDBJSONStore) this.openJSONStore(identifier);
+		}
+	}
+}
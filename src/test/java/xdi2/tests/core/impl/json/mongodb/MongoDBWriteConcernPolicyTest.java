@@ -0,0 +1,110 @@
+package xdi2.tests.core.impl.json.mongodb;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+import xdi2.core.impl.json.mongodb.MongoDBOperation;
+import xdi2.core.impl.json.mongodb.MongoDBWriteConcernPolicy;
+
+import com.mongodb.WriteConcern;
+
+/**
+ * Checks how the write concern of single writes and of bulk operations is chosen.
+ */
+public class MongoDBWriteConcernPolicyTest extends TestCase {
+
+	private MongoDBWriteConcernPolicy policy;
+
+	@Override
+	protected void setUp() throws Exception {
+
+		super.setUp();
+
+		this.policy = new MongoDBWriteConcernPolicy();
+		this.policy.addRule(Pattern.compile("\\$do"), WriteConcern.MAJORITY);
+		this.policy.addRule(Pattern.compile("<\\$t>$"), WriteConcern.UNACKNOWLEDGED, MongoDBOperation.SAVE_TO_OBJECT);
+		this.policy.addRule(null, Pattern.compile("^/\\$ref$"), WriteConcern.JOURNALED);
+	}
+
+	public void testRules() throws Exception {
+
+		assertEquals(WriteConcern.MAJORITY, this.policy.getWriteConcern(MongoDBOperation.SAVE, "=a$do"));
+		assertEquals(WriteConcern.UNACKNOWLEDGED, this.policy.getWriteConcern(MongoDBOperation.SAVE_TO_OBJECT, "=a<$t>"));
+
+		// the rule only applies to its operations
+
+		assertNull(this.policy.getWriteConcern(MongoDBOperation.SAVE, "=a<$t>"));
+
+		// the first matching rule decides
+
+		assertEquals(WriteConcern.MAJORITY, this.policy.getWriteConcern(MongoDBOperation.SAVE_TO_OBJECT, "=a$do<$t>"));
+	}
+
+	public void testKeyRules() throws Exception {
+
+		assertEquals(WriteConcern.JOURNALED, this.policy.getWriteConcern(MongoDBOperation.SAVE_TO_ARRAY, "=a", "/$ref"));
+		assertNull(this.policy.getWriteConcern(MongoDBOperation.SAVE_TO_ARRAY, "=a", "/+friend"));
+
+		// key rules do not apply to writes of whole contexts
+
+		assertNull(this.policy.getWriteConcern(MongoDBOperation.SAVE, "=a"));
+		assertNull(this.policy.getWriteConcern(MongoDBOperation.SAVE, "=a", null));
+	}
+
+	public void testOperationsAndDefault() throws Exception {
+
+		this.policy.setWriteConcern(MongoDBOperation.SAVE_TO_ARRAY, WriteConcern.REPLICA_ACKNOWLEDGED);
+		this.policy.setDefaultWriteConcern(WriteConcern.ACKNOWLEDGED);
+
+		assertEquals(WriteConcern.REPLICA_ACKNOWLEDGED, this.policy.getWriteConcern(MongoDBOperation.SAVE_TO_ARRAY, "=a", "/+friend"));
+		assertEquals(WriteConcern.ACKNOWLEDGED, this.policy.getWriteConcern(MongoDBOperation.SAVE, "=a"));
+		assertEquals(WriteConcern.MAJORITY, this.policy.getWriteConcern(MongoDBOperation.SAVE_TO_ARRAY, "=a$do", "/+friend"));
+
+		this.policy.setWriteConcern(MongoDBOperation.SAVE_TO_ARRAY, null);
+
+		assertEquals(WriteConcern.ACKNOWLEDGED, this.policy.getWriteConcern(MongoDBOperation.SAVE_TO_ARRAY, "=a", "/+friend"));
+	}
+
+	public void testBulk() throws Exception {
+
+		this.policy.setWriteConcern(MongoDBOperation.BULK, WriteConcern.ACKNOWLEDGED);
+
+		MongoDBWriteConcernPolicy.Write plain = new MongoDBWriteConcernPolicy.Write(MongoDBOperation.SAVE_TO_OBJECT, "=a", "&");
+		MongoDBWriteConcernPolicy.Write timestamp = new MongoDBWriteConcernPolicy.Write(MongoDBOperation.SAVE_TO_OBJECT, "=a<$t>", "&");
+		MongoDBWriteConcernPolicy.Write ref = new MongoDBWriteConcernPolicy.Write(MongoDBOperation.SAVE_TO_ARRAY, "=a", "/$ref");
+		MongoDBWriteConcernPolicy.Write linkContract = new MongoDBWriteConcernPolicy.Write(MongoDBOperation.SAVE, "=a$do", null);
+
+		assertEquals(WriteConcern.ACKNOWLEDGED, this.policy.getBulkWriteConcern(Collections.<MongoDBWriteConcernPolicy.Write> emptyList()));
+		assertEquals(WriteConcern.ACKNOWLEDGED, this.policy.getBulkWriteConcern(Arrays.asList(plain)));
+
+		// a weaker rule does not weaken the bulk operation, the strongest one applies
+
+		assertEquals(WriteConcern.ACKNOWLEDGED, this.policy.getBulkWriteConcern(Arrays.asList(plain, timestamp)));
+		assertEquals(WriteConcern.JOURNALED, this.policy.getBulkWriteConcern(Arrays.asList(plain, ref)));
+		assertEquals(WriteConcern.MAJORITY, this.policy.getBulkWriteConcern(Arrays.asList(ref, linkContract, timestamp)));
+	}
+
+	public void testBulkWithoutBulkWriteConcern() throws Exception {
+
+		MongoDBWriteConcernPolicy.Write plain = new MongoDBWriteConcernPolicy.Write(MongoDBOperation.SAVE, "=a", null);
+		MongoDBWriteConcernPolicy.Write timestamp = new MongoDBWriteConcernPolicy.Write(MongoDBOperation.SAVE_TO_OBJECT, "=a<$t>", "&");
+		MongoDBWriteConcernPolicy.Write linkContract = new MongoDBWriteConcernPolicy.Write(MongoDBOperation.DELETE, "=a$do", null);
+
+		// without a write concern for BULK, the client's is used unless a write needs more
+
+		assertNull(this.policy.getBulkWriteConcern(Arrays.asList(plain, timestamp)));
+		assertEquals(WriteConcern.MAJORITY, this.policy.getBulkWriteConcern(Arrays.asList(plain, linkContract)));
+	}
+
+	public void testStronger() throws Exception {
+
+		assertEquals(WriteConcern.ACKNOWLEDGED, MongoDBWriteConcernPolicy.getStronger(WriteConcern.UNACKNOWLEDGED, WriteConcern.ACKNOWLEDGED));
+		assertEquals(WriteConcern.JOURNALED, MongoDBWriteConcernPolicy.getStronger(WriteConcern.JOURNALED, WriteConcern.ACKNOWLEDGED));
+		assertEquals(WriteConcern.REPLICA_ACKNOWLEDGED, MongoDBWriteConcernPolicy.getStronger(WriteConcern.JOURNALED, WriteConcern.REPLICA_ACKNOWLEDGED));
+		assertEquals(WriteConcern.MAJORITY, MongoDBWriteConcernPolicy.getStronger(new WriteConcern(3), WriteConcern.MAJORITY));
+		assertNull(MongoDBWriteConcernPolicy.getStronger(null, WriteConcern.UNACKNOWLEDGED));
+		assertEquals(WriteConcern.MAJORITY, MongoDBWriteConcernPolicy.getStronger(null, WriteConcern.MAJORITY));
+	}
+}